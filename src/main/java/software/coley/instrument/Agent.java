@@ -1,8 +1,11 @@
 package software.coley.instrument;
 
 import software.coley.instrument.io.ByteBufferAllocator;
+import software.coley.instrument.io.PooledByteBufferAllocator;
 import software.coley.instrument.message.MessageFactory;
 import software.coley.instrument.sock.ChannelHandler;
+import software.coley.instrument.sock.ChannelOptions;
+import software.coley.instrument.sock.ChannelReactor;
 import software.coley.instrument.util.Logger;
 
 import java.io.IOException;
@@ -18,6 +21,7 @@
  */
 public class Agent {
 	private static Server server;
+	private static ChannelReactor reactor;
 
 	/**
 	 * @param agentArgs
@@ -67,6 +71,7 @@ private static void agent(String agentArgs, Instrumentation instrumentation) thr
 			ChannelHandler.threadNameEventLoop = null;
 			ChannelHandler.threadNameRead = null;
 			ChannelHandler.threadNameWrite = null;
+			ChannelHandler.threadNameReactor = null;
 		}
 
 		// Disable tracking reflection-backing trampoline classes
@@ -79,12 +84,36 @@ private static void agent(String agentArgs, Instrumentation instrumentation) thr
 			Logger.prefix = "[Server]";
 			// Determine port
 			int port = getPort(agentArgs);
+			// Share a fixed number of IO threads between all clients if requested
+			ChannelOptions options = new ChannelOptions();
+			if (agentArgs.contains("reactor")) {
+				if (reactor == null || reactor.isClosed())
+					reactor = new ChannelReactor();
+				options.setReactor(reactor);
+			}
+			// Run per-client threads as virtual threads when the JVM supports them
+			if (agentArgs.contains("virtualThreads"))
+				options.setVirtualThreads(true);
+			// Compress large frames to clients that support it
+			if (agentArgs.contains("compress"))
+				options.setCompressionThreshold(ChannelOptions.DEFAULT_COMPRESSION_THRESHOLD);
 			// Create server
 			server = Server.open(instrumentation,
 					new InetSocketAddress("127.0.0.1", port),
-					ByteBufferAllocator.HEAP,
-					MessageFactory.create());
-			Runtime.getRuntime().addShutdownHook(new Thread(() -> server.close()));
+					new PooledByteBufferAllocator(ByteBufferAllocator.HEAP),
+					MessageFactory.create(),
+					options);
+			// Also listen on a Unix domain socket for same-host clients, when the JVM supports it
+			if (agentArgs.contains("unixSocket"))
+				server.openUnixDomainSocket();
+			// Also serve a same-host client over shared memory, when the JVM supports it
+			if (agentArgs.contains("sharedMemory"))
+				server.openSharedMemory();
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				server.close();
+				if (reactor != null)
+					reactor.close();
+			}));
 		}
 	}
 
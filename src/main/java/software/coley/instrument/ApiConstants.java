@@ -1,6 +1,7 @@
 package software.coley.instrument;
 
 import software.coley.instrument.message.broadcast.AbstractBroadcastMessage;
+import software.coley.instrument.message.control.AbstractControlMessage;
 
 /**
  * Various constants for easy access.
@@ -23,4 +24,15 @@ public class ApiConstants {
 	 * {@link AbstractBroadcastMessage}.
 	 */
 	public static final int BROADCAST_MESSAGE_ID = -1;
+	/**
+	 * Key message ID to indicate the received message is a
+	 * {@link AbstractControlMessage}, to be handled by the channel itself.
+	 */
+	public static final int CONTROL_MESSAGE_ID = -2;
+	/**
+	 * Version of the frame protocol, sent in the
+	 * {@link software.coley.instrument.message.control.ControlHelloMessage handshake}.
+	 * Peers speak the lower of their two versions.
+	 */
+	public static final int PROTOCOL_VERSION = 1;
 }
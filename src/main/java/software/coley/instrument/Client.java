@@ -4,22 +4,37 @@
 import software.coley.instrument.message.AbstractMessage;
 import software.coley.instrument.message.MessageConstants;
 import software.coley.instrument.message.MessageFactory;
+import software.coley.instrument.message.broadcast.BroadcastSessionMessage;
+import software.coley.instrument.message.control.ControlHelloMessage;
 import software.coley.instrument.message.reply.AbstractReplyMessage;
 import software.coley.instrument.message.request.AbstractRequestMessage;
 import software.coley.instrument.sock.BroadcastListener;
 import software.coley.instrument.sock.ChannelHandler;
+import software.coley.instrument.sock.ChannelOptions;
+import software.coley.instrument.sock.ChannelStats;
 import software.coley.instrument.sock.ReplyResult;
+import software.coley.instrument.sock.ResponseListener;
+import software.coley.instrument.sock.SharedMemoryChannel;
+import software.coley.instrument.sock.UnixDomainSockets;
 import software.coley.instrument.sock.WriteResult;
 import software.coley.instrument.util.Logger;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
@@ -28,8 +43,15 @@
  * @author Matt Coley
  */
 public class Client {
-	private final InetSocketAddress hostAddress;
-	private final SocketChannel socketChannel;
+	/**
+	 * Default for {@link #getMaxInFlight()}.
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+	private final Queue<PipelinedRequest<?>> waitingRequests = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private final SocketAddress hostAddress;
+	private final ByteChannel channel;
 	private final ChannelHandler handler;
 	private final String ip;
 	private final int port;
@@ -48,34 +70,206 @@ public class Client {
 	 * 		When the {@link AsynchronousSocketChannel} cannot be opened.
 	 */
 	public Client(String ip, int port, ByteBufferAllocator allocator, MessageFactory factory) throws IOException {
-		this.socketChannel = SocketChannel.open();
+		this(ip, port, allocator, factory, new ChannelOptions());
+	}
+
+	/**
+	 * @param ip
+	 * 		Server IP to connect to.
+	 * @param port
+	 * 		Port to connect on.
+	 * @param allocator
+	 * 		Allocator strategy to use.
+	 * @param factory
+	 * 		Message factory configured with supported message types.
+	 * @param options
+	 * 		Channel configuration to use.
+	 *
+	 * @throws IOException
+	 * 		When the {@link AsynchronousSocketChannel} cannot be opened.
+	 */
+	public Client(String ip, int port, ByteBufferAllocator allocator, MessageFactory factory,
+				  ChannelOptions options) throws IOException {
+		this.channel = SocketChannel.open();
 		this.hostAddress = new InetSocketAddress(ip, port);
-		this.handler = new ChannelHandler(socketChannel, allocator, factory, null);
+		this.handler = new ChannelHandler(channel, allocator, factory, options, null);
 		this.ip = ip;
 		this.port = port;
 	}
 
 	/**
-	 * @return Address of remote server.
+	 * @param socketPath
+	 * 		Path of the server's socket file, see {@link Server#openUnixDomainSocket(Path)}.
+	 * @param allocator
+	 * 		Allocator strategy to use.
+	 * @param factory
+	 * 		Message factory configured with supported message types.
+	 *
+	 * @throws IOException
+	 * 		When the {@link SocketChannel} cannot be opened.
+	 * @throws UnsupportedOperationException
+	 * 		When {@link UnixDomainSockets#isSupported() Unix domain sockets are not supported}.
+	 * @see #Client(Path, ByteBufferAllocator, MessageFactory, ChannelOptions)
+	 */
+	public Client(Path socketPath, ByteBufferAllocator allocator, MessageFactory factory) throws IOException {
+		this(socketPath, allocator, factory, new ChannelOptions());
+	}
+
+	/**
+	 * Connects over a Unix domain socket rather than TCP. This requires Java 16+, and the server to be on the same host.
+	 * Where not supported, use the TCP constructors instead.
+	 *
+	 * @param socketPath
+	 * 		Path of the server's socket file, see {@link Server#openUnixDomainSocket(Path)}.
+	 * @param allocator
+	 * 		Allocator strategy to use.
+	 * @param factory
+	 * 		Message factory configured with supported message types.
+	 * @param options
+	 * 		Channel configuration to use.
+	 *
+	 * @throws IOException
+	 * 		When the {@link SocketChannel} cannot be opened.
+	 * @throws UnsupportedOperationException
+	 * 		When {@link UnixDomainSockets#isSupported() Unix domain sockets are not supported}.
+	 */
+	public Client(Path socketPath, ByteBufferAllocator allocator, MessageFactory factory,
+				  ChannelOptions options) throws IOException {
+		this.hostAddress = UnixDomainSockets.address(socketPath);
+		this.channel = UnixDomainSockets.openChannel();
+		this.handler = new ChannelHandler(channel, allocator, factory, options, null);
+		this.ip = null;
+		this.port = -1;
+	}
+
+	/**
+	 * Talks to the server over shared memory rather than a socket. This requires Java 9+, and the server to be on the
+	 * same host. Where not supported, use the TCP constructors instead.
+	 *
+	 * @param channel
+	 * 		Channel {@link SharedMemoryChannel#open opened} on the path from {@link Server#openSharedMemory(Path, int)}.
+	 * @param allocator
+	 * 		Allocator strategy to use.
+	 * @param factory
+	 * 		Message factory configured with supported message types.
+	 * @param options
+	 * 		Channel configuration to use.
+	 */
+	public Client(SharedMemoryChannel channel, ByteBufferAllocator allocator, MessageFactory factory,
+				  ChannelOptions options) {
+		this.channel = channel;
+		this.hostAddress = null;
+		this.handler = new ChannelHandler(channel, allocator, factory, options, null);
+		this.ip = null;
+		this.port = -1;
+	}
+
+	/**
+	 * @return Address of remote server, or {@code null} when connecting over a Unix domain socket or shared memory.
 	 */
 	public InetSocketAddress getHostAddress() {
+		return hostAddress instanceof InetSocketAddress ? (InetSocketAddress) hostAddress : null;
+	}
+
+	/**
+	 * @return Address of remote server, either an {@link InetSocketAddress} or a Unix domain socket address.
+	 * {@code null} when connecting over shared memory.
+	 */
+	public SocketAddress getAddress() {
 		return hostAddress;
 	}
 
 	/**
-	 * @return IP of remote server.
+	 * @return IP of remote server, or {@code null} when not connecting over TCP.
 	 */
 	public String getIp() {
 		return ip;
 	}
 
 	/**
-	 * @return Port of remote server.
+	 * @return Port of remote server, or {@code -1} when not connecting over TCP.
 	 */
 	public int getPort() {
 		return port;
 	}
 
+	/**
+	 * @return Maximum number of {@link #request(AbstractRequestMessage) pipelined requests} awaiting a reply
+	 * at once, or {@code 0} for no limit.
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Requests made beyond the limit are queued, and sent as replies to earlier requests arrive.
+	 *
+	 * @param maxInFlight
+	 * 		Maximum number of {@link #request(AbstractRequestMessage) pipelined requests} awaiting a reply
+	 * 		at once, or {@code 0} for no limit.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 0)
+			throw new IllegalArgumentException("Limit must not be negative");
+		this.maxInFlight = maxInFlight;
+		sendWaitingRequests();
+	}
+
+	/**
+	 * @return Number of {@link #request(AbstractRequestMessage) pipelined requests} sent and awaiting a reply.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return Handshake sent by the server, telling what it supports, or {@code null} if it has not arrived yet.
+	 */
+	public ControlHelloMessage getServerHello() {
+		return handler.getPeerHello();
+	}
+
+	/**
+	 * Resumes the broadcast session of a previous connection to the same server, so that only the broadcasts
+	 * missed while disconnected are sent, rather than having to re-request everything built up from them.
+	 * Must be called before connecting.
+	 * <br>
+	 * The first broadcast received is a {@link BroadcastSessionMessage}, telling whether the session was resumed.
+	 * When it was not, as the server no longer has all the missed broadcasts, anything built up from them has to
+	 * be requested again.
+	 *
+	 * @param sessionToken
+	 * 		{@link #getSessionToken() Session token} of the previous connection.
+	 * @param lastSequence
+	 * 		{@link #getLastBroadcastSequence() Sequence of the last broadcast} received on the previous connection.
+	 */
+	public void resumeSession(long sessionToken, long lastSequence) {
+		handler.setSession(sessionToken, lastSequence);
+	}
+
+	/**
+	 * @return Token of the broadcast session given by the server, to {@link #resumeSession(long, long) resume}
+	 * when reconnecting. {@code 0} until the server has sent one.
+	 */
+	public long getSessionToken() {
+		return handler.getSessionToken();
+	}
+
+	/**
+	 * @return Sequence of the last broadcast received, to {@link #resumeSession(long, long) resume} from
+	 * when reconnecting.
+	 */
+	public long getLastBroadcastSequence() {
+		return handler.getLastSequence();
+	}
+
+	/**
+	 * @return Counters of the connection's activity.
+	 */
+	public ChannelStats getStats() {
+		return handler.getStats();
+	}
+
 	/**
 	 * @param listener
 	 * 		Listener to use.
@@ -108,13 +302,14 @@ public boolean connect() {
 	 */
 	public void connectThrowing() throws Exception {
 		try {
-			if (socketChannel.connect(hostAddress)) {
+			// Shared memory channels are connected once opened
+			if (!(channel instanceof SocketChannel) || ((SocketChannel) channel).connect(hostAddress)) {
 				handler.start();
 				return;
 			}
 			throw new IOException("Could not connect to: " + hostAddress);
 		} catch (Exception ex) {
-			Logger.error("Failed to connect to host: " + hostAddress + " - " + ex);
+			Logger.error("Failed to connect to host: " + (hostAddress != null ? hostAddress : channel) + " - " + ex);
 			throw ex;
 		}
 	}
@@ -123,11 +318,14 @@ public void connectThrowing() throws Exception {
 	 * Close connection.
 	 *
 	 * @throws IOException
-	 * 		When the underlying socket-channel {@link SocketChannel#close()} throws.
+	 * 		When the underlying channel {@link ByteChannel#close()} throws.
 	 */
 	public void close() throws IOException {
 		handler.shutdown();
-		socketChannel.close();
+		channel.close();
+		PipelinedRequest<?> request;
+		while ((request = waitingRequests.poll()) != null)
+			request.future.completeExceptionally(new ClosedChannelException());
 	}
 
 	/**
@@ -164,33 +362,174 @@ public <T extends AbstractMessage> WriteResult<T> sendAsync(T message) {
 	 * @param <ReplyType>
 	 * 		Message type of response content.
 	 *
-	 * @return Reply result.
+	 * @return Reply result. When the reply future is cancelled, or no reply arrives before the request's
+	 * {@link AbstractRequestMessage#setTimeout(long, TimeUnit) deadline}, the request is cancelled on the server too.
 	 */
 	@SuppressWarnings("unchecked")
 	public <ReplyType extends AbstractReplyMessage, RequestType extends AbstractRequestMessage<ReplyType>>
 	ReplyResult<RequestType, ReplyType> sendAsync(RequestType message, Consumer<ReplyType> replyHandler) {
 		CompletableFuture<ReplyType> replyFuture = new CompletableFuture<>();
 		int frameId = handler.getNextFrameId();
-		handler.addResponseListener(frameId, (responseId, value) -> {
-			try {
-				ReplyType reply = (ReplyType) value;
-				if (replyHandler != null)
-					replyHandler.accept(reply);
-				replyFuture.complete(reply);
-			} catch (Throwable t) {
-				t.printStackTrace();
-				replyFuture.completeExceptionally(t);
+		handler.addResponseListener(frameId, new ResponseListener() {
+			@Override
+			public void onReceive(int responseId, AbstractMessage value) {
+				try {
+					ReplyType reply = (ReplyType) value;
+					if (replyHandler != null)
+						replyHandler.accept(reply);
+					replyFuture.complete(reply);
+				} catch (Throwable t) {
+					t.printStackTrace();
+					replyFuture.completeExceptionally(t);
+				}
 			}
+
+			@Override
+			public void onFailure(int responseId, Throwable cause) {
+				replyFuture.completeExceptionally(cause);
+			}
+		}, message.getDeadline());
+		WriteResult<RequestType> writeResult;
+		try {
+			writeResult = handler.write(message, frameId);
+		} catch (RuntimeException ex) {
+			// No reply will come for a message that was never queued
+			handler.removeResponseListener(frameId);
+			throw ex;
+		}
+		// Let the server know when we are no longer waiting on the reply
+		replyFuture.whenComplete((reply, error) -> {
+			if (error instanceof CancellationException || error instanceof TimeoutException)
+				handler.cancel(frameId);
 		});
-		WriteResult<RequestType> writeResult = handler.write(message, frameId);
 		return new ReplyResult<>(writeResult, replyFuture);
 	}
 
+	/**
+	 * Sends a request without waiting on earlier requests, from any number of threads.
+	 * Replies are matched to requests by frame ID, so they may arrive in any order.
+	 * <br>
+	 * At most {@link #getMaxInFlight()} requests are sent and awaiting a reply at once.
+	 * Requests beyond the limit are queued rather than blocking the caller.
+	 *
+	 * @param message
+	 * 		Message to send.
+	 * @param <RequestType>
+	 * 		Message type of sent content.
+	 * @param <ReplyType>
+	 * 		Message type of response content.
+	 *
+	 * @return Future of the reply. Completed exceptionally when the request cannot be sent,
+	 * no reply arrives within the {@link ChannelOptions#getResponseExpiryMillis() expiry},
+	 * or the client is closed first. When cancelled, a queued request is dropped, and a sent request
+	 * is cancelled on the server too.
+	 */
+	public <ReplyType extends AbstractReplyMessage, RequestType extends AbstractRequestMessage<ReplyType>>
+	CompletableFuture<ReplyType> request(RequestType message) {
+		PipelinedRequest<ReplyType> request = new PipelinedRequest<>(message);
+		request.future.whenComplete((reply, error) -> {
+			if (error instanceof CancellationException)
+				cancel(request);
+		});
+		if (tryAcquireInFlight()) {
+			send(request);
+		} else {
+			waitingRequests.add(request);
+			// A reply may have freed up space before the request was queued
+			sendWaitingRequests();
+		}
+		return request.future;
+	}
+
+	/**
+	 * @param request
+	 * 		Request to send, having acquired one of the {@link #inFlight} slots.
+	 * @param <ReplyType>
+	 * 		Message type of response content.
+	 */
+	private <ReplyType extends AbstractReplyMessage> void send(PipelinedRequest<ReplyType> request) {
+		CompletableFuture<ReplyType> future = request.future;
+		// Cancelled while waiting to be sent
+		if (future.isDone()) {
+			releaseInFlight();
+			return;
+		}
+		try {
+			CompletableFuture<ReplyType> replyFuture = sendAsync(request.message, null).getReplyFuture();
+			request.replyFuture = replyFuture;
+			replyFuture.whenComplete((reply, error) -> {
+				releaseInFlight();
+				if (error != null)
+					future.completeExceptionally(error);
+				else
+					future.complete(reply);
+			});
+			// Cancelled while being sent, before the reply future could be seen by cancel(request)
+			if (future.isCancelled())
+				replyFuture.cancel(false);
+		} catch (Throwable t) {
+			releaseInFlight();
+			future.completeExceptionally(t);
+		}
+	}
+
+	/**
+	 * Drops a request that is still queued, or cancels the reply future of a sent request,
+	 * which in turn cancels the request on the server.
+	 *
+	 * @param request
+	 * 		Request whose future was cancelled.
+	 */
+	private void cancel(PipelinedRequest<?> request) {
+		if (waitingRequests.remove(request))
+			return;
+		CompletableFuture<?> replyFuture = request.replyFuture;
+		if (replyFuture != null)
+			replyFuture.cancel(false);
+	}
+
+	/**
+	 * Sends queued requests while there are {@link #inFlight} slots available.
+	 */
+	private void sendWaitingRequests() {
+		while (!waitingRequests.isEmpty() && tryAcquireInFlight()) {
+			PipelinedRequest<?> request = waitingRequests.poll();
+			if (request == null) {
+				// Taken by another thread meanwhile
+				inFlight.decrementAndGet();
+				continue;
+			}
+			send(request);
+		}
+	}
+
+	/**
+	 * @return {@code true} when an {@link #inFlight} slot was acquired.
+	 */
+	private boolean tryAcquireInFlight() {
+		while (true) {
+			int current = inFlight.get();
+			int max = maxInFlight;
+			if (max > 0 && current >= max)
+				return false;
+			if (inFlight.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Releases an {@link #inFlight} slot, sending the next queued request in its place.
+	 */
+	private void releaseInFlight() {
+		inFlight.decrementAndGet();
+		sendWaitingRequests();
+	}
+
 	/**
 	 * @param message
 	 * 		Message to send.
 	 */
-	public synchronized void sendBlocking(AbstractMessage message) {
+	public void sendBlocking(AbstractMessage message) {
 		String title = "sending message (without reply expected)";
 		try {
 			WriteResult<AbstractMessage> result = sendAsync(message);
@@ -209,6 +548,9 @@ public synchronized void sendBlocking(AbstractMessage message) {
 	}
 
 	/**
+	 * Waits until the request's deadline for a reply. Requests without a deadline are waited on for
+	 * {@link MessageConstants#TIMEOUT_SECONDS}, and are sent without one. On timeout, the request is cancelled.
+	 *
 	 * @param message
 	 * 		Message to send.
 	 * @param replyHandler
@@ -218,24 +560,49 @@ public synchronized void sendBlocking(AbstractMessage message) {
 	 * @param <ReplyType>
 	 * 		Message type of response content.
 	 */
-	public synchronized <ReplyType extends AbstractReplyMessage, RequestType extends AbstractRequestMessage<ReplyType>>
+	public <ReplyType extends AbstractReplyMessage, RequestType extends AbstractRequestMessage<ReplyType>>
 	void sendBlocking(RequestType message, Consumer<ReplyType> replyHandler) {
 		String title = "sending message (reply expected)";
+		// The message may be sent again, so the default wait is not stored in it
+		long timeoutMillis = message.hasDeadline() ? message.getRemainingMillis() :
+				TimeUnit.SECONDS.toMillis(MessageConstants.TIMEOUT_SECONDS);
+		ReplyResult<RequestType, ReplyType> result = null;
 		try {
-			ReplyResult<RequestType, ReplyType> result = sendAsync(message, replyHandler);
+			result = sendAsync(message, replyHandler);
 			WriteResult<RequestType> writeResult = result.getWriteResult();
 			title = "sending message[id=" + writeResult.getFrameId() + "] (reply expected)";
-			result.getReplyFuture()
-					.get(MessageConstants.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			result.getReplyFuture().get(timeoutMillis, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
 			Logger.error("Client interrupted while " + title);
 			quietClose();
 		} catch (ExecutionException e) {
-			Logger.error("Client encountered error " + title + " into buffer: " + e.getCause());
-			quietClose();
+			if (e.getCause() instanceof TimeoutException) {
+				Logger.error("Client timed out " + title);
+			} else {
+				Logger.error("Client encountered error " + title + " into buffer: " + e.getCause());
+				quietClose();
+			}
 		} catch (TimeoutException e) {
+			// Only this request is abandoned, the connection remains usable
 			Logger.error("Client timed out " + title);
-			quietClose();
+			result.getReplyFuture().cancel(false);
+		}
+	}
+
+	/**
+	 * Request made with {@link #request(AbstractRequestMessage)}, possibly waiting to be sent.
+	 *
+	 * @param <ReplyType>
+	 * 		Message type of response content.
+	 */
+	private static final class PipelinedRequest<ReplyType extends AbstractReplyMessage> {
+		private final CompletableFuture<ReplyType> future = new CompletableFuture<>();
+		private final AbstractRequestMessage<ReplyType> message;
+		// Set once sent
+		private volatile CompletableFuture<ReplyType> replyFuture;
+
+		private PipelinedRequest(AbstractRequestMessage<ReplyType> message) {
+			this.message = message;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -34,6 +34,17 @@
  */
 public final class InstrumentationHelper implements ClassFileTransformer {
 	private static final ProtectionDomain OUR_DOMAIN = Agent.class.getProtectionDomain();
+	// Lazily loaded by the JDK on first lock contention or first write, see 'preloadClasses()'
+	private static final String[] PRELOAD_CLASSES = {
+			"java.util.concurrent.locks.AbstractQueuedSynchronizer$Node",
+			"java.util.concurrent.locks.AbstractQueuedSynchronizer$ExclusiveNode",
+			"java.util.concurrent.locks.AbstractQueuedSynchronizer$SharedNode",
+			"java.util.concurrent.locks.AbstractQueuedSynchronizer$ConditionNode",
+			"java.util.concurrent.CompletableFuture",
+			"java.util.concurrent.CompletableFuture$AltResult",
+			"java.util.concurrent.CompletableFuture$Signaller",
+			"java.util.concurrent.CompletableFuture$UniWhenComplete"
+	};
 	// Config
 	public static boolean notrampolines;
 	// ClassLoader collections
@@ -49,6 +60,7 @@ public InstrumentationHelper(Server server, Instrumentation instrumentation) {
 		// Can be null for test purposes
 		if (instrumentation != null) {
 			populateExisting();
+			preloadClasses();
 			instrumentation.addTransformer(this, true);
 		}
 	}
@@ -62,6 +74,22 @@ public byte[] transform(ClassLoader loader, String className, Class<?> classBein
 		return classfileBuffer;
 	}
 
+	/**
+	 * The transformer takes a lock, and contending on it loads lock internals which are otherwise loaded lazily.
+	 * If one of those classes is first loaded by another contended lock, the transformer is then invoked for it
+	 * and requires that same class, yielding a {@link ClassCircularityError}. Loading them up-front avoids this.
+	 * The same goes for {@link java.util.concurrent.CompletableFuture}, which the broadcast of each class creates.
+	 */
+	private static void preloadClasses() {
+		for (String name : PRELOAD_CLASSES) {
+			try {
+				Class.forName(name, true, null);
+			} catch (ClassNotFoundException ignored) {
+				// Varies by JDK version
+			}
+		}
+	}
+
 	/**
 	 * @param protectionDomain
 	 * 		Some protection domain.
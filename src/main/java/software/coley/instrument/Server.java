@@ -6,21 +6,36 @@
 import software.coley.instrument.message.AbstractMessage;
 import software.coley.instrument.message.MessageFactory;
 import software.coley.instrument.message.broadcast.AbstractBroadcastMessage;
+import software.coley.instrument.message.broadcast.BroadcastSessionMessage;
+import software.coley.instrument.message.control.ControlHelloMessage;
 import software.coley.instrument.message.reply.*;
 import software.coley.instrument.message.request.*;
+import software.coley.instrument.sock.BroadcastLog;
 import software.coley.instrument.sock.ChannelHandler;
+import software.coley.instrument.sock.ChannelOptions;
+import software.coley.instrument.sock.ChannelOverflowException;
+import software.coley.instrument.sock.EncodedFrame;
+import software.coley.instrument.sock.SharedMemoryChannel;
+import software.coley.instrument.sock.UnixDomainSockets;
 import software.coley.instrument.util.Discovery;
 import software.coley.instrument.util.Logger;
 import software.coley.instrument.util.NamedThreadFactory;
+import software.coley.instrument.util.WaitStrategy;
 
 import java.io.IOException;
 import java.lang.instrument.Instrumentation;
 import java.net.InetSocketAddress;
 import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -28,20 +43,50 @@
 
 /**
  * Server which exposes capabilities of {@link Instrumentation} to a client.
+ * <br>
+ * Broadcasts are stamped with an increasing {@link AbstractBroadcastMessage#getSequence() sequence}, and the most
+ * recent are kept in a {@link BroadcastLog}. Clients supporting {@link ControlHelloMessage#FEATURE_SESSIONS sessions}
+ * are told their session in a {@link BroadcastSessionMessage}, and may resume it when reconnecting, to be sent
+ * only the broadcasts they missed.
  *
  * @author xxDark
  * @author Matt Coley
  */
 public class Server {
 	public static final int DEFAULT_PORT = 25252;
+	/**
+	 * Default for {@link #getBroadcastLogCapacity()}.
+	 */
+	public static final int DEFAULT_BROADCAST_LOG_CAPACITY = 4 * 1024 * 1024;
+	private static final int MAX_SESSIONS = 1024;
 	private final Set<ChannelHandler> clients = Collections.synchronizedSet(new HashSet<>());
+	// Clients sent broadcasts, added once their hello arrives. Guards the session state below.
+	private final Set<ChannelHandler> subscribers = new LinkedHashSet<>();
+	private final Set<Long> sessions = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+			return size() > MAX_SESSIONS;
+		}
+	});
+	private long broadcastSequence;
+	private int broadcastLogCapacity = DEFAULT_BROADCAST_LOG_CAPACITY;
+	private BroadcastLog broadcastLog;
+	// Writes of broadcasts and session starts, queued in order under the subscribers lock and made outside of it
+	private final Queue<Runnable> deliveries = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean delivering = new AtomicBoolean();
 	private final Map<Class<?>, ReplyHandler<?>> replyHandlerMap = new IdentityHashMap<>();
+	private final Map<Class<?>, Function<AbstractMessage, AbstractMessage>> answerMap = new IdentityHashMap<>();
 	private final AtomicBoolean closed = new AtomicBoolean();
 	private final ServerSocketChannel serverChannel;
 	private final InstrumentationHelper instrumentation;
 	private final ByteBufferAllocator allocator;
 	private final MessageFactory factory;
+	private final ChannelOptions options;
 	private final int port;
+	private ServerSocketChannel unixChannel;
+	private Path unixSocketPath;
+	private SharedMemoryChannel sharedMemoryChannel;
+	private Path sharedMemoryPath;
 
 	/**
 	 * @param instrumentation
@@ -52,15 +97,19 @@ public class Server {
 	 * 		Allocator instance to pass to {@link #clients client channels}.
 	 * @param factory
 	 * 		Message factory configured with supported message types.
+	 * @param options
+	 * 		Configuration to pass to {@link #clients client channels}.
 	 */
 	private Server(Instrumentation instrumentation, InetSocketAddress address,
-				   ByteBufferAllocator allocator, MessageFactory factory) throws IOException {
+				   ByteBufferAllocator allocator, MessageFactory factory, ChannelOptions options) throws IOException {
 		Logger.info("Opening server on: " + address);
 		this.serverChannel = ServerSocketChannel.open().bind(address);
 		this.instrumentation = new InstrumentationHelper(this, instrumentation);
 		this.allocator = allocator;
 		this.factory = factory;
+		this.options = options;
 		this.port = address.getPort();
+		registerHandlers();
 		Discovery.setupDiscovery(port);
 	}
 
@@ -81,8 +130,31 @@ private Server(Instrumentation instrumentation, InetSocketAddress address,
 	 */
 	public static Server open(Instrumentation instrumentation, InetSocketAddress address,
 							  ByteBufferAllocator allocator, MessageFactory factory) throws IOException {
-		Server server = new Server(instrumentation, address, allocator, factory);
-		server.acceptLoop();
+		return open(instrumentation, address, allocator, factory, new ChannelOptions());
+	}
+
+	/**
+	 * @param instrumentation
+	 * 		Instrumentation instance.
+	 * @param address
+	 * 		Address to bind to.
+	 * @param allocator
+	 * 		Allocator instance to pass to {@link #clients client channels}.
+	 * @param factory
+	 * 		Message factory configured with supported message types.
+	 * @param options
+	 * 		Configuration to pass to {@link #clients client channels}.
+	 *
+	 * @return New server instance.
+	 *
+	 * @throws IOException
+	 * 		When the {@link AsynchronousServerSocketChannel} cannot be opened on the given address.
+	 */
+	public static Server open(Instrumentation instrumentation, InetSocketAddress address,
+							  ByteBufferAllocator allocator, MessageFactory factory,
+							  ChannelOptions options) throws IOException {
+		Server server = new Server(instrumentation, address, allocator, factory, options);
+		server.acceptLoop(server.serverChannel);
 		return server;
 	}
 
@@ -100,6 +172,188 @@ public Set<ChannelHandler> getClients() {
 		return clients;
 	}
 
+	/**
+	 * @return Size in bytes of the off-heap log of recent broadcasts, replayed to clients resuming their session.
+	 * {@code 0} when disabled.
+	 */
+	public int getBroadcastLogCapacity() {
+		synchronized (subscribers) {
+			return broadcastLogCapacity;
+		}
+	}
+
+	/**
+	 * Changing the capacity discards the current log, so clients resuming from before the change are told
+	 * their session could not be resumed.
+	 *
+	 * @param capacity
+	 * 		Size in bytes of the off-heap log of recent broadcasts, replayed to clients resuming their session.
+	 * 		{@code 0} to disable.
+	 */
+	public void setBroadcastLogCapacity(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity must not be negative");
+		synchronized (subscribers) {
+			broadcastLogCapacity = capacity;
+			broadcastLog = null;
+		}
+	}
+
+	/**
+	 * @return Sequence of the most recent broadcast, or {@code 0} when none have been sequenced.
+	 */
+	public long getBroadcastSequence() {
+		synchronized (subscribers) {
+			return broadcastSequence;
+		}
+	}
+
+	/**
+	 * Additionally listens on a Unix domain socket at the {@link Discovery#createSocketPath(int) default path}.
+	 *
+	 * @return Path of the socket, or {@code null} when Unix domain sockets are not supported by the current JVM.
+	 *
+	 * @throws IOException
+	 * 		When the socket cannot be opened.
+	 * @see #openUnixDomainSocket(Path)
+	 */
+	public Path openUnixDomainSocket() throws IOException {
+		return openUnixDomainSocket(Discovery.createSocketPath(port));
+	}
+
+	/**
+	 * Additionally listens on a Unix domain socket, which clients on the same host can connect to instead of
+	 * the TCP port. The path is published through {@link Discovery}. Only supported on Java 16+.
+	 *
+	 * @param path
+	 * 		Path of the socket file to create.
+	 *
+	 * @return Path of the socket, or {@code null} when Unix domain sockets are not supported by the current JVM.
+	 * If the server is already listening on a Unix domain socket, the existing path is returned.
+	 *
+	 * @throws IOException
+	 * 		When the socket cannot be opened.
+	 */
+	public synchronized Path openUnixDomainSocket(Path path) throws IOException {
+		if (isClosed())
+			throw new IllegalStateException("Server is closed");
+		if (unixSocketPath != null)
+			return unixSocketPath;
+		if (!UnixDomainSockets.isSupported()) {
+			Logger.info("Unix domain sockets not supported, only listening on port " + port);
+			return null;
+		}
+		Logger.info("Opening server on: " + path);
+		unixChannel = UnixDomainSockets.openServerChannel(path);
+		unixSocketPath = path;
+		Discovery.setupSocketDiscovery(path);
+		acceptLoop(unixChannel);
+		return path;
+	}
+
+	/**
+	 * @return Path of the Unix domain socket the server is listening on,
+	 * or {@code null} if {@link #openUnixDomainSocket(Path)} has not been used.
+	 */
+	public synchronized Path getUnixSocketPath() {
+		return unixSocketPath;
+	}
+
+	/**
+	 * Additionally serves a client over shared memory at the {@link Discovery#createSharedMemoryPath(int) default path}.
+	 *
+	 * @return Base path of the ring files, or {@code null} when shared memory is not supported by the current JVM.
+	 *
+	 * @throws IOException
+	 * 		When the ring files cannot be created.
+	 * @see #openSharedMemory(Path, int)
+	 */
+	public Path openSharedMemory() throws IOException {
+		return openSharedMemory(Discovery.createSharedMemoryPath(port), SharedMemoryChannel.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Additionally serves a client over a pair of memory-mapped ring files, for same-host tooling moving large
+	 * amounts of data such as dumps of all classes. One client is served at a time. Once it disconnects, the rings
+	 * are re-created for the next client. The path is published through {@link Discovery}. Only supported on Java 9+.
+	 *
+	 * @param path
+	 * 		Base path of the ring files to create.
+	 * @param capacity
+	 * 		Capacity in bytes of each ring. Must be a power of two.
+	 *
+	 * @return Base path of the ring files, or {@code null} when shared memory is not supported by the current JVM.
+	 * If the server is already serving over shared memory, the existing path is returned.
+	 *
+	 * @throws IOException
+	 * 		When the ring files cannot be created.
+	 * @see SharedMemoryChannel
+	 */
+	public synchronized Path openSharedMemory(Path path, int capacity) throws IOException {
+		if (isClosed())
+			throw new IllegalStateException("Server is closed");
+		if (sharedMemoryPath != null)
+			return sharedMemoryPath;
+		if (!SharedMemoryChannel.isSupported()) {
+			Logger.info("Shared memory not supported, only listening on port " + port);
+			return null;
+		}
+		Logger.info("Opening server on: " + path);
+		sharedMemoryPath = path;
+		serveSharedMemory(capacity);
+		Discovery.setupSharedMemoryDiscovery(path);
+		return path;
+	}
+
+	/**
+	 * @return Base path of the ring files the server is serving a client over,
+	 * or {@code null} if {@link #openSharedMemory(Path, int)} has not been used.
+	 */
+	public synchronized Path getSharedMemoryPath() {
+		return sharedMemoryPath;
+	}
+
+	/**
+	 * Creates fresh ring files, and serves the next client over them.
+	 *
+	 * @param capacity
+	 * 		Capacity in bytes of each ring.
+	 *
+	 * @throws IOException
+	 * 		When the ring files cannot be created.
+	 */
+	private synchronized void serveSharedMemory(int capacity) throws IOException {
+		if (isClosed())
+			return;
+		SharedMemoryChannel channel = SharedMemoryChannel.create(sharedMemoryPath, capacity, WaitStrategy.SPIN_THEN_PARK);
+		sharedMemoryChannel = channel;
+		addClient(channel, () -> {
+			if (isClosed())
+				return;
+			// Disconnects are handled on interrupted threads, which cannot do file IO
+			NamedThreadFactory threadFactory = new NamedThreadFactory(ChannelHandler.threadNameClientAccept, options.isVirtualThreads());
+			threadFactory.newThread(() -> {
+				try {
+					serveSharedMemory(capacity);
+				} catch (IOException ex) {
+					Logger.error("Failed to re-create shared memory: " + ex);
+				}
+			}).start();
+		});
+	}
+
+	private synchronized void closeSharedMemory() {
+		if (sharedMemoryChannel == null)
+			return;
+		Discovery.removeSharedMemoryDiscovery(sharedMemoryPath);
+		sharedMemoryChannel.close();
+		try {
+			SharedMemoryChannel.delete(sharedMemoryPath);
+		} catch (IOException ex) {
+			Logger.warn("Failed to remove shared memory files: " + sharedMemoryPath);
+		}
+	}
+
 	/**
 	 * @return {@code true} if server is no longer active.
 	 */
@@ -113,22 +367,27 @@ public boolean isClosed() {
 	public void close() {
 		if (closed.compareAndSet(false, true)) {
 			Discovery.removeDiscovery(port);
+			// Shutdown removes the client from the set, so iterate over a copy
+			ChannelHandler[] open;
 			synchronized (clients) {
-				int count = clients.size();
-				if (count == 0)
-					Logger.debug("No clients connected to close");
-				else if (count == 1)
-					Logger.debug("Closing client connection");
-				else
-					Logger.debug("Closing " + count + " client connections");
-				for (ChannelHandler ch : clients) {
-					ch.shutdown();
-				}
+				open = clients.toArray(new ChannelHandler[0]);
+			}
+			int count = open.length;
+			if (count == 0)
+				Logger.debug("No clients connected to close");
+			else if (count == 1)
+				Logger.debug("Closing client connection");
+			else
+				Logger.debug("Closing " + count + " client connections");
+			for (ChannelHandler ch : open) {
+				ch.shutdown();
 			}
 			try {
 				serverChannel.close();
 			} catch (IOException ignored) {
 			}
+			closeUnixDomainSocket();
+			closeSharedMemory();
 			Logger.info("Server closed");
 		} else {
 			Logger.debug("Server already closed");
@@ -136,33 +395,204 @@ else if (count == 1)
 	}
 
 	/**
+	 * The message is stamped with the next broadcast sequence, and encoded once. Each client is sent views of the
+	 * same {@link EncodedFrame encoded frame}, and it is kept in the {@link #getBroadcastLogCapacity() broadcast log}.
+	 * Broadcasts are queued to each client in the order of their sequence, and never wait on a slow client.
+	 *
 	 * @param message
 	 * 		Message to broadcast.
 	 */
 	public void broadcast(AbstractBroadcastMessage message) {
-		for (ChannelHandler client : clients) {
-			client.write(message, ApiConstants.BROADCAST_MESSAGE_ID);
+		synchronized (subscribers) {
+			// Nothing needs logging until there is a session that may be resumed
+			if (subscribers.isEmpty() && sessions.isEmpty())
+				return;
+			BroadcastLog log = getBroadcastLog();
+			message.setSequence(++broadcastSequence);
+			EncodedFrame<AbstractBroadcastMessage> frame;
+			try {
+				frame = EncodedFrame.encode(message, factory, allocator);
+			} catch (IOException ex) {
+				Logger.error("Failed to encode broadcast: " + ex);
+				return;
+			}
+			try {
+				if (log != null)
+					log.append(frame);
+			} catch (RuntimeException ex) {
+				frame.release();
+				throw ex;
+			}
+			// Slow consumers may be disconnected, and so removed, while broadcasting
+			ChannelHandler[] targets = subscribers.toArray(new ChannelHandler[0]);
+			deliveries.add(() -> {
+				try {
+					for (ChannelHandler client : targets)
+						writeBroadcast(client, frame);
+				} finally {
+					// Each client holds its own reference until its write completes
+					frame.release();
+				}
+			});
+		}
+		deliver();
+	}
+
+	/**
+	 * Makes the queued {@link #deliveries}, in order. Whichever thread finds no delivery in progress makes all of them,
+	 * including any queued by other threads meanwhile, so no thread waits on the writes of another.
+	 */
+	private void deliver() {
+		while (!deliveries.isEmpty() && delivering.compareAndSet(false, true)) {
+			try {
+				Runnable delivery;
+				while ((delivery = deliveries.poll()) != null)
+					delivery.run();
+			} finally {
+				delivering.set(false);
+			}
+		}
+	}
+
+	/**
+	 * @param client
+	 * 		Client to send to.
+	 * @param frame
+	 * 		Encoded broadcast.
+	 */
+	private static void writeBroadcast(ChannelHandler client, EncodedFrame<AbstractBroadcastMessage> frame) {
+		try {
+			client.write(frame, ApiConstants.BROADCAST_MESSAGE_ID);
+		} catch (ChannelOverflowException ex) {
+			// One slow client should not hold back broadcasts to the others
+			Logger.debug("Skipped broadcast to slow client: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Called once the client's hello arrives, so that a resumed session is replayed ahead of any new broadcasts.
+	 *
+	 * @param client
+	 * 		Client to start sending broadcasts to.
+	 * @param hello
+	 * 		Handshake sent by the client.
+	 */
+	private void subscribe(ChannelHandler client, ControlHelloMessage hello) {
+		// Clients are never checked while holding the subscribers lock, as clients are started while holding theirs,
+		// which may load classes and so broadcast
+		// Disconnected before its hello was handled
+		if (!clients.contains(client))
+			return;
+		synchronized (subscribers) {
+			if (hello.supports(ControlHelloMessage.FEATURE_SESSIONS))
+				startSession(client, hello);
+			subscribers.add(client);
+		}
+		// Disconnected while subscribing, possibly after its close handler removed it from the subscribers
+		if (!clients.contains(client)) {
+			synchronized (subscribers) {
+				subscribers.remove(client);
+			}
+		}
+		deliver();
+	}
+
+	/**
+	 * Resumes the session the client asked for when the broadcasts it missed are all logged,
+	 * and otherwise starts a new one. The client is told which, followed by any missed broadcasts.
+	 * These are queued as a delivery, ahead of broadcasts the client is subscribed to afterwards.
+	 *
+	 * @param client
+	 * 		Client starting a session.
+	 * @param hello
+	 * 		Handshake sent by the client, with the session to resume.
+	 */
+	private void startSession(ChannelHandler client, ControlHelloMessage hello) {
+		long token = hello.getSessionToken();
+		long lastSequence = hello.getLastSequence();
+		BroadcastLog log = getBroadcastLog();
+		boolean known = token != 0 && sessions.contains(token);
+		List<EncodedFrame<AbstractBroadcastMessage>> missed = null;
+		if (known && log != null && log.canReplayAfter(lastSequence)) {
+			try {
+				missed = log.replay(lastSequence, factory, allocator);
+			} catch (IOException ex) {
+				Logger.error("Failed to replay broadcasts: " + ex);
+			}
+		}
+		boolean resumed = missed != null;
+		if (!known)
+			token = newSessionToken();
+		sessions.add(token);
+		Logger.debug("Client session " + Long.toHexString(token) + (resumed ?
+				" resumed after " + lastSequence + ", replaying " + missed.size() :
+				" started at " + broadcastSequence));
+		BroadcastSessionMessage session =
+				new BroadcastSessionMessage(token, resumed ? lastSequence : broadcastSequence, resumed);
+		List<EncodedFrame<AbstractBroadcastMessage>> replay = missed;
+		deliveries.add(() -> {
+			try {
+				client.write(session, ApiConstants.BROADCAST_MESSAGE_ID);
+			} catch (ChannelOverflowException ex) {
+				Logger.debug("Skipped session start of slow client: " + ex.getMessage());
+			}
+			if (replay != null) {
+				for (EncodedFrame<AbstractBroadcastMessage> frame : replay) {
+					try {
+						writeBroadcast(client, frame);
+					} finally {
+						frame.release();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return Log of recent broadcasts, created once first needed. {@code null} when disabled.
+	 */
+	private BroadcastLog getBroadcastLog() {
+		if (broadcastLog == null && broadcastLogCapacity > 0)
+			broadcastLog = new BroadcastLog(broadcastLogCapacity, broadcastSequence + 1);
+		return broadcastLog;
+	}
+
+	/**
+	 * @return Random token not used by any known session.
+	 */
+	private long newSessionToken() {
+		long token;
+		do {
+			token = ThreadLocalRandom.current().nextLong();
+		} while (token == 0 || sessions.contains(token));
+		return token;
+	}
+
+	private synchronized void closeUnixDomainSocket() {
+		if (unixChannel == null)
+			return;
+		Discovery.removeSocketDiscovery(unixSocketPath);
+		try {
+			unixChannel.close();
+			Files.deleteIfExists(unixSocketPath);
+		} catch (IOException ex) {
+			Logger.warn("Failed to remove socket file: " + unixSocketPath);
 		}
 	}
 
 	/**
 	 * Handles data loop for each new client connection.
+	 *
+	 * @param serverChannel
+	 * 		Channel to accept clients from.
 	 */
-	private void acceptLoop() {
-		Executors.newSingleThreadExecutor(new NamedThreadFactory(ChannelHandler.threadNameClientAccept)).submit(() -> {
+	private void acceptLoop(ServerSocketChannel serverChannel) {
+		NamedThreadFactory threadFactory = new NamedThreadFactory(ChannelHandler.threadNameClientAccept, options.isVirtualThreads());
+		Executors.newSingleThreadExecutor(threadFactory).submit(() -> {
 			try {
 				while (!isClosed()) {
 					SocketChannel accept = serverChannel.accept();
-					ChannelHandler ch = new ChannelHandler(accept, allocator, factory, closedCh -> {
-						clients.remove(closedCh);
-						Logger.info("Disconnect client: " + accept.toString());
-					});
-					configureChannel(ch);
-					synchronized (clients) {
-						Logger.info("New client: " + accept.toString());
-						clients.add(ch);
-						ch.start();
-					}
+					addClient(accept, null);
 				}
 				Logger.info("Accept loop ending, socket is closed");
 			} catch (IOException ex) {
@@ -172,42 +602,94 @@ private void acceptLoop() {
 		});
 	}
 
+	/**
+	 * @param channel
+	 * 		Channel connected to a new client.
+	 * @param onDisconnect
+	 * 		Optional action to run once the client disconnects.
+	 *
+	 * @throws IOException
+	 * 		When the client's handler cannot be started.
+	 */
+	private void addClient(ByteChannel channel, Runnable onDisconnect) throws IOException {
+		ChannelHandler ch = new ChannelHandler(channel, allocator, factory, options, closedCh -> {
+			clients.remove(closedCh);
+			synchronized (subscribers) {
+				subscribers.remove(closedCh);
+			}
+			Logger.info("Disconnect client: " + channel.toString());
+			if (onDisconnect != null)
+				onDisconnect.run();
+		});
+		configureChannel(ch);
+		synchronized (clients) {
+			Logger.info("New client: " + channel.toString());
+			clients.add(ch);
+			ch.start();
+		}
+	}
+
 	@SuppressWarnings({"rawtypes", "unchecked"})
 	private void configureChannel(ChannelHandler ch) {
+		// Broadcasts are only sent once the client has said whether it is resuming a session
+		ch.setHandshakeListener(hello -> subscribe(ch, hello));
 		// Setup general reply handler
 		ch.setAllResponsesListener((frameId, value) -> {
 			if (frameId != ApiConstants.BROADCAST_MESSAGE_ID) {
 				Logger.debug("Server handling request[id=" + frameId + ", value=" + value + "]");
+				// Skip requests the client has given up on while they were queued
+				if (value instanceof AbstractRequestMessage && !((AbstractRequestMessage<?>) value).isActive()) {
+					Logger.debug("Server skipping inactive request[id=" + frameId + "]");
+					return;
+				}
 				try {
 					ReplyHandler handler = replyHandlerMap.get(value.getClass());
 					if (handler != null)
-						handler.accept(frameId, value);
+						handler.accept(ch, frameId, value);
 					else
 						Logger.warn("No handler for request: " + value);
+				} catch (CancellationException ex) {
+					Logger.debug("Server aborted request[id=" + frameId + "]: " + ex.getMessage());
 				} catch (Throwable t) {
 					t.printStackTrace();
 				}
 			}
 		});
-		// Setup response handling
-		InstrumentationHelper inst = instrumentation;
-		answer(ch, RequestPingMessage.class, ReplyPingMessage::new);
-		answer(ch, RequestThreadsMessage.class, () -> new ReplyThreadsMessage(Thread.getAllStackTraces().keySet().stream()
-				.map(ThreadData::new)
+	}
+
+	/**
+	 * Setup response handling, shared by all client channels.
+	 */
+	private void registerHandlers() {
+		answer(RequestPingMessage.class, ReplyPingMessage::new);
+		answer(RequestThreadsMessage.class, req -> new ReplyThreadsMessage(Thread.getAllStackTraces().keySet().stream()
+				.map(thread -> {
+					req.checkActive();
+					return new ThreadData(thread);
+				})
 				.collect(Collectors.toList())));
-		answer(ch, RequestPropertiesMessage.class, () -> new ReplyPropertiesMessage(System.getProperties()));
-		answer(ch, RequestSetPropertyMessage.class, req -> {
+		answer(RequestPropertiesMessage.class, () -> new ReplyPropertiesMessage(System.getProperties()));
+		answer(RequestSetPropertyMessage.class, req -> {
 			System.getProperties().put(req.getKey(), req.getValue());
 			return new ReplySetPropertyMessage();
 		});
-		answer(ch, RequestClassloadersMessage.class, () -> new ReplyClassloadersMessage(inst.getLoaders()));
-		answer(ch, RequestClassloaderClassesMessage.class, req -> {
+		answer(RequestClassloadersMessage.class, () -> new ReplyClassloadersMessage(instrumentation.getLoaders()));
+		answer(RequestClassloaderClassesMessage.class, req -> {
 			int loaderId = req.getLoaderId();
-			return new ReplyClassloaderClassesMessage(loaderId, inst.getLoaderClasses(loaderId));
+			// Copy the names, as the listing can be large enough to be worth aborting part way through
+			Set<String> classes = instrumentation.getLoaderClasses(loaderId);
+			List<String> names = new ArrayList<>(classes.size());
+			for (String name : classes) {
+				if ((names.size() & 0xFF) == 0)
+					req.checkActive();
+				names.add(name);
+			}
+			return new ReplyClassloaderClassesMessage(loaderId, names);
 		});
-		answer(ch, RequestClassMessage.class, req ->
-				new ReplyClassMessage(inst.getClassData(req.getLoaderId(), req.getName())));
-		answer(ch, RequestRedefineMessage.class, req -> {
+		answer(RequestClassMessage.class, req ->
+				new ReplyClassMessage(instrumentation.getClassData(req.getLoaderId(), req.getName())));
+		answer(RequestRedefineMessage.class, req -> {
+			InstrumentationHelper inst = instrumentation;
 			inst.lock();
 			try {
 				String message = inst.redefineClass(req.getLoaderId(), req.getClassName(), req.getBytecode());
@@ -221,7 +703,7 @@ private void configureChannel(ChannelHandler ch) {
 				inst.unlock();
 			}
 		});
-		answer(ch, RequestFieldGetMessage.class, req -> {
+		answer(RequestFieldGetMessage.class, req -> {
 			MemberData member = req.getMemberInfo();
 			try {
 				return new ReplyFieldGetMessage(member, req.lookupValue());
@@ -229,7 +711,7 @@ private void configureChannel(ChannelHandler ch) {
 				return new ReplyFieldGetMessage(member, null);
 			}
 		});
-		answer(ch, RequestFieldSetMessage.class, req -> {
+		answer(RequestFieldSetMessage.class, req -> {
 			try {
 				req.assignValue();
 				return new ReplyFieldSetMessage(ReplyFieldSetMessage.MESSAGE_SUCCESS);
@@ -237,16 +719,56 @@ private void configureChannel(ChannelHandler ch) {
 				return new ReplyFieldSetMessage(ex.toString());
 			}
 		});
+		answer(RequestBatchMessage.class, this::answerBatch);
+	}
+
+	/**
+	 * Handles each request of a batch in turn, on the current thread.
+	 *
+	 * @param batch
+	 * 		Batch of requests.
+	 *
+	 * @return Reply holding the reply of each request, or {@code null} for requests that failed or have no handler.
+	 *
+	 * @throws CancellationException
+	 * 		When the batch is cancelled or expires part way through.
+	 */
+	private ReplyBatchMessage answerBatch(RequestBatchMessage batch) {
+		List<AbstractRequestMessage<?>> requests = batch.getRequests();
+		List<AbstractReplyMessage> replies = new ArrayList<>(requests.size());
+		for (AbstractRequestMessage<?> request : requests) {
+			batch.checkActive();
+			// Lengthy requests check their own deadline, which is that of the batch
+			request.setDeadline(batch.getDeadline());
+			AbstractReplyMessage reply = null;
+			Function<AbstractMessage, AbstractMessage> answer = answerMap.get(request.getClass());
+			if (answer == null) {
+				Logger.warn("No handler for batched request: " + request);
+			} else {
+				try {
+					reply = (AbstractReplyMessage) answer.apply(request);
+				} catch (CancellationException ex) {
+					throw ex;
+				} catch (Throwable t) {
+					Logger.error("Failed batched request: " + request + ", " + t);
+				}
+			}
+			replies.add(reply);
+		}
+		return new ReplyBatchMessage(replies);
 	}
 
+	@SuppressWarnings("unchecked")
 	private <T extends AbstractMessage, R extends AbstractMessage>
-	void answer(ChannelHandler ch, Class<T> type, Function<? super T, R> fn) {
-		addHandler(type, (frameId, value) -> ch.write(fn.apply(value), frameId));
+	void answer(Class<T> type, Function<? super T, R> fn) {
+		// Kept apart from the handler as well, so that batched requests can be answered in place
+		answerMap.put(type, value -> fn.apply((T) value));
+		addHandler(type, (ch, frameId, value) -> ch.write(fn.apply(value), frameId));
 	}
 
 	private <T extends AbstractMessage, R extends AbstractMessage>
-	void answer(ChannelHandler ch, Class<T> type, Supplier<R> fn) {
-		addHandler(type, (frameId, value) -> ch.write(fn.get(), frameId));
+	void answer(Class<T> type, Supplier<R> fn) {
+		answer(type, value -> fn.get());
 	}
 
 	private <T extends AbstractMessage> void addHandler(Class<T> type, ReplyHandler<T> handler) {
@@ -254,6 +776,6 @@ private <T extends AbstractMessage> void addHandler(Class<T> type, ReplyHandler<
 	}
 
 	private interface ReplyHandler<T extends AbstractMessage> {
-		void accept(int frameId, T value);
+		void accept(ChannelHandler ch, int frameId, T value);
 	}
 }
\ No newline at end of file
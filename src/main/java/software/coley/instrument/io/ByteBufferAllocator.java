@@ -4,6 +4,9 @@
 
 /**
  * Util for creating byte buffers.
+ * <br>
+ * Buffers that are no longer used should be {@link #release(ByteBuffer) released}, allowing pooling
+ * implementations such as {@link PooledByteBufferAllocator} to reuse them.
  *
  * @author xxDark
  */
@@ -18,4 +21,16 @@ public interface ByteBufferAllocator {
 	 * @return New buffer.
 	 */
 	ByteBuffer allocate(int size);
+
+	/**
+	 * Returns a buffer from {@link #allocate(int)} to the allocator.
+	 * The buffer must not be used by the caller afterwards.
+	 * <br>
+	 * Does nothing by default, leaving the buffer for the garbage collector.
+	 *
+	 * @param buffer
+	 * 		Buffer to release.
+	 */
+	default void release(ByteBuffer buffer) {
+	}
 }
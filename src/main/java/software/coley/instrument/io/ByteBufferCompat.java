@@ -36,6 +36,16 @@ public static void compatPosition(Buffer buffer, int position) {
 		buffer.position(position);
 	}
 
+	/**
+	 * @param buffer
+	 * 		Buffer to set limit of.
+	 * @param limit
+	 * 		New limit.
+	 */
+	public static void compatLimit(Buffer buffer, int limit) {
+		buffer.limit(limit);
+	}
+
 	/**
 	 * @param buffer
 	 * 		Buffer to clear.
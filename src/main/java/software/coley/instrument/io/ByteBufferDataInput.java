@@ -1,11 +1,12 @@
 package software.coley.instrument.io;
 
 import java.io.DataInput;
-import java.io.UncheckedIOException;
 import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
-import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -15,19 +16,105 @@
  */
 public final class ByteBufferDataInput implements DataInput {
 	private final ByteBuffer buffer;
+	private boolean viewed;
+	// Reused by readUTF
+	private byte[] utfBytes;
+	private CharsetDecoder utfDecoder;
+	private CharBuffer utfChars;
 
 	public ByteBufferDataInput(ByteBuffer buffer) {
 		this.buffer = buffer;
 	}
 
+	/**
+	 * Reads the next bytes as a slice of the underlying buffer, without copying.
+	 * The returned buffer shares content with the underlying buffer, so the underlying buffer
+	 * must not be reused while the view is in use. See {@link #isViewed()}.
+	 *
+	 * @param len
+	 * 		Number of bytes to read.
+	 *
+	 * @return Read-only view of the next {@code len} bytes.
+	 *
+	 * @throws BufferUnderflowException
+	 * 		When fewer than {@code len} bytes remain.
+	 */
+	@SuppressWarnings("RedundantCast")
+	public ByteBuffer readView(int len) {
+		ByteBuffer buffer = this.buffer;
+		if (len < 0) throw new IllegalArgumentException("Negative length: " + len);
+		if (buffer.remaining() < len) throw new BufferUnderflowException();
+		ByteBuffer slice = buffer.slice();
+		((Buffer) slice).limit(len);
+		ByteBufferCompat.compatPosition(buffer, buffer.position() + len);
+		viewed = true;
+		return slice.asReadOnlyBuffer().order(buffer.order());
+	}
+
+	/**
+	 * @return {@code true} when a {@link #readView(int) view} of the underlying buffer has been handed out,
+	 * meaning the underlying buffer must not be recycled.
+	 */
+	public boolean isViewed() {
+		return viewed;
+	}
+
 	@Override
 	public void readFully(byte[] b) {
-		throw new UnsupportedOperationException();
+		buffer.get(b);
 	}
 
 	@Override
 	public void readFully(byte[] b, int off, int len) {
-		throw new UnsupportedOperationException();
+		buffer.get(b, off, len);
+	}
+
+	/**
+	 * Bulk read of {@code long} values, equivalent to calling {@link #readLong()} for each element.
+	 *
+	 * @param dst
+	 * 		Array to fill.
+	 */
+	public void readLongs(long[] dst) {
+		ByteBuffer buffer = this.buffer;
+		buffer.asLongBuffer().get(dst);
+		ByteBufferCompat.compatPosition(buffer, buffer.position() + dst.length * Long.BYTES);
+	}
+
+	/**
+	 * Bulk read of {@code int} values, equivalent to calling {@link #readInt()} for each element.
+	 *
+	 * @param dst
+	 * 		Array to fill.
+	 */
+	public void readInts(int[] dst) {
+		ByteBuffer buffer = this.buffer;
+		buffer.asIntBuffer().get(dst);
+		ByteBufferCompat.compatPosition(buffer, buffer.position() + dst.length * Integer.BYTES);
+	}
+
+	/**
+	 * Bulk read of {@code double} values, equivalent to calling {@link #readDouble()} for each element.
+	 *
+	 * @param dst
+	 * 		Array to fill.
+	 */
+	public void readDoubles(double[] dst) {
+		ByteBuffer buffer = this.buffer;
+		buffer.asDoubleBuffer().get(dst);
+		ByteBufferCompat.compatPosition(buffer, buffer.position() + dst.length * Double.BYTES);
+	}
+
+	/**
+	 * Bulk read of {@code float} values, equivalent to calling {@link #readFloat()} for each element.
+	 *
+	 * @param dst
+	 * 		Array to fill.
+	 */
+	public void readFloats(float[] dst) {
+		ByteBuffer buffer = this.buffer;
+		buffer.asFloatBuffer().get(dst);
+		ByteBufferCompat.compatPosition(buffer, buffer.position() + dst.length * Float.BYTES);
 	}
 
 	@Override
@@ -61,7 +148,7 @@ public short readShort() {
 
 	@Override
 	public int readUnsignedShort() {
-		return buffer.getShort() & 0xFF;
+		return buffer.getShort() & 0xFFFF;
 	}
 
 	@Override
@@ -95,33 +182,85 @@ public String readLine() {
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Reads the length in bytes as an {@code int}, followed by the string encoded as UTF-8.
+	 * ASCII strings, which most are, are copied without a decoder. Malformed input is replaced.
+	 *
+	 * @return Read string.
 	 *
-	 * @throws UncheckedIOException
-	 * 		If any I/O error is thrown. See comment in catch block.
-	 * @see UncheckedIOException#getCause()
+	 * @throws BufferUnderflowException
+	 * 		When fewer bytes remain than the string's length.
 	 */
 	@Override
-	@SuppressWarnings("RedundantCast")
+	@SuppressWarnings("deprecation")
 	public String readUTF() {
 		ByteBuffer buffer = this.buffer;
 		int len = buffer.getInt();
-		// Calling slice allows us to limit and set position to 0,
-		// so we can update the actual buffer after decoding is done.
-		ByteBuffer slice = buffer.slice().order(buffer.order());
-		((Buffer) slice).limit(len);
-		CharBuffer cb;
+		int position = buffer.position();
+		if (len < 0 || len > buffer.remaining()) throw new BufferUnderflowException();
+		byte[] bytes;
+		int offset;
+		if (buffer.hasArray()) {
+			bytes = buffer.array();
+			offset = buffer.arrayOffset() + position;
+		} else {
+			bytes = utfBytes;
+			if (bytes == null || bytes.length < len)
+				utfBytes = bytes = new byte[Math.max(len, 64)];
+			offset = 0;
+			buffer.get(bytes, 0, len);
+		}
+		String s;
+		if (isAscii(bytes, offset, len))
+			// Each byte is a character, so no decoding is needed
+			s = new String(bytes, 0, offset, len);
+		else
+			s = decodeUTF(position, len);
+		ByteBufferCompat.compatPosition(buffer, position + len);
+		return s;
+	}
+
+	/**
+	 * @param position
+	 * 		Offset of the encoded string in the buffer.
+	 * @param len
+	 * 		Length of the encoded string.
+	 *
+	 * @return Decoded string.
+	 */
+	@SuppressWarnings("RedundantCast")
+	private String decodeUTF(int position, int len) {
+		CharsetDecoder decoder = utfDecoder;
+		if (decoder == null)
+			utfDecoder = decoder = StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		else
+			decoder.reset();
+		// Never more characters than bytes
+		CharBuffer chars = utfChars;
+		if (chars == null || chars.capacity() < len)
+			utfChars = chars = CharBuffer.allocate(Math.max(len, 64));
+		((Buffer) chars).clear();
+		ByteBuffer buffer = this.buffer;
+		int limit = buffer.limit();
+		ByteBufferCompat.compatPosition(buffer, position);
+		((Buffer) buffer).limit(position + len);
 		try {
-			cb = StandardCharsets.UTF_8.newDecoder().decode(slice);
-		} catch (CharacterCodingException ex) {
-			// This should not occur since default decoder
-			// replaces invalid characters, but we will throw
-			// unchecked I/O exception just in case.
-			throw new UncheckedIOException(ex);
+			decoder.decode(buffer, chars, true);
+			decoder.flush(chars);
+		} finally {
+			((Buffer) buffer).limit(limit);
 		}
-		// We need to move position of the original buffer accordingly,
-		// otherwise it will cause later invocations to error.
-		ByteBufferCompat.compatPosition(buffer, buffer.position() + slice.position());
-		return cb.toString();
+		return new String(chars.array(), 0, chars.position());
+	}
+
+	/**
+	 * @return {@code true} when none of the bytes have the high bit set.
+	 */
+	private static boolean isAscii(byte[] bytes, int offset, int len) {
+		for (int i = offset, end = offset + len; i < end; i++)
+			if (bytes[i] < 0)
+				return false;
+		return true;
 	}
 }
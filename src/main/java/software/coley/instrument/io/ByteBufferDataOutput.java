@@ -1,10 +1,12 @@
 package software.coley.instrument.io;
 
 import java.io.DataOutput;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -14,6 +16,9 @@
  */
 public final class ByteBufferDataOutput implements DataOutput {
 	private final ByteBufferSanitizer sanitizer;
+	// Reused by writeUTF for strings that are not all ASCII
+	private CharsetEncoder utfEncoder;
+	private CharBuffer utfChars;
 
 	/**
 	 * @param sanitizer
@@ -47,6 +52,16 @@ public void reset() {
 		sanitizer.clear();
 	}
 
+	/**
+	 * Returns the underlying buffer to the allocator.
+	 * Any buffer previously returned by {@link #consume()} or {@link #getBuffer()} must no longer be used.
+	 *
+	 * @see ByteBufferSanitizer#release()
+	 */
+	public void release() {
+		sanitizer.release();
+	}
+
 	/**
 	 * @return Consumed buffer.
 	 */
@@ -70,6 +85,65 @@ public void write(byte[] b, int off, int len) {
 		buffer(len).put(b, off, len);
 	}
 
+	/**
+	 * Writes the remaining content of the given buffer.
+	 * The position of the given buffer is not modified.
+	 *
+	 * @param b
+	 * 		Buffer to write.
+	 */
+	public void write(ByteBuffer b) {
+		buffer(b.remaining()).put(b.duplicate());
+	}
+
+	/**
+	 * Bulk write of {@code long} values, equivalent to calling {@link #writeLong(long)} for each element.
+	 *
+	 * @param src
+	 * 		Values to write.
+	 */
+	public void writeLongs(long[] src) {
+		ByteBuffer buffer = buffer(src.length * Long.BYTES);
+		buffer.asLongBuffer().put(src);
+		ByteBufferCompat.compatPosition(buffer, buffer.position() + src.length * Long.BYTES);
+	}
+
+	/**
+	 * Bulk write of {@code int} values, equivalent to calling {@link #writeInt(int)} for each element.
+	 *
+	 * @param src
+	 * 		Values to write.
+	 */
+	public void writeInts(int[] src) {
+		ByteBuffer buffer = buffer(src.length * Integer.BYTES);
+		buffer.asIntBuffer().put(src);
+		ByteBufferCompat.compatPosition(buffer, buffer.position() + src.length * Integer.BYTES);
+	}
+
+	/**
+	 * Bulk write of {@code double} values, equivalent to calling {@link #writeDouble(double)} for each element.
+	 *
+	 * @param src
+	 * 		Values to write.
+	 */
+	public void writeDoubles(double[] src) {
+		ByteBuffer buffer = buffer(src.length * Double.BYTES);
+		buffer.asDoubleBuffer().put(src);
+		ByteBufferCompat.compatPosition(buffer, buffer.position() + src.length * Double.BYTES);
+	}
+
+	/**
+	 * Bulk write of {@code float} values, equivalent to calling {@link #writeFloat(float)} for each element.
+	 *
+	 * @param src
+	 * 		Values to write.
+	 */
+	public void writeFloats(float[] src) {
+		ByteBuffer buffer = buffer(src.length * Float.BYTES);
+		buffer.asFloatBuffer().put(src);
+		ByteBufferCompat.compatPosition(buffer, buffer.position() + src.length * Float.BYTES);
+	}
+
 	@Override
 	public void writeBoolean(boolean v) {
 		buffer(1).put((byte) (v ? 1 : 0));
@@ -130,33 +204,71 @@ public void writeChars(String s) {
 		}
 	}
 
+	/**
+	 * Writes the length in bytes as an {@code int}, followed by the string encoded as UTF-8.
+	 * The leading ASCII characters, usually the whole string, are copied without an encoder.
+	 * Invalid surrogates are replaced.
+	 *
+	 * @param s
+	 * 		String to write.
+	 */
 	@Override
 	public void writeUTF(String s) {
-		CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
-		CharBuffer cb = CharBuffer.wrap(s);
-
-		// Each character will take up
-		// at least 1 byte if all string is ASCII encoded,
-		// so preallocate larger buffer.
-		ByteBuffer buffer = buffer(4 + s.length());
+		// Each character will take up at least 1 byte, and exactly 1 if ASCII
+		int length = s.length();
+		ByteBuffer buffer = buffer(4 + length);
 		int position = buffer.position();
+		int start = position + 4;
+		int ascii = 0;
+		if (buffer.hasArray()) {
+			byte[] array = buffer.array();
+			int offset = buffer.arrayOffset() + start;
+			for (char c; ascii < length && (c = s.charAt(ascii)) < 0x80; ascii++)
+				array[offset + ascii] = (byte) c;
+		} else {
+			for (char c; ascii < length && (c = s.charAt(ascii)) < 0x80; ascii++)
+				buffer.put(start + ascii, (byte) c);
+		}
+		ByteBufferCompat.compatPosition(buffer, start + ascii);
+		if (ascii < length)
+			buffer = encodeUTF(s, ascii);
+		buffer.putInt(position, buffer.position() - start);
+	}
 
-		// Add dummy length, it will be replaced
-		// later after whole string is encoded.
-		buffer.putInt(-1);
+	/**
+	 * @param s
+	 * 		String to write.
+	 * @param from
+	 * 		Index of the first character not yet written.
+	 *
+	 * @return Underlying buffer, which may have grown to fit the remaining characters.
+	 */
+	@SuppressWarnings("RedundantCast")
+	private ByteBuffer encodeUTF(String s, int from) {
+		int remaining = s.length() - from;
+		CharBuffer chars = utfChars;
+		if (chars == null || chars.capacity() < remaining)
+			utfChars = chars = CharBuffer.allocate(Math.max(remaining, 64));
+		((Buffer) chars).clear();
+		s.getChars(from, s.length(), chars.array(), 0);
+		((Buffer) chars).limit(remaining);
+		CharsetEncoder encoder = utfEncoder;
+		if (encoder == null)
+			utfEncoder = encoder = StandardCharsets.UTF_8.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		else
+			encoder.reset();
+		ByteBuffer buffer = sanitizer.getBuffer();
 		while (true) {
-			CoderResult result = encoder.encode(cb, buffer, true);
+			CoderResult result = encoder.encode(chars, buffer, true);
 			if (result.isUnderflow()) {
-				if (cb.hasRemaining()) {
-					throw new IllegalStateException("Buffer must have no data left");
-				}
-				int newPosition = buffer.position();
-				buffer.putInt(position, newPosition - position - 4);
-				break;
+				// UTF-8 has no trailing state to flush
+				encoder.flush(buffer);
+				return buffer;
 			} else if (result.isOverflow()) {
-				// Encoder might overflow if there are non-ASCII characters
-				// in the string, take a guess of how much more data we have to encode.
-				buffer = buffer(Math.max((int) encoder.averageBytesPerChar() * cb.remaining(), 64));
+				// No character takes more than three bytes
+				buffer = buffer(3 * chars.remaining());
 				continue;
 			}
 			throw new IllegalStateException("Unexpected coder result: " + result);
@@ -42,6 +42,20 @@ public void clear() {
 		ByteBufferCompat.compatClear(buffer);
 	}
 
+	/**
+	 * Returns the underlying buffer to the allocator.
+	 * The sanitizer remains usable, and will allocate a new buffer on the next write.
+	 *
+	 * @see ByteBufferAllocator#release(ByteBuffer)
+	 */
+	public void release() {
+		ByteBuffer buffer = this.buffer;
+		if (buffer != EMPTY) {
+			this.buffer = EMPTY;
+			allocator.release(buffer);
+		}
+	}
+
 	/**
 	 * Consumes the buffer, sets its position to {@literal 0},
 	 * and limits it to the amount of bytes written.
@@ -68,11 +82,13 @@ public ByteBuffer ensureWriteable(int size) {
 		if (buffer.remaining() < size) {
 			// A bit more room
 			int pos = buffer.position();
-			size = Integer.highestOneBit(pos + size - 1) << 1;
+			size = Integer.highestOneBit(Math.max(1, pos + size - 1)) << 1;
 			ByteBuffer newBuffer = allocator.allocate(size);
 			ByteBufferCompat.compatPosition(buffer, 0);
 			((Buffer)buffer).limit(pos);
 			newBuffer.put(buffer);
+			if (buffer != EMPTY)
+				allocator.release(buffer);
 			buffer = newBuffer;
 			this.buffer = buffer;
 		}
@@ -0,0 +1,178 @@
+package software.coley.instrument.io;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * {@link DataInput} implementation reading across a series of buffers, as if they were one.
+ * Values split across buffer boundaries are supported.
+ *
+ * @author Matt Coley
+ * @see ChunkedDataOutput
+ */
+public final class ChunkedDataInput implements DataInput {
+	private final ByteBuffer scratch = ByteBuffer.allocate(Long.BYTES);
+	private final List<ByteBuffer> chunks;
+	private ByteBuffer current;
+	private int index;
+
+	/**
+	 * @param chunks
+	 * 		Buffers to read, in order. Each is read from its position to its limit.
+	 */
+	public ChunkedDataInput(List<ByteBuffer> chunks) {
+		this.chunks = chunks;
+		current = chunks.isEmpty() ? ByteBuffer.allocate(0) : chunks.get(0);
+	}
+
+	@Override
+	public void readFully(byte[] b) throws EOFException {
+		readFully(b, 0, b.length);
+	}
+
+	@Override
+	public void readFully(byte[] b, int off, int len) throws EOFException {
+		while (len > 0) {
+			ByteBuffer buffer = next();
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			off += count;
+			len -= count;
+		}
+	}
+
+	@Override
+	public int skipBytes(int n) {
+		int skipped = 0;
+		while (skipped < n) {
+			ByteBuffer buffer = current;
+			if (!buffer.hasRemaining()) {
+				if (index + 1 >= chunks.size())
+					break;
+				current = chunks.get(++index);
+				continue;
+			}
+			int count = Math.min(n - skipped, buffer.remaining());
+			ByteBufferCompat.compatPosition(buffer, buffer.position() + count);
+			skipped += count;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean readBoolean() throws EOFException {
+		return next().get() != 0;
+	}
+
+	@Override
+	public byte readByte() throws EOFException {
+		return next().get();
+	}
+
+	@Override
+	public int readUnsignedByte() throws EOFException {
+		return next().get() & 0xFF;
+	}
+
+	@Override
+	public short readShort() throws EOFException {
+		return buffer(2).getShort();
+	}
+
+	@Override
+	public int readUnsignedShort() throws EOFException {
+		return buffer(2).getShort() & 0xFFFF;
+	}
+
+	@Override
+	public char readChar() throws EOFException {
+		return buffer(2).getChar();
+	}
+
+	@Override
+	public int readInt() throws EOFException {
+		return buffer(4).getInt();
+	}
+
+	@Override
+	public long readLong() throws EOFException {
+		return buffer(8).getLong();
+	}
+
+	@Override
+	public float readFloat() throws EOFException {
+		return buffer(4).getFloat();
+	}
+
+	@Override
+	public double readDouble() throws EOFException {
+		return buffer(8).getDouble();
+	}
+
+	@Override
+	public String readLine() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Same format as {@link ByteBufferDataInput#readUTF()}.
+	 *
+	 * @return Read string.
+	 */
+	@Override
+	public String readUTF() throws EOFException {
+		int len = readInt();
+		ByteBuffer buffer = next();
+		if (buffer.remaining() >= len && buffer.hasArray()) {
+			// Decode in place when the string is not split across chunks
+			int position = buffer.position();
+			String s = new String(buffer.array(), buffer.arrayOffset() + position, len, StandardCharsets.UTF_8);
+			ByteBufferCompat.compatPosition(buffer, position + len);
+			return s;
+		}
+		byte[] bytes = new byte[len];
+		readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return Current chunk, advanced to the next non-empty chunk if the current one is exhausted.
+	 *
+	 * @throws EOFException
+	 * 		When all chunks are exhausted.
+	 */
+	private ByteBuffer next() throws EOFException {
+		ByteBuffer buffer = current;
+		while (!buffer.hasRemaining()) {
+			if (index + 1 >= chunks.size())
+				throw new EOFException();
+			buffer = current = chunks.get(++index);
+		}
+		return buffer;
+	}
+
+	/**
+	 * @param size
+	 * 		Number of bytes to be read, at most {@link Long#BYTES}.
+	 *
+	 * @return Current chunk when it holds the given number of bytes,
+	 * otherwise a scratch buffer holding the value gathered from multiple chunks.
+	 *
+	 * @throws EOFException
+	 * 		When all chunks are exhausted.
+	 */
+	private ByteBuffer buffer(int size) throws EOFException {
+		ByteBuffer buffer = next();
+		if (buffer.remaining() >= size)
+			return buffer;
+		ByteBuffer scratch = this.scratch;
+		ByteBufferCompat.compatClear(scratch);
+		while (scratch.position() < size)
+			scratch.put(next().get());
+		ByteBufferCompat.compatPosition(scratch, 0);
+		return scratch;
+	}
+}
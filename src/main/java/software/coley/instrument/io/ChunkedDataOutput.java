@@ -0,0 +1,192 @@
+package software.coley.instrument.io;
+
+import java.io.DataOutput;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link DataOutput} implementation writing to a series of fixed size buffers.
+ * <br>
+ * Unlike {@link ByteBufferDataOutput}, large content never requires a single large buffer,
+ * and is never copied to grow. Primitive values are never split across chunks, so chunks may be
+ * up to 7 bytes short of the chunk size.
+ *
+ * @author Matt Coley
+ */
+public final class ChunkedDataOutput implements DataOutput {
+	private final List<ByteBuffer> chunks = new ArrayList<>();
+	private final ByteBufferAllocator allocator;
+	private final int chunkSize;
+	private ByteBuffer current;
+
+	/**
+	 * @param allocator
+	 * 		Allocator to take chunks from.
+	 * @param chunkSize
+	 * 		Size of each chunk.
+	 */
+	public ChunkedDataOutput(ByteBufferAllocator allocator, int chunkSize) {
+		if (chunkSize < Long.BYTES)
+			throw new IllegalArgumentException("Chunk size too small: " + chunkSize);
+		this.allocator = allocator;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @return Size of each chunk.
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return Total number of bytes written.
+	 */
+	public long size() {
+		long size = 0;
+		for (ByteBuffer chunk : chunks)
+			size += chunk.position();
+		return size;
+	}
+
+	/**
+	 * @return Number of chunks written to.
+	 */
+	public int getChunkCount() {
+		return chunks.size();
+	}
+
+	/**
+	 * Hands off all chunks to the caller, who becomes responsible for {@link ByteBufferAllocator#release(ByteBuffer)
+	 * releasing} them. This output is then empty and can be written to again.
+	 *
+	 * @return Written chunks, each flipped for reading.
+	 */
+	@SuppressWarnings("RedundantCast")
+	public List<ByteBuffer> takeChunks() {
+		List<ByteBuffer> taken = new ArrayList<>(chunks);
+		for (ByteBuffer chunk : taken)
+			((Buffer) chunk).flip();
+		chunks.clear();
+		current = null;
+		return taken;
+	}
+
+	/**
+	 * Returns all chunks to the allocator. This output is then empty and can be written to again.
+	 */
+	public void release() {
+		for (ByteBuffer chunk : chunks)
+			allocator.release(chunk);
+		chunks.clear();
+		current = null;
+	}
+
+	@Override
+	public void write(int b) {
+		buffer(1).put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b) {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		// Split across as many chunks as needed
+		while (len > 0) {
+			ByteBuffer buffer = buffer(1);
+			int count = Math.min(len, buffer.remaining());
+			buffer.put(b, off, count);
+			off += count;
+			len -= count;
+		}
+	}
+
+	@Override
+	public void writeBoolean(boolean v) {
+		buffer(1).put((byte) (v ? 1 : 0));
+	}
+
+	@Override
+	public void writeByte(int v) {
+		buffer(1).put((byte) v);
+	}
+
+	@Override
+	public void writeShort(int v) {
+		buffer(2).putShort((short) v);
+	}
+
+	@Override
+	public void writeChar(int v) {
+		buffer(2).putChar((char) v);
+	}
+
+	@Override
+	public void writeInt(int v) {
+		buffer(4).putInt(v);
+	}
+
+	@Override
+	public void writeLong(long v) {
+		buffer(8).putLong(v);
+	}
+
+	@Override
+	public void writeFloat(float v) {
+		buffer(4).putFloat(v);
+	}
+
+	@Override
+	public void writeDouble(double v) {
+		buffer(8).putDouble(v);
+	}
+
+	@Override
+	public void writeBytes(String s) {
+		int j = s.length();
+		for (int i = 0; i < j; i++)
+			writeByte(s.charAt(i));
+	}
+
+	@Override
+	public void writeChars(String s) {
+		int j = s.length();
+		for (int i = 0; i < j; i++)
+			writeChar(s.charAt(i));
+	}
+
+	/**
+	 * Same format as {@link ByteBufferDataOutput#writeUTF(String)}.
+	 *
+	 * @param s
+	 * 		String to write.
+	 */
+	@Override
+	public void writeUTF(String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeInt(bytes.length);
+		write(bytes);
+	}
+
+	/**
+	 * @param size
+	 * 		Number of bytes to be written, at most {@link Long#BYTES}.
+	 *
+	 * @return Chunk with at least the given number of bytes remaining.
+	 */
+	private ByteBuffer buffer(int size) {
+		ByteBuffer buffer = current;
+		if (buffer == null || buffer.remaining() < size) {
+			buffer = allocator.allocate(chunkSize);
+			chunks.add(buffer);
+			current = buffer;
+		}
+		return buffer;
+	}
+}
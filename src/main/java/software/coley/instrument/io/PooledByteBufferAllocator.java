@@ -0,0 +1,257 @@
+package software.coley.instrument.io;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Allocator which recycles {@link #release(ByteBuffer) released} buffers.
+ * <br>
+ * Buffers are grouped into power-of-two size classes. A request is served from the smallest class that fits it,
+ * so a returned buffer may have a larger capacity than requested, but its limit will always be the requested size.
+ * Requests larger than the largest class are not pooled.
+ * <br>
+ * Only buffers handed out by the pool are taken back, and only once per allocation. Other buffers, including
+ * slices and duplicates of pooled buffers that share their memory, are left for the garbage collector.
+ * <br>
+ * Redundant casts exist to resolve
+ * <a href="https://stackoverflow.com/questions/61267495/exception-in-thread-main-java-lang-nosuchmethoderror-java-nio-bytebuffer-flip#61267496">
+ * compatibility between JDK 8/9</a>.
+ *
+ * @author Matt Coley
+ */
+@SuppressWarnings("RedundantCast")
+public final class PooledByteBufferAllocator implements ByteBufferAllocator {
+	public static final int DEFAULT_MIN_SIZE = 64;
+	public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_MAX_CLASS_BYTES = 8 * 1024 * 1024;
+	private static final int MAX_CLASS_BUFFERS = 64;
+	private final ByteBufferAllocator backing;
+	private final boolean direct;
+	private final int minShift;
+	private final int maxSize;
+	private final SizeClass[] classes;
+
+	/**
+	 * New pool with {@link #DEFAULT_MIN_SIZE}, {@link #DEFAULT_MAX_SIZE} and {@link #DEFAULT_MAX_CLASS_BYTES}.
+	 *
+	 * @param backing
+	 * 		Allocator for new buffers, such as {@link ByteBufferAllocator#HEAP} or {@link ByteBufferAllocator#DIRECT}.
+	 */
+	public PooledByteBufferAllocator(ByteBufferAllocator backing) {
+		this(backing, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_CLASS_BYTES);
+	}
+
+	/**
+	 * @param backing
+	 * 		Allocator for new buffers, such as {@link ByteBufferAllocator#HEAP} or {@link ByteBufferAllocator#DIRECT}.
+	 * @param minSize
+	 * 		Capacity of the smallest size class. Rounded up to a power of two.
+	 * @param maxSize
+	 * 		Capacity of the largest size class. Rounded up to a power of two.
+	 * @param maxClassBytes
+	 * 		Maximum number of bytes retained per size class.
+	 * 		Each class retains at least one buffer.
+	 */
+	public PooledByteBufferAllocator(ByteBufferAllocator backing, int minSize, int maxSize, int maxClassBytes) {
+		if (minSize < 1 || maxSize < minSize || maxSize > (1 << 30))
+			throw new IllegalArgumentException("Invalid size range: " + minSize + " - " + maxSize);
+		this.backing = backing;
+		this.direct = backing.allocate(0).isDirect();
+		this.minShift = shift(minSize);
+		int maxShift = shift(maxSize);
+		this.maxSize = 1 << maxShift;
+		this.classes = new SizeClass[maxShift - minShift + 1];
+		for (int i = 0; i < classes.length; i++) {
+			int capacity = 1 << (minShift + i);
+			int count = Math.max(1, Math.min(MAX_CLASS_BUFFERS, maxClassBytes / capacity));
+			classes[i] = new SizeClass(count);
+		}
+	}
+
+	@Override
+	public ByteBuffer allocate(int size) {
+		if (size > maxSize)
+			return backing.allocate(size);
+		int index = classIndex(size);
+		SizeClass sizeClass = classes[index];
+		ByteBuffer buffer = sizeClass.poll();
+		if (buffer == null) {
+			buffer = backing.allocate(1 << (minShift + index));
+			sizeClass.lend(buffer);
+		} else {
+			((Buffer) buffer).clear();
+			buffer.order(ByteOrder.BIG_ENDIAN);
+		}
+		((Buffer) buffer).limit(size);
+		return buffer;
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		// Only buffers matching one of our size classes exactly can be ours
+		if (capacity > maxSize || Integer.bitCount(capacity) != 1 || buffer.isDirect() != direct)
+			return;
+		int index = shift(capacity) - minShift;
+		if (index >= 0)
+			classes[index].offer(buffer);
+	}
+
+	/**
+	 * @return Number of buffers currently held by the pool.
+	 */
+	public int getPooledCount() {
+		int count = 0;
+		for (SizeClass sizeClass : classes)
+			count += sizeClass.size();
+		return count;
+	}
+
+	/**
+	 * @param size
+	 * 		Requested size.
+	 *
+	 * @return Index of the smallest class which fits the size.
+	 */
+	private int classIndex(int size) {
+		return Math.max(0, shift(size) - minShift);
+	}
+
+	/**
+	 * @param size
+	 * 		Some size.
+	 *
+	 * @return Exponent of the smallest power of two greater than or equal to the size.
+	 */
+	private static int shift(int size) {
+		return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	/**
+	 * Bounded stack of buffers of a single capacity, along with the buffers of the class currently handed out.
+	 * Backed by arrays so that recycling does not allocate.
+	 * <br>
+	 * Handed out buffers are tracked by identity with weak references,
+	 * so that those never released can still be collected.
+	 */
+	private static final class SizeClass {
+		private final ByteBuffer[] buffers;
+		private final Owned[] owners;
+		private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+		private Owned[] table = new Owned[16];
+		private int owned;
+		private int size;
+
+		private SizeClass(int capacity) {
+			buffers = new ByteBuffer[capacity];
+			owners = new Owned[capacity];
+		}
+
+		synchronized ByteBuffer poll() {
+			if (size == 0)
+				return null;
+			ByteBuffer buffer = buffers[--size];
+			owners[size].lent = true;
+			buffers[size] = null;
+			owners[size] = null;
+			return buffer;
+		}
+
+		/**
+		 * @param buffer
+		 * 		New buffer of this class, being handed out.
+		 */
+		synchronized void lend(ByteBuffer buffer) {
+			expunge();
+			if (owned >= table.length * 3 / 4)
+				resize();
+			Owned owner = new Owned(buffer, collected);
+			int index = owner.hash & (table.length - 1);
+			owner.next = table[index];
+			table[index] = owner;
+			owned++;
+		}
+
+		/**
+		 * @param buffer
+		 * 		Released buffer. Ignored unless it is currently handed out by this class.
+		 */
+		synchronized void offer(ByteBuffer buffer) {
+			Owned owner = find(buffer);
+			if (owner == null || !owner.lent)
+				return;
+			owner.lent = false;
+			if (size < buffers.length) {
+				buffers[size] = buffer;
+				owners[size++] = owner;
+			} else {
+				remove(owner);
+			}
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		private Owned find(ByteBuffer buffer) {
+			int hash = System.identityHashCode(buffer);
+			for (Owned owner = table[hash & (table.length - 1)]; owner != null; owner = owner.next)
+				if (owner.get() == buffer)
+					return owner;
+			return null;
+		}
+
+		private void remove(Owned owner) {
+			int index = owner.hash & (table.length - 1);
+			Owned prev = null;
+			for (Owned current = table[index]; current != null; prev = current, current = current.next) {
+				if (current == owner) {
+					if (prev == null)
+						table[index] = current.next;
+					else
+						prev.next = current.next;
+					owned--;
+					return;
+				}
+			}
+		}
+
+		private void expunge() {
+			Object ref;
+			while ((ref = collected.poll()) != null)
+				remove((Owned) ref);
+		}
+
+		private void resize() {
+			Owned[] old = table;
+			Owned[] resized = new Owned[old.length * 2];
+			for (Owned head : old) {
+				for (Owned owner = head, next; owner != null; owner = next) {
+					next = owner.next;
+					int index = owner.hash & (resized.length - 1);
+					owner.next = resized[index];
+					resized[index] = owner;
+				}
+			}
+			table = resized;
+		}
+	}
+
+	/**
+	 * Weak identity entry of a buffer created by the pool.
+	 */
+	private static final class Owned extends WeakReference<ByteBuffer> {
+		private final int hash;
+		private Owned next;
+		// Handed out, rather than held by the pool
+		private boolean lent = true;
+
+		private Owned(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			hash = System.identityHashCode(buffer);
+		}
+	}
+}
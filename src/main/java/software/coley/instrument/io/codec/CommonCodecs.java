@@ -1,7 +1,11 @@
 package software.coley.instrument.io.codec;
 
+import software.coley.instrument.io.ByteBufferDataInput;
+import software.coley.instrument.io.ByteBufferDataOutput;
+
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.function.Function;
 import java.util.function.IntFunction;
@@ -17,47 +21,94 @@ public final class CommonCodecs {
 	public static final StructureCodec<long[]> LONG_ARRAY = StructureDecoder.decoder(input -> {
 		int len = input.readInt();
 		long[] arr = new long[len];
-		for (int i = 0; i < len; arr[i++] = input.readLong()) ;
+		if (input instanceof ByteBufferDataInput)
+			((ByteBufferDataInput) input).readLongs(arr);
+		else
+			for (int i = 0; i < len; arr[i++] = input.readLong()) ;
 		return arr;
 	}).with((output, value) -> {
 		output.writeInt(value.length);
-		for (int i = 0, j = value.length; i < j; output.writeLong(value[i++])) ;
+		if (output instanceof ByteBufferDataOutput)
+			((ByteBufferDataOutput) output).writeLongs(value);
+		else
+			for (int i = 0, j = value.length; i < j; output.writeLong(value[i++])) ;
 	});
 	public static final StructureCodec<double[]> DOUBLE_ARRAY = StructureDecoder.decoder(input -> {
 		int len = input.readInt();
 		double[] arr = new double[len];
-		for (int i = 0; i < len; arr[i++] = input.readDouble()) ;
+		if (input instanceof ByteBufferDataInput)
+			((ByteBufferDataInput) input).readDoubles(arr);
+		else
+			for (int i = 0; i < len; arr[i++] = input.readDouble()) ;
 		return arr;
 	}).with((output, value) -> {
 		output.writeInt(value.length);
-		for (int i = 0, j = value.length; i < j; output.writeDouble(value[i++])) ;
+		if (output instanceof ByteBufferDataOutput)
+			((ByteBufferDataOutput) output).writeDoubles(value);
+		else
+			for (int i = 0, j = value.length; i < j; output.writeDouble(value[i++])) ;
 	});
 	public static final StructureCodec<int[]> INT_ARRAY = StructureDecoder.decoder(input -> {
 		int len = input.readInt();
 		int[] arr = new int[len];
-		for (int i = 0; i < len; arr[i++] = input.readInt()) ;
+		if (input instanceof ByteBufferDataInput)
+			((ByteBufferDataInput) input).readInts(arr);
+		else
+			for (int i = 0; i < len; arr[i++] = input.readInt()) ;
 		return arr;
 	}).with((output, value) -> {
 		output.writeInt(value.length);
-		for (int i = 0, j = value.length; i < j; output.writeInt(value[i++])) ;
+		if (output instanceof ByteBufferDataOutput)
+			((ByteBufferDataOutput) output).writeInts(value);
+		else
+			for (int i = 0, j = value.length; i < j; output.writeInt(value[i++])) ;
 	});
 	public static final StructureCodec<byte[]> BYTE_ARRAY = StructureDecoder.decoder(input -> {
 		int len = input.readInt();
 		byte[] arr = new byte[len];
-		for (int i = 0; i < len; arr[i++] = input.readByte()) ;
+		input.readFully(arr);
 		return arr;
 	}).with((output, value) -> {
 		output.writeInt(value.length);
-		for (int i = 0, j = value.length; i < j; output.writeByte(value[i++])) ;
+		output.write(value);
+	});
+	/**
+	 * Same wire format as {@link #BYTE_ARRAY}, but decodes without copying when the input
+	 * is a {@link ByteBufferDataInput}, yielding a read-only {@link ByteBufferDataInput#readView(int) view}
+	 * of the receive buffer.
+	 */
+	public static final StructureCodec<ByteBuffer> BYTE_BUFFER = StructureDecoder.decoder(input -> {
+		int len = input.readInt();
+		if (input instanceof ByteBufferDataInput)
+			return ((ByteBufferDataInput) input).readView(len);
+		byte[] arr = new byte[len];
+		input.readFully(arr);
+		return ByteBuffer.wrap(arr).asReadOnlyBuffer();
+	}).with((output, value) -> {
+		output.writeInt(value.remaining());
+		if (output instanceof ByteBufferDataOutput) {
+			((ByteBufferDataOutput) output).write(value);
+		} else {
+			ByteBuffer copy = value.duplicate();
+			byte[] arr = new byte[copy.remaining()];
+			copy.get(arr);
+			output.write(arr);
+		}
 	});
 	public static final StructureCodec<float[]> FLOAT_ARRAY = StructureDecoder.decoder(input -> {
 		int len = input.readInt();
 		float[] arr = new float[len];
-		for (int i = 0; i < len; arr[i++] = input.readFloat()) ;
+		if (input instanceof ByteBufferDataInput)
+			((ByteBufferDataInput) input).readFloats(arr);
+		else
+			for (int i = 0; i < len; arr[i++] = input.readFloat()) ;
 		return arr;
 	}).with((output, value) -> {
 		output.writeInt(value.length);
-		for (int i = 0, j = value.length; i < j; output.writeFloat(value[i++])) ;
+		if (output instanceof ByteBufferDataOutput)
+			((ByteBufferDataOutput) output).writeFloats(value);
+		else
+			for (int i = 0, j = value.length; i < j; output.writeFloat(value[i++])) ;
 	});
 	public static final StructureCodec<UUID> UUID = StructureDecoder.decoder(input -> new UUID(input.readLong(), input.readLong())).with((output, value) -> {
 		output.writeLong(value.getMostSignificantBits());
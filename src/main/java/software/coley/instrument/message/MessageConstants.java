@@ -6,6 +6,10 @@
  * @author Matt Coley
  */
 public interface MessageConstants {
+	// control
+	int ID_CTL_CREDIT = 1;
+	int ID_CTL_CANCEL = 2;
+	int ID_CTL_HELLO = 3;
 	// request
 	int ID_REQ_PING= 100;
 	int ID_REQ_PROPERTIES = 101;
@@ -17,6 +21,7 @@ public interface MessageConstants {
 	int ID_REQ_REDEFINE = 113;
 	int ID_REQ_FIELD_GET = 114;
 	int ID_REQ_FIELD_SET = 115;
+	int ID_REQ_BATCH = 120;
 	// reply
 	int ID_REP_PONG = 200;
 	int ID_REP_PROPERTIES = 201;
@@ -28,9 +33,12 @@ public interface MessageConstants {
 	int ID_REP_REDEFINE = 213;
 	int ID_REP_FIELD_GET = 214;
 	int ID_REP_FIELD_SET = 215;
+	int ID_REP_BATCH = 220;
 	// broadcast
 	int ID_BROADCAST_LOADER = 300;
 	int ID_BROADCAST_CLASS = 301;
+	int ID_BROADCAST_DROPPED = 302;
+	int ID_BROADCAST_SESSION = 303;
 	//
 	long TIMEOUT_SECONDS = 5;
 }
@@ -1,11 +1,18 @@
 package software.coley.instrument.message;
 
 import software.coley.instrument.io.codec.StructureCodec;
+import software.coley.instrument.io.codec.StructureDecoder;
 import software.coley.instrument.message.broadcast.BroadcastClassMessage;
 import software.coley.instrument.message.broadcast.BroadcastClassloaderMessage;
+import software.coley.instrument.message.broadcast.BroadcastDroppedMessage;
+import software.coley.instrument.message.broadcast.BroadcastSessionMessage;
+import software.coley.instrument.message.control.ControlCancelMessage;
+import software.coley.instrument.message.control.ControlCreditMessage;
+import software.coley.instrument.message.control.ControlHelloMessage;
 import software.coley.instrument.message.reply.*;
 import software.coley.instrument.message.request.*;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Map;
@@ -16,10 +23,32 @@
  * @author Matt Coley
  */
 public class MessageFactory implements MessageConstants {
+	private static final int NO_MESSAGE_ID = 0;
 	private final Map<Class<?>, MessageInfo> messageTypeMap = new IdentityHashMap<>();
 	private final Map<Integer, MessageInfo> messageIdMap = new HashMap<>();
+	private final StructureCodec<AbstractMessage> messageCodec = StructureDecoder.decoder(input -> {
+		int id = input.readUnsignedShort();
+		if (id == NO_MESSAGE_ID)
+			return null;
+		MessageInfo info = messageIdMap.get(id);
+		if (info == null)
+			throw new IOException("Unsupported nested message: " + id);
+		return info.getCodec().decode(input);
+	}).with((output, value) -> {
+		if (value == null) {
+			output.writeShort(NO_MESSAGE_ID);
+		} else {
+			MessageInfo info = getInfo(value);
+			output.writeShort(info.getId());
+			info.getCodec().encode(output, value);
+		}
+	});
 
 	private MessageFactory() {
+		register(ID_CTL_CREDIT, ControlCreditMessage.CODEC);
+		register(ID_CTL_CANCEL, ControlCancelMessage.CODEC);
+		register(ID_CTL_HELLO, ControlHelloMessage.CODEC);
+		//
 		register(ID_REQ_PING, RequestPingMessage.CODEC);
 		register(ID_REP_PONG, ReplyPingMessage.CODEC);
 		//
@@ -50,8 +79,13 @@ private MessageFactory() {
 		register(ID_REQ_THREADS, RequestThreadsMessage.CODEC);
 		register(ID_REP_THREADS, ReplyThreadsMessage.CODEC);
 		//
+		register(ID_REQ_BATCH, RequestBatchMessage.codec(this));
+		register(ID_REP_BATCH, ReplyBatchMessage.codec(this));
+		//
 		register(ID_BROADCAST_LOADER, BroadcastClassloaderMessage.CODEC);
 		register(ID_BROADCAST_CLASS, BroadcastClassMessage.CODEC);
+		register(ID_BROADCAST_DROPPED, BroadcastDroppedMessage.CODEC);
+		register(ID_BROADCAST_SESSION, BroadcastSessionMessage.CODEC);
 	}
 
 	/**
@@ -80,6 +114,21 @@ public MessageInfo getInfo(int key) {
 		return info;
 	}
 
+	/**
+	 * @return Codec for messages nested inside other messages, written as their message ID followed by their content.
+	 * Allows {@code null}, written as only the ID {@code 0}.
+	 */
+	public StructureCodec<AbstractMessage> getMessageCodec() {
+		return messageCodec;
+	}
+
+	/**
+	 * @return IDs of all registered message types, in ascending order.
+	 */
+	public int[] getIds() {
+		return messageIdMap.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+	}
+
 	/**
 	 * @param id
 	 * 		Message ID.
@@ -8,4 +8,45 @@
  * @author Matt Coley
  */
 public class AbstractBroadcastMessage extends AbstractMessage {
+	private long sequence;
+
+	/**
+	 * Broadcasts sent by a server to clients which support session resume are stamped with an increasing
+	 * sequence, so that a reconnecting client can ask for only those it missed.
+	 *
+	 * @return Sequence of the broadcast, or {@code 0} when not sequenced.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @param sequence
+	 * 		Sequence of the broadcast, or {@code 0} when not sequenced.
+	 */
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Used when a channel {@link software.coley.instrument.sock.OverflowPolicy#COALESCE coalesces} broadcasts
+	 * to a peer which is not keeping up. Of the pending broadcasts sharing a key, only the most recent is sent.
+	 *
+	 * @return Key identifying what this broadcast describes.
+	 * Defaults to the message type, meaning only the latest broadcast of each type is kept.
+	 */
+	public Object getCoalesceKey() {
+		return getClass();
+	}
+
+	/**
+	 * Used when a channel {@link software.coley.instrument.sock.SlowConsumerPolicy#SUMMARIZE summarizes} broadcasts
+	 * to a peer which lags too far behind.
+	 *
+	 * @return Broadcast describing the same thing, without any bulky content.
+	 * Defaults to this broadcast, for those with nothing to leave out.
+	 */
+	public AbstractBroadcastMessage toSummary() {
+		return this;
+	}
 }
@@ -28,4 +28,18 @@ public BroadcastClassMessage(ClassData data) {
 	public ClassData getData() {
 		return data;
 	}
+
+	@Override
+	public Object getCoalesceKey() {
+		// Only repeated updates of the same class replace one another
+		return data.getClassLoaderId() + ":" + data.getName();
+	}
+
+	@Override
+	public AbstractBroadcastMessage toSummary() {
+		// Only the name of the updated class, the peer can request the code if it still wants it
+		if (!data.hasCode())
+			return this;
+		return new BroadcastClassMessage(new ClassData(data.getName(), data.getClassLoaderId(), null));
+	}
 }
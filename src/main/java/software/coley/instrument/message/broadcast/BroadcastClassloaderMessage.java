@@ -29,4 +29,9 @@ public BroadcastClassloaderMessage(ClassLoaderInfo classLoader) {
 	public ClassLoaderInfo getClassLoader() {
 		return classLoader;
 	}
+
+	@Override
+	public Object getCoalesceKey() {
+		return classLoader.getId();
+	}
 }
@@ -0,0 +1,37 @@
+package software.coley.instrument.message.broadcast;
+
+import software.coley.instrument.io.codec.StructureCodec;
+
+/**
+ * Message telling a peer how many broadcasts it was not sent while it was a
+ * {@link software.coley.instrument.sock.SlowConsumerPolicy#DROP slow consumer}.
+ * Sent once it has caught up, before any further broadcasts.
+ *
+ * @author Matt Coley
+ */
+public class BroadcastDroppedMessage extends AbstractBroadcastMessage {
+	public static final StructureCodec<BroadcastDroppedMessage> CODEC = StructureCodec.compose(
+			input -> new BroadcastDroppedMessage(input.readInt()),
+			(output, value) -> output.writeInt(value.getCount()));
+	private final int count;
+
+	/**
+	 * @param count
+	 * 		Number of broadcasts dropped.
+	 */
+	public BroadcastDroppedMessage(int count) {
+		this.count = count;
+	}
+
+	/**
+	 * @return Number of broadcasts dropped.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "BroadcastDroppedMessage{count=" + count + '}';
+	}
+}
@@ -0,0 +1,73 @@
+package software.coley.instrument.message.broadcast;
+
+import software.coley.instrument.io.codec.StructureCodec;
+
+/**
+ * Message telling a client which broadcast session it is in, sent once its hello arrives and before any other
+ * broadcast. Only sent to clients which say they support
+ * {@link software.coley.instrument.message.control.ControlHelloMessage#FEATURE_SESSIONS sessions}.
+ * <br>
+ * When the session the client asked to resume was {@link #isResumed() resumed}, the broadcasts it missed follow.
+ * Otherwise the client has missed broadcasts that can no longer be replayed, and must re-request anything it
+ * had built up from them.
+ *
+ * @author Matt Coley
+ */
+public class BroadcastSessionMessage extends AbstractBroadcastMessage {
+	public static final StructureCodec<BroadcastSessionMessage> CODEC = StructureCodec.compose(
+			input -> new BroadcastSessionMessage(input.readLong(), input.readLong(), input.readBoolean()),
+			(output, value) -> {
+				output.writeLong(value.getToken());
+				output.writeLong(value.getLastSequence());
+				output.writeBoolean(value.isResumed());
+			});
+	private final long token;
+	private final long lastSequence;
+	private final boolean resumed;
+
+	/**
+	 * @param token
+	 * 		Token to present when reconnecting, to resume the session.
+	 * @param lastSequence
+	 * 		Sequence of the last broadcast the client is considered to have received.
+	 * @param resumed
+	 * 		{@code true} when the session the client asked for was resumed.
+	 */
+	public BroadcastSessionMessage(long token, long lastSequence, boolean resumed) {
+		this.token = token;
+		this.lastSequence = lastSequence;
+		this.resumed = resumed;
+	}
+
+	/**
+	 * @return Token to present when reconnecting, to resume the session.
+	 */
+	public long getToken() {
+		return token;
+	}
+
+	/**
+	 * @return Sequence of the last broadcast the client is considered to have received.
+	 * When resumed, the one it asked to resume from, and otherwise the latest broadcast sent before it connected.
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return {@code true} when the session the client asked for was resumed, and the broadcasts it missed follow.
+	 * {@code false} for a new session.
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	@Override
+	public String toString() {
+		return "BroadcastSessionMessage{" +
+				"token=" + Long.toHexString(token) +
+				", lastSequence=" + lastSequence +
+				", resumed=" + resumed +
+				'}';
+	}
+}
@@ -0,0 +1,15 @@
+package software.coley.instrument.message.control;
+
+import software.coley.instrument.ApiConstants;
+import software.coley.instrument.message.AbstractMessage;
+
+/**
+ * Base type for control messages.
+ * <br>
+ * Control messages are sent with the {@link ApiConstants#CONTROL_MESSAGE_ID} frame ID, and are handled by the
+ * channel handlers on both ends of a connection rather than being passed along to listeners.
+ *
+ * @author Matt Coley
+ */
+public class AbstractControlMessage extends AbstractMessage {
+}
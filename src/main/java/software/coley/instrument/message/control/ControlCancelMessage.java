@@ -0,0 +1,39 @@
+package software.coley.instrument.message.control;
+
+import software.coley.instrument.io.codec.StructureCodec;
+
+/**
+ * Message telling the receiver that the reply to a request is no longer wanted.
+ * <br>
+ * Sent when a request times out or its reply future is cancelled. The receiver
+ * {@link software.coley.instrument.message.request.AbstractRequestMessage#cancel() cancels} the request,
+ * so that it is skipped if not yet handled, and its reply is not sent.
+ *
+ * @author Matt Coley
+ */
+public class ControlCancelMessage extends AbstractControlMessage {
+	public static final StructureCodec<ControlCancelMessage> CODEC =
+			StructureCodec.compose(input -> new ControlCancelMessage(input.readInt()),
+					(output, value) -> output.writeInt(value.getFrameId()));
+	private final int frameId;
+
+	/**
+	 * @param frameId
+	 * 		Frame ID of the cancelled request.
+	 */
+	public ControlCancelMessage(int frameId) {
+		this.frameId = frameId;
+	}
+
+	/**
+	 * @return Frame ID of the cancelled request.
+	 */
+	public int getFrameId() {
+		return frameId;
+	}
+
+	@Override
+	public String toString() {
+		return "ControlCancelMessage{frameId=" + frameId + '}';
+	}
+}
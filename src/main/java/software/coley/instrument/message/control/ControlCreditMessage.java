@@ -0,0 +1,39 @@
+package software.coley.instrument.message.control;
+
+import software.coley.instrument.io.codec.StructureCodec;
+
+/**
+ * Message granting the receiver permission to send more frames.
+ * <br>
+ * Sent by a peer with {@link software.coley.instrument.sock.ChannelOptions#getReceiveWindow() flow control} enabled.
+ * The first grant opens the window, and later grants return credits for frames the peer has consumed.
+ * A peer that never sends a grant is not flow controlled.
+ *
+ * @author Matt Coley
+ */
+public class ControlCreditMessage extends AbstractControlMessage {
+	public static final StructureCodec<ControlCreditMessage> CODEC =
+			StructureCodec.compose(input -> new ControlCreditMessage(input.readInt()),
+					(output, value) -> output.writeInt(value.getCredits()));
+	private final int credits;
+
+	/**
+	 * @param credits
+	 * 		Number of additional frames the receiver may send.
+	 */
+	public ControlCreditMessage(int credits) {
+		this.credits = credits;
+	}
+
+	/**
+	 * @return Number of additional frames the receiver may send.
+	 */
+	public int getCredits() {
+		return credits;
+	}
+
+	@Override
+	public String toString() {
+		return "ControlCreditMessage{credits=" + credits + '}';
+	}
+}
@@ -0,0 +1,193 @@
+package software.coley.instrument.message.control;
+
+import software.coley.instrument.io.codec.StructureCodec;
+
+import java.util.Arrays;
+
+/**
+ * Handshake message, telling the receiver the sender's protocol version, which messages and optional protocol
+ * features it supports, and how it would like to be sent frames.
+ * <br>
+ * Each side sends one as its first frame, and sends nothing else until the peer's has arrived.
+ * Everything after the hello can then rely on what both sides support.
+ * Later protocol versions may append fields, which older versions ignore.
+ *
+ * @author Matt Coley
+ */
+public class ControlHelloMessage extends AbstractControlMessage {
+	/**
+	 * Feature bit for decoding {@link software.coley.instrument.sock.ChannelOptions#getCompressionThreshold()
+	 * compressed} frames.
+	 */
+	public static final int FEATURE_COMPRESSION = 1;
+	/**
+	 * Feature bit for sending and receiving {@link software.coley.instrument.sock.ChannelOptions#isCompactHeaders()
+	 * compact frame headers}. Used in both directions only when both sides set it.
+	 */
+	public static final int FEATURE_COMPACT_HEADERS = 2;
+	/**
+	 * Feature bit for receiving broadcasts stamped with their
+	 * {@link software.coley.instrument.message.broadcast.AbstractBroadcastMessage#getSequence() sequence},
+	 * and resuming a broadcast session when reconnecting. Senders setting it append the
+	 * {@link #getSessionToken() session} to resume, and the sequence of the last broadcast they received.
+	 */
+	public static final int FEATURE_SESSIONS = 4;
+	public static final StructureCodec<ControlHelloMessage> CODEC =
+			StructureCodec.compose(input -> {
+				int version = input.readInt();
+				int features = input.readInt();
+				int maxFrameSize = input.readInt();
+				int preferredChunkSize = input.readInt();
+				int[] messageIds = new int[input.readUnsignedShort()];
+				for (int i = 0; i < messageIds.length; i++)
+					messageIds[i] = input.readUnsignedShort();
+				long sessionToken = 0;
+				long lastSequence = 0;
+				if ((features & FEATURE_SESSIONS) != 0) {
+					sessionToken = input.readLong();
+					lastSequence = input.readLong();
+				}
+				return new ControlHelloMessage(version, features, maxFrameSize, preferredChunkSize, messageIds,
+						sessionToken, lastSequence);
+			}, (output, value) -> {
+				output.writeInt(value.getVersion());
+				output.writeInt(value.getFeatures());
+				output.writeInt(value.getMaxFrameSize());
+				output.writeInt(value.getPreferredChunkSize());
+				int[] messageIds = value.messageIds;
+				output.writeShort(messageIds.length);
+				for (int id : messageIds)
+					output.writeShort(id);
+				if (value.supports(FEATURE_SESSIONS)) {
+					output.writeLong(value.getSessionToken());
+					output.writeLong(value.getLastSequence());
+				}
+			});
+	private final int version;
+	private final int features;
+	private final int maxFrameSize;
+	private final int preferredChunkSize;
+	private final int[] messageIds;
+	private final long sessionToken;
+	private final long lastSequence;
+
+	/**
+	 * @param version
+	 * 		Protocol version of the sender.
+	 * @param features
+	 * 		Bit flags of supported features.
+	 * @param maxFrameSize
+	 * 		Largest frame content the sender accepts, or {@code 0} for no limit.
+	 * @param preferredChunkSize
+	 * 		Chunk size the sender would like large messages to be split into, or {@code 0} for no preference.
+	 * @param messageIds
+	 * 		IDs of the message types the sender can decode, in ascending order.
+	 */
+	public ControlHelloMessage(int version, int features, int maxFrameSize, int preferredChunkSize, int[] messageIds) {
+		this(version, features, maxFrameSize, preferredChunkSize, messageIds, 0, 0);
+	}
+
+	/**
+	 * @param version
+	 * 		Protocol version of the sender.
+	 * @param features
+	 * 		Bit flags of supported features.
+	 * @param maxFrameSize
+	 * 		Largest frame content the sender accepts, or {@code 0} for no limit.
+	 * @param preferredChunkSize
+	 * 		Chunk size the sender would like large messages to be split into, or {@code 0} for no preference.
+	 * @param messageIds
+	 * 		IDs of the message types the sender can decode, in ascending order.
+	 * @param sessionToken
+	 * 		Token of the broadcast session to resume, or {@code 0} for a new session.
+	 * 		Only sent along with {@link #FEATURE_SESSIONS}.
+	 * @param lastSequence
+	 * 		Sequence of the last broadcast received in the session to resume.
+	 * 		Only sent along with {@link #FEATURE_SESSIONS}.
+	 */
+	public ControlHelloMessage(int version, int features, int maxFrameSize, int preferredChunkSize, int[] messageIds,
+							   long sessionToken, long lastSequence) {
+		this.version = version;
+		this.features = features;
+		this.maxFrameSize = maxFrameSize;
+		this.preferredChunkSize = preferredChunkSize;
+		this.messageIds = messageIds;
+		this.sessionToken = sessionToken;
+		this.lastSequence = lastSequence;
+	}
+
+	/**
+	 * @return Protocol version of the sender.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return Bit flags of supported features.
+	 */
+	public int getFeatures() {
+		return features;
+	}
+
+	/**
+	 * @param feature
+	 * 		Feature bit, such as {@link #FEATURE_COMPRESSION}.
+	 *
+	 * @return {@code true} when the sender supports the feature.
+	 */
+	public boolean supports(int feature) {
+		return (features & feature) != 0;
+	}
+
+	/**
+	 * @return Largest frame content the sender accepts, or {@code 0} for no limit.
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * @return Chunk size the sender would like large messages to be split into, or {@code 0} for no preference.
+	 */
+	public int getPreferredChunkSize() {
+		return preferredChunkSize;
+	}
+
+	/**
+	 * @return Token of the broadcast session the sender would like to resume, or {@code 0} for a new session.
+	 */
+	public long getSessionToken() {
+		return sessionToken;
+	}
+
+	/**
+	 * @return Sequence of the last broadcast the sender received in the session to resume.
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @param id
+	 * 		Message ID.
+	 *
+	 * @return {@code true} when the sender can decode messages of the type.
+	 */
+	public boolean supportsMessage(int id) {
+		return Arrays.binarySearch(messageIds, id) >= 0;
+	}
+
+	@Override
+	public String toString() {
+		return "ControlHelloMessage{" +
+				"version=" + version +
+				", features=" + Integer.toHexString(features) +
+				", maxFrameSize=" + maxFrameSize +
+				", preferredChunkSize=" + preferredChunkSize +
+				", messageIds=" + Arrays.toString(messageIds) +
+				", sessionToken=" + Long.toHexString(sessionToken) +
+				", lastSequence=" + lastSequence +
+				'}';
+	}
+}
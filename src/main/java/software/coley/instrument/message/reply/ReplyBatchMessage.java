@@ -0,0 +1,81 @@
+package software.coley.instrument.message.reply;
+
+import software.coley.instrument.io.codec.StructureCodec;
+import software.coley.instrument.message.AbstractMessage;
+import software.coley.instrument.message.MessageFactory;
+import software.coley.instrument.message.request.RequestBatchMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Message response to {@link RequestBatchMessage} containing the reply of each batched request,
+ * in the same order as the requests.
+ *
+ * @author Matt Coley
+ * @see RequestBatchMessage
+ */
+public class ReplyBatchMessage extends AbstractReplyMessage {
+	private final List<AbstractReplyMessage> replies;
+
+	/**
+	 * @param replies
+	 * 		Reply of each batched request, or {@code null} for requests that could not be handled.
+	 */
+	public ReplyBatchMessage(List<? extends AbstractReplyMessage> replies) {
+		this.replies = Collections.unmodifiableList(new ArrayList<>(replies));
+	}
+
+	/**
+	 * @param factory
+	 * 		Factory to encode and decode the batched replies with.
+	 *
+	 * @return Codec for batches of the factory's messages.
+	 */
+	public static StructureCodec<ReplyBatchMessage> codec(MessageFactory factory) {
+		StructureCodec<AbstractMessage> messageCodec = factory.getMessageCodec();
+		return StructureCodec.compose(input -> {
+			int size = input.readInt();
+			List<AbstractReplyMessage> replies = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				AbstractMessage reply = messageCodec.decode(input);
+				if (reply != null && !(reply instanceof AbstractReplyMessage))
+					throw new IOException("Batch contains non-reply message: " + reply);
+				replies.add((AbstractReplyMessage) reply);
+			}
+			return new ReplyBatchMessage(replies);
+		}, (output, value) -> {
+			List<AbstractReplyMessage> replies = value.getReplies();
+			output.writeInt(replies.size());
+			for (AbstractReplyMessage reply : replies)
+				messageCodec.encode(output, reply);
+		});
+	}
+
+	/**
+	 * @return Reply of each batched request, or {@code null} for requests that could not be handled.
+	 */
+	public List<AbstractReplyMessage> getReplies() {
+		return replies;
+	}
+
+	/**
+	 * @param index
+	 * 		Index of the request in the batch.
+	 * @param <R>
+	 * 		Reply type of the request.
+	 *
+	 * @return Reply of the request, or {@code null} if it could not be handled.
+	 */
+	@SuppressWarnings("unchecked")
+	public <R extends AbstractReplyMessage> R getReply(int index) {
+		return (R) replies.get(index);
+	}
+
+	@Override
+	public String toString() {
+		return "ReplyBatchMessage[replies=" + replies.size() + ']';
+	}
+}
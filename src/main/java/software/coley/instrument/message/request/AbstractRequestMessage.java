@@ -3,8 +3,15 @@
 import software.coley.instrument.message.AbstractMessage;
 import software.coley.instrument.message.reply.AbstractReplyMessage;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Base type for request messages.
+ * <br>
+ * A request may have a deadline, which is sent along with it. The receiver sees the remaining time as its
+ * own deadline, and a request can also be {@link #cancel() cancelled} by the sender.
+ * Handlers doing lengthy work should {@link #checkActive() check} that the request is still wanted.
  *
  * @param <R>
  * 		Reply message type.
@@ -12,4 +19,94 @@
  * @author Matt Coley
  */
 public class AbstractRequestMessage<R extends AbstractReplyMessage> extends AbstractMessage {
+	/**
+	 * Deadline of requests without one.
+	 */
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+	private volatile long deadline = NO_DEADLINE;
+	private volatile boolean cancelled;
+
+	/**
+	 * @param timeout
+	 * 		Time from now until the reply is no longer wanted.
+	 * @param unit
+	 * 		Unit of the timeout.
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		setDeadline(System.nanoTime() + unit.toNanos(timeout));
+	}
+
+	/**
+	 * @param deadline
+	 * 		{@link System#nanoTime()} after which the reply is no longer wanted,
+	 * 		or {@link #NO_DEADLINE} for no deadline.
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} after which the reply is no longer wanted,
+	 * or {@link #NO_DEADLINE} for no deadline.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * @return {@code true} when the request has a deadline.
+	 */
+	public boolean hasDeadline() {
+		return deadline != NO_DEADLINE;
+	}
+
+	/**
+	 * @return Milliseconds until the deadline, {@code 0} when passed, or {@link Long#MAX_VALUE} for no deadline.
+	 */
+	public long getRemainingMillis() {
+		long deadline = this.deadline;
+		if (deadline == NO_DEADLINE)
+			return Long.MAX_VALUE;
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+	}
+
+	/**
+	 * @return {@code true} when the deadline has passed.
+	 */
+	public boolean isExpired() {
+		long deadline = this.deadline;
+		return deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0;
+	}
+
+	/**
+	 * Marks the request as no longer wanted.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return {@code true} when the request was cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return {@code true} when the request is neither cancelled nor expired.
+	 */
+	public boolean isActive() {
+		return !cancelled && !isExpired();
+	}
+
+	/**
+	 * @throws CancellationException
+	 * 		When the request is cancelled or expired, and so the reply is no longer wanted.
+	 */
+	public void checkActive() {
+		if (cancelled)
+			throw new CancellationException("Request cancelled: " + this);
+		if (isExpired())
+			throw new CancellationException("Request expired: " + this);
+	}
 }
@@ -0,0 +1,70 @@
+package software.coley.instrument.message.request;
+
+import software.coley.instrument.io.codec.StructureCodec;
+import software.coley.instrument.message.AbstractMessage;
+import software.coley.instrument.message.MessageFactory;
+import software.coley.instrument.message.reply.ReplyBatchMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Message carrying many requests in one frame. They are handled by the server in one pass, in order,
+ * and their replies are sent back together in one {@link ReplyBatchMessage}.
+ * <br>
+ * The batch's deadline and cancellation apply to all of its requests.
+ *
+ * @author Matt Coley
+ * @see ReplyBatchMessage
+ */
+public class RequestBatchMessage extends AbstractRequestMessage<ReplyBatchMessage> {
+	private final List<AbstractRequestMessage<?>> requests;
+
+	/**
+	 * @param requests
+	 * 		Requests to send together.
+	 */
+	public RequestBatchMessage(List<? extends AbstractRequestMessage<?>> requests) {
+		this.requests = Collections.unmodifiableList(new ArrayList<>(requests));
+	}
+
+	/**
+	 * @param factory
+	 * 		Factory to encode and decode the batched requests with.
+	 *
+	 * @return Codec for batches of the factory's messages.
+	 */
+	public static StructureCodec<RequestBatchMessage> codec(MessageFactory factory) {
+		StructureCodec<AbstractMessage> messageCodec = factory.getMessageCodec();
+		return StructureCodec.compose(input -> {
+			int size = input.readInt();
+			List<AbstractRequestMessage<?>> requests = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				AbstractMessage request = messageCodec.decode(input);
+				if (!(request instanceof AbstractRequestMessage))
+					throw new IOException("Batch contains non-request message: " + request);
+				requests.add((AbstractRequestMessage<?>) request);
+			}
+			return new RequestBatchMessage(requests);
+		}, (output, value) -> {
+			List<AbstractRequestMessage<?>> requests = value.getRequests();
+			output.writeInt(requests.size());
+			for (AbstractRequestMessage<?> request : requests)
+				messageCodec.encode(output, request);
+		});
+	}
+
+	/**
+	 * @return Batched requests, in the order they are handled.
+	 */
+	public List<AbstractRequestMessage<?>> getRequests() {
+		return requests;
+	}
+
+	@Override
+	public String toString() {
+		return "RequestBatchMessage[requests=" + requests.size() + ']';
+	}
+}
@@ -0,0 +1,162 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.message.broadcast.AbstractBroadcastMessage;
+import software.coley.instrument.message.broadcast.BroadcastDroppedMessage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Slow consumer state of a {@link ChannelHandler}.
+ * <br>
+ * Counts the bytes of encoded broadcasts queued for the peer as its {@link ChannelStats#getBroadcastLag() lag}.
+ * Once the lag reaches the {@link ChannelOptions#getMaxBroadcastLag() max lag}, the peer is lagging and new
+ * broadcasts are handled according to the {@link SlowConsumerPolicy} instead of being queued.
+ * Once the lag drains to half the max, anything held back is {@link #takePending() taken} to be queued,
+ * and the peer is no longer lagging once nothing more is pending.
+ *
+ * @author Matt Coley
+ */
+final class BroadcastBacklog {
+	private final ChannelStats stats;
+	private final SlowConsumerPolicy policy;
+	private final int maxLag;
+	private final int resumeLag;
+	private final BooleanSupplier resume;
+	// Guarded by this
+	private final Map<Object, AbstractBroadcastMessage> summaries = new LinkedHashMap<>();
+	private int dropped;
+	private boolean lagging;
+	private boolean resuming;
+
+	/**
+	 * @param stats
+	 * 		Counters to record the lag in.
+	 * @param options
+	 * 		Handler configuration.
+	 * @param resume
+	 * 		Action to schedule queuing of pending broadcasts once the peer catches up, called by the writing thread.
+	 * 		Must not block, and returns {@code false} when it could not be scheduled.
+	 */
+	BroadcastBacklog(ChannelStats stats, ChannelOptions options, BooleanSupplier resume) {
+		this.stats = stats;
+		this.resume = resume;
+		policy = options.getSlowConsumerPolicy();
+		maxLag = options.getMaxBroadcastLag();
+		resumeLag = maxLag / 2;
+	}
+
+	/**
+	 * @return What is done with new broadcasts while lagging.
+	 */
+	SlowConsumerPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Called by producers before queuing a broadcast.
+	 *
+	 * @param write
+	 * 		Broadcast to be queued.
+	 *
+	 * @return {@code true} to queue the broadcast. {@code false} when the peer is lagging,
+	 * and the broadcast was dropped or summarized, or the channel is to be disconnected.
+	 */
+	boolean admit(WriteResult<?> write) {
+		if (maxLag > 0) {
+			synchronized (this) {
+				if (lagging || stats.getBroadcastLag() >= maxLag) {
+					lagging = true;
+					hold(write);
+					return false;
+				}
+			}
+		}
+		EncodedFrame<?> frame = write.getFrame();
+		if (frame != null && frame.getLength() > 0) {
+			int bytes = frame.getLength();
+			stats.recordBroadcastLag(bytes);
+			// Written, or dropped by flow control
+			write.getFuture().whenComplete((ignored, error) -> onDone(bytes));
+		}
+		return true;
+	}
+
+	/**
+	 * @param write
+	 * 		Broadcast not queued, as the peer is lagging.
+	 */
+	private void hold(WriteResult<?> write) {
+		Object value = write.getValue();
+		if (policy == SlowConsumerPolicy.SUMMARIZE && value instanceof AbstractBroadcastMessage) {
+			AbstractBroadcastMessage broadcast = (AbstractBroadcastMessage) value;
+			summaries.put(broadcast.getCoalesceKey(), broadcast.toSummary());
+			stats.recordBroadcastSummarized();
+		} else if (policy != SlowConsumerPolicy.DISCONNECT) {
+			dropped++;
+			stats.recordBroadcastDropped();
+		}
+	}
+
+	/**
+	 * @param bytes
+	 * 		Encoded size of a queued broadcast that is no longer queued.
+	 */
+	private void onDone(int bytes) {
+		stats.recordBroadcastLag(-bytes);
+		if (startResume() && !resume.getAsBoolean())
+			cancelResume();
+	}
+
+	/**
+	 * @return {@code true} when the peer has caught up, and the caller is now responsible for queuing what is
+	 * {@link #takePending() pending}. {@code false} when the peer is not lagging, is still too far behind,
+	 * or another caller is already queuing what is pending.
+	 */
+	synchronized boolean startResume() {
+		if (!lagging || resuming || stats.getBroadcastLag() > resumeLag)
+			return false;
+		resuming = true;
+		return true;
+	}
+
+	/**
+	 * Called when a {@link #startResume() started} resume could not be carried out.
+	 * The next broadcast, or the next completed write, will try again.
+	 */
+	synchronized void cancelResume() {
+		resuming = false;
+	}
+
+	/**
+	 * Called repeatedly once a resume has {@link #startResume() started}, until nothing is left.
+	 * Broadcasts held back in the meantime are included in the next call.
+	 *
+	 * @return Broadcasts to queue in place of those held back while lagging, or {@code null} once none remain,
+	 * at which point the peer is no longer lagging.
+	 */
+	synchronized List<AbstractBroadcastMessage> takePending() {
+		if (dropped == 0 && summaries.isEmpty()) {
+			lagging = false;
+			resuming = false;
+			return null;
+		}
+		List<AbstractBroadcastMessage> pending = new ArrayList<>(summaries.size() + 1);
+		if (dropped > 0)
+			pending.add(new BroadcastDroppedMessage(dropped));
+		pending.addAll(summaries.values());
+		dropped = 0;
+		summaries.clear();
+		return pending;
+	}
+
+	/**
+	 * @return {@code true} while new broadcasts are not being queued, as the peer fell too far behind.
+	 */
+	synchronized boolean isLagging() {
+		return lagging;
+	}
+}
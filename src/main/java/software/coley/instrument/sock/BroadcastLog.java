@@ -0,0 +1,183 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.io.ByteBufferAllocator;
+import software.coley.instrument.io.ByteBufferCompat;
+import software.coley.instrument.io.ByteBufferDataInput;
+import software.coley.instrument.message.MessageFactory;
+import software.coley.instrument.message.broadcast.AbstractBroadcastMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded log of recent {@link AbstractBroadcastMessage#getSequence() sequenced} broadcasts, so that a client
+ * resuming its session can be sent only those it missed.
+ * <br>
+ * The encoded content of each broadcast is kept in a single direct buffer, used as a ring. Once full, the oldest
+ * broadcasts are evicted to make room, and can no longer be {@link #replay(long, MessageFactory, ByteBufferAllocator)
+ * replayed}. A client that missed any of them has to be told to re-request what it needs instead.
+ *
+ * @author Matt Coley
+ */
+public final class BroadcastLog {
+	private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+	private final ByteBuffer buffer;
+	private final int capacity;
+	private long firstSequence;
+	private long lastSequence;
+	private int writeOffset;
+
+	/**
+	 * @param capacity
+	 * 		Size in bytes of the buffer holding logged content.
+	 * @param nextSequence
+	 * 		Sequence of the next broadcast to be logged. Broadcasts before it are treated as evicted.
+	 */
+	public BroadcastLog(int capacity, long nextSequence) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		this.capacity = capacity;
+		buffer = ByteBuffer.allocateDirect(capacity);
+		firstSequence = nextSequence;
+		lastSequence = nextSequence - 1;
+	}
+
+	/**
+	 * Logs a broadcast, evicting the oldest logged broadcasts as needed to make room for it.
+	 * Content larger than the whole log evicts everything, including itself.
+	 *
+	 * @param frame
+	 * 		Encoded broadcast, with a sequence greater than any before it.
+	 */
+	public synchronized void append(EncodedFrame<? extends AbstractBroadcastMessage> frame) {
+		long sequence = frame.getMessage().getSequence();
+		if (sequence <= lastSequence)
+			throw new IllegalArgumentException("Sequence " + sequence + " is not after " + lastSequence);
+		lastSequence = sequence;
+		ByteBuffer content = frame.viewMessage();
+		int length = content.remaining();
+		if (length > capacity) {
+			entries.clear();
+			writeOffset = 0;
+			firstSequence = sequence + 1;
+			return;
+		}
+		int start = writeOffset;
+		if (start + length > capacity) {
+			// Wrap around, giving up the space at the end along with the oldest entries in it
+			while (!entries.isEmpty() && entries.peekFirst().offset >= start)
+				evict();
+			start = 0;
+		}
+		while (!entries.isEmpty() && entries.peekFirst().offset >= start && entries.peekFirst().offset < start + length)
+			evict();
+		ByteBuffer target = buffer.duplicate();
+		ByteBufferCompat.compatPosition(target, start);
+		target.put(content);
+		entries.addLast(new Entry(sequence, frame.getDecoderKey(), start, length));
+		writeOffset = start + length;
+	}
+
+	/**
+	 * Drops the oldest entry.
+	 */
+	private void evict() {
+		Entry entry = entries.pollFirst();
+		firstSequence = entry.sequence + 1;
+	}
+
+	/**
+	 * @param sequence
+	 * 		Sequence of the last broadcast a client received.
+	 *
+	 * @return {@code true} when every broadcast after it is still logged.
+	 */
+	public synchronized boolean canReplayAfter(long sequence) {
+		return sequence >= firstSequence - 1 && sequence <= lastSequence;
+	}
+
+	/**
+	 * @param sequence
+	 * 		Sequence of the last broadcast a client received.
+	 * @param factory
+	 * 		Message factory configured with the broadcast types.
+	 * @param allocator
+	 * 		Allocator to take the buffers of the replayed frames from.
+	 *
+	 * @return Logged broadcasts after the given sequence, in order, each encoded with a single reference owned by
+	 * the caller. Only complete when {@link #canReplayAfter(long)} holds.
+	 *
+	 * @throws IOException
+	 * 		When a logged broadcast cannot be decoded, or encoded again.
+	 */
+	public synchronized List<EncodedFrame<AbstractBroadcastMessage>> replay(long sequence, MessageFactory factory,
+																		   ByteBufferAllocator allocator) throws IOException {
+		List<EncodedFrame<AbstractBroadcastMessage>> frames = new ArrayList<>();
+		try {
+			for (Entry entry : entries) {
+				if (entry.sequence <= sequence)
+					continue;
+				// Decoded from a heap copy, as messages may keep views of what they are decoded from
+				byte[] content = new byte[entry.length];
+				ByteBuffer source = buffer.duplicate();
+				ByteBufferCompat.compatPosition(source, entry.offset);
+				source.get(content);
+				AbstractBroadcastMessage message = (AbstractBroadcastMessage) factory.getInfo(entry.type).getCodec()
+						.decode(new ByteBufferDataInput(ByteBuffer.wrap(content)));
+				message.setSequence(entry.sequence);
+				frames.add(EncodedFrame.encode(message, factory, allocator));
+			}
+		} catch (IOException | RuntimeException ex) {
+			for (EncodedFrame<AbstractBroadcastMessage> frame : frames)
+				frame.release();
+			throw ex;
+		}
+		return frames;
+	}
+
+	/**
+	 * @return Sequence of the oldest broadcast that can be replayed.
+	 * One after the {@link #getLastSequence() last} when nothing is logged.
+	 */
+	public synchronized long getFirstSequence() {
+		return firstSequence;
+	}
+
+	/**
+	 * @return Sequence of the most recent broadcast logged.
+	 */
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return Number of broadcasts that can be replayed.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return Size in bytes of the buffer holding logged content.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	private static final class Entry {
+		private final long sequence;
+		private final int type;
+		private final int offset;
+		private final int length;
+
+		private Entry(long sequence, int type, int offset, int length) {
+			this.sequence = sequence;
+			this.type = type;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -5,19 +5,41 @@
 import software.coley.instrument.io.ByteBufferCompat;
 import software.coley.instrument.io.ByteBufferDataInput;
 import software.coley.instrument.io.ByteBufferDataOutput;
+import software.coley.instrument.io.ChunkedDataInput;
+import software.coley.instrument.io.ChunkedDataOutput;
 import software.coley.instrument.io.codec.StructureCodec;
 import software.coley.instrument.message.AbstractMessage;
 import software.coley.instrument.message.MessageFactory;
 import software.coley.instrument.message.broadcast.AbstractBroadcastMessage;
+import software.coley.instrument.message.broadcast.BroadcastSessionMessage;
+import software.coley.instrument.message.control.AbstractControlMessage;
+import software.coley.instrument.message.control.ControlCancelMessage;
+import software.coley.instrument.message.control.ControlCreditMessage;
+import software.coley.instrument.message.control.ControlHelloMessage;
+import software.coley.instrument.message.request.AbstractRequestMessage;
+import software.coley.instrument.message.request.RequestBatchMessage;
 import software.coley.instrument.util.Logger;
 import software.coley.instrument.util.NamedThreadFactory;
+import software.coley.instrument.util.RingBufferQueue;
 
+import java.io.DataInput;
+import java.io.IOException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
@@ -32,10 +54,32 @@
  *     <li>{@link #threadNameEventLoop} - Thread dedicated to handling listener logic</li>
  * </ul>
  * Any call to {@link #write(AbstractMessage, int)} queues a message on the {@code WRITE} thread.
+ * The {@code WRITE} thread drains all queued messages, encodes them back to back, and flushes them together.
+ * Messages larger than the {@link ChannelOptions#getChunkSize() chunk size} are sent as a series of chunk frames,
+ * interleaved with other messages.
+ * Broadcasts are queued apart from everything else, and only get a {@link ChannelOptions#setLaneWeights(int, int)
+ * weighted share} of each flush, so that replies are not held back by a burst of broadcasts.
+ * Messages {@link #write(EncodedFrame, int) written} as an {@link EncodedFrame} are sent as views of its content,
+ * so one encoding can be shared by many channels.
+ * <br>
+ * Each side starts by sending a {@link ControlHelloMessage hello}, and holds all other writes until the peer's
+ * hello arrives. Optional features are then only used when both sides support them.
+ * <br>
+ * Broadcasts are sent prefixed by their {@link AbstractBroadcastMessage#getSequence() sequence} where the peer
+ * supports {@link ControlHelloMessage#FEATURE_SESSIONS sessions}, and the sequence of the last one received is kept
+ * so that a {@link #setSession(long, long) session} can be resumed on a new connection.
  * <br>
  * All reading is done on-loop in the {@code READ} thread.
  * <br>
  * Any handling of read or written messages queues an action on the {@code EVENT} thread.
+ * This can be changed with {@link ChannelOptions#getDispatchMode()}, see {@link DispatchMode} for the alternatives.
+ * <br>
+ * When a {@link ChannelOptions#getReactor() reactor} is configured, none of these threads are created.
+ * Reads and writes are instead done on the reactor's shared IO threads, and listener logic on its shared workers.
+ * <br>
+ * Writes made on the thread that sends queued messages, the {@code WRITE} thread or a reactor IO thread, never wait
+ * for queue space or for the peer to catch up, as nothing else would make room. They go to an overflow queue instead.
+ * Neither do writes on reactor workers, which are shared with other channels, including those they would wait on.
  * <br>
  * Redundant casts exist to resolve
  * <a href="https://stackoverflow.com/questions/61267495/exception-in-thread-main-java-lang-nosuchmethoderror-java-nio-bytebuffer-flip#61267496">
@@ -46,7 +90,20 @@
  */
 public class ChannelHandler {
 	private static final int HEADER_SIZE = 10;
-	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+	// Upper bits of the message type are reserved for frame flags
+	static final int TYPE_MASK = 0x07FF;
+	static final int FLAG_CHUNK = 0x4000;
+	private static final int FLAG_LAST_CHUNK = 0x2000;
+	private static final int FLAG_DEADLINE = 0x1000;
+	// Broadcasts never have a deadline, so they use the same bit to flag a sequence prefix
+	private static final int FLAG_SEQUENCE = FLAG_DEADLINE;
+	static final int FLAG_COMPRESSED = 0x0800;
+	private static final int CHUNK_PREFIX_SIZE = 4;
+	private static final int MAX_FLUSH_MESSAGES = 1024;
+	private static final int MAX_FLUSH_BYTES = 256 * 1024;
+	private static final int MAX_RETAINED_OUTPUT = MAX_FLUSH_BYTES * 2;
+	private static final int MAX_DRAIN_MESSAGES = 64;
+	private static final long CREDIT_WAIT_MILLIS = 1;
 
 	// Names to use when creating thread pools
 	public static String threadNameClientAccept = "agent-client-accept-loop";
@@ -54,23 +111,72 @@ public class ChannelHandler {
 	public static String threadNameEventLoop = "agent-event-loop";
 	public static String threadNameRead = "agent-read-loop";
 	public static String threadNameWrite = "agent-write-loop";
+	public static String threadNameReactor = "agent-reactor-loop";
 
-	private final ExecutorService eventTaskRunner = Executors.newCachedThreadPool(new NamedThreadFactory(threadNameEventHandle));
-	private final BlockingQueue<WriteResult<?>> writeQueue = new LinkedBlockingQueue<>();
-	private final BlockingQueue<Runnable> eventQueue = new LinkedBlockingQueue<>();
+	// Wakes the write loop for bulk and overflow writes, which are not in the queue it waits on
+	private static final WriteResult<?> WAKE_SIGNAL = new WriteResult<>(null, ApiConstants.CONTROL_MESSAGE_ID, 0, null);
+	private final WriteLane interactiveLane;
+	private final WriteLane bulkLane;
+	private final AtomicBoolean wakeSignalled = new AtomicBoolean();
+	private final BlockingQueue<Runnable> eventQueue;
 	private final ByteChannel channel;
 	private final ByteBufferAllocator allocator;
 	private final MessageFactory factory;
+	private final ChannelOptions options;
 	private final Consumer<ChannelHandler> closeHandler;
-	private final Map<Integer, ResponseListener> responseListeners = new ConcurrentHashMap<>();
+	private final FrameTable<ResponseListener> responseListeners = new FrameTable<>();
+	private final FrameTable<AbstractRequestMessage<?>> inboundRequests = new FrameTable<>();
 	private final AtomicInteger nextFrameId = new AtomicInteger(0);
+	private final ChannelStats stats = new ChannelStats();
+	private final FlowControl flow;
+	private final BroadcastBacklog broadcastBacklog;
+	private final FrameCompression compression;
+	private final CompactHeaders compactHeaders = new CompactHeaders();
+	private final CountDownLatch handshakeLatch = new CountDownLatch(1);
+	private volatile ControlHelloMessage peerHello;
+	private volatile boolean handshakeFallback;
+	private volatile long sessionToken;
+	private volatile long lastSequence;
+	// Accessed only by the thread currently writing to the channel
+	private final List<WriteResult<?>> writeBatch = new ArrayList<>();
+	private final List<WriteResult<?>> drainedWrites = new ArrayList<>();
+	private ByteBufferDataOutput writeOutput;
+	private ChunkedDataOutput chunkOutput;
+	private int nextStreamId;
+	private boolean helloEncoded;
+	private boolean handshakeApplied;
+	private long handshakeDeadline;
+	private boolean compactSend;
+	private boolean sequenceSend;
+	// Views of shared frame content, written after the output up to their offset instead of being copied into it
+	private final List<ByteBuffer> batchViews = new ArrayList<>();
+	private int[] batchViewOffsets = new int[16];
+	private int batchViewBytes;
+	// Guarded by itself, as shutdown releases the chunks held for them
+	private final Map<Integer, ChunkStream> inboundStreams = new HashMap<>();
+	private long inboundStreamBytes;
+	// Accessed only by the thread currently reading from the channel
+	private final FrameReader reader;
 	private ResponseListener allResponsesListener;
 	private BroadcastListener broadcastListener;
+	private HandshakeListener handshakeListener;
 	private WriteListener writeListener;
-	private Future<?> readLoopFuture;
-	private Future<?> writeLoopFuture;
-	private Future<?> eventLoopFuture;
-	private boolean running;
+	private volatile boolean running;
+	private DispatchMode dispatchMode;
+	// Only used for ordered dispatch
+	private Executor orderedEvents;
+	// Thread-per-channel mode
+	private ExecutorService eventTaskRunner;
+	private ExecutorService readLoopExecutor;
+	private ExecutorService writeLoopExecutor;
+	private ExecutorService eventLoopExecutor;
+	private volatile Thread writeThread;
+	// Reactor mode
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private ChannelReactor reactor;
+	private volatile ChannelReactor.Loop reactorLoop;
+	private SelectionKey selectionKey;
+	private ByteBuffer[] pendingBuffers;
 
 	/**
 	 * @param channel
@@ -84,21 +190,86 @@ public class ChannelHandler {
 	 */
 	public ChannelHandler(ByteChannel channel, ByteBufferAllocator allocator, MessageFactory factory,
 						  Consumer<ChannelHandler> closeHandler) {
+		this(channel, allocator, factory, new ChannelOptions(), closeHandler);
+	}
+
+	/**
+	 * @param channel
+	 * 		Wrapped channel.
+	 * @param allocator
+	 * 		Buffer allocator.
+	 * @param factory
+	 * 		Message factory configured with supported message types.
+	 * @param options
+	 * 		Handler configuration.
+	 * @param closeHandler
+	 * 		Optional handler for closing this channel.
+	 */
+	public ChannelHandler(ByteChannel channel, ByteBufferAllocator allocator, MessageFactory factory,
+						  ChannelOptions options, Consumer<ChannelHandler> closeHandler) {
 		this.channel = channel;
 		this.allocator = allocator;
 		this.factory = factory;
+		this.options = options;
 		this.closeHandler = closeHandler;
+		interactiveLane = new WriteLane(options);
+		bulkLane = new WriteLane(options);
+		int maxPendingEvents = options.getMaxPendingEvents();
+		eventQueue = maxPendingEvents > 0 ? new LinkedBlockingQueue<>(maxPendingEvents) : new LinkedBlockingQueue<>();
+		flow = new FlowControl(options, this::requeue);
+		broadcastBacklog = new BroadcastBacklog(stats, options, this::scheduleResumeBroadcasts);
+		compression = new FrameCompression(options);
+		reader = new FrameReader(allocator, compactHeaders, stats, options);
 	}
 
 	/**
-	 * Start the handling threads.
+	 * Start the handling threads, or register with the configured {@link ChannelOptions#getReactor() reactor}.
+	 * Channels which cannot be selected on, such as a {@link SharedMemoryChannel}, always get their own threads.
+	 *
+	 * @throws IOException
+	 * 		When the channel cannot be switched to non-blocking mode for the reactor.
 	 */
-	public void start() {
+	public void start() throws IOException {
 		if (!running) {
 			running = true;
-			readLoopFuture = newSingleThreadExecutor(new NamedThreadFactory(threadNameRead)).submit(this::readLoop);
-			writeLoopFuture = newSingleThreadExecutor(new NamedThreadFactory(threadNameWrite)).submit(this::writeLoop);
-			eventLoopFuture = newSingleThreadExecutor(new NamedThreadFactory(threadNameEventLoop)).submit(this::eventLoop);
+			writeOutput = new ByteBufferDataOutput(allocator);
+			if (options.getChunkSize() > 0)
+				chunkOutput = new ChunkedDataOutput(allocator, options.getChunkSize());
+			dispatchMode = options.getDispatchMode();
+			long handshakeTimeout = options.getHandshakeTimeoutMillis();
+			if (handshakeTimeout > 0)
+				handshakeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(handshakeTimeout);
+			ChannelReactor reactor = options.getReactor();
+			if (reactor != null && channel instanceof SelectableChannel) {
+				SelectableChannel selectable = (SelectableChannel) channel;
+				selectable.configureBlocking(false);
+				this.reactor = reactor;
+				if (dispatchMode == DispatchMode.ORDERED)
+					orderedEvents = new SerialExecutor(reactor.getWorkers());
+				reactor.register(this, selectable);
+			} else {
+				boolean virtual = options.isVirtualThreads();
+				if (dispatchMode == DispatchMode.POOL) {
+					eventTaskRunner = Executors.newCachedThreadPool(new NamedThreadFactory(threadNameEventHandle, virtual));
+					eventLoopExecutor = newSingleThreadExecutor(new NamedThreadFactory(threadNameEventLoop, virtual));
+					eventLoopExecutor.submit(this::eventLoop);
+				} else if (dispatchMode == DispatchMode.ORDERED) {
+					// Events are submitted directly, no event loop is needed to hand them off
+					eventTaskRunner = newSingleThreadExecutor(new NamedThreadFactory(threadNameEventHandle, virtual));
+					orderedEvents = eventTaskRunner;
+				}
+				readLoopExecutor = newSingleThreadExecutor(new NamedThreadFactory(threadNameRead, virtual));
+				writeLoopExecutor = newSingleThreadExecutor(new NamedThreadFactory(threadNameWrite, virtual));
+				readLoopExecutor.submit(this::readLoop);
+				writeLoopExecutor.submit(this::writeLoop);
+			}
+			// Always the first frame, everything else is held until the peer's arrives
+			write(new ControlHelloMessage(ApiConstants.PROTOCOL_VERSION, getLocalFeatures(), options.getMaxFrameSize(),
+					options.getChunkSize(), factory.getIds(), sessionToken, lastSequence), ApiConstants.CONTROL_MESSAGE_ID);
+			// Open the peer's window, if we flow control it
+			int window = flow.getReceiveWindow();
+			if (window > 0)
+				write(new ControlCreditMessage(window), ApiConstants.CONTROL_MESSAGE_ID);
 		}
 	}
 
@@ -109,15 +280,61 @@ public void shutdown() {
 		if (running) {
 			Logger.info("Closing channel " + channel.toString());
 			running = false;
+			flow.close();
+			// Event handling is being shut down, so notify directly
+			ClosedChannelException closed = new ClosedChannelException();
+			responseListeners.removeAll((frameId, listener) -> {
+				try {
+					listener.onFailure(frameId, closed);
+				} catch (Throwable t) {
+					t.printStackTrace();
+				}
+			});
+			// Nobody is left to reply to
+			inboundRequests.removeAll((frameId, request) -> request.cancel());
+			releaseInboundStreams();
 			eventQueue.clear();
-			writeQueue.clear();
-			readLoopFuture.cancel(true);
-			writeLoopFuture.cancel(true);
-			eventLoopFuture.cancel(true);
+			// Held writes belong to the writer, which drops them once it sees the shutdown
+			interactiveLane.cancelQueued();
+			bulkLane.cancelQueued();
+			if (reactor != null) {
+				if (selectionKey != null)
+					selectionKey.cancel();
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+				}
+				// Registration drops them instead when it has not completed yet
+				ChannelReactor.Loop loop = reactorLoop;
+				if (loop != null)
+					loop.execute(this::cancelWrites);
+			} else {
+				readLoopExecutor.shutdownNow();
+				// No writer to drop them when it never started
+				if (!writeLoopExecutor.shutdownNow().isEmpty())
+					cancelWrites();
+				if (eventLoopExecutor != null)
+					eventLoopExecutor.shutdownNow();
+				if (eventTaskRunner != null)
+					eventTaskRunner.shutdown();
+			}
+			compression.close();
+			handshakeLatch.countDown();
 			if (closeHandler != null) closeHandler.accept(this);
 		}
 	}
 
+	/**
+	 * @return Features sent to the peer in our {@link ControlHelloMessage hello}.
+	 */
+	private int getLocalFeatures() {
+		// Compressed frames and sequenced broadcasts are always understood, so only compact headers depend on configuration
+		int features = ControlHelloMessage.FEATURE_COMPRESSION | ControlHelloMessage.FEATURE_SESSIONS;
+		if (options.isCompactHeaders())
+			features |= ControlHelloMessage.FEATURE_COMPACT_HEADERS;
+		return features;
+	}
+
 	/**
 	 * @param value
 	 * 		Value to write.
@@ -127,14 +344,203 @@ public void shutdown() {
 	 * 		Type of message.
 	 *
 	 * @return Result data wrapper.
+	 * When the message is {@link OverflowPolicy#COALESCE coalesced} and later replaced, its future is cancelled.
+	 * When the message is a broadcast not sent to a {@link SlowConsumerPolicy slow consumer}, its future is cancelled.
+	 * When the channel is shut down before the message is sent, its future is cancelled.
+	 *
+	 * @throws ChannelOverflowException
+	 * 		When the peer is not keeping up, and the {@link ChannelOptions#getOverflowPolicy() policy}
+	 * 		is to {@link OverflowPolicy#FAIL fail}.
+	 * @throws IllegalStateException
+	 * 		When interrupted while waiting for space in a {@link ChannelOptions#getWriteQueueCapacity() bounded}
+	 * 		write queue, or for the peer to catch up. Broadcasts never wait.
 	 */
 	public <T extends AbstractMessage> WriteResult<T> write(T value, int frameId) {
 		MessageFactory.MessageInfo info = factory.getInfo(value);
 		WriteResult<T> writeResult = new WriteResult<>(info.getCodec(), frameId, info.getId(), value);
-		writeQueue.add(writeResult);
+		enqueue(writeResult);
+		return writeResult;
+	}
+
+	/**
+	 * Writes a message that was encoded once, to be sent to many channels. The channel holds a reference to the
+	 * frame until the write completes, and sends views of its content, rather than encoding the message again.
+	 *
+	 * @param frame
+	 * 		Encoded message to write.
+	 * @param frameId
+	 * 		ID of message.
+	 * @param <T>
+	 * 		Type of message.
+	 *
+	 * @return Result data wrapper.
+	 * When the message is {@link OverflowPolicy#COALESCE coalesced} and later replaced, its future is cancelled.
+	 * When the message is a broadcast not sent to a {@link SlowConsumerPolicy slow consumer}, its future is cancelled.
+	 * When the channel is shut down before the message is sent, its future is cancelled.
+	 *
+	 * @throws ChannelOverflowException
+	 * 		When the peer is not keeping up, and the {@link ChannelOptions#getOverflowPolicy() policy}
+	 * 		is to {@link OverflowPolicy#FAIL fail}.
+	 * @throws IllegalStateException
+	 * 		When interrupted while waiting for space in a {@link ChannelOptions#getWriteQueueCapacity() bounded}
+	 * 		write queue, or for the peer to catch up. Broadcasts never wait. Also when the frame has already been released.
+	 */
+	public <T extends AbstractMessage> WriteResult<T> write(EncodedFrame<T> frame, int frameId) {
+		WriteResult<T> writeResult = new WriteResult<>(frame, frameId);
+		frame.retain();
+		try {
+			enqueue(writeResult);
+		} catch (RuntimeException ex) {
+			frame.release();
+			throw ex;
+		}
+		// Completed, failed, or cancelled when coalesced or dropped
+		writeResult.getFuture().whenComplete((ignored, error) -> frame.release());
 		return writeResult;
 	}
 
+	/**
+	 * @param write
+	 * 		Write to queue in its lane, once {@link FlowControl} allows it.
+	 * 		Broadcasts are first checked against the {@link BroadcastBacklog slow consumer} limit.
+	 */
+	private void enqueue(WriteResult<?> write) {
+		if (write.getFrameId() == ApiConstants.BROADCAST_MESSAGE_ID) {
+			// Anything held back while lagging goes out ahead of newer broadcasts
+			if (broadcastBacklog.startResume())
+				resumeBroadcasts();
+			if (!broadcastBacklog.admit(write)) {
+				write.getFuture().cancel(false);
+				if (broadcastBacklog.getPolicy() == SlowConsumerPolicy.DISCONNECT && running) {
+					Logger.warn("Disconnecting slow consumer " + channel + ", " +
+							stats.getBroadcastLag() + " broadcast bytes behind");
+					shutdown();
+				}
+				return;
+			}
+		}
+		queue(write);
+	}
+
+	/**
+	 * @return {@code true} when queuing of broadcasts held back from a slow consumer has been scheduled.
+	 * {@code false} when it must wait for the next broadcast, as it cannot be done without blocking the writer.
+	 */
+	private boolean scheduleResumeBroadcasts() {
+		return running && dispatchMode != DispatchMode.INLINE && postEvent(this::resumeBroadcasts);
+	}
+
+	/**
+	 * Queues the broadcasts held back while the peer was lagging, once it has caught up.
+	 * Must only be called once a resume has {@link BroadcastBacklog#startResume() started}.
+	 */
+	private void resumeBroadcasts() {
+		List<AbstractBroadcastMessage> pending;
+		while ((pending = broadcastBacklog.takePending()) != null) {
+			Logger.debug("Channel resume-broadcasts: count=" + pending.size());
+			for (AbstractBroadcastMessage broadcast : pending) {
+				MessageFactory.MessageInfo info = factory.getInfo(broadcast);
+				try {
+					queue(new WriteResult<>(info.getCodec(), ApiConstants.BROADCAST_MESSAGE_ID, info.getId(), broadcast));
+				} catch (ChannelOverflowException ex) {
+					Logger.debug("Skipped held broadcast: " + ex.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param write
+	 * 		Write to queue in its lane, once {@link FlowControl} allows it.
+	 */
+	private void queue(WriteResult<?> write) {
+		if (!running) {
+			write.getFuture().cancel(false);
+			return;
+		}
+		// Broadcasts are bounded by the slow consumer policy instead, so one client cannot stall the broadcaster
+		boolean mayBlock = !isSendingThread() && write.getFrameId() != ApiConstants.BROADCAST_MESSAGE_ID;
+		if (!flow.acquireWrite(write, mayBlock))
+			return;
+		WriteLane lane = getLane(write);
+		if (!mayBlock) {
+			// Stay behind earlier overflow, so that writes from this thread keep their order
+			if (!lane.overflow.isEmpty() || !lane.queue.offer(write)) {
+				lane.overflow.add(write);
+				onQueued(lane, true);
+				return;
+			}
+		} else {
+			try {
+				lane.queue.put(write);
+			} catch (InterruptedException ex) {
+				// Never queued, so no longer unsent
+				if (write.getFrameId() != ApiConstants.CONTROL_MESSAGE_ID)
+					flow.onWritten(1);
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for write queue space", ex);
+			}
+		}
+		onQueued(lane, false);
+	}
+
+	/**
+	 * @return {@code true} when the current thread must not wait for queue space or credit, being the {@code WRITE}
+	 * thread of this channel, or a reactor thread, which may be all that would ever make room.
+	 */
+	private boolean isSendingThread() {
+		return Thread.currentThread() == writeThread || ChannelReactor.isReactorThread();
+	}
+
+	/**
+	 * Queues a write held back by {@link FlowControl}, without waiting for space.
+	 *
+	 * @param write
+	 * 		Write to queue.
+	 *
+	 * @return {@code true} when queued, {@code false} when its lane's queue is full.
+	 */
+	private boolean requeue(WriteResult<?> write) {
+		WriteLane lane = getLane(write);
+		if (!lane.queue.offer(write))
+			return false;
+		onQueued(lane, false);
+		return true;
+	}
+
+	/**
+	 * Makes sure the writing thread sees a newly queued write.
+	 *
+	 * @param lane
+	 * 		Lane the write was queued in.
+	 * @param overflowed
+	 * 		{@code true} when the write went to the lane's overflow queue rather than its queue.
+	 */
+	private void onQueued(WriteLane lane, boolean overflowed) {
+		// Shutdown may have drained the lane just before the write was queued
+		if (!running) {
+			lane.cancelQueued();
+			return;
+		}
+		if (reactor != null) {
+			scheduleFlush();
+		} else if ((lane == bulkLane || overflowed) && wakeSignalled.compareAndSet(false, true)) {
+			// When the interactive queue is full the write loop is busy, and checks the other queues each batch anyway
+			if (!interactiveLane.queue.offer(WAKE_SIGNAL))
+				wakeSignalled.set(false);
+		}
+	}
+
+	/**
+	 * @param write
+	 * 		Message to write.
+	 *
+	 * @return Lane of the message. Broadcasts are bulk, everything else is interactive.
+	 */
+	private WriteLane getLane(WriteResult<?> write) {
+		return write.getFrameId() == ApiConstants.BROADCAST_MESSAGE_ID ? bulkLane : interactiveLane;
+	}
+
 	/**
 	 * Event handling <i>(from listeners)</i> is handled on its own thread as to not disrupt the originating thread.
 	 */
@@ -157,59 +563,18 @@ private void eventLoop() {
 	 */
 	private void readLoop() {
 		try {
-			// Header:
+			// Header, unless compact headers are used:
 			// - 4-int:   frameId
 			// - 2-short: messageType
 			// - 4-int:   messageLength
 			// - ...    [ message data ]
-			ByteBuffer headerBuffer = allocator.allocate(HEADER_SIZE);
-			ByteBuffer contentBuffer;
+			// Frames are parsed from a read-ahead buffer, so one read can yield many frames.
 			while (running) {
-				// Read next message header
-				while (headerBuffer.position() < HEADER_SIZE)
-					channel.read(headerBuffer);
-				ByteBufferCompat.compatPosition(headerBuffer, 0);
-				int readFrameId = headerBuffer.getInt();
-				int messageType = headerBuffer.getShort();
-				int messageLength = headerBuffer.getInt();
-				Logger.debug("Channel read-header: " +
-						"id=" + readFrameId + ", type=" + messageType + ", length=" + messageLength);
-				ByteBufferCompat.compatClear(headerBuffer);
-
-				// Read message content
-				contentBuffer = (messageLength > 0) ? ByteBuffer.allocate(messageLength) : EMPTY_BUFFER;
-				while (contentBuffer.position() < messageLength) {
-					int reads = channel.read(contentBuffer);
-					if (reads == -1)
-						throw new ClosedChannelException();
-				}
-				ByteBufferCompat.compatPosition(contentBuffer, 0);
-				MessageFactory.MessageInfo info = factory.getInfo(messageType);
-				StructureCodec<AbstractMessage> decoder = info.getCodec();
-				AbstractMessage value = decoder.decode(new ByteBufferDataInput(contentBuffer));
-				Logger.debug("Channel read-body: " + value);
-
-				// Notify listeners
-				if (readFrameId == ApiConstants.BROADCAST_MESSAGE_ID) {
-					if (broadcastListener != null && !eventQueue.offer(() -> broadcastListener.onReceive(messageType, (AbstractBroadcastMessage) value)))
-						Logger.warn("Cannot post-event of read-completion[broadcast], event-queue is full");
-				} else {
-					ResponseListener responseListener = responseListeners.remove(readFrameId);
-					if (responseListener != null && !eventQueue.offer(() -> responseListener.onReceive(readFrameId, value)))
-						Logger.warn("Cannot post-event of read-completion[response], event-queue is full");
-					if (allResponsesListener != null && !eventQueue.offer(() -> allResponsesListener.onReceive(readFrameId, value)))
-						Logger.warn("Cannot post-event of read-completion[all-response], event-queue is full");
-				}
+				ByteBuffer contentBuffer = reader.read(channel);
+				handleFrame(reader.getFrameId(), reader.getMessageType(), contentBuffer);
 			}
-		} catch (SocketException ex) {
-			shutdown();
 		} catch (Throwable t) {
-			// Likely caused because shutdown occurred, can ignore.
-			if (!running)
-				return;
-			// Unknown error, log and close server.
-			t.printStackTrace();
-			shutdown();
+			handleFailure(t);
 		}
 	}
 
@@ -217,91 +582,1653 @@ private void readLoop() {
 	 * Write handling on its own thread to ensure single-access to channel writes.
 	 */
 	private void writeLoop() {
+		writeThread = Thread.currentThread();
 		try {
-			ByteBufferDataOutput output = new ByteBufferDataOutput(allocator);
 			while (running) {
-				// Get next write operation
-				WriteResult<?> write = writeQueue.take();
-
-				// Write header to buffer
-				int writeFrameId = write.getFrameId();
-				Logger.debug("Channel write-header: " +
-						"id=" + writeFrameId + ", type=" + write.getDecoderKey() + ", value=" + write.getValue());
-				output.reset();
-				write.writeHeader(output);
-
-				// Write content to buffer
-				int contentStart = output.getBuffer().position();
-				write.writeTo(output);
-				int contentEnd = output.getBuffer().position();
-				ByteBuffer buffer = output.consume();
-
-				// Update header's "length" value
-				int contentLength = contentEnd - contentStart;
-				buffer.putInt(HEADER_SIZE - 4, contentLength);
-
-				// Write buffer to channel
-				while (buffer.position() < buffer.limit())
-					channel.write(buffer);
-				write.complete();
-				Logger.debug("Channel write-body: " +
-						"length=" + contentLength);
-
-				// Notify listener
-				if (writeListener != null && !eventQueue.offer(() -> writeListener.onWrite(writeFrameId, write.getValue())))
-					Logger.warn("Cannot post-event of write-completion, event-queue is full");
+				// Wait for the next write operation, then include any others queued behind it.
+				// Do not wait while chunks of large messages, or bulk writes, remain to be sent.
+				// When writes are held for lack of credit, only wait briefly so that they go out once credit arrives.
+				// The same applies to writes held until the handshake completes.
+				// Until the peer's hello arrives, wait no longer than the handshake timeout.
+				// Bulk and overflow writes queued from here on signal the interactive queue.
+				wakeSignalled.set(false);
+				WriteResult<?> first;
+				BlockingQueue<WriteResult<?>> queue = interactiveLane.queue;
+				boolean ready = !interactiveLane.streams.isEmpty() || !bulkLane.streams.isEmpty() ||
+						!bulkLane.queue.isEmpty() || !interactiveLane.overflow.isEmpty() ||
+						!bulkLane.overflow.isEmpty() || (handshakeApplied &&
+						(!interactiveLane.handshakeWaiting.isEmpty() || !bulkLane.handshakeWaiting.isEmpty()));
+				boolean held = interactiveLane.isHeld() || bulkLane.isHeld();
+				if (!held && !ready && handshakeDeadline == 0)
+					first = queue.take();
+				else if (!held && !ready)
+					first = queue.poll(getHandshakeRemainingMillis(), TimeUnit.MILLISECONDS);
+				else if (ready || (peerHello != null && flow.getSendCredits() > 0))
+					first = queue.poll();
+				else
+					first = queue.poll(CREDIT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+				ByteBuffer[] buffers = encodeBatch(first);
+				if (buffers == null)
+					continue;
+
+				// Write buffers to channel
+				while (!writeBuffers(buffers)) ;
+				onBatchComplete(buffers);
 			}
 		} catch (InterruptedException ignored) {
 			// Allowed
-		} catch (SocketException ex) {
-			shutdown();
 		} catch (Throwable t) {
-			// Likely caused because shutdown occurred, can ignore.
-			if (!running)
-				return;
-			// Unknown error, log and close server.
-			t.printStackTrace();
+			// Same as the reactor, so that the channel is not left running without a writer
+			handleFailure(t);
+		} finally {
+			// Nothing is left to send what remains
+			cancelWrites();
 		}
 	}
 
 	/**
-	 * @return Incrementing value.
+	 * Called by the thread currently writing to the channel once it stops for good.
+	 * Cancels every write not yet sent, and releases the chunks of streams in progress.
 	 */
-	public int getNextFrameId() {
-		return nextFrameId.getAndIncrement();
+	private void cancelWrites() {
+		interactiveLane.cancelQueued();
+		bulkLane.cancelQueued();
+		interactiveLane.cancelHeld(allocator);
+		bulkLane.cancelHeld(allocator);
+		for (WriteResult<?> write : writeBatch)
+			write.getFuture().cancel(false);
+		writeBatch.clear();
+		pendingBuffers = null;
 	}
 
 	/**
-	 * @param broadcastListener
-	 * 		Listener to handle {@link AbstractBroadcastMessage} messages.
+	 * Called by the {@link #reactor} IO thread once the channel is registered.
+	 *
+	 * @param key
+	 * 		Registration key of the channel.
+	 * @param loop
+	 * 		IO thread the channel is registered to.
 	 */
-	public void setBroadcastListener(BroadcastListener broadcastListener) {
-		this.broadcastListener = broadcastListener;
+	void onRegistered(SelectionKey key, ChannelReactor.Loop loop) {
+		selectionKey = key;
+		reactorLoop = loop;
+		if (!running) {
+			// Shutdown before registration completed
+			key.cancel();
+			cancelWrites();
+			return;
+		}
+		// Writes may have been queued before registration
+		flush();
+		// Apply the handshake timeout even if nothing else wakes the channel
+		if (handshakeDeadline != 0)
+			loop.schedule(this::flush, getHandshakeRemainingMillis());
 	}
 
 	/**
-	 * @param writeListener
-	 * 		Listener to handle all write calls.
+	 * Called by the {@link #reactor} IO thread when the channel has data to read.
+	 * Handles as many complete frames as are available without blocking.
 	 */
-	public void setWriteListener(WriteListener writeListener) {
-		this.writeListener = writeListener;
+	void onReadable() {
+		try {
+			ByteBuffer contentBuffer;
+			while (running && (contentBuffer = reader.read(channel)) != null)
+				handleFrame(reader.getFrameId(), reader.getMessageType(), contentBuffer);
+		} catch (Throwable t) {
+			handleFailure(t);
+		}
 	}
 
 	/**
-	 * @param frameId
-	 * 		Message id.
-	 * @param listener
-	 * 		Listener to handle a response with the given ID. Used once then discarded.
+	 * Called by the {@link #reactor} IO thread when the channel can accept more data.
 	 */
-	public void addResponseListener(int frameId, ResponseListener listener) {
-		responseListeners.put(frameId, listener);
+	void onWritable() {
+		flush();
 	}
 
 	/**
-	 * @param allResponsesListener
-	 * 		Listener to handle all read calls.
+	 * Schedules a {@link #flush()} on the {@link #reactor} IO thread, unless one is already pending.
 	 */
-	public void setAllResponsesListener(ResponseListener allResponsesListener) {
-		this.allResponsesListener = allResponsesListener;
+	private void scheduleFlush() {
+		ChannelReactor.Loop loop = reactorLoop;
+		// Registration will flush when it completes
+		if (loop != null && flushScheduled.compareAndSet(false, true))
+			loop.execute(this::flush);
+	}
+
+	/**
+	 * Writes as many queued messages as the channel accepts without blocking.
+	 * When the channel cannot accept all data, the remainder is written once it is {@link #onWritable() writable}.
+	 */
+	private void flush() {
+		flushScheduled.set(false);
+		try {
+			while (running) {
+				if (pendingBuffers == null) {
+					// Credit arriving will schedule another flush for any writes waiting on it
+					pendingBuffers = encodeBatch(interactiveLane.queue.poll());
+					if (pendingBuffers == null)
+						break;
+				}
+				if (!writeBuffers(pendingBuffers)) {
+					selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				ByteBuffer[] buffers = pendingBuffers;
+				pendingBuffers = null;
+				onBatchComplete(buffers);
+			}
+			if (running)
+				selectionKey.interestOps(SelectionKey.OP_READ);
+		} catch (Throwable t) {
+			handleFailure(t);
+		}
+	}
+
+	/**
+	 * Encodes the given write, followed by any other queued writes, back to back into {@link #writeOutput}.
+	 * Queued writes are drained up to {@link #MAX_DRAIN_MESSAGES} at a time.
+	 * Stops once {@link #MAX_FLUSH_MESSAGES} or {@link #MAX_FLUSH_BYTES} is reached.
+	 * The encoded writes are recorded in {@link #writeBatch}.
+	 * <br>
+	 * The {@link #interactiveLane interactive lane} is encoded first, followed by the {@link #bulkLane bulk lane}.
+	 * Bulk writes only get their {@link ChannelOptions#getBulkWeight() weighted share} of each batch, and interactive
+	 * writes leave them that share while any are pending. So an interactive write waits behind at most one share of
+	 * bulk writes, and bulk writes are never starved.
+	 * <br>
+	 * When the peer limits us with credit, writes beyond the available credit are moved to their lane's
+	 * {@link WriteLane#creditWaiting held writes} and are encoded first once credit is granted.
+	 * Control messages do not need credit and are never held.
+	 * <br>
+	 * Messages larger than the {@link ChannelOptions#getChunkSize() chunk size} are moved to their lane's
+	 * {@link WriteLane#streams streams}, and each lane ends with the next chunk of every such stream.
+	 * <br>
+	 * Until the peer's {@link ControlHelloMessage hello} arrives, all writes other than our own hello are moved to
+	 * their lane's {@link WriteLane#handshakeWaiting held writes}, and are encoded before anything else in the lane
+	 * once it does.
+	 *
+	 * @param first
+	 * 		First interactive message to encode, or {@code null} to only encode writes already waiting on credit,
+	 * 		or queued behind them.
+	 *
+	 * @return Buffers containing the headers and contents of all encoded messages, ready to be written to the channel.
+	 * {@code null} when nothing could be encoded.
+	 *
+	 * @throws IOException
+	 * 		When a message cannot be encoded.
+	 */
+	private ByteBuffer[] encodeBatch(WriteResult<?> first) throws IOException {
+		ByteBufferDataOutput output = writeOutput;
+		output.reset();
+		boolean limited = flow.isSendLimited();
+		int credits = flow.getSendCredits();
+		int available = credits;
+		if (first == WAKE_SIGNAL)
+			first = null;
+		if (handshakeDeadline != 0 && !checkHandshakeTimeout())
+			return null;
+		// Our hello always goes out first, in the format the peer expects before the handshake
+		if (!handshakeApplied && helloEncoded && peerHello != null)
+			applyHandshake(peerHello);
+		int bulkShare = MAX_FLUSH_BYTES * options.getBulkWeight() /
+				(options.getInteractiveWeight() + options.getBulkWeight());
+		int limit = bulkLane.isPending() ? MAX_FLUSH_BYTES - bulkShare : MAX_FLUSH_BYTES;
+		credits = encodeLane(interactiveLane, first, credits, output, limit);
+		limit = Math.min(MAX_FLUSH_BYTES, getBatchSize(output) + bulkShare);
+		credits = encodeLane(bulkLane, null, credits, output, limit);
+		flow.consumeSendCredits(available - credits, limited);
+		if (getBatchSize(output) == 0)
+			return null;
+		ByteBuffer encoded = output.consume();
+		if (batchViews.isEmpty())
+			return new ByteBuffer[]{encoded};
+		return interleaveViews(encoded);
+	}
+
+	/**
+	 * @param encoded
+	 * 		Encoded output of the batch.
+	 *
+	 * @return Slices of the output, with the {@link #batchViews views of shared frames} between them at their offsets.
+	 */
+	private ByteBuffer[] interleaveViews(ByteBuffer encoded) {
+		List<ByteBuffer> views = batchViews;
+		List<ByteBuffer> buffers = new ArrayList<>(views.size() * 2 + 1);
+		int start = 0;
+		for (int i = 0; i < views.size(); i++) {
+			int offset = batchViewOffsets[i];
+			if (offset > start)
+				buffers.add(slice(encoded, start, offset));
+			buffers.add(views.get(i));
+			start = offset;
+		}
+		if (encoded.limit() > start)
+			buffers.add(slice(encoded, start, encoded.limit()));
+		views.clear();
+		batchViewBytes = 0;
+		return buffers.toArray(new ByteBuffer[0]);
+	}
+
+	/**
+	 * @param buffer
+	 * 		Buffer to slice.
+	 * @param start
+	 * 		Offset of the slice in the buffer.
+	 * @param end
+	 * 		Offset the slice ends at in the buffer.
+	 *
+	 * @return Slice of the buffer, from position {@code 0}.
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+		ByteBuffer slice = buffer.duplicate();
+		ByteBufferCompat.compatLimit(slice, end);
+		ByteBufferCompat.compatPosition(slice, start);
+		return slice.slice();
+	}
+
+	/**
+	 * Adds a view of shared frame content to the batch, to be written after what is in the output so far.
+	 *
+	 * @param output
+	 * 		Output of the current batch.
+	 * @param view
+	 * 		View of the content.
+	 */
+	private void appendView(ByteBufferDataOutput output, ByteBuffer view) {
+		int length = view.remaining();
+		if (length == 0)
+			return;
+		int index = batchViews.size();
+		if (index == batchViewOffsets.length)
+			batchViewOffsets = Arrays.copyOf(batchViewOffsets, index * 2);
+		batchViewOffsets[index] = output.getBuffer().position();
+		batchViews.add(view);
+		batchViewBytes += length;
+	}
+
+	/**
+	 * @param output
+	 * 		Output of the current batch.
+	 *
+	 * @return Number of bytes in the batch so far, including {@link #batchViews views of shared frames}.
+	 */
+	private int getBatchSize(ByteBufferDataOutput output) {
+		return output.getBuffer().position() + batchViewBytes;
+	}
+
+	/**
+	 * Encodes the writes of a lane that were held for credit or the handshake, then those that overflowed its queue,
+	 * then the given write and those queued in the lane, and then the next chunk of each of the lane's streams.
+	 *
+	 * @param lane
+	 * 		Lane to encode from.
+	 * @param first
+	 * 		First queued message to encode, or {@code null} to only take writes from the lane.
+	 * @param credits
+	 * 		Remaining send credit.
+	 * @param output
+	 * 		Output to append messages to.
+	 * @param limit
+	 * 		Output position after which no more of the lane's writes are added.
+	 *
+	 * @return Remaining send credit.
+	 *
+	 * @throws IOException
+	 * 		When a message cannot be encoded.
+	 */
+	private int encodeLane(WriteLane lane, WriteResult<?> first, int credits, ByteBufferDataOutput output,
+						   int limit) throws IOException {
+		while (credits > 0 && !lane.creditWaiting.isEmpty() && !isBatchFull(output, limit)) {
+			encode(lane.creditWaiting.poll(), output);
+			credits--;
+		}
+		if (handshakeApplied)
+			while (!lane.handshakeWaiting.isEmpty() && !isBatchFull(output, limit))
+				credits = encodeOrHoldCredit(lane.handshakeWaiting.poll(), lane, credits, output);
+		// Overflow is bounded only by this, so it goes ahead of the queue. Frames are matched by id, not order.
+		WriteResult<?> overflowed;
+		while (!isBatchFull(output, limit) && (overflowed = lane.overflow.poll()) != null)
+			credits = encodeOrHold(overflowed, credits, output);
+		if (first != null)
+			credits = encodeOrHold(first, credits, output);
+		List<WriteResult<?>> drained = drainedWrites;
+		while (!isBatchFull(output, limit)) {
+			// Claim queued writes in chunks, rather than one at a time
+			int max = Math.min(MAX_DRAIN_MESSAGES, MAX_FLUSH_MESSAGES - writeBatch.size());
+			if (lane.queue.drainTo(drained, max) == 0)
+				break;
+			for (WriteResult<?> write : drained)
+				if (write != WAKE_SIGNAL)
+					credits = encodeOrHold(write, credits, output);
+			drained.clear();
+		}
+		encodeChunks(lane.streams, output, limit);
+		return credits;
+	}
+
+	/**
+	 * Appends the next chunk of each outbound stream, in turn, until all have had a chunk or the limit is reached.
+	 * Completed streams are recorded in the {@link #writeBatch}.
+	 *
+	 * @param streams
+	 * 		Streams of a lane.
+	 * @param output
+	 * 		Output to append chunk frames to.
+	 * @param limit
+	 * 		Output position after which no more chunks are added.
+	 */
+	private void encodeChunks(Queue<ChunkStream> streams, ByteBufferDataOutput output, int limit) {
+		for (int i = streams.size(); i > 0; i--) {
+			// Always send at least one chunk, so that streams progress even when the batch is full of other messages
+			if (i < streams.size() && getBatchSize(output) >= limit)
+				break;
+			ChunkStream stream = streams.poll();
+			WriteResult<?> write = stream.write;
+			ByteBuffer chunk = stream.chunks.get(stream.index++);
+			boolean last = stream.index == stream.chunks.size();
+			int length = chunk.remaining();
+			Logger.debug("Channel write-chunk: " +
+					"id=" + write.getFrameId() + ", stream=" + stream.id + ", length=" + length + ", last=" + last);
+			int headerStart = output.getBuffer().position();
+			output.writeInt(write.getFrameId());
+			output.writeShort(write.getDecoderKey() | stream.flags | FLAG_CHUNK | (last ? FLAG_LAST_CHUNK : 0));
+			output.writeInt(CHUNK_PREFIX_SIZE + length);
+			output.writeInt(stream.id);
+			if (stream.shared) {
+				finishFrame(output, headerStart);
+				appendView(output, chunk);
+			} else {
+				output.write(chunk);
+				allocator.release(chunk);
+				finishFrame(output, headerStart);
+			}
+			if (last)
+				writeBatch.add(write);
+			else
+				streams.add(stream);
+		}
+	}
+
+	/**
+	 * @param write
+	 * 		Message to encode into the {@link #writeBatch}, or hold until the handshake completes,
+	 * 		or there is credit to send it.
+	 * @param credits
+	 * 		Remaining send credit.
+	 * @param output
+	 * 		Output to append the message to.
+	 *
+	 * @return Remaining send credit.
+	 *
+	 * @throws IOException
+	 * 		When the message cannot be encoded.
+	 */
+	private int encodeOrHold(WriteResult<?> write, int credits, ByteBufferDataOutput output) throws IOException {
+		WriteLane lane = getLane(write);
+		if (!handshakeApplied && write.getValue() instanceof ControlHelloMessage) {
+			helloEncoded = true;
+			encode(write, output);
+			return credits;
+		}
+		// Stay behind writes of the lane that are still held from before the handshake
+		if (!handshakeApplied || !lane.handshakeWaiting.isEmpty()) {
+			lane.handshakeWaiting.add(write);
+			return credits;
+		}
+		return encodeOrHoldCredit(write, lane, credits, output);
+	}
+
+	/**
+	 * @param write
+	 * 		Message to encode into the {@link #writeBatch}, or hold until there is credit to send it.
+	 * 		Dropped instead when it is an unwanted reply, or the peer does not support it.
+	 * @param lane
+	 * 		Lane of the message.
+	 * @param credits
+	 * 		Remaining send credit.
+	 * @param output
+	 * 		Output to append the message to.
+	 *
+	 * @return Remaining send credit.
+	 *
+	 * @throws IOException
+	 * 		When the message cannot be encoded.
+	 */
+	private int encodeOrHoldCredit(WriteResult<?> write, WriteLane lane, int credits, ByteBufferDataOutput output)
+			throws IOException {
+		if (isUnwantedReply(write)) {
+			Logger.debug("Channel drop-reply: id=" + write.getFrameId() + ", value=" + write.getValue());
+			write.getFuture().cancel(false);
+			flow.onWritten(1);
+			return credits;
+		}
+		if (!isPeerSupported(peerHello, write.getDecoderKey(), write.getValue())) {
+			rejectUnsupported(write);
+			return credits;
+		}
+		if (write.getFrameId() == ApiConstants.CONTROL_MESSAGE_ID) {
+			encode(write, output);
+		} else if (credits > 0 && lane.creditWaiting.isEmpty()) {
+			encode(write, output);
+			credits--;
+		} else {
+			lane.creditWaiting.add(write);
+		}
+		return credits;
+	}
+
+	/**
+	 * @return Time in milliseconds until the handshake times out, rounded up so that it has passed by then.
+	 */
+	private long getHandshakeRemainingMillis() {
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(handshakeDeadline - System.nanoTime())) + 1;
+	}
+
+	/**
+	 * Applies the {@link ChannelOptions#getHandshakeTimeoutPolicy() handshake timeout policy} once the
+	 * {@link ChannelOptions#getHandshakeTimeoutMillis() handshake timeout} passes without the peer's hello.
+	 *
+	 * @return {@code false} when the channel was shut down.
+	 */
+	private boolean checkHandshakeTimeout() {
+		if (peerHello == null && System.nanoTime() - handshakeDeadline < 0)
+			return true;
+		handshakeDeadline = 0;
+		if (peerHello != null)
+			return true;
+		if (options.getHandshakeTimeoutPolicy() == HandshakeTimeoutPolicy.BASELINE) {
+			// Same messages as ours, but none of the optional features
+			ControlHelloMessage baseline = new ControlHelloMessage(ApiConstants.PROTOCOL_VERSION, 0, 0, 0, factory.getIds());
+			synchronized (handshakeLatch) {
+				if (peerHello != null)
+					return true;
+				handshakeFallback = true;
+				peerHello = baseline;
+			}
+			Logger.warn("No hello from peer " + channel + " in time, continuing without optional features");
+			onHandshake(baseline);
+		} else {
+			Logger.warn("No hello from peer " + channel + " in time, disconnecting");
+			TimeoutException timeout = new TimeoutException("No hello from peer in time");
+			for (WriteLane lane : new WriteLane[]{interactiveLane, bulkLane}) {
+				WriteResult<?> write;
+				while ((write = lane.handshakeWaiting.poll()) != null)
+					write.getFuture().completeExceptionally(timeout);
+			}
+			shutdown();
+		}
+		return running;
+	}
+
+	/**
+	 * Applies what was negotiated in the handshake to sending. Large messages are split into the smallest of
+	 * our chunk size, the peer's preferred chunk size, and what fits in the peer's max frame size.
+	 *
+	 * @param hello
+	 * 		Handshake sent by the peer.
+	 */
+	private void applyHandshake(ControlHelloMessage hello) {
+		handshakeApplied = true;
+		int chunkSize = options.getChunkSize();
+		chunkSize = minChunkSize(chunkSize, hello.getPreferredChunkSize());
+		if (hello.getMaxFrameSize() > 0)
+			chunkSize = minChunkSize(chunkSize, hello.getMaxFrameSize() - CHUNK_PREFIX_SIZE);
+		if (chunkSize != options.getChunkSize()) {
+			if (chunkOutput != null)
+				chunkOutput.release();
+			chunkOutput = new ChunkedDataOutput(allocator, chunkSize);
+		}
+		compactSend = isCompactHeaders(hello);
+		sequenceSend = hello.supports(ControlHelloMessage.FEATURE_SESSIONS);
+		Logger.debug("Channel handshake: version=" + getProtocolVersion() + ", chunkSize=" + chunkSize +
+				", compression=" + compression.isEnabled() + ", compactHeaders=" + compactSend +
+				", sequenced=" + sequenceSend);
+	}
+
+	/**
+	 * @param hello
+	 * 		Handshake sent by the peer.
+	 *
+	 * @return {@code true} when both sides send {@link CompactHeaders compact headers} after their hello.
+	 */
+	private boolean isCompactHeaders(ControlHelloMessage hello) {
+		return options.isCompactHeaders() && hello.supports(ControlHelloMessage.FEATURE_COMPACT_HEADERS);
+	}
+
+	/**
+	 * @param current
+	 * 		Current chunk size, or {@code 0} for none.
+	 * @param size
+	 * 		Other chunk size, or {@code 0} for none.
+	 *
+	 * @return Smaller of the two chunk sizes that are set, no smaller than {@link ChannelOptions#MIN_CHUNK_SIZE}.
+	 */
+	private static int minChunkSize(int current, int size) {
+		if (size <= 0)
+			return current;
+		size = Math.max(size, ChannelOptions.MIN_CHUNK_SIZE);
+		return current <= 0 ? size : Math.min(current, size);
+	}
+
+	/**
+	 * @param hello
+	 * 		Hello of the peer.
+	 * @param key
+	 * 		Message type.
+	 * @param value
+	 * 		Message to send.
+	 *
+	 * @return {@code true} when the peer can decode the message, and each request batched in it.
+	 */
+	private boolean isPeerSupported(ControlHelloMessage hello, int key, Object value) {
+		if (!hello.supportsMessage(key))
+			return false;
+		if (value instanceof RequestBatchMessage)
+			for (AbstractRequestMessage<?> request : ((RequestBatchMessage) value).getRequests())
+				if (!isPeerSupported(hello, factory.getInfo(request).getId(), request))
+					return false;
+		return true;
+	}
+
+	/**
+	 * Fails a write of a message type the peer cannot decode, and any response listener waiting on it.
+	 *
+	 * @param write
+	 * 		Message the peer does not support.
+	 */
+	private void rejectUnsupported(WriteResult<?> write) {
+		Logger.warn("Peer does not support message: " + write.getValue());
+		UnsupportedOperationException ex =
+				new UnsupportedOperationException("Peer does not support message type: " + write.getDecoderKey());
+		write.getFuture().completeExceptionally(ex);
+		int frameId = write.getFrameId();
+		if (frameId == ApiConstants.CONTROL_MESSAGE_ID)
+			return;
+		flow.onWritten(1);
+		ResponseListener listener = frameId >= 0 ? responseListeners.remove(frameId) : null;
+		if (listener != null) {
+			flow.releaseResponse();
+			if (!postEvent(() -> listener.onFailure(frameId, ex)))
+				Logger.warn("Cannot post-event of unsupported write, event-queue is full");
+		}
+	}
+
+	/**
+	 * @param write
+	 * 		Message about to be encoded.
+	 *
+	 * @return {@code true} when the message is a reply to a request that was cancelled or has expired,
+	 * and so should not be sent.
+	 */
+	private boolean isUnwantedReply(WriteResult<?> write) {
+		int frameId = write.getFrameId();
+		if (frameId < 0)
+			return false;
+		AbstractRequestMessage<?> request = inboundRequests.remove(frameId);
+		return request != null && !request.isActive();
+	}
+
+	/**
+	 * @param write
+	 * 		Message to encode.
+	 *
+	 * @return Milliseconds until the deadline of the message, or {@code -1} when it is not a request with a deadline.
+	 */
+	private static int getDeadlineMillis(WriteResult<?> write) {
+		Object value = write.getValue();
+		if (!(value instanceof AbstractRequestMessage))
+			return -1;
+		AbstractRequestMessage<?> request = (AbstractRequestMessage<?>) value;
+		if (!request.hasDeadline())
+			return -1;
+		return (int) Math.min(Integer.MAX_VALUE, request.getRemainingMillis());
+	}
+
+	/**
+	 * @param write
+	 * 		Message to encode.
+	 *
+	 * @return Sequence to prefix the message with, or {@code 0} when it is not a sequenced broadcast,
+	 * or the peer does not support them.
+	 */
+	private long getSendSequence(WriteResult<?> write) {
+		Object value = write.getValue();
+		if (!sequenceSend || !(value instanceof AbstractBroadcastMessage))
+			return 0;
+		return ((AbstractBroadcastMessage) value).getSequence();
+	}
+
+	/**
+	 * @param output
+	 * 		Output of the current batch.
+	 * @param limit
+	 * 		Output position after which no more writes are added.
+	 *
+	 * @return {@code true} when no more writes should be added to the batch.
+	 */
+	private boolean isBatchFull(ByteBufferDataOutput output, int limit) {
+		return writeBatch.size() >= MAX_FLUSH_MESSAGES || getBatchSize(output) >= limit;
+	}
+
+	/**
+	 * @param write
+	 * 		Message to encode.
+	 * @param output
+	 * 		Output to append the message header and content to.
+	 *
+	 * @throws IOException
+	 * 		When the message cannot be encoded.
+	 */
+	private void encode(WriteResult<?> write, ByteBufferDataOutput output) throws IOException {
+		if (write.getFrame() != null && encodeShared(write, output))
+			return;
+		if (chunkOutput != null && write.getFrameId() != ApiConstants.CONTROL_MESSAGE_ID) {
+			encodeChunked(write, output);
+			return;
+		}
+		writeBatch.add(write);
+
+		// Write header to buffer
+		Logger.debug("Channel write-header: " +
+				"id=" + write.getFrameId() + ", type=" + write.getDecoderKey() + ", value=" + write.getValue());
+		int headerStart = output.getBuffer().position();
+		write.writeHeader(output);
+
+		// Write content to buffer, prefixed by the time remaining until the request's deadline,
+		// or the sequence of the broadcast
+		int contentStart = output.getBuffer().position();
+		int deadlineMillis = getDeadlineMillis(write);
+		long sequence = getSendSequence(write);
+		if (deadlineMillis >= 0) {
+			output.getBuffer().putShort(headerStart + 4, (short) (write.getDecoderKey() | FLAG_DEADLINE));
+			output.writeInt(deadlineMillis);
+		} else if (sequence > 0) {
+			output.getBuffer().putShort(headerStart + 4, (short) (write.getDecoderKey() | FLAG_SEQUENCE));
+			output.writeLong(sequence);
+		}
+		write.writeTo(output);
+		int contentEnd = output.getBuffer().position();
+
+		// Update header's "length" value
+		int contentLength = contentEnd - contentStart;
+		output.getBuffer().putInt(headerStart + HEADER_SIZE - 4, contentLength);
+		Logger.debug("Channel write-body: " +
+				"length=" + contentLength);
+		finishFrame(output, headerStart);
+	}
+
+	/**
+	 * Adds an {@link EncodedFrame already encoded} message to the batch as views of its content, rather than copying
+	 * it into the output. Content larger than the chunk size becomes a new {@link WriteLane#streams outbound stream}
+	 * of views. Content that is compressed is compressed once, and shared in the same way.
+	 *
+	 * @param write
+	 * 		Message to encode.
+	 * @param output
+	 * 		Output to append the message header to.
+	 *
+	 * @return {@code true} when added. {@code false} when the content cannot be shared with this channel,
+	 * as its chunks would be compressed along with our stream IDs, or it would be compressed without the sequence
+	 * prefix the frame was encoded with, and so must be copied instead.
+	 */
+	private boolean encodeShared(WriteResult<?> write, ByteBufferDataOutput output) {
+		EncodedFrame<?> frame = write.getFrame();
+		boolean sequenced = frame.isSequenced() && sequenceSend;
+		int flags = sequenced ? FLAG_SEQUENCE : 0;
+		ByteBuffer content = sequenced ? frame.view() : frame.viewMessage();
+		int length = content.remaining();
+		int chunkSize = chunkOutput == null ? 0 : chunkOutput.getChunkSize();
+		if (chunkSize > 0 && length > chunkSize) {
+			if (compression.isEnabled())
+				return false;
+			List<ByteBuffer> chunks = new ArrayList<>(length / chunkSize + 1);
+			for (int start = 0; start < length; start += chunkSize)
+				chunks.add(slice(content, start, Math.min(length, start + chunkSize)));
+			ChunkStream stream = new ChunkStream(nextStreamId++, flags, write, chunks, true);
+			Logger.debug("Channel write-stream: " +
+					"id=" + write.getFrameId() + ", stream=" + stream.id + ", chunks=" + chunks.size() + ", shared");
+			getLane(write).streams.add(stream);
+			return true;
+		}
+		if (compression.shouldCompress(length)) {
+			if (frame.isSequenced() && !sequenced)
+				return false;
+			ByteBuffer compressed = frame.viewCompressed(compression);
+			if (compressed != null) {
+				content = compressed;
+				flags |= FLAG_COMPRESSED;
+			}
+		}
+		writeBatch.add(write);
+		Logger.debug("Channel write-header: " +
+				"id=" + write.getFrameId() + ", type=" + write.getDecoderKey() + ", value=" + write.getValue() +
+				", shared");
+		int headerStart = output.getBuffer().position();
+		output.writeInt(write.getFrameId());
+		output.writeShort(write.getDecoderKey() | flags);
+		output.writeInt(content.remaining());
+		if (compactSend)
+			compactFrame(output, headerStart);
+		appendView(output, content);
+		return true;
+	}
+
+	/**
+	 * Encodes the message into chunk sized buffers. When it fits in one chunk it is appended to the output as a
+	 * regular frame, otherwise it becomes a new {@link WriteLane#streams outbound stream} of its lane.
+	 *
+	 * @param write
+	 * 		Message to encode.
+	 * @param output
+	 * 		Output to append the message header and content to, if it fits in a single frame.
+	 *
+	 * @throws IOException
+	 * 		When the message cannot be encoded.
+	 */
+	private void encodeChunked(WriteResult<?> write, ByteBufferDataOutput output) throws IOException {
+		ChunkedDataOutput chunked = chunkOutput;
+		int deadlineMillis = getDeadlineMillis(write);
+		long sequence = getSendSequence(write);
+		int flags = deadlineMillis >= 0 ? FLAG_DEADLINE : sequence > 0 ? FLAG_SEQUENCE : 0;
+		try {
+			if (deadlineMillis >= 0)
+				chunked.writeInt(deadlineMillis);
+			else if (sequence > 0)
+				chunked.writeLong(sequence);
+			write.writeTo(chunked);
+		} catch (Throwable t) {
+			chunked.release();
+			throw t;
+		}
+		if (chunked.getChunkCount() > 1) {
+			ChunkStream stream = new ChunkStream(nextStreamId++, flags, write, chunked.takeChunks(), false);
+			Logger.debug("Channel write-stream: " +
+					"id=" + write.getFrameId() + ", stream=" + stream.id + ", chunks=" + stream.chunks.size());
+			getLane(write).streams.add(stream);
+			return;
+		}
+		writeBatch.add(write);
+		Logger.debug("Channel write-header: " +
+				"id=" + write.getFrameId() + ", type=" + write.getDecoderKey() + ", value=" + write.getValue());
+		int headerStart = output.getBuffer().position();
+		write.writeHeader(output);
+		if (flags != 0)
+			output.getBuffer().putShort(headerStart + 4, (short) (write.getDecoderKey() | flags));
+		List<ByteBuffer> chunks = chunked.takeChunks();
+		int contentLength = 0;
+		if (!chunks.isEmpty()) {
+			ByteBuffer chunk = chunks.get(0);
+			contentLength = chunk.remaining();
+			output.write(chunk);
+			allocator.release(chunk);
+		}
+		output.getBuffer().putInt(output.getBuffer().position() - contentLength - 4, contentLength);
+		Logger.debug("Channel write-body: " +
+				"length=" + contentLength);
+		finishFrame(output, headerStart);
+	}
+
+	/**
+	 * Compresses the frame just encoded, and then switches it to a compact header, where the peer supports each.
+	 *
+	 * @param output
+	 * 		Output holding the frame, which ends at its position.
+	 * @param headerStart
+	 * 		Offset of the frame's header in the output.
+	 */
+	private void finishFrame(ByteBufferDataOutput output, int headerStart) {
+		compressFrame(output.getBuffer(), headerStart);
+		if (compactSend)
+			compactFrame(output, headerStart);
+	}
+
+	/**
+	 * Replaces the fixed size header of the frame just encoded with a {@link CompactHeaders compact} header,
+	 * moving the content that is in the output to follow it.
+	 *
+	 * @param output
+	 * 		Output holding the frame, which ends at its position. Content sent as a
+	 * 		{@link #appendView(ByteBufferDataOutput, ByteBuffer) view} is not yet in it.
+	 * @param headerStart
+	 * 		Offset of the frame's header in the output.
+	 */
+	private void compactFrame(ByteBufferDataOutput output, int headerStart) {
+		ByteBuffer buffer = output.getBuffer();
+		int contentStart = headerStart + HEADER_SIZE;
+		int contentLength = buffer.getInt(headerStart + HEADER_SIZE - 4);
+		int moved = buffer.position() - contentStart;
+		int headerSize = compactHeaders.encode(buffer.getInt(headerStart), buffer.getShort(headerStart + 4), contentLength);
+		int shift = headerSize - HEADER_SIZE;
+		// Rarely larger than the fixed header, in which case room is made for it first
+		for (int i = 0; i < shift; i++)
+			output.write(0);
+		buffer = output.getBuffer();
+		if (moved > 0 && shift != 0) {
+			if (buffer.hasArray()) {
+				byte[] array = buffer.array();
+				int offset = buffer.arrayOffset();
+				System.arraycopy(array, offset + contentStart, array, offset + contentStart + shift, moved);
+			} else {
+				ByteBuffer content = buffer.duplicate();
+				ByteBufferCompat.compatLimit(content, contentStart + moved);
+				ByteBufferCompat.compatPosition(content, contentStart);
+				ByteBufferCompat.compatPosition(buffer, contentStart + shift);
+				buffer.put(content);
+			}
+		}
+		ByteBufferCompat.compatPosition(buffer, headerStart);
+		buffer.put(compactHeaders.getEncoded(), 0, headerSize);
+		ByteBufferCompat.compatPosition(buffer, headerStart + headerSize + moved);
+	}
+
+	/**
+	 * Compresses the content of the frame just encoded, when the peer supports it and it is large enough.
+	 *
+	 * @param buffer
+	 * 		Buffer holding the frame, which ends at its position.
+	 * @param headerStart
+	 * 		Offset of the frame's header in the buffer.
+	 */
+	private void compressFrame(ByteBuffer buffer, int headerStart) {
+		int contentStart = headerStart + HEADER_SIZE;
+		int contentLength = buffer.position() - contentStart;
+		if (!compression.shouldCompress(contentLength) || !compression.compress(buffer, contentStart))
+			return;
+		int compressedLength = buffer.position() - contentStart;
+		buffer.putShort(headerStart + 4, (short) (buffer.getShort(headerStart + 4) | FLAG_COMPRESSED));
+		buffer.putInt(headerStart + HEADER_SIZE - 4, compressedLength);
+		Logger.debug("Channel write-compressed: " +
+				"length=" + contentLength + ", compressed=" + compressedLength);
+	}
+
+	/**
+	 * Writes the buffers with as few channel calls as possible.
+	 * For blocking channels, all content will be written.
+	 * For non-blocking channels, only what the channel accepts without blocking will be written.
+	 *
+	 * @param buffers
+	 * 		Buffers to write.
+	 *
+	 * @return {@code true} when all buffers have been completely written.
+	 *
+	 * @throws IOException
+	 * 		When the channel cannot be written to.
+	 */
+	private boolean writeBuffers(ByteBuffer[] buffers) throws IOException {
+		if (channel instanceof GatheringByteChannel) {
+			((GatheringByteChannel) channel).write(buffers);
+		} else {
+			for (ByteBuffer buffer : buffers) {
+				channel.write(buffer);
+				if (buffer.hasRemaining())
+					break;
+			}
+		}
+		return !buffers[buffers.length - 1].hasRemaining();
+	}
+
+	/**
+	 * Completes all writes in the {@link #writeBatch} and records the flush in the {@link #getStats() stats}.
+	 *
+	 * @param buffers
+	 * 		Buffers the batch was written from.
+	 */
+	private void onBatchComplete(ByteBuffer[] buffers) {
+		int bytes = 0;
+		for (ByteBuffer buffer : buffers)
+			bytes += buffer.limit();
+		int messages = writeBatch.size();
+		stats.recordFlush(messages, bytes);
+		Logger.debug("Channel flush: messages=" + messages + ", bytes=" + bytes);
+		int controlMessages = 0;
+		for (WriteResult<?> write : writeBatch) {
+			if (write.getFrameId() == ApiConstants.CONTROL_MESSAGE_ID)
+				controlMessages++;
+			onWriteComplete(write);
+		}
+		writeBatch.clear();
+		flow.onWritten(messages - controlMessages);
+
+		// Return unusually large buffers, so they are not held onto for the life of the channel
+		if (writeOutput.getBuffer().capacity() > MAX_RETAINED_OUTPUT)
+			writeOutput.release();
+	}
+
+	/**
+	 * @param write
+	 * 		Completed write.
+	 */
+	private void onWriteComplete(WriteResult<?> write) {
+		write.complete();
+
+		// Notify listener
+		int writeFrameId = write.getFrameId();
+		if (writeListener != null && !postEvent(() -> writeListener.onWrite(writeFrameId, write.getValue())))
+			Logger.warn("Cannot post-event of write-completion, event-queue is full");
+	}
+
+	/**
+	 * Decodes a received frame and notifies listeners.
+	 *
+	 * @param readFrameId
+	 * 		Frame ID of message.
+	 * @param messageType
+	 * 		Message type.
+	 * @param contentBuffer
+	 * 		Buffer containing the message content, possibly a slice of the {@link #reader read-ahead buffer}.
+	 * 		Released once decoded, unless the decoded message holds a view of it.
+	 *
+	 * @throws IOException
+	 * 		When the message cannot be decoded.
+	 */
+	private void handleFrame(int readFrameId, int messageType, ByteBuffer contentBuffer) throws IOException {
+		if ((messageType & FLAG_COMPRESSED) != 0) {
+			ByteBuffer compressed = contentBuffer;
+			checkFrameLength(compressed.getInt(compressed.position()));
+			try {
+				contentBuffer = compression.decompress(compressed, allocator);
+			} finally {
+				releaseContent(compressed);
+			}
+			messageType &= ~FLAG_COMPRESSED;
+		}
+		AbstractMessage value;
+		if ((messageType & FLAG_CHUNK) != 0) {
+			value = handleChunk(readFrameId, messageType, contentBuffer);
+			// Wait for the remaining chunks
+			if (value == null)
+				return;
+		} else {
+			ByteBufferDataInput input = new ByteBufferDataInput(contentBuffer);
+			value = decode(readFrameId, messageType, input);
+			if (!input.isViewed())
+				releaseContent(contentBuffer);
+			else if (reader.isSlice(contentBuffer))
+				// The message holds a view of the read-ahead buffer, so it can no longer be read into
+				reader.detach();
+		}
+		Logger.debug("Channel read-body: " + value);
+		handleMessage(readFrameId, messageType & TYPE_MASK, value);
+	}
+
+	/**
+	 * Adds a received chunk to its stream. Chunks are kept as received, and once the last arrives
+	 * the message is decoded across them. The codecs read from a {@link DataInput}, which cannot wait for
+	 * chunks yet to arrive, so the whole message is held until then, bounded by the
+	 * {@link ChannelOptions#getMaxStreamBytes() stream limits}.
+	 *
+	 * @param readFrameId
+	 * 		Frame ID of message.
+	 * @param messageType
+	 * 		Message type, including chunk flags.
+	 * @param contentBuffer
+	 * 		Buffer containing the stream ID, followed by the chunk.
+	 *
+	 * @return Decoded message, or {@code null} if more chunks are needed.
+	 *
+	 * @throws IOException
+	 * 		When the message cannot be decoded, or the chunks held exceed the stream limits.
+	 */
+	private AbstractMessage handleChunk(int readFrameId, int messageType, ByteBuffer contentBuffer) throws IOException {
+		int streamId = contentBuffer.getInt();
+		int length = contentBuffer.limit();
+		ChunkStream stream;
+		synchronized (inboundStreams) {
+			stream = inboundStreams.get(streamId);
+			if (stream == null) {
+				stream = new ChunkStream(streamId, 0, null, new ArrayList<>(), false);
+				inboundStreams.put(streamId, stream);
+			}
+			// Held chunks are released on shutdown, which the failure of the channel leads to
+			stream.chunks.add(contentBuffer);
+			stream.received += length;
+			inboundStreamBytes += length;
+			int max = options.getMaxStreamBytes();
+			if (max > 0 && stream.received > max)
+				throw new IOException("Chunked message exceeds " + max + " bytes: stream=" + streamId);
+			int maxTotal = options.getMaxTotalStreamBytes();
+			if (maxTotal > 0 && inboundStreamBytes > maxTotal)
+				throw new IOException("Chunked messages exceed " + maxTotal + " bytes: streams=" + inboundStreams.size());
+			if ((messageType & FLAG_LAST_CHUNK) == 0)
+				return null;
+			inboundStreams.remove(streamId);
+			inboundStreamBytes -= stream.received;
+		}
+		Logger.debug("Channel read-stream: stream=" + streamId + ", chunks=" + stream.chunks.size());
+		try {
+			return decode(readFrameId, messageType, new ChunkedDataInput(stream.chunks));
+		} finally {
+			for (ByteBuffer chunk : stream.chunks)
+				releaseContent(chunk);
+		}
+	}
+
+	/**
+	 * @param readFrameId
+	 * 		Frame ID of message.
+	 * @param messageType
+	 * 		Message type, including frame flags.
+	 * @param input
+	 * 		Input of the message content.
+	 *
+	 * @return Decoded message. Requests are given the deadline sent with them, and broadcasts their sequence.
+	 *
+	 * @throws IOException
+	 * 		When the message cannot be decoded.
+	 */
+	private AbstractMessage decode(int readFrameId, int messageType, DataInput input) throws IOException {
+		long deadline = AbstractRequestMessage.NO_DEADLINE;
+		long sequence = 0;
+		if (readFrameId == ApiConstants.BROADCAST_MESSAGE_ID) {
+			if ((messageType & FLAG_SEQUENCE) != 0)
+				sequence = input.readLong();
+		} else if ((messageType & FLAG_DEADLINE) != 0) {
+			deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(input.readInt());
+		}
+		MessageFactory.MessageInfo info = factory.getInfo(messageType & TYPE_MASK);
+		StructureCodec<AbstractMessage> decoder = info.getCodec();
+		AbstractMessage value = decoder.decode(input);
+		if (deadline != AbstractRequestMessage.NO_DEADLINE && value instanceof AbstractRequestMessage)
+			((AbstractRequestMessage<?>) value).setDeadline(deadline);
+		else if (sequence > 0 && value instanceof AbstractBroadcastMessage)
+			((AbstractBroadcastMessage) value).setSequence(sequence);
+		return value;
+	}
+
+	/**
+	 * Notifies listeners of a received message.
+	 *
+	 * @param readFrameId
+	 * 		Frame ID of message.
+	 * @param messageType
+	 * 		Message type.
+	 * @param value
+	 * 		Decoded message.
+	 */
+	private void handleMessage(int readFrameId, int messageType, AbstractMessage value) {
+		// Control messages are for us, not listeners
+		if (readFrameId == ApiConstants.CONTROL_MESSAGE_ID) {
+			handleControl((AbstractControlMessage) value);
+			return;
+		}
+
+		// Notify listeners. The frame is consumed once they are all done with it, and the reader lets go of it.
+		AtomicInteger unconsumed = flow.getReceiveWindow() > 0 ? new AtomicInteger(1) : null;
+		if (readFrameId == ApiConstants.BROADCAST_MESSAGE_ID) {
+			trackSession((AbstractBroadcastMessage) value);
+			if (broadcastListener != null && !postEvent(() -> broadcastListener.onReceive(messageType, (AbstractBroadcastMessage) value), unconsumed))
+				Logger.warn("Cannot post-event of read-completion[broadcast], event-queue is full");
+		} else {
+			if (value instanceof AbstractRequestMessage)
+				trackInboundRequest(readFrameId, (AbstractRequestMessage<?>) value);
+			ResponseListener responseListener = responseListeners.remove(readFrameId);
+			if (responseListener != null)
+				flow.releaseResponse();
+			expireResponseListeners();
+			if (responseListener != null && !postEvent(() -> responseListener.onReceive(readFrameId, value), unconsumed))
+				Logger.warn("Cannot post-event of read-completion[response], event-queue is full");
+			if (allResponsesListener != null && !postEvent(() -> allResponsesListener.onReceive(readFrameId, value), unconsumed))
+				Logger.warn("Cannot post-event of read-completion[all-response], event-queue is full");
+		}
+		if (unconsumed != null)
+			onEventConsumed(unconsumed);
+	}
+
+	/**
+	 * @param event
+	 * 		Listener logic to run for a received frame.
+	 * @param unconsumed
+	 * 		Count of the frame's events yet to complete, or {@code null} when the peer is not flow controlled.
+	 *
+	 * @return {@code true} when the event was accepted.
+	 */
+	private boolean postEvent(Runnable event, AtomicInteger unconsumed) {
+		if (unconsumed == null)
+			return postEvent(event);
+		unconsumed.incrementAndGet();
+		boolean posted = postEvent(() -> {
+			try {
+				event.run();
+			} finally {
+				onEventConsumed(unconsumed);
+			}
+		});
+		if (!posted)
+			onEventConsumed(unconsumed);
+		return posted;
+	}
+
+	/**
+	 * Returns credit to the peer once the last event of a frame completes.
+	 *
+	 * @param unconsumed
+	 * 		Count of the frame's events yet to complete.
+	 */
+	private void onEventConsumed(AtomicInteger unconsumed) {
+		if (unconsumed.decrementAndGet() > 0 || !running)
+			return;
+		int grant = flow.onFrameConsumed();
+		if (grant > 0)
+			write(new ControlCreditMessage(grant), ApiConstants.CONTROL_MESSAGE_ID);
+	}
+
+	/**
+	 * Records the session position as broadcasts are read, in the order they were sent.
+	 *
+	 * @param message
+	 * 		Received broadcast.
+	 */
+	private void trackSession(AbstractBroadcastMessage message) {
+		if (message instanceof BroadcastSessionMessage) {
+			BroadcastSessionMessage session = (BroadcastSessionMessage) message;
+			sessionToken = session.getToken();
+			lastSequence = session.getLastSequence();
+		} else if (message.getSequence() > 0) {
+			lastSequence = message.getSequence();
+		}
+	}
+
+	/**
+	 * @param message
+	 * 		Control message sent by the peer.
+	 */
+	private void handleControl(AbstractControlMessage message) {
+		if (message instanceof ControlCreditMessage) {
+			flow.grantSendCredits(((ControlCreditMessage) message).getCredits());
+			// Writes may be waiting on credit
+			if (reactor != null)
+				scheduleFlush();
+		} else if (message instanceof ControlHelloMessage) {
+			ControlHelloMessage hello = (ControlHelloMessage) message;
+			boolean late;
+			synchronized (handshakeLatch) {
+				late = peerHello != null;
+				if (late && !handshakeFallback) {
+					Logger.warn("Ignoring repeated hello: " + message);
+					return;
+				} else if (!late) {
+					if (hello.getVersion() != ApiConstants.PROTOCOL_VERSION)
+						Logger.info("Peer protocol version " + hello.getVersion() + ", using " +
+								Math.min(hello.getVersion(), ApiConstants.PROTOCOL_VERSION));
+					if (hello.supports(ControlHelloMessage.FEATURE_COMPRESSION))
+						compression.onPeerSupported();
+					// The peer sent nothing else before its hello, and everything after uses the negotiated header format
+					reader.setCompactHeaders(isCompactHeaders(hello));
+					peerHello = hello;
+				}
+			}
+			if (late) {
+				// We already sent using the baseline, which may not be what the peer expects
+				Logger.warn("Peer hello arrived after the handshake timed out, disconnecting");
+				shutdown();
+				return;
+			}
+			onHandshake(hello);
+		} else if (message instanceof ControlCancelMessage) {
+			int frameId = ((ControlCancelMessage) message).getFrameId();
+			AbstractRequestMessage<?> request = inboundRequests.remove(frameId);
+			if (request != null)
+				request.cancel();
+		} else {
+			Logger.warn("Unsupported control message: " + message);
+		}
+	}
+
+	/**
+	 * Tracks a received request until it is replied to, so that it can be {@link ControlCancelMessage cancelled}.
+	 * Requests that are never replied to are dropped once their deadline passes,
+	 * or the {@link ChannelOptions#getResponseExpiryMillis() response expiry}, whichever is first.
+	 *
+	 * @param frameId
+	 * 		Frame ID of the request.
+	 * @param request
+	 * 		Received request.
+	 */
+	private void trackInboundRequest(int frameId, AbstractRequestMessage<?> request) {
+		long now = System.nanoTime();
+		long deadline = request.getDeadline();
+		long expiry = options.getResponseExpiryMillis();
+		if (expiry > 0) {
+			long expiryDeadline = now + TimeUnit.MILLISECONDS.toNanos(expiry);
+			if (deadline == AbstractRequestMessage.NO_DEADLINE || expiryDeadline - deadline < 0)
+				deadline = expiryDeadline;
+		}
+		inboundRequests.put(frameId, request, deadline);
+		inboundRequests.removeExpired(now, (id, expired) -> {});
+	}
+
+	/**
+	 * @param length
+	 * 		Content length of a received frame.
+	 *
+	 * @throws IOException
+	 * 		When the length is negative, or over the {@link ChannelOptions#getMaxFrameSize() max frame size}.
+	 */
+	private void checkFrameLength(int length) throws IOException {
+		int max = options.getMaxFrameSize();
+		if (length < 0 || (max > 0 && length > max))
+			throw new IOException("Invalid frame length: " + length);
+	}
+
+	/**
+	 * Drops the chunks of messages that will no longer be received in full.
+	 */
+	private void releaseInboundStreams() {
+		synchronized (inboundStreams) {
+			for (ChunkStream stream : inboundStreams.values())
+				for (ByteBuffer chunk : stream.chunks)
+					releaseContent(chunk);
+			inboundStreams.clear();
+			inboundStreamBytes = 0;
+		}
+	}
+
+	/**
+	 * @param contentBuffer
+	 * 		Content buffer of a handled frame, to return to the {@link #allocator}.
+	 */
+	private void releaseContent(ByteBuffer contentBuffer) {
+		if (!reader.isSlice(contentBuffer))
+			allocator.release(contentBuffer);
+	}
+
+	/**
+	 * @param event
+	 * 		Listener logic to run.
+	 *
+	 * @return {@code true} when the event was accepted.
+	 */
+	private boolean postEvent(Runnable event) {
+		if (dispatchMode == DispatchMode.INLINE) {
+			try {
+				event.run();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+			return true;
+		} else if (dispatchMode == DispatchMode.ORDERED) {
+			try {
+				orderedEvents.execute(event);
+				return true;
+			} catch (RejectedExecutionException ex) {
+				return false;
+			}
+		}
+		if (reactor != null) {
+			try {
+				reactor.getWorkers().execute(event);
+				return true;
+			} catch (RejectedExecutionException ex) {
+				return false;
+			}
+		}
+		if (flow.getReceiveWindow() > 0) {
+			// Stall reading rather than dropping events, which also stops credit being returned to the peer
+			try {
+				eventQueue.put(event);
+				return true;
+			} catch (InterruptedException ex) {
+				return false;
+			}
+		}
+		return eventQueue.offer(event);
+	}
+
+	/**
+	 * @param t
+	 * 		Failure from reading or writing the channel.
+	 */
+	private void handleFailure(Throwable t) {
+		if (t instanceof SocketException || t instanceof ClosedChannelException) {
+			shutdown();
+			return;
+		}
+		// Likely caused because shutdown occurred, can ignore.
+		if (!running)
+			return;
+		// Unknown error, log and close server.
+		t.printStackTrace();
+		shutdown();
+	}
+
+	/**
+	 * Releases the writes held until the handshake completed, and notifies the {@link #handshakeListener}.
+	 *
+	 * @param hello
+	 * 		Handshake sent by the peer, or the baseline standing in for it.
+	 */
+	private void onHandshake(ControlHelloMessage hello) {
+		handshakeLatch.countDown();
+		if (reactor != null)
+			scheduleFlush();
+		HandshakeListener listener = handshakeListener;
+		if (listener != null && !postEvent(() -> listener.onHandshake(hello)))
+			Logger.warn("Cannot post-event of handshake, event-queue is full");
+	}
+
+	/**
+	 * @return Incrementing value.
+	 */
+	public int getNextFrameId() {
+		return nextFrameId.getAndIncrement();
+	}
+
+	/**
+	 * @return Handshake sent by the peer, or {@code null} if it has not arrived yet.
+	 * Once the {@link ChannelOptions#getHandshakeTimeoutMillis() handshake timeout} passes with the
+	 * {@link HandshakeTimeoutPolicy#BASELINE baseline policy}, a hello without optional features stands in for it.
+	 */
+	public ControlHelloMessage getPeerHello() {
+		return peerHello;
+	}
+
+	/**
+	 * Writes never need to wait on the handshake, as they are held until it completes.
+	 * This is for callers that need to know what the peer supports.
+	 *
+	 * @param timeout
+	 * 		Maximum time to wait.
+	 * @param unit
+	 * 		Unit of the timeout.
+	 *
+	 * @return Handshake sent by the peer, or {@code null} if it did not arrive in time or the channel was closed.
+	 * See {@link #getPeerHello()} for when the handshake times out.
+	 *
+	 * @throws InterruptedException
+	 * 		When interrupted while waiting.
+	 */
+	public ControlHelloMessage awaitHandshake(long timeout, TimeUnit unit) throws InterruptedException {
+		if (!handshakeLatch.await(timeout, unit))
+			return null;
+		return peerHello;
+	}
+
+	/**
+	 * @return Protocol version spoken on the channel, the lower of ours and the peer's.
+	 * Our own {@link ApiConstants#PROTOCOL_VERSION} until the handshake completes.
+	 */
+	public int getProtocolVersion() {
+		ControlHelloMessage hello = peerHello;
+		return hello == null ? ApiConstants.PROTOCOL_VERSION : Math.min(hello.getVersion(), ApiConstants.PROTOCOL_VERSION);
+	}
+
+	/**
+	 * @return {@code true} while new broadcasts are not being queued, as the peer is a
+	 * {@link ChannelOptions#getMaxBroadcastLag() slow consumer}.
+	 */
+	public boolean isBroadcastLagging() {
+		return broadcastBacklog.isLagging();
+	}
+
+	/**
+	 * Sets the broadcast session to resume, sent to the peer in our {@link ControlHelloMessage hello}.
+	 * Must be called before {@link #start()}.
+	 *
+	 * @param sessionToken
+	 * 		{@link #getSessionToken() Token} of a session on a previous connection to the same server.
+	 * @param lastSequence
+	 * 		{@link #getLastSequence() Sequence} of the last broadcast received on the previous connection.
+	 */
+	public void setSession(long sessionToken, long lastSequence) {
+		if (running)
+			throw new IllegalStateException("Session must be set before the channel is started");
+		this.sessionToken = sessionToken;
+		this.lastSequence = lastSequence;
+	}
+
+	/**
+	 * @return Token of the broadcast session, as told by the peer in a {@link BroadcastSessionMessage},
+	 * or the one to resume when not yet told. {@code 0} when there is none.
+	 */
+	public long getSessionToken() {
+		return sessionToken;
+	}
+
+	/**
+	 * @return Sequence of the last broadcast received, or {@code 0} when none have been sequenced.
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return Counters of channel activity.
+	 */
+	public ChannelStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return Handler configuration.
+	 */
+	public ChannelOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * @param broadcastListener
+	 * 		Listener to handle {@link AbstractBroadcastMessage} messages.
+	 */
+	public void setBroadcastListener(BroadcastListener broadcastListener) {
+		this.broadcastListener = broadcastListener;
+	}
+
+	/**
+	 * @param handshakeListener
+	 * 		Listener to handle the peer's {@link ControlHelloMessage hello}, once it arrives.
+	 */
+	public void setHandshakeListener(HandshakeListener handshakeListener) {
+		this.handshakeListener = handshakeListener;
+	}
+
+	/**
+	 * @param writeListener
+	 * 		Listener to handle all write calls.
+	 */
+	public void setWriteListener(WriteListener writeListener) {
+		this.writeListener = writeListener;
+	}
+
+	/**
+	 * @param frameId
+	 * 		Message id.
+	 * @param listener
+	 * 		Listener to handle a response with the given ID. Used once then discarded.
+	 */
+	public void addResponseListener(int frameId, ResponseListener listener) {
+		addResponseListener(frameId, listener, AbstractRequestMessage.NO_DEADLINE);
+	}
+
+	/**
+	 * @param frameId
+	 * 		Message id.
+	 * @param listener
+	 * 		Listener to handle a response with the given ID. Used once then discarded.
+	 * @param deadline
+	 * 		{@link System#nanoTime()} after which the listener expires, if before the
+	 * 		{@link ChannelOptions#getResponseExpiryMillis() response expiry}.
+	 * 		Typically the {@link AbstractRequestMessage#getDeadline() deadline} of the request.
+	 */
+	public void addResponseListener(int frameId, ResponseListener listener, long deadline) {
+		flow.acquireResponse();
+		long expiry = options.getResponseExpiryMillis();
+		if (expiry > 0) {
+			long expiryDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(expiry);
+			if (deadline == AbstractRequestMessage.NO_DEADLINE || expiryDeadline - deadline < 0)
+				deadline = expiryDeadline;
+		}
+		if (responseListeners.put(frameId, listener, deadline) != null)
+			flow.releaseResponse();
+		// Shutdown only fails the listeners added before it, so fail this one if it was missed
+		if (!running && responseListeners.remove(frameId) != null) {
+			flow.releaseResponse();
+			try {
+				listener.onFailure(frameId, new ClosedChannelException());
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+			return;
+		}
+		expireResponseListeners();
+	}
+
+	/**
+	 * @param frameId
+	 * 		Frame ID of a message no longer awaiting a response, such as one that could not be written.
+	 */
+	public void removeResponseListener(int frameId) {
+		if (responseListeners.remove(frameId) != null)
+			flow.releaseResponse();
+	}
+
+	/**
+	 * Tells the peer that the reply to a request is no longer wanted, and stops waiting for it.
+	 * The peer skips the request if not yet handled, and does not send its reply.
+	 *
+	 * @param frameId
+	 * 		Frame ID of a request sent on this channel.
+	 */
+	public void cancel(int frameId) {
+		removeResponseListener(frameId);
+		if (running)
+			write(new ControlCancelMessage(frameId), ApiConstants.CONTROL_MESSAGE_ID);
+	}
+
+	/**
+	 * @return Number of listeners awaiting a response.
+	 */
+	public int getPendingResponseCount() {
+		return responseListeners.size();
+	}
+
+	/**
+	 * Removes all response listeners past their {@link ChannelOptions#getResponseExpiryMillis() expiry}.
+	 * Called as requests and responses pass through the channel, rather than on a timer.
+	 */
+	private void expireResponseListeners() {
+		long now = System.nanoTime();
+		if (!responseListeners.hasExpired(now))
+			return;
+		responseListeners.removeExpired(now, (frameId, listener) -> {
+			flow.releaseResponse();
+			TimeoutException timeout = new TimeoutException("No response to frame " + frameId + " before its deadline");
+			if (!postEvent(() -> listener.onFailure(frameId, timeout)))
+				Logger.warn("Cannot post-event of response expiry, event-queue is full");
+		});
+	}
+
+	/**
+	 * @param allResponsesListener
+	 * 		Listener to handle all read calls.
+	 */
+	public void setAllResponsesListener(ResponseListener allResponsesListener) {
+		this.allResponsesListener = allResponsesListener;
+	}
+
+	/**
+	 * Outbound writes of one priority.
+	 */
+	private static final class WriteLane {
+		// Accessed by any thread queueing writes
+		private final BlockingQueue<WriteResult<?>> queue;
+		// Writes from threads that must not wait for space in the queue
+		private final Queue<WriteResult<?>> overflow = new ConcurrentLinkedQueue<>();
+		// Accessed only by the thread currently writing to the channel
+		private final Queue<WriteResult<?>> creditWaiting = new ArrayDeque<>();
+		private final Queue<WriteResult<?>> handshakeWaiting = new ArrayDeque<>();
+		private final Queue<ChunkStream> streams = new ArrayDeque<>();
+
+		/**
+		 * @param options
+		 * 		Handler configuration, for the queue capacity.
+		 */
+		private WriteLane(ChannelOptions options) {
+			int capacity = options.getWriteQueueCapacity();
+			queue = capacity > 0 ?
+					new RingBufferQueue<>(capacity, options.getWriteQueueWaitStrategy()) :
+					new LinkedBlockingQueue<>();
+		}
+
+		/**
+		 * @return {@code true} when writes are held for lack of credit, or for the handshake.
+		 */
+		private boolean isHeld() {
+			return !creditWaiting.isEmpty() || !handshakeWaiting.isEmpty();
+		}
+
+		/**
+		 * @return {@code true} when the lane has anything left to send.
+		 */
+		private boolean isPending() {
+			return !queue.isEmpty() || !overflow.isEmpty() || isHeld() || !streams.isEmpty();
+		}
+
+		/**
+		 * Cancels all queued writes. Safe to call from any thread.
+		 */
+		private void cancelQueued() {
+			WriteResult<?> write;
+			while ((write = queue.poll()) != null)
+				if (write != WAKE_SIGNAL)
+					write.getFuture().cancel(false);
+			while ((write = overflow.poll()) != null)
+				write.getFuture().cancel(false);
+		}
+
+		/**
+		 * Cancels all held writes, and those of streams in progress.
+		 * Must only be called by the thread currently writing to the channel.
+		 *
+		 * @param allocator
+		 * 		Allocator to return the unsent chunks of streams to, unless they are shared.
+		 */
+		private void cancelHeld(ByteBufferAllocator allocator) {
+			WriteResult<?> write;
+			while ((write = creditWaiting.poll()) != null)
+				write.getFuture().cancel(false);
+			while ((write = handshakeWaiting.poll()) != null)
+				write.getFuture().cancel(false);
+			ChunkStream stream;
+			while ((stream = streams.poll()) != null) {
+				if (!stream.shared)
+					for (int i = stream.index; i < stream.chunks.size(); i++)
+						allocator.release(stream.chunks.get(i));
+				stream.write.getFuture().cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Chunks of a message too large to send in a single frame.
+	 */
+	private static final class ChunkStream {
+		private final int id;
+		private final int flags;
+		private final WriteResult<?> write;
+		private final List<ByteBuffer> chunks;
+		private final boolean shared;
+		private int index;
+		// Bytes of chunks held so far, for streams being received
+		private long received;
+
+		/**
+		 * @param id
+		 * 		Stream ID, unique among the streams in progress on the sending side.
+		 * @param flags
+		 * 		Frame flags of the message, sent with each chunk.
+		 * @param write
+		 * 		Message being sent, or {@code null} for streams being received.
+		 * @param chunks
+		 * 		Chunks of encoded message content.
+		 * @param shared
+		 * 		{@code true} when the chunks are views of an {@link EncodedFrame}, and must not be released.
+		 */
+		private ChunkStream(int id, int flags, WriteResult<?> write, List<ByteBuffer> chunks, boolean shared) {
+			this.id = id;
+			this.flags = flags;
+			this.write = write;
+			this.chunks = chunks;
+			this.shared = shared;
+		}
 	}
 }
@@ -0,0 +1,598 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.util.RingBufferQueue;
+import software.coley.instrument.util.WaitStrategy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Configuration for {@link ChannelHandler} instances.
+ * <br>
+ * Options must be set before the handler is {@link ChannelHandler#start() started}.
+ * The same instance can be shared between multiple handlers, such as all clients of a
+ * {@link software.coley.instrument.Server}.
+ *
+ * @author Matt Coley
+ */
+public class ChannelOptions {
+	/**
+	 * Smallest allowed {@link #getChunkSize() chunk size}.
+	 */
+	public static final int MIN_CHUNK_SIZE = 64;
+	/**
+	 * Smallest allowed {@link #getMaxFrameSize() max frame size}, which control messages always fit within.
+	 */
+	public static final int MIN_MAX_FRAME_SIZE = 1024;
+	/**
+	 * Smallest allowed {@link #getReadBufferSize() read buffer size}, which any frame header fits within.
+	 */
+	public static final int MIN_READ_BUFFER_SIZE = 64;
+	/**
+	 * Default for {@link #getMaxStreamBytes()}.
+	 */
+	public static final int DEFAULT_MAX_STREAM_BYTES = 64 * 1024 * 1024;
+	/**
+	 * Default for {@link #getMaxTotalStreamBytes()}.
+	 */
+	public static final int DEFAULT_MAX_TOTAL_STREAM_BYTES = 256 * 1024 * 1024;
+	/**
+	 * Default for {@link #getReadBufferSize()}.
+	 */
+	public static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
+	/**
+	 * Default for {@link #getInteractiveWeight()}.
+	 */
+	public static final int DEFAULT_INTERACTIVE_WEIGHT = 3;
+	/**
+	 * Default for {@link #getBulkWeight()}.
+	 */
+	public static final int DEFAULT_BULK_WEIGHT = 1;
+	/**
+	 * Default for {@link #getResponseExpiryMillis()}.
+	 */
+	public static final long DEFAULT_RESPONSE_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	/**
+	 * Default for {@link #getHandshakeTimeoutMillis()}.
+	 */
+	public static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+	/**
+	 * Suggested value for {@link #setCompressionThreshold(int)}. Smaller frames rarely shrink enough to be worth it.
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+	private ChannelReactor reactor;
+	private DispatchMode dispatchMode = DispatchMode.POOL;
+	private boolean virtualThreads;
+	private int writeQueueCapacity;
+	private WaitStrategy writeQueueWaitStrategy = WaitStrategy.SPIN_THEN_PARK;
+	private int writeLowWatermark;
+	private int writeHighWatermark;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private int maxBroadcastLag;
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP;
+	private int interactiveWeight = DEFAULT_INTERACTIVE_WEIGHT;
+	private int bulkWeight = DEFAULT_BULK_WEIGHT;
+	private int receiveWindow;
+	private int maxPendingEvents;
+	private int maxPendingResponses;
+	private int chunkSize;
+	private int maxFrameSize;
+	private int maxStreamBytes = DEFAULT_MAX_STREAM_BYTES;
+	private int maxTotalStreamBytes = DEFAULT_MAX_TOTAL_STREAM_BYTES;
+	private boolean compactHeaders = true;
+	private int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+	private long responseExpiryMillis = DEFAULT_RESPONSE_EXPIRY_MILLIS;
+	private long handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+	private HandshakeTimeoutPolicy handshakeTimeoutPolicy = HandshakeTimeoutPolicy.BASELINE;
+	private int compressionThreshold;
+	private int compressionLevel = Deflater.BEST_SPEED;
+
+	/**
+	 * @return Reactor to run channel IO on, or {@code null} to use dedicated threads per channel.
+	 */
+	public ChannelReactor getReactor() {
+		return reactor;
+	}
+
+	/**
+	 * @param reactor
+	 * 		Reactor to run channel IO on, or {@code null} to use dedicated threads per channel.
+	 */
+	public void setReactor(ChannelReactor reactor) {
+		this.reactor = reactor;
+	}
+
+	/**
+	 * @return How read and write events are delivered to listeners.
+	 */
+	public DispatchMode getDispatchMode() {
+		return dispatchMode;
+	}
+
+	/**
+	 * @param dispatchMode
+	 * 		How read and write events are delivered to listeners.
+	 */
+	public void setDispatchMode(DispatchMode dispatchMode) {
+		this.dispatchMode = dispatchMode;
+	}
+
+	/**
+	 * @return {@code true} to run the per-channel threads on virtual threads when supported.
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Virtual threads make the per-channel read, write and event threads nearly free while idle,
+	 * allowing many connections without a {@link #getReactor() reactor}.
+	 * Requires Java 21+, and platform threads are used on older JVMs.
+	 *
+	 * @param virtualThreads
+	 *        {@code true} to run the per-channel threads on virtual threads when supported.
+	 * @see software.coley.instrument.util.VirtualThreads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * @return Capacity of the outbound message queue when backed by a {@link RingBufferQueue},
+	 * or {@code 0} for an unbounded linked queue.
+	 */
+	public int getWriteQueueCapacity() {
+		return writeQueueCapacity;
+	}
+
+	/**
+	 * When set, writes go through a lock-free {@link RingBufferQueue} instead of an unbounded linked queue.
+	 * Once the ring is full, calls to {@link ChannelHandler#write} block until the queue has drained.
+	 * Calls made on the thread which drains it, or on the shared threads of a {@link ChannelReactor reactor},
+	 * never block and instead go to an unbounded overflow queue sent ahead of the ring.
+	 * Each {@link #setLaneWeights(int, int) lane} has a queue of this capacity.
+	 * Must be set before the handler is created.
+	 *
+	 * @param writeQueueCapacity
+	 * 		Capacity of the outbound message queue when backed by a {@link RingBufferQueue},
+	 * 		or {@code 0} for an unbounded linked queue.
+	 */
+	public void setWriteQueueCapacity(int writeQueueCapacity) {
+		if (writeQueueCapacity < 0)
+			throw new IllegalArgumentException("Capacity must not be negative");
+		this.writeQueueCapacity = writeQueueCapacity;
+	}
+
+	/**
+	 * @return How the write thread and producers wait on an empty or full {@link RingBufferQueue}.
+	 */
+	public WaitStrategy getWriteQueueWaitStrategy() {
+		return writeQueueWaitStrategy;
+	}
+
+	/**
+	 * Only used when {@link #getWriteQueueCapacity()} is set.
+	 *
+	 * @param writeQueueWaitStrategy
+	 * 		How the write thread and producers wait on an empty or full {@link RingBufferQueue}.
+	 */
+	public void setWriteQueueWaitStrategy(WaitStrategy writeQueueWaitStrategy) {
+		this.writeQueueWaitStrategy = writeQueueWaitStrategy;
+	}
+
+	/**
+	 * @return Number of unsent messages at which the channel stops accepting writes,
+	 * or {@code 0} for no limit.
+	 */
+	public int getWriteHighWatermark() {
+		return writeHighWatermark;
+	}
+
+	/**
+	 * @return Number of unsent messages at which the channel accepts writes again,
+	 * after reaching the {@link #getWriteHighWatermark() high watermark}.
+	 */
+	public int getWriteLowWatermark() {
+		return writeLowWatermark;
+	}
+
+	/**
+	 * Once the number of unsent messages reaches the high watermark, new writes are handled according to
+	 * the {@link #getOverflowPolicy() overflow policy} until the backlog drains to the low watermark.
+	 * Control messages, such as {@link #getReceiveWindow() credit grants}, are exempt.
+	 *
+	 * @param low
+	 * 		Number of unsent messages at which the channel accepts writes again.
+	 * @param high
+	 * 		Number of unsent messages at which the channel stops accepting writes, or {@code 0} for no limit.
+	 */
+	public void setWriteWatermarks(int low, int high) {
+		if (high < 0 || low < 0 || (high > 0 && low >= high))
+			throw new IllegalArgumentException("Invalid watermarks: low=" + low + ", high=" + high);
+		this.writeLowWatermark = low;
+		this.writeHighWatermark = high;
+	}
+
+	/**
+	 * @return What to do with new writes while above the {@link #getWriteHighWatermark() high watermark}.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * @param overflowPolicy
+	 * 		What to do with new writes while above the {@link #getWriteHighWatermark() high watermark}.
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * @return Number of queued broadcast bytes at which the peer is a slow consumer, or {@code 0} for no limit.
+	 */
+	public int getMaxBroadcastLag() {
+		return maxBroadcastLag;
+	}
+
+	/**
+	 * Once the encoded broadcasts queued for the peer reach this many bytes, new broadcasts are handled according to
+	 * the {@link #getSlowConsumerPolicy() slow consumer policy} until the backlog drains to half of it.
+	 * Only broadcasts {@link ChannelHandler#write(EncodedFrame, int) written already encoded}, as all
+	 * {@link software.coley.instrument.Server#broadcast(software.coley.instrument.message.broadcast.AbstractBroadcastMessage)
+	 * server broadcasts} are, count towards the lag. The lag is recorded in the {@link ChannelStats#getBroadcastLag() stats}
+	 * either way.
+	 *
+	 * @param maxBroadcastLag
+	 * 		Number of queued broadcast bytes at which the peer is a slow consumer, or {@code 0} for no limit.
+	 */
+	public void setMaxBroadcastLag(int maxBroadcastLag) {
+		if (maxBroadcastLag < 0)
+			throw new IllegalArgumentException("Max broadcast lag must not be negative");
+		this.maxBroadcastLag = maxBroadcastLag;
+	}
+
+	/**
+	 * @return What to do with new broadcasts while the peer lags more than the {@link #getMaxBroadcastLag() max lag}.
+	 */
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+
+	/**
+	 * @param slowConsumerPolicy
+	 * 		What to do with new broadcasts while the peer lags more than the {@link #getMaxBroadcastLag() max lag}.
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	/**
+	 * @return Weight of the interactive lane, which requests, replies and control messages are written in.
+	 */
+	public int getInteractiveWeight() {
+		return interactiveWeight;
+	}
+
+	/**
+	 * @return Weight of the bulk lane, which broadcasts are written in.
+	 */
+	public int getBulkWeight() {
+		return bulkWeight;
+	}
+
+	/**
+	 * Writes are queued in one of two lanes. Requests, replies and control messages are interactive,
+	 * broadcasts are bulk. Each flush writes interactive messages first, and bulk messages get their weighted share
+	 * of the flush. While bulk messages are waiting, interactive messages leave them that share.
+	 * <br>
+	 * A bulk share is never larger than the weighted part of a flush, so an interactive message queued behind
+	 * a burst of broadcasts waits for at most one share of them, rather than the whole burst.
+	 * Broadcasts larger than the {@link #getChunkSize() chunk size} are sent a chunk at a time within the share.
+	 * Unchunked broadcasts are sent whole.
+	 *
+	 * @param interactive
+	 * 		Weight of the interactive lane.
+	 * @param bulk
+	 * 		Weight of the bulk lane.
+	 */
+	public void setLaneWeights(int interactive, int bulk) {
+		if (interactive < 1 || bulk < 1)
+			throw new IllegalArgumentException("Lane weights must be positive: interactive=" + interactive +
+					", bulk=" + bulk);
+		this.interactiveWeight = interactive;
+		this.bulkWeight = bulk;
+	}
+
+	/**
+	 * @return Number of frames the peer may send before waiting for more credit,
+	 * or {@code 0} to not flow control the peer.
+	 */
+	public int getReceiveWindow() {
+		return receiveWindow;
+	}
+
+	/**
+	 * When set, the handler grants the peer credit to send this many frames, and returns credit once the listeners
+	 * of each frame have completed. So the window also bounds the events waiting to be dispatched.
+	 * A peer out of credit holds its frames, filling its own write queue, and so its
+	 * {@link #getWriteHighWatermark() watermarks} apply. While the window is enabled, a full
+	 * {@link #getMaxPendingEvents() event queue} stalls reading rather than dropping events,
+	 * which in turn stops credit from being returned.
+	 *
+	 * @param receiveWindow
+	 * 		Number of frames the peer may send before waiting for more credit,
+	 * 		or {@code 0} to not flow control the peer.
+	 */
+	public void setReceiveWindow(int receiveWindow) {
+		if (receiveWindow < 0)
+			throw new IllegalArgumentException("Window must not be negative");
+		this.receiveWindow = receiveWindow;
+	}
+
+	/**
+	 * @return Maximum number of listener events waiting to be handled, or {@code 0} for no limit.
+	 */
+	public int getMaxPendingEvents() {
+		return maxPendingEvents;
+	}
+
+	/**
+	 * Only applies to {@link DispatchMode#POOL} dispatch without a {@link #getReactor() reactor}.
+	 * Must be set before the handler is created.
+	 *
+	 * @param maxPendingEvents
+	 * 		Maximum number of listener events waiting to be handled, or {@code 0} for no limit.
+	 */
+	public void setMaxPendingEvents(int maxPendingEvents) {
+		if (maxPendingEvents < 0)
+			throw new IllegalArgumentException("Limit must not be negative");
+		this.maxPendingEvents = maxPendingEvents;
+	}
+
+	/**
+	 * @return Maximum number of requests awaiting a response, or {@code 0} for no limit.
+	 */
+	public int getMaxPendingResponses() {
+		return maxPendingResponses;
+	}
+
+	/**
+	 * Once reached, new {@link ChannelHandler#addResponseListener(int, ResponseListener) response listeners}
+	 * are handled according to the {@link #getOverflowPolicy() overflow policy}, where {@link OverflowPolicy#COALESCE}
+	 * behaves as {@link OverflowPolicy#BLOCK}.
+	 * Must be set before the handler is created.
+	 *
+	 * @param maxPendingResponses
+	 * 		Maximum number of requests awaiting a response, or {@code 0} for no limit.
+	 */
+	public void setMaxPendingResponses(int maxPendingResponses) {
+		if (maxPendingResponses < 0)
+			throw new IllegalArgumentException("Limit must not be negative");
+		this.maxPendingResponses = maxPendingResponses;
+	}
+
+	/**
+	 * @return Maximum content size of a single frame, above which messages are sent in chunks,
+	 * or {@code 0} to never chunk messages.
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * When set, messages larger than the chunk size are encoded into chunk sized buffers, and sent as a series
+	 * of chunk frames. Chunks of different messages are interleaved with each other and with smaller messages,
+	 * so a large transfer does not hold back everything queued behind it. Neither side needs a buffer the size
+	 * of the whole message.
+	 * <br>
+	 * Chunked messages are always understood when received, this only controls sending.
+	 *
+	 * @param chunkSize
+	 * 		Maximum content size of a single frame, above which messages are sent in chunks,
+	 * 		or {@code 0} to never chunk messages.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize != 0 && chunkSize < MIN_CHUNK_SIZE)
+			throw new IllegalArgumentException("Chunk size must be 0 or at least " + MIN_CHUNK_SIZE);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @return Largest frame content accepted from the peer, or {@code 0} for no limit.
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * The limit is sent to the peer in the handshake, and the peer sends larger messages in chunks.
+	 * Larger frames are then treated as a protocol error, and close the channel.
+	 * This bounds the buffer a single frame can make the receiver allocate.
+	 *
+	 * @param maxFrameSize
+	 * 		Largest frame content accepted from the peer, or {@code 0} for no limit.
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize != 0 && maxFrameSize < MIN_MAX_FRAME_SIZE)
+			throw new IllegalArgumentException("Max frame size must be 0 or at least " + MIN_MAX_FRAME_SIZE);
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * @return Largest message accepted from the peer in chunks, or {@code 0} for no limit.
+	 */
+	public int getMaxStreamBytes() {
+		return maxStreamBytes;
+	}
+
+	/**
+	 * @return Largest sum of chunks held for all messages being received from the peer, or {@code 0} for no limit.
+	 */
+	public int getMaxTotalStreamBytes() {
+		return maxTotalStreamBytes;
+	}
+
+	/**
+	 * Chunks of a message are held until its last chunk arrives, and the message is then decoded across them.
+	 * A message, or all messages in progress, growing past these limits is treated as a protocol error,
+	 * and closes the channel. This bounds the memory a peer can make the receiver hold for chunked messages,
+	 * as the {@link #getMaxFrameSize() max frame size} does for whole frames.
+	 *
+	 * @param stream
+	 * 		Largest message accepted from the peer in chunks, or {@code 0} for no limit.
+	 * @param total
+	 * 		Largest sum of chunks held for all messages being received from the peer, or {@code 0} for no limit.
+	 */
+	public void setMaxStreamBytes(int stream, int total) {
+		if (stream < 0 || total < 0 || (stream > 0 && total > 0 && total < stream))
+			throw new IllegalArgumentException("Invalid stream limits: stream=" + stream + ", total=" + total);
+		this.maxStreamBytes = stream;
+		this.maxTotalStreamBytes = total;
+	}
+
+	/**
+	 * @return {@code true} to use compact frame headers when the peer supports them.
+	 */
+	public boolean isCompactHeaders() {
+		return compactHeaders;
+	}
+
+	/**
+	 * Compact headers use variable length fields in place of the fixed ten byte frame header, so small messages
+	 * such as pings take four bytes instead of ten. Used only when both sides enable it, as negotiated in the
+	 * handshake. Enabled by default, disabling can make captured traffic easier to read.
+	 *
+	 * @param compactHeaders
+	 *        {@code true} to use compact frame headers when the peer supports them.
+	 */
+	public void setCompactHeaders(boolean compactHeaders) {
+		this.compactHeaders = compactHeaders;
+	}
+
+	/**
+	 * @return Size of the buffer each channel reads ahead into.
+	 */
+	public int getReadBufferSize() {
+		return readBufferSize;
+	}
+
+	/**
+	 * Each channel read takes as much as fits in the buffer, and all frames in it are then handled before reading
+	 * again. Frames which fit are decoded straight out of the buffer without copying, larger frames are read into
+	 * a buffer of their own. Larger buffers mean fewer reads when many small messages arrive at once,
+	 * at the cost of memory per channel.
+	 *
+	 * @param readBufferSize
+	 * 		Size of the buffer each channel reads ahead into.
+	 *
+	 * @see #DEFAULT_READ_BUFFER_SIZE
+	 */
+	public void setReadBufferSize(int readBufferSize) {
+		if (readBufferSize < MIN_READ_BUFFER_SIZE)
+			throw new IllegalArgumentException("Read buffer size must be at least " + MIN_READ_BUFFER_SIZE);
+		this.readBufferSize = readBufferSize;
+	}
+
+	/**
+	 * @return Time in milliseconds after which a {@link ChannelHandler#addResponseListener(int, ResponseListener)
+	 * response listener} with no response is removed, or {@code 0} to wait forever.
+	 */
+	public long getResponseExpiryMillis() {
+		return responseExpiryMillis;
+	}
+
+	/**
+	 * Expired listeners are {@link ResponseListener#onFailure(int, Throwable) notified}, and removed in bulk
+	 * as other requests and responses pass through the channel.
+	 *
+	 * @param responseExpiryMillis
+	 * 		Time in milliseconds after which a {@link ChannelHandler#addResponseListener(int, ResponseListener)
+	 * 		response listener} with no response is removed, or {@code 0} to wait forever.
+	 */
+	public void setResponseExpiryMillis(long responseExpiryMillis) {
+		if (responseExpiryMillis < 0)
+			throw new IllegalArgumentException("Expiry must not be negative");
+		this.responseExpiryMillis = responseExpiryMillis;
+	}
+
+	/**
+	 * @return Time in milliseconds to wait for the peer's hello before applying the
+	 * {@link #getHandshakeTimeoutPolicy() handshake timeout policy}, or {@code 0} to wait forever.
+	 */
+	public long getHandshakeTimeoutMillis() {
+		return handshakeTimeoutMillis;
+	}
+
+	/**
+	 * Until the peer's hello arrives, every write but our own hello is held back.
+	 *
+	 * @param handshakeTimeoutMillis
+	 * 		Time in milliseconds to wait for the peer's hello before applying the
+	 * 		{@link #getHandshakeTimeoutPolicy() handshake timeout policy}, or {@code 0} to wait forever.
+	 */
+	public void setHandshakeTimeoutMillis(long handshakeTimeoutMillis) {
+		if (handshakeTimeoutMillis < 0)
+			throw new IllegalArgumentException("Timeout must not be negative");
+		this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+	}
+
+	/**
+	 * @return What to do when the peer's hello does not arrive within the {@link #getHandshakeTimeoutMillis() timeout}.
+	 */
+	public HandshakeTimeoutPolicy getHandshakeTimeoutPolicy() {
+		return handshakeTimeoutPolicy;
+	}
+
+	/**
+	 * @param handshakeTimeoutPolicy
+	 * 		What to do when the peer's hello does not arrive within the {@link #getHandshakeTimeoutMillis() timeout}.
+	 */
+	public void setHandshakeTimeoutPolicy(HandshakeTimeoutPolicy handshakeTimeoutPolicy) {
+		this.handshakeTimeoutPolicy = handshakeTimeoutPolicy;
+	}
+
+	/**
+	 * @return Minimum content size of a frame to compress, or {@code 0} to never compress frames.
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * When set, frame content at least this large is compressed with {@link Deflater}, if it shrinks.
+	 * Compression is only used once the peer has said it can decompress frames, so it is safe to enable against
+	 * peers without support. Worthwhile when bandwidth is limited, such as through a tunnel to a remote host.
+	 * <br>
+	 * Compressed frames are always understood when received, this only controls sending.
+	 *
+	 * @param compressionThreshold
+	 * 		Minimum content size of a frame to compress, or {@code 0} to never compress frames.
+	 *
+	 * @see #DEFAULT_COMPRESSION_THRESHOLD
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		if (compressionThreshold < 0)
+			throw new IllegalArgumentException("Threshold must not be negative");
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * @return {@link Deflater} compression level for compressed frames.
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * @param compressionLevel
+	 *        {@link Deflater} compression level for compressed frames, from {@code 0} to {@code 9},
+	 * 		or {@link Deflater#DEFAULT_COMPRESSION}. Defaults to {@link Deflater#BEST_SPEED}.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel != Deflater.DEFAULT_COMPRESSION &&
+				(compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION))
+			throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+		this.compressionLevel = compressionLevel;
+	}
+}
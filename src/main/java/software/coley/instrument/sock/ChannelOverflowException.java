@@ -0,0 +1,19 @@
+package software.coley.instrument.sock;
+
+/**
+ * Thrown when a message cannot be accepted because the peer is not keeping up,
+ * and the channel is configured to {@link OverflowPolicy#FAIL fail fast}.
+ *
+ * @author Matt Coley
+ */
+public class ChannelOverflowException extends IllegalStateException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param message
+	 * 		Detail message.
+	 */
+	public ChannelOverflowException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,249 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.util.Logger;
+import software.coley.instrument.util.NamedThreadFactory;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared {@link Selector} based IO for many {@link ChannelHandler} instances.
+ * <br>
+ * A fixed number of IO threads multiplex reads and writes of all registered channels, and a fixed number
+ * of worker threads handle listener logic. The thread count stays the same regardless of how many
+ * channels are registered.
+ * <ul>
+ *     <li>{@link ChannelHandler#threadNameReactor} - Threads dedicated to channel reads and writes</li>
+ *     <li>{@link ChannelHandler#threadNameEventHandle} - Threads dedicated to handling listener logic</li>
+ * </ul>
+ * The reactor is not owned by the handlers using it, and must be {@link #close() closed} by its creator.
+ * <br>
+ * IO and worker threads must never block on one channel, as every channel sharing them would stall with it.
+ * Writes made on them, such as replies from listeners, never wait for queue space or the peer.
+ *
+ * @author Matt Coley
+ */
+public class ChannelReactor {
+	public static final int DEFAULT_IO_THREADS = 1;
+	public static final int DEFAULT_WORKER_THREADS = 4;
+	private static final ThreadLocal<ChannelReactor> CURRENT_REACTOR = new ThreadLocal<>();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final ExecutorService workers;
+	private final Loop[] loops;
+
+	/**
+	 * New reactor with {@link #DEFAULT_IO_THREADS} and {@link #DEFAULT_WORKER_THREADS}.
+	 *
+	 * @throws IOException
+	 * 		When a {@link Selector} cannot be opened.
+	 */
+	public ChannelReactor() throws IOException {
+		this(DEFAULT_IO_THREADS, DEFAULT_WORKER_THREADS);
+	}
+
+	/**
+	 * @param ioThreads
+	 * 		Number of threads to multiplex channel IO on.
+	 * @param workerThreads
+	 * 		Number of threads to run listener logic on.
+	 *
+	 * @throws IOException
+	 * 		When a {@link Selector} cannot be opened.
+	 */
+	public ChannelReactor(int ioThreads, int workerThreads) throws IOException {
+		if (ioThreads < 1 || workerThreads < 1)
+			throw new IllegalArgumentException("Reactor requires at least one IO and worker thread");
+		ThreadFactory workerFactory = new NamedThreadFactory(ChannelHandler.threadNameEventHandle);
+		workers = Executors.newFixedThreadPool(workerThreads, task -> workerFactory.newThread(() -> {
+			CURRENT_REACTOR.set(this);
+			task.run();
+		}));
+		loops = new Loop[ioThreads];
+		for (int i = 0; i < ioThreads; i++) {
+			Loop loop = new Loop(Selector.open());
+			loops[i] = loop;
+			new NamedThreadFactory(ChannelHandler.threadNameReactor).newThread(loop).start();
+		}
+	}
+
+	/**
+	 * @return {@code true} when the reactor is no longer active.
+	 */
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Stops the IO and worker threads. Channels still registered are not closed.
+	 */
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			for (Loop loop : loops)
+				loop.selector.wakeup();
+			workers.shutdownNow();
+			Logger.debug("Reactor closed");
+		}
+	}
+
+	/**
+	 * @return {@code true} when the current thread is an IO or worker thread of any reactor.
+	 */
+	static boolean isReactorThread() {
+		return CURRENT_REACTOR.get() != null;
+	}
+
+	/**
+	 * @return Shared executor for listener logic.
+	 */
+	ExecutorService getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Assigns the channel to one of the IO threads.
+	 * The handler is {@link ChannelHandler#onRegistered(SelectionKey, Loop) notified} once the channel is registered.
+	 *
+	 * @param handler
+	 * 		Handler to receive readiness events.
+	 * @param channel
+	 * 		Non-blocking channel of the handler.
+	 */
+	void register(ChannelHandler handler, SelectableChannel channel) {
+		if (isClosed())
+			throw new IllegalStateException("Reactor is closed");
+		Loop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+		loop.execute(() -> {
+			try {
+				SelectionKey key = channel.register(loop.selector, SelectionKey.OP_READ, handler);
+				handler.onRegistered(key, loop);
+			} catch (IOException ex) {
+				Logger.error("Reactor failed to register channel: " + ex);
+				handler.shutdown();
+			}
+		});
+	}
+
+	/**
+	 * Single IO thread, multiplexing any number of channels with its own {@link Selector}.
+	 */
+	final class Loop implements Runnable {
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		// Accessed only by the IO thread
+		private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+		private final Selector selector;
+
+		private Loop(Selector selector) {
+			this.selector = selector;
+		}
+
+		/**
+		 * @param task
+		 * 		Task to run on the IO thread.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * @param task
+		 * 		Task to run on the IO thread.
+		 * @param delayMillis
+		 * 		Time in milliseconds to wait before running it.
+		 */
+		void schedule(Runnable task, long delayMillis) {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+			execute(() -> timers.add(new Timer(deadline, task)));
+		}
+
+		/**
+		 * Runs the {@link #schedule(Runnable, long) scheduled} tasks which are due.
+		 *
+		 * @return Time in milliseconds until the next task is due, or {@code 0} when none are scheduled.
+		 */
+		private long runTimers() {
+			Timer timer;
+			while ((timer = timers.peek()) != null) {
+				long remaining = timer.deadline - System.nanoTime();
+				if (remaining > 0)
+					return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+				timers.poll();
+				timer.task.run();
+			}
+			return 0;
+		}
+
+		@Override
+		public void run() {
+			CURRENT_REACTOR.set(ChannelReactor.this);
+			try {
+				while (!isClosed()) {
+					long timeout = runTimers();
+					if (timeout > 0)
+						selector.select(timeout);
+					else
+						selector.select();
+					Runnable task;
+					while ((task = tasks.poll()) != null)
+						task.run();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						ChannelHandler handler = (ChannelHandler) key.attachment();
+						try {
+							if (key.isReadable())
+								handler.onReadable();
+							if (key.isValid() && key.isWritable())
+								handler.onWritable();
+						} catch (CancelledKeyException ignored) {
+							// Handler was shut down from another thread
+						}
+					}
+				}
+			} catch (ClosedSelectorException ignored) {
+				// Allowed
+			} catch (Throwable t) {
+				t.printStackTrace();
+			} finally {
+				try {
+					selector.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Task {@link Loop#schedule(Runnable, long) scheduled} on an IO thread.
+	 */
+	private static final class Timer implements Comparable<Timer> {
+		private final long deadline;
+		private final Runnable task;
+
+		private Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			return Long.compare(deadline - other.deadline, 0);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package software.coley.instrument.sock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a {@link ChannelHandler}'s channel activity.
+ *
+ * @author Matt Coley
+ */
+public class ChannelStats {
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong messagesWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong messagesRead = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong broadcastLag = new AtomicLong();
+	private final AtomicLong broadcastsDropped = new AtomicLong();
+	private final AtomicLong broadcastsSummarized = new AtomicLong();
+	private volatile int lastFlushMessages;
+	private volatile int lastFlushBytes;
+
+	/**
+	 * @param messages
+	 * 		Number of messages written in a single flush.
+	 * @param bytes
+	 * 		Number of bytes written in a single flush.
+	 */
+	void recordFlush(int messages, int bytes) {
+		flushes.incrementAndGet();
+		messagesWritten.addAndGet(messages);
+		bytesWritten.addAndGet(bytes);
+		lastFlushMessages = messages;
+		lastFlushBytes = bytes;
+	}
+
+	/**
+	 * @param bytes
+	 * 		Number of bytes taken from the channel in a single read.
+	 */
+	void recordRead(int bytes) {
+		reads.incrementAndGet();
+		bytesRead.addAndGet(bytes);
+	}
+
+	/**
+	 * Records a complete frame being read.
+	 */
+	void recordFrameRead() {
+		messagesRead.incrementAndGet();
+	}
+
+	/**
+	 * @param bytes
+	 * 		Encoded size of a broadcast queued for the peer, or a negative size once it is no longer queued.
+	 */
+	void recordBroadcastLag(int bytes) {
+		broadcastLag.addAndGet(bytes);
+	}
+
+	/**
+	 * Records a broadcast not sent to a {@link SlowConsumerPolicy#DROP slow consumer}.
+	 */
+	void recordBroadcastDropped() {
+		broadcastsDropped.incrementAndGet();
+	}
+
+	/**
+	 * Records a broadcast replaced by its summary for a {@link SlowConsumerPolicy#SUMMARIZE slow consumer}.
+	 */
+	void recordBroadcastSummarized() {
+		broadcastsSummarized.incrementAndGet();
+	}
+
+	/**
+	 * @return Number of times queued messages were flushed to the channel.
+	 */
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	/**
+	 * @return Total number of messages written.
+	 */
+	public long getMessagesWritten() {
+		return messagesWritten.get();
+	}
+
+	/**
+	 * @return Total number of bytes written, including frame headers.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * @return Number of channel reads which returned data.
+	 */
+	public long getReadCount() {
+		return reads.get();
+	}
+
+	/**
+	 * @return Total number of frames read. Each chunk of a chunked message is counted.
+	 */
+	public long getMessagesRead() {
+		return messagesRead.get();
+	}
+
+	/**
+	 * @return Total number of bytes read, including frame headers.
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * @return Average number of frames read per channel read.
+	 */
+	public double getMessagesPerRead() {
+		long count = getReadCount();
+		return count == 0 ? 0 : getMessagesRead() / (double) count;
+	}
+
+	/**
+	 * @return Average number of messages written per flush.
+	 */
+	public double getMessagesPerFlush() {
+		long count = getFlushCount();
+		return count == 0 ? 0 : getMessagesWritten() / (double) count;
+	}
+
+	/**
+	 * @return Average number of bytes written per flush.
+	 */
+	public double getBytesPerFlush() {
+		long count = getFlushCount();
+		return count == 0 ? 0 : getBytesWritten() / (double) count;
+	}
+
+	/**
+	 * @return Number of messages written in the most recent flush.
+	 */
+	public int getLastFlushMessages() {
+		return lastFlushMessages;
+	}
+
+	/**
+	 * @return Number of bytes written in the most recent flush.
+	 */
+	public int getLastFlushBytes() {
+		return lastFlushBytes;
+	}
+
+	/**
+	 * @return Number of bytes of encoded broadcasts queued for the peer, but not yet written.
+	 * How far behind the peer is in taking broadcasts.
+	 *
+	 * @see ChannelOptions#getMaxBroadcastLag()
+	 */
+	public long getBroadcastLag() {
+		return broadcastLag.get();
+	}
+
+	/**
+	 * @return Total number of broadcasts not sent, as the peer was a {@link SlowConsumerPolicy#DROP slow consumer}.
+	 */
+	public long getBroadcastsDropped() {
+		return broadcastsDropped.get();
+	}
+
+	/**
+	 * @return Total number of broadcasts replaced by their summary, as the peer was a
+	 * {@link SlowConsumerPolicy#SUMMARIZE slow consumer}.
+	 */
+	public long getBroadcastsSummarized() {
+		return broadcastsSummarized.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ChannelStats{" +
+				"flushes=" + getFlushCount() +
+				", messages=" + getMessagesWritten() +
+				", bytes=" + getBytesWritten() +
+				", messagesPerFlush=" + String.format("%.2f", getMessagesPerFlush()) +
+				", bytesPerFlush=" + String.format("%.1f", getBytesPerFlush()) +
+				", reads=" + getReadCount() +
+				", messagesRead=" + getMessagesRead() +
+				", bytesRead=" + getBytesRead() +
+				", broadcastLag=" + getBroadcastLag() +
+				", broadcastsDropped=" + getBroadcastsDropped() +
+				", broadcastsSummarized=" + getBroadcastsSummarized() +
+				'}';
+	}
+}
@@ -0,0 +1,228 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.ApiConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static software.coley.instrument.message.MessageConstants.*;
+
+/**
+ * Compact frame header encoding of a {@link ChannelHandler}, used in place of the fixed ten byte header once
+ * both sides have said they support it.
+ * <br>
+ * Layout:
+ * <ul>
+ *     <li>1-byte: Header flags. The low four bits are the frame flags of the message type.</li>
+ *     <li>varint: Frame ID, as the zig-zag encoded difference from the previous frame ID.
+ *     Absent for control and broadcast frames, which have their own header flags.</li>
+ *     <li>1-byte: Index of the message type in {@link #COMMON_TYPES}.
+ *     Other types are instead 2-bytes, flagged with {@link #WIDE_TYPE}.</li>
+ *     <li>varint: Content length.</li>
+ * </ul>
+ * A ping is sent with a four byte header, rather than ten.
+ * <br>
+ * Each direction has its own previous frame ID. As most frames are replies and requests with increasing IDs,
+ * the difference is usually a single byte.
+ *
+ * @author Matt Coley
+ */
+final class CompactHeaders {
+	/**
+	 * Largest possible encoded header.
+	 */
+	static final int MAX_SIZE = 14;
+	// Frame flags are the four bits above the message type
+	private static final int FRAME_FLAGS_SHIFT = 11;
+	private static final int FRAME_FLAGS_MASK = 0x0F;
+	private static final int CONTROL_FRAME = 0x10;
+	private static final int BROADCAST_FRAME = 0x20;
+	private static final int WIDE_TYPE = 0x40;
+	/**
+	 * Message types sent as a single byte. Fixed for a {@link ApiConstants#PROTOCOL_VERSION protocol version}.
+	 */
+	private static final int[] COMMON_TYPES = {
+			ID_CTL_CREDIT, ID_CTL_CANCEL, ID_CTL_HELLO,
+			ID_REQ_PING, ID_REP_PONG,
+			ID_REQ_PROPERTIES, ID_REP_PROPERTIES,
+			ID_REQ_SET_PROPERTY, ID_REP_SET_PROPERTY,
+			ID_REQ_THREADS, ID_REP_THREADS,
+			ID_REQ_CLASSLOADERS, ID_REP_CLASSLOADERS,
+			ID_REQ_CLASSLOADER_CLASSES, ID_REP_CLASSLOADER_CLASSES,
+			ID_REQ_GET_CLASS, ID_REP_GET_CLASS,
+			ID_REQ_REDEFINE, ID_REP_REDEFINE,
+			ID_REQ_FIELD_GET, ID_REP_FIELD_GET,
+			ID_REQ_FIELD_SET, ID_REP_FIELD_SET,
+			ID_BROADCAST_LOADER, ID_BROADCAST_CLASS,
+			ID_REQ_BATCH, ID_REP_BATCH, ID_BROADCAST_DROPPED, ID_BROADCAST_SESSION
+	};
+	private static final int[] TYPE_CODES = new int[ChannelHandler.TYPE_MASK + 1];
+	// Accessed only by the thread currently writing to the channel
+	private final byte[] encoded = new byte[MAX_SIZE];
+	private int lastSentFrameId;
+	// Accessed only by the thread currently reading from the channel
+	private int lastReadFrameId;
+	private int frameId;
+	private int messageType;
+	private int messageLength;
+
+	static {
+		Arrays.fill(TYPE_CODES, -1);
+		for (int i = 0; i < COMMON_TYPES.length; i++)
+			TYPE_CODES[COMMON_TYPES[i]] = i;
+	}
+
+	/**
+	 * @param frameId
+	 * 		Frame ID of the message.
+	 * @param messageType
+	 * 		Message type, including frame flags.
+	 * @param messageLength
+	 * 		Content length.
+	 *
+	 * @return Size of the header, now in {@link #getEncoded()}.
+	 */
+	int encode(int frameId, int messageType, int messageLength) {
+		byte[] out = encoded;
+		int flags = (messageType >>> FRAME_FLAGS_SHIFT) & FRAME_FLAGS_MASK;
+		int size = 1;
+		if (frameId == ApiConstants.CONTROL_MESSAGE_ID) {
+			flags |= CONTROL_FRAME;
+		} else if (frameId == ApiConstants.BROADCAST_MESSAGE_ID) {
+			flags |= BROADCAST_FRAME;
+		} else {
+			int delta = frameId - lastSentFrameId;
+			size = writeVarint(out, size, (delta << 1) ^ (delta >> 31));
+			lastSentFrameId = frameId;
+		}
+		int type = messageType & ChannelHandler.TYPE_MASK;
+		int code = TYPE_CODES[type];
+		if (code >= 0) {
+			out[size++] = (byte) code;
+		} else {
+			flags |= WIDE_TYPE;
+			out[size++] = (byte) (type >>> 8);
+			out[size++] = (byte) type;
+		}
+		size = writeVarint(out, size, messageLength);
+		out[0] = (byte) flags;
+		return size;
+	}
+
+	/**
+	 * @return Header last {@link #encode(int, int, int) encoded}.
+	 */
+	byte[] getEncoded() {
+		return encoded;
+	}
+
+	/**
+	 * Parses a header from the buffer, without moving its position. On success the header is available from
+	 * {@link #getFrameId()}, {@link #getMessageType()} and {@link #getMessageLength()}.
+	 *
+	 * @param buffer
+	 * 		Buffer holding received bytes.
+	 * @param start
+	 * 		Offset of the header in the buffer.
+	 * @param available
+	 * 		Number of received bytes from the offset.
+	 *
+	 * @return Size of the header, or {@code 0} when more bytes are needed.
+	 *
+	 * @throws IOException
+	 * 		When the header is invalid.
+	 */
+	int decode(ByteBuffer buffer, int start, int available) throws IOException {
+		if (available == 0)
+			return 0;
+		int limit = start + available;
+		int flags = buffer.get(start) & 0xFF;
+		int offset = start + 1;
+		int frameId;
+		if ((flags & CONTROL_FRAME) != 0) {
+			frameId = ApiConstants.CONTROL_MESSAGE_ID;
+		} else if ((flags & BROADCAST_FRAME) != 0) {
+			frameId = ApiConstants.BROADCAST_MESSAGE_ID;
+		} else {
+			long varint = readVarint(buffer, offset, limit);
+			if (varint < 0)
+				return 0;
+			int delta = (int) varint;
+			frameId = lastReadFrameId + ((delta >>> 1) ^ -(delta & 1));
+			offset += (int) (varint >>> 32);
+		}
+		int type;
+		if ((flags & WIDE_TYPE) != 0) {
+			if (limit < offset + 2)
+				return 0;
+			type = buffer.getShort(offset) & ChannelHandler.TYPE_MASK;
+			offset += 2;
+		} else {
+			if (limit < offset + 1)
+				return 0;
+			int code = buffer.get(offset) & 0xFF;
+			if (code >= COMMON_TYPES.length)
+				throw new IOException("Invalid compact message type: " + code);
+			type = COMMON_TYPES[code];
+			offset++;
+		}
+		long varint = readVarint(buffer, offset, limit);
+		if (varint < 0)
+			return 0;
+		offset += (int) (varint >>> 32);
+		if (frameId != ApiConstants.CONTROL_MESSAGE_ID && frameId != ApiConstants.BROADCAST_MESSAGE_ID)
+			lastReadFrameId = frameId;
+		this.frameId = frameId;
+		messageType = type | ((flags & FRAME_FLAGS_MASK) << FRAME_FLAGS_SHIFT);
+		messageLength = (int) varint;
+		return offset - start;
+	}
+
+	/**
+	 * @return Frame ID of the last {@link #decode(ByteBuffer, int, int) decoded} header.
+	 */
+	int getFrameId() {
+		return frameId;
+	}
+
+	/**
+	 * @return Message type, including frame flags, of the last {@link #decode(ByteBuffer, int, int) decoded} header.
+	 */
+	int getMessageType() {
+		return messageType;
+	}
+
+	/**
+	 * @return Content length of the last {@link #decode(ByteBuffer, int, int) decoded} header.
+	 */
+	int getMessageLength() {
+		return messageLength;
+	}
+
+	private static int writeVarint(byte[] out, int offset, int value) {
+		while ((value & ~0x7F) != 0) {
+			out[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * @return Value in the lower 32 bits and its encoded size in the upper bits,
+	 * or {@code -1} when the buffer ends first.
+	 */
+	private static long readVarint(ByteBuffer buffer, int offset, int limit) throws IOException {
+		int value = 0;
+		for (int i = 0; i < 5; i++) {
+			if (offset + i >= limit)
+				return -1;
+			int b = buffer.get(offset + i);
+			value |= (b & 0x7F) << (7 * i);
+			if ((b & 0x80) == 0)
+				return ((long) (i + 1) << 32) | (value & 0xFFFFFFFFL);
+		}
+		throw new IOException("Invalid compact header varint");
+	}
+}
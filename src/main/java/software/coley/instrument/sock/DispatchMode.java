@@ -0,0 +1,26 @@
+package software.coley.instrument.sock;
+
+/**
+ * How a {@link ChannelHandler} delivers read and write events to its listeners.
+ *
+ * @author Matt Coley
+ */
+public enum DispatchMode {
+	/**
+	 * Listeners run directly on the thread which read or wrote the message.
+	 * No thread hand-off occurs, giving the lowest latency, but listeners must be quick and must not block.
+	 * In particular, a listener must not wait on another reply from the same channel, as that reply
+	 * can only be read once the listener returns.
+	 */
+	INLINE,
+	/**
+	 * Listeners run one at a time on a single thread per channel, in the order events occurred.
+	 * One thread hand-off per event.
+	 */
+	ORDERED,
+	/**
+	 * Listeners run concurrently on a thread pool. Events may be handled out of order.
+	 * This is the default.
+	 */
+	POOL
+}
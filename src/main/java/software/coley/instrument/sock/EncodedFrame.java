@@ -0,0 +1,205 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.io.ByteBufferAllocator;
+import software.coley.instrument.io.ByteBufferCompat;
+import software.coley.instrument.io.ByteBufferDataOutput;
+import software.coley.instrument.message.AbstractMessage;
+import software.coley.instrument.message.MessageFactory;
+import software.coley.instrument.message.broadcast.AbstractBroadcastMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Message content encoded once, to be {@link ChannelHandler#write(EncodedFrame, int) written} to many channels.
+ * Each channel sends read-only views of the same buffer, rather than encoding the message again.
+ * <br>
+ * The buffer is reference counted. It is created with one reference, owned by the creator, and each channel it is
+ * written to holds another until its write completes. Once all are {@link #release() released} the buffer is
+ * returned to its allocator.
+ * <br>
+ * {@link AbstractBroadcastMessage#getSequence() Sequenced} broadcasts are encoded prefixed by their sequence,
+ * which is left out when sent to a channel whose peer does not support it.
+ *
+ * @param <T>
+ * 		Type of message.
+ *
+ * @author Matt Coley
+ */
+public final class EncodedFrame<T extends AbstractMessage> {
+	private final AtomicInteger references = new AtomicInteger(1);
+	private final T message;
+	private final int decoderKey;
+	private final ByteBufferAllocator allocator;
+	private final ByteBuffer buffer;
+	private final ByteBuffer content;
+	private final ByteBuffer messageContent;
+	private final boolean sequenced;
+	// Content compressed by the first channel that wanted it, shared by the others
+	private boolean compressionTried;
+	private ByteBuffer compressedBuffer;
+	private ByteBuffer compressed;
+
+	private EncodedFrame(T message, int decoderKey, ByteBufferAllocator allocator, ByteBuffer buffer, boolean sequenced) {
+		this.message = message;
+		this.decoderKey = decoderKey;
+		this.allocator = allocator;
+		this.buffer = buffer;
+		this.sequenced = sequenced;
+		content = buffer.asReadOnlyBuffer();
+		if (sequenced) {
+			ByteBuffer duplicate = content.duplicate();
+			ByteBufferCompat.compatPosition(duplicate, Long.BYTES);
+			messageContent = duplicate.slice();
+		} else {
+			messageContent = content;
+		}
+	}
+
+	/**
+	 * @param message
+	 * 		Message to encode.
+	 * @param factory
+	 * 		Message factory configured with the message type.
+	 * @param allocator
+	 * 		Allocator to take the buffer from, and release it to.
+	 * @param <T>
+	 * 		Type of message.
+	 *
+	 * @return Encoded message, with a single reference owned by the caller.
+	 *
+	 * @throws IOException
+	 * 		When the message cannot be encoded.
+	 */
+	public static <T extends AbstractMessage> EncodedFrame<T> encode(T message, MessageFactory factory,
+																	 ByteBufferAllocator allocator) throws IOException {
+		MessageFactory.MessageInfo info = factory.getInfo(message);
+		long sequence = message instanceof AbstractBroadcastMessage ?
+				((AbstractBroadcastMessage) message).getSequence() : 0;
+		ByteBufferDataOutput output = new ByteBufferDataOutput(allocator);
+		try {
+			if (sequence > 0)
+				output.writeLong(sequence);
+			info.<T>getCodec().encode(output, message);
+		} catch (IOException | RuntimeException ex) {
+			output.release();
+			throw ex;
+		}
+		return new EncodedFrame<>(message, info.getId(), allocator, output.consume(), sequence > 0);
+	}
+
+	/**
+	 * @return Message that was encoded.
+	 */
+	public T getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return Message type.
+	 */
+	public int getDecoderKey() {
+		return decoderKey;
+	}
+
+	/**
+	 * @return {@code true} when the content is prefixed by the sequence of the broadcast.
+	 */
+	public boolean isSequenced() {
+		return sequenced;
+	}
+
+	/**
+	 * @return Length of the encoded content, including any sequence prefix.
+	 */
+	public int getLength() {
+		return content.remaining();
+	}
+
+	/**
+	 * @return Number of references still held.
+	 */
+	public int getReferenceCount() {
+		return references.get();
+	}
+
+	/**
+	 * Adds a reference, which must later be {@link #release() released}.
+	 *
+	 * @throws IllegalStateException
+	 * 		When all references have already been released.
+	 */
+	public void retain() {
+		int count;
+		do {
+			count = references.get();
+			if (count <= 0)
+				throw new IllegalStateException("Frame already released");
+		} while (!references.compareAndSet(count, count + 1));
+	}
+
+	/**
+	 * Drops a reference. Once none remain the buffer is returned to its allocator.
+	 *
+	 * @throws IllegalStateException
+	 * 		When all references have already been released.
+	 */
+	public void release() {
+		int count = references.decrementAndGet();
+		if (count < 0) {
+			references.incrementAndGet();
+			throw new IllegalStateException("Frame already released");
+		}
+		if (count == 0) {
+			allocator.release(buffer);
+			synchronized (this) {
+				if (compressedBuffer != null)
+					allocator.release(compressedBuffer);
+				compressedBuffer = null;
+				compressed = null;
+			}
+		}
+	}
+
+	/**
+	 * @return Read-only view of the encoded content, from position {@code 0}.
+	 */
+	ByteBuffer view() {
+		return content.duplicate();
+	}
+
+	/**
+	 * @return Read-only view of the encoded content without any sequence prefix, from position {@code 0}.
+	 */
+	ByteBuffer viewMessage() {
+		return messageContent.duplicate();
+	}
+
+	/**
+	 * Compresses the content, unless already done for another channel.
+	 *
+	 * @param compression
+	 * 		Compression state of the calling channel, used when the content has not yet been compressed.
+	 *
+	 * @return Read-only view of the compressed content, from position {@code 0},
+	 * or {@code null} when compressing does not make it smaller.
+	 */
+	synchronized ByteBuffer viewCompressed(FrameCompression compression) {
+		if (!compressionTried) {
+			compressionTried = true;
+			int length = content.remaining();
+			ByteBuffer target = allocator.allocate(length);
+			target.put(view());
+			if (compression.compress(target, 0)) {
+				ByteBufferCompat.compatLimit(target, target.position());
+				ByteBufferCompat.compatPosition(target, 0);
+				compressedBuffer = target;
+				compressed = target.asReadOnlyBuffer();
+			} else {
+				allocator.release(target);
+			}
+		}
+		return compressed == null ? null : compressed.duplicate();
+	}
+}
@@ -0,0 +1,269 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.ApiConstants;
+import software.coley.instrument.message.broadcast.AbstractBroadcastMessage;
+import software.coley.instrument.util.Logger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Flow control state of a {@link ChannelHandler}.
+ * <ul>
+ *     <li>Send credit: Once the peer grants credit, each sent frame consumes one, and frames are held while none remain.</li>
+ *     <li>Receive window: Credit granted to the peer, returned in batches once listeners are done with received frames.</li>
+ *     <li>Write watermarks: Bounds the number of unsent messages, applying the {@link OverflowPolicy} when exceeded.</li>
+ *     <li>Pending responses: Bounds the number of requests awaiting a response.</li>
+ * </ul>
+ * Control messages are exempt from all limits.
+ *
+ * @author Matt Coley
+ */
+final class FlowControl {
+	// Send credit
+	private final AtomicInteger sendCredits = new AtomicInteger();
+	private volatile boolean sendLimited;
+	// Receive window
+	private final int receiveWindow;
+	private final AtomicInteger consumedSinceGrant = new AtomicInteger();
+	// Write watermarks
+	private final Object writableLock = new Object();
+	private final AtomicInteger unsentWrites = new AtomicInteger();
+	private final Map<Object, WriteResult<?>> coalesced = new LinkedHashMap<>();
+	private final Predicate<WriteResult<?>> requeue;
+	private final OverflowPolicy policy;
+	private final int lowWatermark;
+	private final int highWatermark;
+	private volatile boolean writable = true;
+	private volatile boolean hasCoalesced;
+	private volatile boolean closed;
+	// Pending responses
+	private final Semaphore responsePermits;
+
+	/**
+	 * @param options
+	 * 		Handler configuration.
+	 * @param requeue
+	 * 		Action to re-submit {@link OverflowPolicy#COALESCE coalesced} writes to the write queue once writable.
+	 * 		Must not block, and returns {@code false} when the queue is full.
+	 */
+	FlowControl(ChannelOptions options, Predicate<WriteResult<?>> requeue) {
+		this.requeue = requeue;
+		receiveWindow = options.getReceiveWindow();
+		policy = options.getOverflowPolicy();
+		lowWatermark = options.getWriteLowWatermark();
+		highWatermark = options.getWriteHighWatermark();
+		int maxPendingResponses = options.getMaxPendingResponses();
+		responsePermits = maxPendingResponses > 0 ? new Semaphore(maxPendingResponses) : null;
+	}
+
+	/**
+	 * @return Initial credit to grant the peer, or {@code 0} when the peer is not flow controlled.
+	 */
+	int getReceiveWindow() {
+		return receiveWindow;
+	}
+
+	/**
+	 * Called once all listeners of a received frame have completed, from whichever thread completed last.
+	 * Until then the frame counts against the window, so it also bounds the events waiting to be dispatched.
+	 *
+	 * @return Credit to return to the peer now, or {@code 0} to wait for more frames.
+	 */
+	int onFrameConsumed() {
+		if (receiveWindow <= 0)
+			return 0;
+		// Return credit in batches of half the window, so the peer is not left waiting on a full round-trip
+		if (consumedSinceGrant.incrementAndGet() >= Math.max(1, receiveWindow / 2))
+			return consumedSinceGrant.getAndSet(0);
+		return 0;
+	}
+
+	/**
+	 * @param credits
+	 * 		Credit granted by the peer.
+	 */
+	void grantSendCredits(int credits) {
+		if (credits <= 0)
+			return;
+		int current;
+		do {
+			current = sendCredits.get();
+		} while (!sendCredits.compareAndSet(current, (int) Math.min(Integer.MAX_VALUE, (long) current + credits)));
+		sendLimited = true;
+	}
+
+	/**
+	 * @return Number of frames which may be sent now.
+	 */
+	int getSendCredits() {
+		return sendLimited ? Math.max(0, sendCredits.get()) : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @param frames
+	 * 		Number of frames sent.
+	 * @param limited
+	 * 		Whether sending was {@link #isSendLimited() limited} when the frames were counted.
+	 */
+	void consumeSendCredits(int frames, boolean limited) {
+		if (limited && frames > 0)
+			sendCredits.addAndGet(-frames);
+	}
+
+	/**
+	 * @return {@code true} when the peer has granted credit, and so limits what may be sent.
+	 */
+	boolean isSendLimited() {
+		return sendLimited;
+	}
+
+	/**
+	 * Called by producers before queuing a message.
+	 *
+	 * @param write
+	 * 		Message to be queued.
+	 * @param mayBlock
+	 * 		{@code false} when called on a thread that must not wait, as it is the one that sends queued messages.
+	 * 		Messages that would wait are instead accepted above the high watermark.
+	 *
+	 * @return {@code true} to queue the message. {@code false} when the message was held back to be coalesced.
+	 *
+	 * @throws ChannelOverflowException
+	 * 		When the channel is not writable and the policy is {@link OverflowPolicy#FAIL}.
+	 */
+	boolean acquireWrite(WriteResult<?> write, boolean mayBlock) {
+		if (highWatermark <= 0 || write.getFrameId() == ApiConstants.CONTROL_MESSAGE_ID)
+			return true;
+		if (!writable && !closed) {
+			if (policy == OverflowPolicy.FAIL)
+				throw new ChannelOverflowException("Peer is not keeping up, " + unsentWrites.get() + " messages unsent");
+			synchronized (writableLock) {
+				if (policy == OverflowPolicy.COALESCE && write.getValue() instanceof AbstractBroadcastMessage) {
+					if (!writable && !closed) {
+						Object key = ((AbstractBroadcastMessage) write.getValue()).getCoalesceKey();
+						WriteResult<?> replaced = coalesced.put(key, write);
+						if (replaced != null)
+							replaced.getFuture().cancel(false);
+						hasCoalesced = true;
+						return false;
+					}
+				} else if (mayBlock) {
+					try {
+						while (!writable && !closed)
+							writableLock.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("Interrupted while waiting for the peer to catch up", ex);
+					}
+				}
+			}
+		}
+		if (unsentWrites.incrementAndGet() >= highWatermark) {
+			writable = false;
+			// The writer may have drained the backlog before the flag was set, in which case it would not reset it
+			if (unsentWrites.get() <= lowWatermark)
+				setWritable();
+		}
+		return true;
+	}
+
+	/**
+	 * Called by the writing thread once messages have been sent.
+	 *
+	 * @param count
+	 * 		Number of non-control messages sent.
+	 */
+	void onWritten(int count) {
+		if (highWatermark <= 0)
+			return;
+		if (unsentWrites.addAndGet(-count) <= lowWatermark && !writable)
+			setWritable();
+		if (hasCoalesced && writable)
+			requeueCoalesced();
+	}
+
+	/**
+	 * Marks the channel writable, waking any blocked producers.
+	 */
+	private void setWritable() {
+		synchronized (writableLock) {
+			if (!writable) {
+				writable = true;
+				writableLock.notifyAll();
+			}
+		}
+		requeueCoalesced();
+	}
+
+	/**
+	 * Moves held back broadcasts to the write queue. Those which do not fit remain held until the next attempt.
+	 */
+	private void requeueCoalesced() {
+		synchronized (writableLock) {
+			Iterator<WriteResult<?>> it = coalesced.values().iterator();
+			while (it.hasNext() && writable) {
+				WriteResult<?> write = it.next();
+				if (!requeue.test(write))
+					break;
+				it.remove();
+				unsentWrites.incrementAndGet();
+			}
+			hasCoalesced = !coalesced.isEmpty();
+			if (hasCoalesced)
+				Logger.debug("Channel has " + coalesced.size() + " coalesced writes remaining");
+		}
+	}
+
+	/**
+	 * Called by producers before registering a response listener.
+	 *
+	 * @throws ChannelOverflowException
+	 * 		When no more responses may be pending and the policy is {@link OverflowPolicy#FAIL}.
+	 */
+	void acquireResponse() {
+		if (responsePermits == null || closed)
+			return;
+		if (policy == OverflowPolicy.FAIL) {
+			if (!responsePermits.tryAcquire())
+				throw new ChannelOverflowException("Too many requests awaiting a response");
+		} else {
+			try {
+				responsePermits.acquire();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for pending responses", ex);
+			}
+		}
+	}
+
+	/**
+	 * Called once a registered response listener is removed.
+	 */
+	void releaseResponse() {
+		if (responsePermits != null)
+			responsePermits.release();
+	}
+
+	/**
+	 * Releases all waiting producers, and disables further limits.
+	 */
+	void close() {
+		if (closed)
+			return;
+		closed = true;
+		synchronized (writableLock) {
+			for (WriteResult<?> write : coalesced.values())
+				write.getFuture().cancel(false);
+			coalesced.clear();
+			hasCoalesced = false;
+			writableLock.notifyAll();
+		}
+		if (responsePermits != null)
+			responsePermits.release(Integer.MAX_VALUE / 2);
+	}
+}
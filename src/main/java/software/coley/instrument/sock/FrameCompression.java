@@ -0,0 +1,188 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.io.ByteBufferAllocator;
+import software.coley.instrument.io.ByteBufferCompat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frame content compression state of a {@link ChannelHandler}.
+ * <br>
+ * Compressed content is the original content length, followed by the raw {@link Deflater} output.
+ * One {@link Deflater} and one {@link Inflater} are kept for the life of the channel and reset between frames,
+ * rather than allocating new native contexts each time. The inflater is only created once a compressed frame arrives.
+ *
+ * @author Matt Coley
+ */
+final class FrameCompression {
+	private static final int LENGTH_PREFIX_SIZE = 4;
+	// Accessed only by the thread currently writing to the channel
+	private final Deflater deflater;
+	private final int threshold;
+	private byte[] deflateInput = new byte[0];
+	private byte[] deflateOutput = new byte[0];
+	// Accessed only by the thread currently reading from the channel
+	private Inflater inflater;
+	private byte[] inflateInput = new byte[0];
+	private byte[] inflateOutput = new byte[0];
+	private volatile boolean peerSupported;
+
+	/**
+	 * @param options
+	 * 		Handler configuration.
+	 */
+	FrameCompression(ChannelOptions options) {
+		threshold = options.getCompressionThreshold();
+		deflater = threshold > 0 ? new Deflater(options.getCompressionLevel(), true) : null;
+	}
+
+	/**
+	 * Called once the peer has said it can decompress frames.
+	 */
+	void onPeerSupported() {
+		peerSupported = true;
+	}
+
+	/**
+	 * @return {@code true} when frames are compressed, as both we and the peer support it.
+	 */
+	boolean isEnabled() {
+		return peerSupported && deflater != null;
+	}
+
+	/**
+	 * @param length
+	 * 		Content length of a frame.
+	 *
+	 * @return {@code true} when the frame should be compressed.
+	 */
+	boolean shouldCompress(int length) {
+		return isEnabled() && length >= threshold;
+	}
+
+	/**
+	 * Compresses frame content in place, if doing so makes it smaller.
+	 *
+	 * @param buffer
+	 * 		Buffer holding the content from the given offset up to its position.
+	 * 		On success its position is moved back to the end of the compressed content.
+	 * @param contentStart
+	 * 		Offset of the content in the buffer.
+	 *
+	 * @return {@code true} when compressed, {@code false} when the content is left as it was.
+	 */
+	boolean compress(ByteBuffer buffer, int contentStart) {
+		int length = buffer.position() - contentStart;
+		// Compressed content must be smaller than the original, including its length prefix
+		int limit = length - LENGTH_PREFIX_SIZE - 1;
+		if (limit <= 0)
+			return false;
+		byte[] input;
+		int inputOffset;
+		if (buffer.hasArray()) {
+			input = buffer.array();
+			inputOffset = buffer.arrayOffset() + contentStart;
+		} else {
+			input = deflateInput = ensureCapacity(deflateInput, length);
+			inputOffset = 0;
+			ByteBuffer view = buffer.duplicate();
+			ByteBufferCompat.compatPosition(view, contentStart);
+			view.get(input, 0, length);
+		}
+		byte[] output = deflateOutput = ensureCapacity(deflateOutput, limit);
+		Deflater deflater = this.deflater;
+		deflater.reset();
+		deflater.setInput(input, inputOffset, length);
+		deflater.finish();
+		int compressed = 0;
+		while (!deflater.finished() && compressed < limit)
+			compressed += deflater.deflate(output, compressed, limit - compressed);
+		if (!deflater.finished())
+			return false;
+		ByteBufferCompat.compatPosition(buffer, contentStart);
+		buffer.putInt(length);
+		buffer.put(output, 0, compressed);
+		return true;
+	}
+
+	/**
+	 * @param content
+	 * 		Compressed frame content. Not released.
+	 * @param allocator
+	 * 		Allocator to take the buffer of the decompressed content from.
+	 *
+	 * @return Buffer holding the decompressed content.
+	 *
+	 * @throws IOException
+	 * 		When the content is not validly compressed.
+	 */
+	ByteBuffer decompress(ByteBuffer content, ByteBufferAllocator allocator) throws IOException {
+		int length = content.getInt();
+		int compressedLength = content.remaining();
+		if (length < 0)
+			throw new IOException("Invalid compressed frame length: " + length);
+		byte[] input;
+		int inputOffset;
+		if (content.hasArray()) {
+			input = content.array();
+			inputOffset = content.arrayOffset() + content.position();
+		} else {
+			input = inflateInput = ensureCapacity(inflateInput, compressedLength);
+			inputOffset = 0;
+			content.get(input, 0, compressedLength);
+		}
+		ByteBuffer result = allocator.allocate(length);
+		byte[] output;
+		int outputOffset;
+		if (result.hasArray()) {
+			output = result.array();
+			outputOffset = result.arrayOffset();
+		} else {
+			output = inflateOutput = ensureCapacity(inflateOutput, length);
+			outputOffset = 0;
+		}
+		Inflater inflater = this.inflater;
+		if (inflater == null)
+			inflater = this.inflater = new Inflater(true);
+		else
+			inflater.reset();
+		inflater.setInput(input, inputOffset, compressedLength);
+		try {
+			int inflated = 0;
+			while (inflated < length) {
+				int count = inflater.inflate(output, outputOffset + inflated, length - inflated);
+				if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				inflated += count;
+			}
+			if (inflated != length)
+				throw new IOException("Compressed frame ended after " + inflated + " of " + length + " bytes");
+		} catch (DataFormatException | IOException ex) {
+			allocator.release(result);
+			throw ex instanceof IOException ? (IOException) ex : new IOException("Invalid compressed frame", ex);
+		}
+		if (!result.hasArray())
+			result.put(output, 0, length);
+		ByteBufferCompat.compatPosition(result, 0);
+		ByteBufferCompat.compatLimit(result, length);
+		return result;
+	}
+
+	/**
+	 * Frees the native contexts. No compression or decompression can be done after.
+	 */
+	void close() {
+		if (deflater != null)
+			deflater.end();
+		if (inflater != null)
+			inflater.end();
+	}
+
+	private static byte[] ensureCapacity(byte[] array, int size) {
+		return array.length >= size ? array : new byte[Math.max(size, array.length * 2)];
+	}
+}
@@ -0,0 +1,269 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.io.ByteBufferAllocator;
+import software.coley.instrument.io.ByteBufferCompat;
+import software.coley.instrument.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Frame parsing of a {@link ChannelHandler}, over a single read-ahead buffer.
+ * <br>
+ * Each channel read fills as much of the buffer as is available, and frames are then parsed from it one after
+ * another, so many small frames can be taken from one read. The content of a frame that is wholly in the buffer
+ * is handed out as a slice of it, rather than copied. Content larger than the buffer is read straight into
+ * a buffer of its own.
+ * <br>
+ * Slices are only valid until the next {@link #read(ReadableByteChannel) read}. When decoding keeps a view of
+ * a slice, {@link #detach()} must be called so that the buffer is not reused under it.
+ * <br>
+ * Only used by the thread currently reading from the channel.
+ *
+ * @author Matt Coley
+ */
+final class FrameReader {
+	private static final int HEADER_SIZE = 10;
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+	private final ByteBufferAllocator allocator;
+	private final CompactHeaders compactHeaders;
+	private final ChannelStats stats;
+	private final int bufferSize;
+	private final int maxFrameSize;
+	// Unparsed bytes are between the position and limit
+	private ByteBuffer buffer;
+	private boolean compact;
+	private int frameId;
+	private int messageType;
+	private int messageLength;
+	// Content of the current frame, while it is still being read
+	private ByteBuffer content;
+	private ByteBuffer slice;
+
+	/**
+	 * @param allocator
+	 * 		Allocator to take the read-ahead buffer, and buffers of large content, from.
+	 * @param compactHeaders
+	 * 		Decoder of compact headers, once they are {@link #setCompactHeaders(boolean) enabled}.
+	 * @param stats
+	 * 		Counters to record reads in.
+	 * @param options
+	 * 		Handler configuration.
+	 */
+	FrameReader(ByteBufferAllocator allocator, CompactHeaders compactHeaders, ChannelStats stats,
+				ChannelOptions options) {
+		this.allocator = allocator;
+		this.compactHeaders = compactHeaders;
+		this.stats = stats;
+		this.bufferSize = options.getReadBufferSize();
+		this.maxFrameSize = options.getMaxFrameSize();
+	}
+
+	/**
+	 * @param compact
+	 *        {@code true} when the frames that follow have {@link CompactHeaders compact headers}.
+	 */
+	void setCompactHeaders(boolean compact) {
+		this.compact = compact;
+	}
+
+	/**
+	 * Reads until the next frame is complete. Blocking channels are read until it is,
+	 * non-blocking channels only until they have nothing more available.
+	 *
+	 * @param channel
+	 * 		Channel to read from.
+	 *
+	 * @return Content of the next frame, from position {@code 0}, or {@code null} when a non-blocking channel
+	 * has no more available. The header of the frame is available from {@link #getFrameId()} and
+	 * {@link #getMessageType()}.
+	 *
+	 * @throws IOException
+	 * 		When the channel cannot be read, has been closed, or a frame is invalid.
+	 */
+	ByteBuffer read(ReadableByteChannel channel) throws IOException {
+		if (buffer == null) {
+			buffer = allocator.allocate(bufferSize);
+			ByteBufferCompat.compatLimit(buffer, 0);
+		}
+		slice = null;
+		while (true) {
+			if (content == null) {
+				int headerSize = parseHeader();
+				if (headerSize == 0) {
+					if (!fill(channel))
+						return null;
+					continue;
+				}
+				ByteBufferCompat.compatPosition(buffer, buffer.position() + headerSize);
+				if (messageLength <= buffer.remaining() && canSlice(messageType)) {
+					// Handed out without copying
+					ByteBuffer slice = buffer.slice();
+					ByteBufferCompat.compatLimit(slice, messageLength);
+					ByteBufferCompat.compatPosition(buffer, buffer.position() + messageLength);
+					stats.recordFrameRead();
+					return this.slice = slice;
+				}
+				content = (messageLength > 0) ? allocator.allocate(messageLength) : EMPTY_BUFFER;
+				transfer(Math.min(buffer.remaining(), messageLength));
+			}
+			int remaining = messageLength - content.position();
+			if (remaining > 0) {
+				if (remaining < bufferSize) {
+					// Read ahead, which may also take the frames that follow
+					if (!fill(channel))
+						return null;
+					transfer(Math.min(buffer.remaining(), remaining));
+				} else {
+					int reads = channel.read(content);
+					if (reads == -1)
+						throw new ClosedChannelException();
+					if (reads == 0)
+						return null;
+					stats.recordRead(reads);
+				}
+				continue;
+			}
+			ByteBuffer result = content;
+			content = null;
+			ByteBufferCompat.compatPosition(result, 0);
+			stats.recordFrameRead();
+			return result;
+		}
+	}
+
+	/**
+	 * Stops the content last returned by {@link #read(ReadableByteChannel)}, if a slice, from being overwritten.
+	 * The read-ahead buffer is given up to it, and a new one used in its place.
+	 */
+	void detach() {
+		if (slice == null)
+			return;
+		ByteBuffer next = allocator.allocate(bufferSize);
+		next.put(buffer);
+		ByteBufferCompat.compatLimit(next, next.position());
+		ByteBufferCompat.compatPosition(next, 0);
+		buffer = next;
+		slice = null;
+	}
+
+	/**
+	 * @param content
+	 * 		Frame content returned by {@link #read(ReadableByteChannel)}.
+	 *
+	 * @return {@code true} when the content is a slice of the read-ahead buffer, and must not be released.
+	 */
+	boolean isSlice(ByteBuffer content) {
+		return content == slice || content == EMPTY_BUFFER;
+	}
+
+	/**
+	 * @return Frame ID of the last frame read.
+	 */
+	int getFrameId() {
+		return frameId;
+	}
+
+	/**
+	 * @return Message type, including frame flags, of the last frame read.
+	 */
+	int getMessageType() {
+		return messageType;
+	}
+
+	/**
+	 * @return Number of unparsed bytes held in the read-ahead buffer.
+	 */
+	int getBuffered() {
+		return buffer == null ? 0 : buffer.remaining();
+	}
+
+	/**
+	 * @return Size of the header at the buffer's position, now in the header fields,
+	 * or {@code 0} when more bytes are needed.
+	 *
+	 * @throws IOException
+	 * 		When the header is invalid.
+	 */
+	private int parseHeader() throws IOException {
+		ByteBuffer buffer = this.buffer;
+		int start = buffer.position();
+		int available = buffer.remaining();
+		int headerSize;
+		if (compact) {
+			headerSize = compactHeaders.decode(buffer, start, available);
+			if (headerSize == 0)
+				return 0;
+			frameId = compactHeaders.getFrameId();
+			messageType = compactHeaders.getMessageType();
+			messageLength = compactHeaders.getMessageLength();
+		} else {
+			if (available < HEADER_SIZE)
+				return 0;
+			headerSize = HEADER_SIZE;
+			frameId = buffer.getInt(start);
+			messageType = buffer.getShort(start + 4);
+			messageLength = buffer.getInt(start + 6);
+		}
+		Logger.debug("Channel read-header: " +
+				"id=" + frameId + ", type=" + messageType + ", length=" + messageLength);
+		if (messageLength < 0 || (maxFrameSize > 0 && messageLength > maxFrameSize))
+			throw new IOException("Invalid frame length: " + messageLength);
+		return headerSize;
+	}
+
+	/**
+	 * Moves the unparsed bytes to the start of the buffer, and reads as much as fits after them.
+	 *
+	 * @param channel
+	 * 		Channel to read from.
+	 *
+	 * @return {@code true} when anything was read.
+	 *
+	 * @throws IOException
+	 * 		When the channel cannot be read, or has been closed.
+	 */
+	private boolean fill(ReadableByteChannel channel) throws IOException {
+		ByteBuffer buffer = this.buffer;
+		buffer.compact();
+		ByteBufferCompat.compatLimit(buffer, bufferSize);
+		int reads;
+		try {
+			reads = channel.read(buffer);
+		} finally {
+			ByteBufferCompat.compatLimit(buffer, buffer.position());
+			ByteBufferCompat.compatPosition(buffer, 0);
+		}
+		if (reads == -1)
+			throw new ClosedChannelException();
+		if (reads > 0)
+			stats.recordRead(reads);
+		return reads > 0;
+	}
+
+	/**
+	 * @param count
+	 * 		Number of buffered bytes to copy into the content of the current frame.
+	 */
+	private void transfer(int count) {
+		if (count <= 0)
+			return;
+		ByteBuffer source = buffer.duplicate();
+		ByteBufferCompat.compatLimit(source, source.position() + count);
+		content.put(source);
+		ByteBufferCompat.compatPosition(buffer, buffer.position() + count);
+	}
+
+	/**
+	 * @param messageType
+	 * 		Message type, including frame flags.
+	 *
+	 * @return {@code true} when the content may be a slice. Uncompressed chunks are held until the last chunk
+	 * of their message arrives, so they always get a buffer of their own.
+	 */
+	private static boolean canSlice(int messageType) {
+		return (messageType & ChannelHandler.FLAG_CHUNK) == 0 || (messageType & ChannelHandler.FLAG_COMPRESSED) != 0;
+	}
+}
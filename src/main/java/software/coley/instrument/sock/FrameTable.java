@@ -0,0 +1,275 @@
+package software.coley.instrument.sock;
+
+/**
+ * Table of values keyed by frame ID, such as {@link ResponseListener listeners} awaiting a response.
+ * <br>
+ * Open-addressed with linear probing over primitive arrays, so adding and removing a value does not box
+ * the frame ID or allocate a node. Frame IDs are handed out sequentially, so using the low bits of the ID
+ * as the slot index spreads entries without hashing.
+ * <br>
+ * Each entry has a deadline, and expired entries are removed in bulk by {@link #removeExpired(long, Visitor)}.
+ *
+ * @param <V>
+ * 		Value type.
+ *
+ * @author Matt Coley
+ */
+final class FrameTable<V> {
+	/**
+	 * Deadline of entries which never expire.
+	 */
+	static final long NEVER = Long.MAX_VALUE;
+	private static final int MIN_CAPACITY = 16;
+	private int[] keys;
+	private long[] deadlines;
+	private Object[] values;
+	private int mask;
+	private int size;
+	private long earliestDeadline = NEVER;
+
+	FrameTable() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param frameId
+	 * 		Frame ID of the entry.
+	 * @param value
+	 * 		Value to add.
+	 * @param deadline
+	 * 		{@link System#nanoTime()} after which the entry expires, or {@link #NEVER}.
+	 *
+	 * @return Prior value of the same frame ID, which has been replaced.
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized V put(int frameId, V value, long deadline) {
+		if (value == null)
+			throw new IllegalArgumentException("Value must not be null");
+		if ((size + 1) * 2 > values.length)
+			allocate(values.length * 2);
+		if (isBefore(deadline, earliestDeadline))
+			earliestDeadline = deadline;
+		int i = frameId & mask;
+		while (values[i] != null) {
+			if (keys[i] == frameId) {
+				V prior = (V) values[i];
+				values[i] = value;
+				deadlines[i] = deadline;
+				return prior;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = frameId;
+		deadlines[i] = deadline;
+		values[i] = value;
+		size++;
+		return null;
+	}
+
+	/**
+	 * @param frameId
+	 * 		Frame ID of the entry.
+	 *
+	 * @return Removed value, or {@code null} when none was present for the frame ID.
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized V remove(int frameId) {
+		int i = frameId & mask;
+		Object value;
+		while ((value = values[i]) != null) {
+			if (keys[i] == frameId) {
+				delete(i);
+				return (V) value;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * @return Number of entries.
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @param now
+	 * 		Current {@link System#nanoTime()}.
+	 *
+	 * @return {@code true} when at least one entry has expired. May be a false positive when the expired entry
+	 * has since been removed.
+	 */
+	synchronized boolean hasExpired(long now) {
+		return size > 0 && isExpired(earliestDeadline, now);
+	}
+
+	/**
+	 * Removes all entries past their deadline.
+	 *
+	 * @param now
+	 * 		Current {@link System#nanoTime()}.
+	 * @param visitor
+	 * 		Visitor of removed entries. Called after the removal, outside the table's lock.
+	 */
+	@SuppressWarnings("unchecked")
+	void removeExpired(long now, Visitor<V> visitor) {
+		int[] expiredKeys;
+		Object[] expiredValues;
+		synchronized (this) {
+			if (!hasExpired(now))
+				return;
+			// Collect first, as deletion moves entries around
+			int count = 0;
+			long earliest = NEVER;
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] == null)
+					continue;
+				if (isExpired(deadlines[i], now))
+					count++;
+				else if (isBefore(deadlines[i], earliest))
+					earliest = deadlines[i];
+			}
+			expiredKeys = new int[count];
+			expiredValues = new Object[count];
+			count = 0;
+			for (int i = 0; i < values.length; i++)
+				if (values[i] != null && isExpired(deadlines[i], now))
+					expiredKeys[count++] = keys[i];
+			for (int i = 0; i < count; i++)
+				expiredValues[i] = remove(expiredKeys[i]);
+			earliestDeadline = earliest;
+		}
+		for (int i = 0; i < expiredKeys.length; i++)
+			visitor.visit(expiredKeys[i], (V) expiredValues[i]);
+	}
+
+	/**
+	 * Removes all entries.
+	 *
+	 * @param visitor
+	 * 		Visitor of removed entries. Called after the removal, outside the table's lock.
+	 */
+	@SuppressWarnings("unchecked")
+	void removeAll(Visitor<V> visitor) {
+		int[] removedKeys;
+		Object[] removedValues;
+		synchronized (this) {
+			removedKeys = new int[size];
+			removedValues = new Object[size];
+			int count = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null) {
+					removedKeys[count] = keys[i];
+					removedValues[count++] = values[i];
+				}
+			}
+			values = null;
+			allocate(MIN_CAPACITY);
+		}
+		for (int i = 0; i < removedKeys.length; i++)
+			visitor.visit(removedKeys[i], (V) removedValues[i]);
+	}
+
+	/**
+	 * Removes the entry in the given slot, shifting back any later entries of the same probe sequence
+	 * so that no tombstone is needed.
+	 *
+	 * @param slot
+	 * 		Slot to clear.
+	 */
+	private void delete(int slot) {
+		int mask = this.mask;
+		int[] keys = this.keys;
+		long[] deadlines = this.deadlines;
+		Object[] values = this.values;
+		int i = slot;
+		int j = slot;
+		while (true) {
+			j = (j + 1) & mask;
+			if (values[j] == null)
+				break;
+			int home = keys[j] & mask;
+			// Move the entry back only if its home slot is not cyclically within (i, j]
+			boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if (stays)
+				continue;
+			keys[i] = keys[j];
+			deadlines[i] = deadlines[j];
+			values[i] = values[j];
+			i = j;
+		}
+		values[i] = null;
+		size--;
+	}
+
+	/**
+	 * @param capacity
+	 * 		New capacity, a power of two. Existing entries are moved over.
+	 */
+	@SuppressWarnings("unchecked")
+	private void allocate(int capacity) {
+		int[] oldKeys = keys;
+		long[] oldDeadlines = deadlines;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		deadlines = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		size = 0;
+		earliestDeadline = NEVER;
+		if (oldValues == null)
+			return;
+		for (int i = 0; i < oldValues.length; i++)
+			if (oldValues[i] != null)
+				put(oldKeys[i], (V) oldValues[i], oldDeadlines[i]);
+	}
+
+	/**
+	 * @param deadline
+	 * 		Some deadline.
+	 * @param now
+	 * 		Current {@link System#nanoTime()}.
+	 *
+	 * @return {@code true} when the deadline has passed.
+	 */
+	private static boolean isExpired(long deadline, long now) {
+		// Compare by difference, as nano times may be negative
+		return deadline != NEVER && now - deadline >= 0;
+	}
+
+	/**
+	 * @param deadline
+	 * 		Some deadline.
+	 * @param other
+	 * 		Another deadline.
+	 *
+	 * @return {@code true} when the deadline is before the other deadline.
+	 */
+	private static boolean isBefore(long deadline, long other) {
+		if (deadline == NEVER)
+			return false;
+		return other == NEVER || deadline - other < 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "FrameTable{size=" + size + ", capacity=" + values.length + '}';
+	}
+
+	/**
+	 * Visitor of removed entries.
+	 *
+	 * @param <V>
+	 * 		Value type.
+	 */
+	interface Visitor<V> {
+		/**
+		 * @param frameId
+		 * 		Frame ID of the removed entry.
+		 * @param value
+		 * 		Value of the removed entry.
+		 */
+		void visit(int frameId, V value);
+	}
+}
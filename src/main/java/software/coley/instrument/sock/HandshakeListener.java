@@ -0,0 +1,16 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.message.control.ControlHelloMessage;
+
+/**
+ * Listener to handle the peer's handshake.
+ *
+ * @author Matt Coley
+ */
+public interface HandshakeListener {
+	/**
+	 * @param hello
+	 * 		Handshake sent by the peer.
+	 */
+	void onHandshake(ControlHelloMessage hello);
+}
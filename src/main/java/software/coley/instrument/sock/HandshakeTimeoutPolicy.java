@@ -0,0 +1,23 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.message.control.ControlHelloMessage;
+
+/**
+ * What a {@link ChannelHandler} does when the peer's {@link ControlHelloMessage hello} does not arrive within the
+ * {@link ChannelOptions#getHandshakeTimeoutMillis() handshake timeout}. Until then, everything but our own hello
+ * is held back.
+ *
+ * @author Matt Coley
+ */
+public enum HandshakeTimeoutPolicy {
+	/**
+	 * The handshake completes as if the peer sent a hello with no optional features, supporting the same
+	 * messages as we do. This suits peers which never send a hello. Should the peer's hello arrive afterwards,
+	 * the two sides may disagree on the frame format, so the channel is shut down.
+	 */
+	BASELINE,
+	/**
+	 * The writes held for the handshake are failed, and the channel is shut down.
+	 */
+	DISCONNECT
+}
@@ -0,0 +1,279 @@
+package software.coley.instrument.sock;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Single-producer single-consumer byte ring in a memory-mapped file, shared between two processes.
+ * <br>
+ * Layout of the file:
+ * <ul>
+ *     <li>{@code 0}: Total bytes written, only updated by the producer.</li>
+ *     <li>{@code 64}: Total bytes read, only updated by the consumer.</li>
+ *     <li>{@code 128}: Closed flag, set by either side.</li>
+ *     <li>{@code 136}: Magic, then capacity in bytes.</li>
+ *     <li>{@link #HEADER_SIZE}: Ring content.</li>
+ * </ul>
+ * The two indices are on their own cache lines so that the producer and consumer do not contend.
+ * They are published with release stores and read with acquire loads, which requires Java 9+ {@code VarHandle}
+ * access, looked up reflectively. On older JVMs {@link #isSupported()} is {@code false}.
+ * <br>
+ * Neither operation blocks. Waiting for content or space is left to the caller.
+ *
+ * @author Matt Coley
+ */
+final class MappedRing {
+	static final int HEADER_SIZE = 192;
+	private static final int WRITE_INDEX = 0;
+	private static final int READ_INDEX = 64;
+	private static final int CLOSED = 128;
+	private static final int MAGIC = 136;
+	private static final int CAPACITY = 144;
+	private static final long MAGIC_VALUE = 0x52494E4753484D31L; // RINGSHM1
+	private static final MethodHandle GET_ACQUIRE;
+	private static final MethodHandle SET_RELEASE;
+	private final FileChannel file;
+	private final ByteBuffer buffer;
+	private final ByteBuffer content;
+	private final int capacity;
+	private final int mask;
+	// Producer state, only used by the writing thread
+	private long writeIndex;
+	private long cachedReadIndex;
+	// Consumer state, only used by the reading thread
+	private long readIndex;
+	private long cachedWriteIndex;
+
+	static {
+		MethodHandle getAcquire = null;
+		MethodHandle setRelease = null;
+		try {
+			Class<?> varHandleType = Class.forName("java.lang.invoke.VarHandle");
+			Class<?> accessModeType = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			MethodHandle viewFactory = lookup.findStatic(MethodHandles.class, "byteBufferViewVarHandle",
+					MethodType.methodType(varHandleType, Class.class, ByteOrder.class));
+			MethodHandle toMethodHandle = lookup.findVirtual(varHandleType, "toMethodHandle",
+					MethodType.methodType(MethodHandle.class, accessModeType));
+			Object view = viewFactory.invoke(long[].class, ByteOrder.nativeOrder());
+			getAcquire = (MethodHandle) toMethodHandle.invoke(view, accessModeType.getField("GET_ACQUIRE").get(null));
+			setRelease = (MethodHandle) toMethodHandle.invoke(view, accessModeType.getField("SET_RELEASE").get(null));
+		} catch (Throwable t) {
+			getAcquire = null;
+			setRelease = null;
+		}
+		GET_ACQUIRE = getAcquire;
+		SET_RELEASE = setRelease;
+	}
+
+	private MappedRing(FileChannel file, MappedByteBuffer buffer, int capacity) {
+		this.file = file;
+		this.buffer = buffer;
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.content = buffer.duplicate();
+	}
+
+	/**
+	 * @return {@code true} when the current JVM supports the ordered memory access the ring needs.
+	 */
+	static boolean isSupported() {
+		return GET_ACQUIRE != null;
+	}
+
+	/**
+	 * Creates a new ring file, replacing any existing file at the path.
+	 * The file is prepared under a temporary name and then moved into place, so that it is never seen half-written.
+	 *
+	 * @param path
+	 * 		Path of the ring file.
+	 * @param capacity
+	 * 		Content capacity in bytes. Must be a power of two.
+	 *
+	 * @return New ring.
+	 *
+	 * @throws IOException
+	 * 		When the file cannot be created or mapped.
+	 */
+	static MappedRing create(Path path, int capacity) throws IOException {
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+			header.putLong(MAGIC, MAGIC_VALUE);
+			header.putLong(CAPACITY, capacity);
+			while (header.hasRemaining())
+				channel.write(header);
+			// Sized by writing the last byte, so that the file is sparse where supported
+			channel.write(ByteBuffer.allocate(1), HEADER_SIZE + capacity - 1);
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return open(path);
+	}
+
+	/**
+	 * @param path
+	 * 		Path of an existing ring file.
+	 *
+	 * @return Ring mapped from the file.
+	 *
+	 * @throws IOException
+	 * 		When the file cannot be mapped, or is not a ring file.
+	 */
+	static MappedRing open(Path path) throws IOException {
+		if (!isSupported())
+			throw new UnsupportedOperationException("Shared memory rings require Java 9+");
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (channel.size() < HEADER_SIZE)
+				throw new IOException("Not a ring file: " + path);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			buffer.order(ByteOrder.nativeOrder());
+			long capacity = buffer.getLong(CAPACITY);
+			if (buffer.getLong(MAGIC) != MAGIC_VALUE || capacity <= 0 || Long.bitCount(capacity) != 1 ||
+					HEADER_SIZE + capacity > channel.size())
+				throw new IOException("Not a ring file: " + path);
+			return new MappedRing(channel, buffer, (int) capacity);
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return File backing the ring.
+	 */
+	FileChannel getFile() {
+		return file;
+	}
+
+	/**
+	 * @return Content capacity in bytes.
+	 */
+	int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Producer only. Copies as much of the source as currently fits.
+	 *
+	 * @param src
+	 * 		Content to write.
+	 *
+	 * @return Number of bytes written, possibly {@code 0} when the ring is full.
+	 */
+	int write(ByteBuffer src) {
+		long write = writeIndex;
+		int free = capacity - (int) (write - cachedReadIndex);
+		if (free < src.remaining())
+			free = capacity - (int) (write - (cachedReadIndex = getAcquire(READ_INDEX)));
+		int count = Math.min(free, src.remaining());
+		if (count == 0)
+			return 0;
+		int offset = (int) write & mask;
+		int first = Math.min(count, capacity - offset);
+		copy(src, first, offset);
+		if (first < count)
+			copy(src, count - first, 0);
+		writeIndex = write + count;
+		setRelease(WRITE_INDEX, write + count);
+		return count;
+	}
+
+	/**
+	 * Consumer only. Copies as much content as is currently available.
+	 *
+	 * @param dst
+	 * 		Buffer to read into.
+	 *
+	 * @return Number of bytes read, possibly {@code 0} when the ring is empty,
+	 * or {@code -1} when the ring is empty and has been {@link #close() closed}.
+	 */
+	int read(ByteBuffer dst) {
+		long read = readIndex;
+		int available = (int) (cachedWriteIndex - read);
+		if (available < dst.remaining()) {
+			available = (int) ((cachedWriteIndex = getAcquire(WRITE_INDEX)) - read);
+			if (available == 0)
+				// Check the content again after seeing the flag, as the producer may have written just before closing
+				return isClosed() && getAcquire(WRITE_INDEX) == read ? -1 : 0;
+		}
+		int count = Math.min(available, dst.remaining());
+		int offset = (int) read & mask;
+		int first = Math.min(count, capacity - offset);
+		copyOut(dst, first, offset);
+		if (first < count)
+			copyOut(dst, count - first, 0);
+		readIndex = read + count;
+		setRelease(READ_INDEX, read + count);
+		return count;
+	}
+
+	/**
+	 * @return {@code true} when either side has {@link #close() closed} the ring.
+	 */
+	boolean isClosed() {
+		return getAcquire(CLOSED) != 0;
+	}
+
+	/**
+	 * Marks the ring as closed for both sides, and closes the backing file.
+	 * The mapping remains valid until it is garbage collected.
+	 */
+	void close() {
+		setRelease(CLOSED, 1);
+		try {
+			file.close();
+		} catch (IOException ignored) {
+			// Mapping remains usable regardless
+		}
+	}
+
+	@SuppressWarnings("RedundantCast")
+	private void copy(ByteBuffer src, int count, int offset) {
+		ByteBuffer content = this.content;
+		((Buffer) content).limit(HEADER_SIZE + offset + count);
+		((Buffer) content).position(HEADER_SIZE + offset);
+		int limit = src.limit();
+		((Buffer) src).limit(src.position() + count);
+		content.put(src);
+		((Buffer) src).limit(limit);
+	}
+
+	@SuppressWarnings("RedundantCast")
+	private void copyOut(ByteBuffer dst, int count, int offset) {
+		ByteBuffer content = this.content;
+		((Buffer) content).limit(HEADER_SIZE + offset + count);
+		((Buffer) content).position(HEADER_SIZE + offset);
+		dst.put(content);
+	}
+
+	private long getAcquire(int index) {
+		try {
+			return (long) GET_ACQUIRE.invokeExact(buffer, index);
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	private void setRelease(int index, long value) {
+		try {
+			SET_RELEASE.invokeExact(buffer, index, value);
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.message.broadcast.AbstractBroadcastMessage;
+
+/**
+ * What a {@link ChannelHandler} does with a new message while its peer is not keeping up,
+ * meaning queued messages are above the {@link ChannelOptions#getWriteHighWatermark() high watermark}.
+ *
+ * @author Matt Coley
+ */
+public enum OverflowPolicy {
+	/**
+	 * The writing thread waits until the queue drains below the {@link ChannelOptions#getWriteLowWatermark() low watermark}.
+	 * Writes made on the thread which sends queued messages, or on the shared threads of a {@link ChannelReactor reactor},
+	 * never wait and are accepted above the watermark.
+	 * Neither do broadcasts, which are instead limited by the {@link SlowConsumerPolicy slow consumer policy}.
+	 */
+	BLOCK,
+	/**
+	 * The write is rejected with a {@link ChannelOverflowException}.
+	 */
+	FAIL,
+	/**
+	 * Broadcasts are held back, keeping only the most recent for each {@link AbstractBroadcastMessage#getCoalesceKey() key},
+	 * and are queued once the queue drains below the {@link ChannelOptions#getWriteLowWatermark() low watermark}.
+	 * Other messages are handled as with {@link #BLOCK}.
+	 */
+	COALESCE
+}
@@ -15,4 +15,17 @@ public interface ResponseListener {
 	 * 		Message content.
 	 */
 	void onReceive(int frameId, AbstractMessage message);
+
+	/**
+	 * Called instead of {@link #onReceive(int, AbstractMessage)} when no response will be handled.
+	 * Does nothing by default.
+	 *
+	 * @param frameId
+	 * 		Message ID.
+	 * @param cause
+	 * 		{@link java.util.concurrent.TimeoutException} when no response arrived in time,
+	 * 		or {@link java.nio.channels.ClosedChannelException} when the channel was closed.
+	 */
+	default void onFailure(int frameId, Throwable cause) {
+	}
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package software.coley.instrument.sock;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in submission order, on a shared executor.
+ * Used to give {@link DispatchMode#ORDERED} semantics on a {@link ChannelReactor}'s shared workers.
+ *
+ * @author Matt Coley
+ */
+final class SerialExecutor implements Executor {
+	// Tasks to run before yielding the delegate thread to other work
+	private static final int MAX_BATCH = 64;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean active = new AtomicBoolean();
+	private final Executor delegate;
+
+	/**
+	 * @param delegate
+	 * 		Executor to run tasks on.
+	 */
+	SerialExecutor(Executor delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		schedule();
+	}
+
+	private void schedule() {
+		if (!tasks.isEmpty() && active.compareAndSet(false, true)) {
+			try {
+				delegate.execute(this::drain);
+			} catch (RejectedExecutionException ex) {
+				active.set(false);
+				throw ex;
+			}
+		}
+	}
+
+	private void drain() {
+		try {
+			Runnable task;
+			for (int i = 0; i < MAX_BATCH && (task = tasks.poll()) != null; i++) {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					t.printStackTrace();
+				}
+			}
+		} finally {
+			active.set(false);
+			// Remaining tasks, or those added after the last poll but before the flag was reset
+			try {
+				schedule();
+			} catch (RejectedExecutionException ignored) {
+				// Delegate was shut down
+			}
+		}
+	}
+}
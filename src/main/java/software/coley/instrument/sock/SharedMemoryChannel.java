@@ -0,0 +1,271 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.util.WaitStrategy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileLock;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Channel between two processes on the same host, over a pair of memory-mapped ring files.
+ * Each direction has its own single-producer single-consumer ring, so content is copied straight into
+ * the peer's address space with no system calls. It can be used by a {@link ChannelHandler} in place of a socket,
+ * with the same frame format.
+ * <br>
+ * The server {@link #create(Path, int, WaitStrategy) creates} the rings and a single client
+ * {@link #open(Path, WaitStrategy) opens} them. There is no signalling between processes, so a side waiting on
+ * an empty or full ring polls it, as determined by the {@link WaitStrategy}.
+ * <br>
+ * Reads and writes block, and at most one thread may read and one thread may write at a time.
+ * Requires Java 9+, see {@link #isSupported()}.
+ *
+ * @author Matt Coley
+ */
+public final class SharedMemoryChannel implements ByteChannel, GatheringByteChannel {
+	/**
+	 * Default capacity of each ring.
+	 */
+	public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+	private static final String CLIENT_TO_SERVER = ".up";
+	private static final String SERVER_TO_CLIENT = ".down";
+	private static final int SPIN_TRIES = 64;
+	private static final int YIELD_TRIES = 64;
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private final Path path;
+	private final MappedRing inbound;
+	private final MappedRing outbound;
+	private final WaitStrategy waitStrategy;
+	private final FileLock lock;
+	private volatile boolean open = true;
+
+	private SharedMemoryChannel(Path path, MappedRing inbound, MappedRing outbound,
+								WaitStrategy waitStrategy, FileLock lock) {
+		this.path = path;
+		this.inbound = inbound;
+		this.outbound = outbound;
+		this.waitStrategy = waitStrategy;
+		this.lock = lock;
+	}
+
+	/**
+	 * @return {@code true} when the current JVM supports shared memory channels.
+	 */
+	public static boolean isSupported() {
+		return MappedRing.isSupported();
+	}
+
+	/**
+	 * Server side. Creates new ring files, replacing any left behind by a previous process.
+	 *
+	 * @param path
+	 * 		Base path of the ring files.
+	 * @param capacity
+	 * 		Capacity in bytes of each ring. Must be a power of two.
+	 * @param waitStrategy
+	 * 		How to wait on an empty or full ring.
+	 *
+	 * @return New channel, connected once a client {@link #open(Path, WaitStrategy) opens} the same path.
+	 *
+	 * @throws IOException
+	 * 		When the ring files cannot be created.
+	 * @throws UnsupportedOperationException
+	 * 		When shared memory channels are not {@link #isSupported() supported}.
+	 */
+	public static SharedMemoryChannel create(Path path, int capacity, WaitStrategy waitStrategy) throws IOException {
+		if (!isSupported())
+			throw new UnsupportedOperationException("Shared memory channels require Java 9+");
+		MappedRing inbound = MappedRing.create(ringPath(path, CLIENT_TO_SERVER), capacity);
+		try {
+			MappedRing outbound = MappedRing.create(ringPath(path, SERVER_TO_CLIENT), capacity);
+			return new SharedMemoryChannel(path, inbound, outbound, waitStrategy, null);
+		} catch (IOException | RuntimeException ex) {
+			inbound.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Client side. Opens ring files created by a server. Only one client can use the rings at a time.
+	 *
+	 * @param path
+	 * 		Base path of the ring files.
+	 * @param waitStrategy
+	 * 		How to wait on an empty or full ring.
+	 *
+	 * @return Channel connected to the server.
+	 *
+	 * @throws IOException
+	 * 		When the ring files cannot be opened, were closed, or are in use by another client.
+	 * @throws UnsupportedOperationException
+	 * 		When shared memory channels are not {@link #isSupported() supported}.
+	 */
+	public static SharedMemoryChannel open(Path path, WaitStrategy waitStrategy) throws IOException {
+		if (!isSupported())
+			throw new UnsupportedOperationException("Shared memory channels require Java 9+");
+		MappedRing inbound = MappedRing.open(ringPath(path, SERVER_TO_CLIENT));
+		MappedRing outbound = null;
+		try {
+			FileLock lock;
+			try {
+				lock = inbound.getFile().tryLock();
+			} catch (OverlappingFileLockException ex) {
+				lock = null;
+			}
+			if (lock == null)
+				throw new IOException("Shared memory channel in use: " + path);
+			if (inbound.isClosed())
+				throw new ClosedChannelException();
+			outbound = MappedRing.open(ringPath(path, CLIENT_TO_SERVER));
+			return new SharedMemoryChannel(path, inbound, outbound, waitStrategy, lock);
+		} catch (IOException | RuntimeException ex) {
+			// Marking the rings closed here would break them for the next client, so only release the files
+			inbound.getFile().close();
+			if (outbound != null)
+				outbound.getFile().close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Removes the ring files. Their memory stays mapped by any process still using them, until closed.
+	 *
+	 * @param path
+	 * 		Base path of the ring files.
+	 *
+	 * @throws IOException
+	 * 		When the files cannot be removed.
+	 */
+	public static void delete(Path path) throws IOException {
+		Files.deleteIfExists(ringPath(path, CLIENT_TO_SERVER));
+		Files.deleteIfExists(ringPath(path, SERVER_TO_CLIENT));
+	}
+
+	/**
+	 * @return Base path of the ring files.
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return {@code true} when the peer has closed the channel.
+	 */
+	public boolean isPeerClosed() {
+		return inbound.isClosed() || outbound.isClosed();
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!dst.hasRemaining())
+			return 0;
+		int tries = initialTries();
+		long backoff = 1000;
+		while (true) {
+			ensureOpen();
+			int read = inbound.read(dst);
+			if (read != 0)
+				return read;
+			if (tries < SPIN_TRIES + YIELD_TRIES)
+				tries = idle(tries);
+			else
+				backoff = park(backoff);
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[]{src}, 0, 1);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			ByteBuffer src = srcs[i];
+			int tries = initialTries();
+			long backoff = 1000;
+			while (src.hasRemaining()) {
+				ensureOpen();
+				if (outbound.isClosed())
+					throw new ClosedChannelException();
+				int written = outbound.write(src);
+				if (written > 0) {
+					total += written;
+					tries = initialTries();
+					backoff = 1000;
+				} else if (tries < SPIN_TRIES + YIELD_TRIES) {
+					tries = idle(tries);
+				} else {
+					backoff = park(backoff);
+				}
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Closes both rings, which the peer sees as the end of the stream.
+	 */
+	@Override
+	public void close() {
+		if (open) {
+			open = false;
+			inbound.close();
+			outbound.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SharedMemoryChannel[" + path + "]";
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		if (Thread.currentThread().isInterrupted()) {
+			close();
+			throw new ClosedByInterruptException();
+		}
+	}
+
+	private int initialTries() {
+		return waitStrategy == WaitStrategy.SPIN_THEN_PARK ? 0 : SPIN_TRIES + YIELD_TRIES;
+	}
+
+	private static int idle(int tries) {
+		if (tries >= SPIN_TRIES)
+			Thread.yield();
+		return tries + 1;
+	}
+
+	private long park(long backoff) {
+		// The peer does not signal us, so poll with a growing back-off
+		LockSupport.parkNanos(this, backoff);
+		return Math.min(backoff << 1, MAX_BACKOFF_NANOS);
+	}
+
+	private static Path ringPath(Path path, String suffix) {
+		return Paths.get(path.toString() + suffix);
+	}
+}
@@ -0,0 +1,31 @@
+package software.coley.instrument.sock;
+
+import software.coley.instrument.message.broadcast.AbstractBroadcastMessage;
+import software.coley.instrument.message.broadcast.BroadcastDroppedMessage;
+
+/**
+ * What a {@link ChannelHandler} does with a new broadcast while its peer is a slow consumer,
+ * meaning queued broadcasts are above the {@link ChannelOptions#getMaxBroadcastLag() max lag}.
+ * <br>
+ * Unlike the {@link OverflowPolicy}, which bounds the number of unsent messages of any kind,
+ * this bounds the bytes held for broadcasts, and never holds up the broadcasting thread.
+ *
+ * @author Matt Coley
+ */
+public enum SlowConsumerPolicy {
+	/**
+	 * The broadcast is dropped. Once the backlog drains to half the max lag, the peer is sent a
+	 * {@link BroadcastDroppedMessage} with the number it missed.
+	 */
+	DROP,
+	/**
+	 * The broadcast is replaced by its {@link AbstractBroadcastMessage#toSummary() summary}, such as only the name of
+	 * an updated class. Summaries are held back, keeping only the most recent for each
+	 * {@link AbstractBroadcastMessage#getCoalesceKey() key}, and are queued once the backlog drains to half the max lag.
+	 */
+	SUMMARIZE,
+	/**
+	 * The channel is shut down.
+	 */
+	DISCONNECT
+}
@@ -0,0 +1,139 @@
+package software.coley.instrument.sock;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Access to Unix domain socket channels on Java 16+ while targeting Java 8.
+ * The API is looked up reflectively once, and on older JVMs {@link #isSupported()} is {@code false}.
+ * <br>
+ * Unix domain sockets are only reachable from the same host, but skip the TCP stack entirely,
+ * and do not use up ports.
+ *
+ * @author Matt Coley
+ */
+public final class UnixDomainSockets {
+	private static final ProtocolFamily UNIX;
+	private static final MethodHandle ADDRESS_OF;
+	private static final MethodHandle OPEN_CLIENT;
+	private static final MethodHandle OPEN_SERVER;
+
+	static {
+		ProtocolFamily unix = null;
+		MethodHandle addressOf = null;
+		MethodHandle openClient = null;
+		MethodHandle openServer = null;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> addressType = Class.forName("java.net.UnixDomainSocketAddress");
+			unix = StandardProtocolFamily.valueOf("UNIX");
+			addressOf = lookup.findStatic(addressType, "of", MethodType.methodType(addressType, Path.class));
+			openClient = lookup.findStatic(SocketChannel.class, "open",
+					MethodType.methodType(SocketChannel.class, ProtocolFamily.class));
+			openServer = lookup.findStatic(ServerSocketChannel.class, "open",
+					MethodType.methodType(ServerSocketChannel.class, ProtocolFamily.class));
+		} catch (Throwable t) {
+			unix = null;
+		}
+		UNIX = unix;
+		ADDRESS_OF = addressOf;
+		OPEN_CLIENT = openClient;
+		OPEN_SERVER = openServer;
+	}
+
+	private UnixDomainSockets() {
+	}
+
+	/**
+	 * @return {@code true} when the current JVM can open Unix domain socket channels.
+	 */
+	public static boolean isSupported() {
+		return UNIX != null;
+	}
+
+	/**
+	 * @param path
+	 * 		Path of the socket file.
+	 *
+	 * @return Unix domain socket address of the path.
+	 *
+	 * @throws UnsupportedOperationException
+	 * 		When Unix domain sockets are not {@link #isSupported() supported}.
+	 */
+	public static SocketAddress address(Path path) {
+		requireSupported();
+		try {
+			return (SocketAddress) ADDRESS_OF.invoke(path);
+		} catch (RuntimeException | Error ex) {
+			throw ex;
+		} catch (Throwable t) {
+			throw new IllegalStateException("Failed to create socket address", t);
+		}
+	}
+
+	/**
+	 * @return New unconnected Unix domain socket channel.
+	 *
+	 * @throws IOException
+	 * 		When the channel cannot be opened.
+	 * @throws UnsupportedOperationException
+	 * 		When Unix domain sockets are not {@link #isSupported() supported}.
+	 */
+	public static SocketChannel openChannel() throws IOException {
+		requireSupported();
+		try {
+			return (SocketChannel) OPEN_CLIENT.invoke(UNIX);
+		} catch (IOException | RuntimeException | Error ex) {
+			throw ex;
+		} catch (Throwable t) {
+			throw new IOException("Failed to open socket channel", t);
+		}
+	}
+
+	/**
+	 * Socket files left behind by a previous process are replaced.
+	 *
+	 * @param path
+	 * 		Path of the socket file to create.
+	 *
+	 * @return New Unix domain server channel bound to the path.
+	 *
+	 * @throws IOException
+	 * 		When the channel cannot be opened or bound.
+	 * @throws UnsupportedOperationException
+	 * 		When Unix domain sockets are not {@link #isSupported() supported}.
+	 */
+	public static ServerSocketChannel openServerChannel(Path path) throws IOException {
+		requireSupported();
+		ServerSocketChannel channel;
+		try {
+			channel = (ServerSocketChannel) OPEN_SERVER.invoke(UNIX);
+		} catch (IOException | RuntimeException | Error ex) {
+			throw ex;
+		} catch (Throwable t) {
+			throw new IOException("Failed to open server socket channel", t);
+		}
+		try {
+			Files.deleteIfExists(path);
+			channel.bind(address(path));
+			return channel;
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	private static void requireSupported() {
+		if (!isSupported())
+			throw new UnsupportedOperationException("Unix domain sockets require Java 16+");
+	}
+}
@@ -1,10 +1,12 @@
 package software.coley.instrument.sock;
 
+import software.coley.instrument.io.ByteBufferDataOutput;
 import software.coley.instrument.io.codec.StructureEncoder;
 import software.coley.instrument.message.AbstractMessage;
 
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -17,6 +19,7 @@
 	private final int frameId;
 	private final int decoderKey;
 	private final T value;
+	private final EncodedFrame<T> frame;
 	private volatile CompletableFuture<Void> future;
 
 
@@ -25,6 +28,21 @@ public WriteResult(StructureEncoder<T> encoder, int frameId, int decoderKey, T v
 		this.frameId = frameId;
 		this.decoderKey = decoderKey;
 		this.value = value;
+		this.frame = null;
+	}
+
+	/**
+	 * @param frame
+	 * 		Already encoded message, shared with other writes.
+	 * @param frameId
+	 * 		Frame ID of write call.
+	 */
+	public WriteResult(EncodedFrame<T> frame, int frameId) {
+		this.encoder = null;
+		this.frameId = frameId;
+		this.decoderKey = frame.getDecoderKey();
+		this.value = frame.getMessage();
+		this.frame = frame;
 	}
 
 	/**
@@ -93,7 +111,23 @@ public void writeHeader(DataOutput output) throws IOException {
 	 * 		When the destination cannot be written to.
 	 */
 	public void writeTo(DataOutput output) throws IOException {
-		encoder.encode(output, value);
+		if (frame == null) {
+			encoder.encode(output, value);
+		} else if (output instanceof ByteBufferDataOutput) {
+			((ByteBufferDataOutput) output).write(frame.viewMessage());
+		} else {
+			ByteBuffer content = frame.viewMessage();
+			byte[] arr = new byte[content.remaining()];
+			content.get(arr);
+			output.write(arr);
+		}
+	}
+
+	/**
+	 * @return Already encoded message, or {@code null} when the message is encoded by the write.
+	 */
+	EncodedFrame<T> getFrame() {
+		return frame;
 	}
 
 	/**
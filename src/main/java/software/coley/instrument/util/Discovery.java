@@ -1,18 +1,23 @@
 package software.coley.instrument.util;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Properties;
 
 /**
  * Places the port of the active {@link software.coley.instrument.Server} in a discoverable place
  * by users with the attachment API. This allows us to check if a remote VM already has the server running and
- * what port it is on.
+ * what port it is on. When the server also listens on a Unix domain socket or serves over shared memory,
+ * their paths are published the same way.
  *
  * @author Matt Coley
  */
 public class Discovery {
 	private static final String PREFIX = "commons-discovery-";
 	private static final String SUFFIX = ".jar";
+	private static final String SOCKET_SUFFIX = ".sock";
+	private static final String SHARED_MEMORY_SUFFIX = ".shm";
 
 	/**
 	 * @param properties
@@ -21,23 +26,38 @@ public class Discovery {
 	 * @return Port stored in properties. {@code -1} if no port was stored.
 	 */
 	public static int extractPort(Properties properties) {
-		String path = properties.getProperty("java.class.path", null);
-		if (path == null || path.isEmpty()) {
-			return -1;
-		} else {
-			int last = path.lastIndexOf(PREFIX);
-			if (last > 0 && path.lastIndexOf(SUFFIX) > last) {
-				path = path.substring(last + PREFIX.length(), path.length() - SUFFIX.length());
-				try {
-					return Integer.parseInt(path);
-				} catch (NumberFormatException ignored) {
-					// False positive
-				}
+		String entry = findEntry(properties, SUFFIX);
+		if (entry != null) {
+			entry = fileName(entry);
+			try {
+				return Integer.parseInt(entry.substring(PREFIX.length(), entry.length() - SUFFIX.length()));
+			} catch (NumberFormatException ignored) {
+				// False positive
 			}
 		}
 		return -1;
 	}
 
+	/**
+	 * @param properties
+	 * 		Some properties.
+	 *
+	 * @return Path of the Unix domain socket stored in properties. {@code null} if no path was stored.
+	 */
+	public static String extractSocketPath(Properties properties) {
+		return findEntry(properties, SOCKET_SUFFIX);
+	}
+
+	/**
+	 * @param properties
+	 * 		Some properties.
+	 *
+	 * @return Base path of the shared memory ring files stored in properties. {@code null} if no path was stored.
+	 */
+	public static String extractSharedMemoryPath(Properties properties) {
+		return findEntry(properties, SHARED_MEMORY_SUFFIX);
+	}
+
 	/**
 	 * @param port
 	 * 		Port to broadcast on.
@@ -48,6 +68,26 @@ public static String createDiscoveryName(int port) {
 		return PREFIX + port + SUFFIX;
 	}
 
+	/**
+	 * @param port
+	 * 		Port the server is running on.
+	 *
+	 * @return Path to use for the Unix domain socket, in the temp directory.
+	 */
+	public static Path createSocketPath(int port) {
+		return Paths.get(System.getProperty("java.io.tmpdir"), PREFIX + port + SOCKET_SUFFIX);
+	}
+
+	/**
+	 * @param port
+	 * 		Port the server is running on.
+	 *
+	 * @return Base path to use for the shared memory ring files, in the temp directory.
+	 */
+	public static Path createSharedMemoryPath(int port) {
+		return Paths.get(System.getProperty("java.io.tmpdir"), PREFIX + port + SHARED_MEMORY_SUFFIX);
+	}
+
 	/**
 	 * Update the system properties to add a hint of what port we're running on.
 	 *
@@ -55,14 +95,7 @@ public static String createDiscoveryName(int port) {
 	 * 		Port to broadcast on.
 	 */
 	public static void setupDiscovery(int port) {
-		String path = System.getProperty("java.class.path", null);
-		String discoveryName = createDiscoveryName(port);
-		if (path == null || path.isEmpty()) {
-			path = discoveryName;
-		} else if (!path.contains(discoveryName)) {
-			path += File.pathSeparatorChar + discoveryName;
-		}
-		System.setProperty("java.class.path", path);
+		addEntry(createDiscoveryName(port));
 	}
 
 	/**
@@ -72,14 +105,99 @@ public static void setupDiscovery(int port) {
 	 * 		Port to broadcast on.
 	 */
 	public static void removeDiscovery(int port) {
+		removeEntry(createDiscoveryName(port));
+	}
+
+	/**
+	 * Update the system properties to add the path of the Unix domain socket we're listening on.
+	 *
+	 * @param socketPath
+	 * 		Path of the socket, as created by {@link #createSocketPath(int)}.
+	 */
+	public static void setupSocketDiscovery(Path socketPath) {
+		addEntry(socketPath.toString());
+	}
+
+	/**
+	 * Update the system properties to remove the Unix domain socket path.
+	 *
+	 * @param socketPath
+	 * 		Path of the socket.
+	 */
+	public static void removeSocketDiscovery(Path socketPath) {
+		removeEntry(socketPath.toString());
+	}
+
+	/**
+	 * Update the system properties to add the base path of the shared memory ring files we're serving over.
+	 *
+	 * @param sharedMemoryPath
+	 * 		Base path of the ring files, as created by {@link #createSharedMemoryPath(int)}.
+	 */
+	public static void setupSharedMemoryDiscovery(Path sharedMemoryPath) {
+		addEntry(sharedMemoryPath.toString());
+	}
+
+	/**
+	 * Update the system properties to remove the shared memory path.
+	 *
+	 * @param sharedMemoryPath
+	 * 		Base path of the ring files.
+	 */
+	public static void removeSharedMemoryDiscovery(Path sharedMemoryPath) {
+		removeEntry(sharedMemoryPath.toString());
+	}
+
+	private static void addEntry(String entry) {
 		String path = System.getProperty("java.class.path", null);
-		String discoveryName = createDiscoveryName(port);
-		if (path != null && path.contains(discoveryName)) {
-			int newLength = path.length() - discoveryName.length();
-			if (newLength > 0 && path.charAt(newLength - 1) == File.pathSeparatorChar)
-				newLength--;
-			path = path.substring(0, newLength);
-			System.setProperty("java.class.path", path);
+		if (path == null || path.isEmpty()) {
+			path = entry;
+		} else if (!hasEntry(path, entry)) {
+			path += File.pathSeparatorChar + entry;
 		}
+		System.setProperty("java.class.path", path);
+	}
+
+	private static void removeEntry(String entry) {
+		String path = System.getProperty("java.class.path", null);
+		if (path != null && hasEntry(path, entry)) {
+			StringBuilder sb = new StringBuilder();
+			for (String existing : path.split(File.pathSeparator)) {
+				if (existing.equals(entry))
+					continue;
+				if (sb.length() > 0)
+					sb.append(File.pathSeparatorChar);
+				sb.append(existing);
+			}
+			System.setProperty("java.class.path", sb.toString());
+		}
+	}
+
+	private static boolean hasEntry(String path, String entry) {
+		for (String existing : path.split(File.pathSeparator))
+			if (existing.equals(entry))
+				return true;
+		return false;
+	}
+
+	private static String findEntry(Properties properties, String suffix) {
+		String path = properties.getProperty("java.class.path", null);
+		if (path == null || path.isEmpty())
+			return null;
+		String found = null;
+		for (String entry : path.split(File.pathSeparator)) {
+			if (isDiscoveryEntry(fileName(entry), suffix))
+				found = entry;
+		}
+		return found;
+	}
+
+	private static boolean isDiscoveryEntry(String name, String suffix) {
+		return name.startsWith(PREFIX) && name.endsWith(suffix) && name.length() > PREFIX.length() + suffix.length();
+	}
+
+	private static String fileName(String entry) {
+		int slash = Math.max(entry.lastIndexOf('/'), entry.lastIndexOf('\\'));
+		return entry.substring(slash + 1);
 	}
 }
@@ -4,26 +4,43 @@
 
 /**
  * Basic thread factory which sets thread names.
+ * Optionally creates {@link VirtualThreads virtual threads} when the JVM supports them.
  *
  * @author Matt Coley
  */
 public final class NamedThreadFactory implements ThreadFactory {
 	private static int counter = 0;
 	private final String name;
+	private final boolean virtual;
 
 	/**
 	 * @param name
 	 * 		Name to assign to thread.
 	 */
 	public NamedThreadFactory(String name) {
+		this(name, false);
+	}
+
+	/**
+	 * @param name
+	 * 		Name to assign to thread.
+	 * @param virtual
+	 *        {@code true} to create virtual threads when {@link VirtualThreads#isSupported() supported}.
+	 * 		Platform threads are created otherwise.
+	 */
+	public NamedThreadFactory(String name, boolean virtual) {
 		this.name = name;
+		this.virtual = virtual && VirtualThreads.isSupported();
 	}
 
 	@Override
 	public Thread newThread(Runnable r) {
+		String threadName = name == null ? null : name + " " + counter++;
+		if (virtual)
+			return VirtualThreads.newThread(threadName, r);
 		Thread thread = new Thread(r);
-		if (name != null)
-			thread.setName(name + " " + counter++);
+		if (threadName != null)
+			thread.setName(threadName);
 		return thread;
 	}
 }
@@ -0,0 +1,293 @@
+package software.coley.instrument.util;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free queue backed by a ring buffer, intended for many producers and a single consumer.
+ * <br>
+ * Each slot carries a sequence number telling producers and consumers whose turn it is.
+ * Enqueuing claims a slot with a single CAS and does not allocate.
+ * The consumer claims as many ready slots as are requested with a single CAS, see {@link #drainTo(Collection, int)}.
+ * Additional consumers, such as a {@link #clear()} from another thread, are safe but contend with each other.
+ * <br>
+ * A consumer waiting on an empty queue is woken by the next producer. Producers waiting on a full queue poll
+ * for space with a short back-off. How threads wait is determined by the {@link WaitStrategy}.
+ * <br>
+ * Iteration is not supported, and so neither are operations which depend on it
+ * such as {@link #contains(Object)} and {@link #remove(Object)}.
+ *
+ * @param <E>
+ * 		Element type.
+ *
+ * @author Matt Coley
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+	private static final int SPIN_TRIES = 64;
+	private static final int YIELD_TRIES = 64;
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLongArray sequences;
+	private final Object[] elements;
+	private final int capacity;
+	private final int mask;
+	private final WaitStrategy waitStrategy;
+	private volatile Thread waitingConsumer;
+
+	/**
+	 * @param capacity
+	 * 		Maximum number of elements. Rounded up to a power of two.
+	 * @param waitStrategy
+	 * 		How to wait on an empty or full queue.
+	 */
+	public RingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		this.capacity = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.waitStrategy = Objects.requireNonNull(waitStrategy);
+		this.elements = new Object[this.capacity];
+		this.sequences = new AtomicLongArray(this.capacity);
+		for (int i = 0; i < this.capacity; i++)
+			sequences.set(i, i);
+	}
+
+	/**
+	 * @return Maximum number of elements.
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public boolean offer(E e) {
+		Objects.requireNonNull(e);
+		long pos = tail.get();
+		int index;
+		while (true) {
+			index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1))
+					break;
+				pos = tail.get();
+			} else if (diff < 0) {
+				// Slot not yet released by the consumer, so the queue is full
+				return false;
+			} else {
+				// Another producer claimed the slot
+				pos = tail.get();
+			}
+		}
+		elements[index] = e;
+		// Volatile store, so it is ordered before the read of the waiting consumer
+		sequences.set(index, pos + 1);
+		Thread consumer = waitingConsumer;
+		if (consumer != null)
+			LockSupport.unpark(consumer);
+		return true;
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		if (!offer(e))
+			awaitSpace(e, false, 0);
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		return offer(e) || awaitSpace(e, true, unit.toNanos(timeout));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		while (true) {
+			long pos = head.get();
+			int index = (int) pos & mask;
+			if (sequences.get(index) != pos + 1) {
+				// Empty, unless another consumer moved the head meanwhile
+				if (head.get() == pos)
+					return null;
+				continue;
+			}
+			if (head.compareAndSet(pos, pos + 1)) {
+				E e = (E) elements[index];
+				elements[index] = null;
+				sequences.set(index, pos + capacity);
+				return e;
+			}
+		}
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		E e = poll();
+		return e != null ? e : awaitElement(false, 0);
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		E e = poll();
+		return e != null ? e : awaitElement(true, unit.toNanos(timeout));
+	}
+
+	/**
+	 * Only meaningful when called by the consumer.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		long pos = head.get();
+		int index = (int) pos & mask;
+		if (sequences.get(index) != pos + 1)
+			return null;
+		return (E) elements[index];
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		int drained = 0;
+		while (drained < maxElements) {
+			long pos = head.get();
+			// Count ready slots, then claim them all at once
+			int max = Math.min(maxElements - drained, capacity);
+			int count = 0;
+			while (count < max && sequences.get((int) (pos + count) & mask) == pos + count + 1)
+				count++;
+			if (count == 0) {
+				if (head.get() == pos)
+					break;
+				continue;
+			}
+			if (!head.compareAndSet(pos, pos + count))
+				continue;
+			for (int i = 0; i < count; i++) {
+				int index = (int) (pos + i) & mask;
+				E e = (E) elements[index];
+				elements[index] = null;
+				sequences.set(index, pos + i + capacity);
+				c.add(e);
+			}
+			drained += count;
+		}
+		return drained;
+	}
+
+	@Override
+	public int size() {
+		long h = head.get();
+		long t = tail.get();
+		return (int) Math.max(0, Math.min(capacity, t - h));
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		throw new UnsupportedOperationException("Ring buffer queue does not support iteration");
+	}
+
+	@Override
+	public String toString() {
+		return "RingBufferQueue{size=" + size() + ", capacity=" + capacity + ", wait=" + waitStrategy + '}';
+	}
+
+	/**
+	 * @param timed
+	 *        {@code true} to give up after the given time.
+	 * @param nanos
+	 * 		Maximum time to wait, when timed.
+	 *
+	 * @return Next element, or {@code null} if timed out.
+	 *
+	 * @throws InterruptedException
+	 * 		When interrupted while waiting.
+	 */
+	private E awaitElement(boolean timed, long nanos) throws InterruptedException {
+		long deadline = timed ? System.nanoTime() + nanos : 0;
+		E e;
+		if (waitStrategy == WaitStrategy.SPIN_THEN_PARK) {
+			for (int i = 0; i < SPIN_TRIES + YIELD_TRIES; i++) {
+				if ((e = poll()) != null)
+					return e;
+				if (i >= SPIN_TRIES)
+					Thread.yield();
+			}
+		}
+		// Producers unpark the waiting consumer after publishing, so check again after registering
+		waitingConsumer = Thread.currentThread();
+		try {
+			while ((e = poll()) == null) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				if (timed) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						return null;
+					LockSupport.parkNanos(this, remaining);
+				} else {
+					LockSupport.park(this);
+				}
+			}
+			return e;
+		} finally {
+			waitingConsumer = null;
+		}
+	}
+
+	/**
+	 * @param e
+	 * 		Element to insert.
+	 * @param timed
+	 *        {@code true} to give up after the given time.
+	 * @param nanos
+	 * 		Maximum time to wait, when timed.
+	 *
+	 * @return {@code true} when inserted, {@code false} if timed out.
+	 *
+	 * @throws InterruptedException
+	 * 		When interrupted while waiting.
+	 */
+	private boolean awaitSpace(E e, boolean timed, long nanos) throws InterruptedException {
+		long deadline = timed ? System.nanoTime() + nanos : 0;
+		int tries = waitStrategy == WaitStrategy.SPIN_THEN_PARK ? 0 : SPIN_TRIES + YIELD_TRIES;
+		long backoff = 1000;
+		while (!offer(e)) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			if (timed && deadline - System.nanoTime() <= 0)
+				return false;
+			if (tries < SPIN_TRIES) {
+				tries++;
+			} else if (tries < SPIN_TRIES + YIELD_TRIES) {
+				tries++;
+				Thread.yield();
+			} else {
+				// The consumer does not signal producers, so poll with a growing back-off
+				LockSupport.parkNanos(this, backoff);
+				backoff = Math.min(backoff << 1, MAX_BACKOFF_NANOS);
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,95 @@
+package software.coley.instrument.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Access to virtual threads on Java 21+ while targeting Java 8.
+ * The API is looked up reflectively once, and on older JVMs {@link #isSupported()} is {@code false}.
+ *
+ * @author Matt Coley
+ */
+public final class VirtualThreads {
+	private static final MethodHandle OF_VIRTUAL;
+	private static final MethodHandle NAME;
+	private static final MethodHandle UNSTARTED;
+	private static final MethodHandle IS_VIRTUAL;
+
+	static {
+		MethodHandle ofVirtual = null;
+		MethodHandle name = null;
+		MethodHandle unstarted = null;
+		MethodHandle isVirtual = null;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			Class<?> virtualBuilderType = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderType));
+			name = lookup.findVirtual(builderType, "name", MethodType.methodType(builderType, String.class));
+			unstarted = lookup.findVirtual(builderType, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+			isVirtual = lookup.findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+			// Preview releases (19, 20) have the API, but reject use unless preview features are enabled
+			Object builder = ofVirtual.invoke();
+			unstarted.invoke(builder, (Runnable) () -> {});
+		} catch (Throwable t) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+		IS_VIRTUAL = isVirtual;
+	}
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return {@code true} when the current JVM can create virtual threads.
+	 */
+	public static boolean isSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * @param thread
+	 * 		Some thread.
+	 *
+	 * @return {@code true} when the thread is virtual.
+	 */
+	public static boolean isVirtual(Thread thread) {
+		if (!isSupported())
+			return false;
+		try {
+			return (boolean) IS_VIRTUAL.invoke(thread);
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param name
+	 * 		Name of the thread, or {@code null} for no name.
+	 * @param task
+	 * 		Task for the thread to run.
+	 *
+	 * @return New unstarted virtual thread.
+	 *
+	 * @throws UnsupportedOperationException
+	 * 		When virtual threads are not {@link #isSupported() supported}.
+	 */
+	public static Thread newThread(String name, Runnable task) {
+		if (!isSupported())
+			throw new UnsupportedOperationException("Virtual threads require Java 21+");
+		try {
+			Object builder = OF_VIRTUAL.invoke();
+			if (name != null)
+				builder = NAME.invoke(builder, name);
+			return (Thread) UNSTARTED.invoke(builder, task);
+		} catch (RuntimeException | Error ex) {
+			throw ex;
+		} catch (Throwable t) {
+			throw new IllegalStateException("Failed to create virtual thread", t);
+		}
+	}
+}
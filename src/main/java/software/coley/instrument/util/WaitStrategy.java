@@ -0,0 +1,18 @@
+package software.coley.instrument.util;
+
+/**
+ * How a thread waits on a {@link RingBufferQueue} that is empty <i>(consumer)</i> or full <i>(producers)</i>.
+ *
+ * @author Matt Coley
+ */
+public enum WaitStrategy {
+	/**
+	 * Park immediately. Lowest CPU usage, but each wake-up costs a context switch.
+	 */
+	PARK,
+	/**
+	 * Busy-spin briefly, then yield, then park.
+	 * Lower latency for bursty traffic at the cost of some CPU while waiting.
+	 */
+	SPIN_THEN_PARK
+}
@@ -1,20 +1,81 @@
 package software.coley.instrument;
 
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import software.coley.instrument.data.ClassData;
 import software.coley.instrument.data.MemberData;
 import software.coley.instrument.data.ThreadData;
 import software.coley.instrument.io.ByteBufferAllocator;
+import software.coley.instrument.io.ByteBufferDataInput;
+import software.coley.instrument.io.PooledByteBufferAllocator;
+import software.coley.instrument.io.codec.CommonCodecs;
+import software.coley.instrument.io.codec.StructureCodec;
+import software.coley.instrument.message.AbstractMessage;
+import software.coley.instrument.message.MessageConstants;
 import software.coley.instrument.message.MessageFactory;
+import software.coley.instrument.message.broadcast.AbstractBroadcastMessage;
+import software.coley.instrument.message.broadcast.BroadcastClassMessage;
+import software.coley.instrument.message.broadcast.BroadcastDroppedMessage;
+import software.coley.instrument.message.broadcast.BroadcastSessionMessage;
+import software.coley.instrument.message.control.ControlHelloMessage;
+import software.coley.instrument.message.reply.ReplyBatchMessage;
+import software.coley.instrument.message.reply.ReplyFieldGetMessage;
+import software.coley.instrument.message.reply.ReplyPingMessage;
+import software.coley.instrument.message.reply.ReplyPropertiesMessage;
+import software.coley.instrument.message.request.AbstractRequestMessage;
+import software.coley.instrument.message.request.RequestBatchMessage;
 import software.coley.instrument.message.request.RequestFieldGetMessage;
 import software.coley.instrument.message.request.RequestPingMessage;
 import software.coley.instrument.message.request.RequestPropertiesMessage;
+import software.coley.instrument.message.request.RequestSetPropertyMessage;
 import software.coley.instrument.message.request.RequestThreadsMessage;
+import software.coley.instrument.sock.ChannelHandler;
+import software.coley.instrument.sock.ChannelOptions;
+import software.coley.instrument.sock.ChannelOverflowException;
+import software.coley.instrument.sock.DispatchMode;
+import software.coley.instrument.sock.EncodedFrame;
+import software.coley.instrument.sock.HandshakeTimeoutPolicy;
+import software.coley.instrument.sock.ChannelStats;
+import software.coley.instrument.sock.ChannelReactor;
+import software.coley.instrument.sock.OverflowPolicy;
+import software.coley.instrument.sock.ReplyResult;
+import software.coley.instrument.sock.ResponseListener;
+import software.coley.instrument.sock.SharedMemoryChannel;
+import software.coley.instrument.sock.SlowConsumerPolicy;
+import software.coley.instrument.sock.SocketAvailability;
+import software.coley.instrument.sock.UnixDomainSockets;
+import software.coley.instrument.util.Discovery;
 import software.coley.instrument.util.Logger;
+import software.coley.instrument.util.VirtualThreads;
+import software.coley.instrument.util.WaitStrategy;
 
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -41,6 +102,12 @@ public void test() throws Exception {
 			client.sendBlocking(new RequestPingMessage(), Assertions::assertNotNull);
 		}
 
+		// Waiting on a request does not give it a deadline, which would expire it when sent again
+		RequestPingMessage reused = new RequestPingMessage();
+		client.sendBlocking(reused, Assertions::assertNotNull);
+		assertFalse(reused.hasDeadline());
+		client.sendBlocking(reused, Assertions::assertNotNull);
+
 		// Properties lookup
 		client.sendBlocking(new RequestPropertiesMessage(), reply -> {
 			Map<String, String> results = reply.mapValue();
@@ -60,4 +127,1318 @@ public void test() throws Exception {
 			System.out.println(reply.getValueText());
 		});
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testReactor() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		ChannelReactor reactor = new ChannelReactor(1, 2);
+		ChannelOptions options = new ChannelOptions();
+		options.setReactor(reactor);
+		ByteBufferAllocator allocator = new PooledByteBufferAllocator(ByteBufferAllocator.DIRECT);
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), allocator, factory, options);
+		List<Client> clients = new ArrayList<>();
+		try {
+			// Mix of clients on the shared reactor and on dedicated threads
+			for (int i = 0; i < 8; i++) {
+				Client client = new Client("localhost", port, allocator, factory,
+						i % 2 == 0 ? options : new ChannelOptions());
+				assertTrue(client.connect());
+				clients.add(client);
+			}
+
+			// Each client should receive replies to its own requests
+			for (int i = 0; i < 50; i++) {
+				for (Client client : clients) {
+					assertNotNull(client.sendAsync(new RequestPingMessage(), null)
+							.getReplyFuture().get(5, TimeUnit.SECONDS));
+				}
+			}
+			for (Client client : clients) {
+				assertNotNull(client.sendAsync(new RequestPropertiesMessage(), null)
+						.getReplyFuture().get(5, TimeUnit.SECONDS).mapValue());
+			}
+		} finally {
+			for (Client client : clients)
+				client.close();
+			server.close();
+			reactor.close();
+		}
+	}
+
+	@Test
+	public void testBatchedWrites() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory);
+		// Small ring, so that producers must wait on the write thread to drain it
+		ChannelOptions options = new ChannelOptions();
+		options.setWriteQueueCapacity(64);
+		// Do not return credit for the replies, so that only the pings below are written
+		options.setReceiveWindow(0);
+		Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+		try {
+			assertTrue(client.connect());
+			// Complete the handshake first, so that only the pings below are counted.
+			// The write completes once it is recorded, which may be after the reply arrives.
+			ReplyResult<RequestPingMessage, ReplyPingMessage> warmup = client.sendAsync(new RequestPingMessage(), null);
+			warmup.getReplyFuture().get(5, TimeUnit.SECONDS);
+			warmup.getWriteResult().getFuture().get(5, TimeUnit.SECONDS);
+			ChannelStats stats = client.getStats();
+			long messagesBefore = stats.getMessagesWritten();
+			long bytesBefore = stats.getBytesWritten();
+			long flushesBefore = stats.getFlushCount();
+
+			// Queue many requests at once, they should be flushed in batches
+			int count = 500;
+			List<CompletableFuture<ReplyPingMessage>> replies = new ArrayList<>();
+			for (int i = 0; i < count; i++)
+				replies.add(client.sendAsync(new RequestPingMessage(), null).getReplyFuture());
+			for (CompletableFuture<ReplyPingMessage> reply : replies)
+				assertNotNull(reply.get(5, TimeUnit.SECONDS));
+
+			// Pings have no content, so only the header is written per message.
+			// Compact headers are negotiated by default: flags, frame ID delta, type, and length of one byte each.
+			assertEquals(count, stats.getMessagesWritten() - messagesBefore);
+			assertEquals(count * 4L, stats.getBytesWritten() - bytesBefore);
+			assertTrue(stats.getFlushCount() - flushesBefore <= count);
+
+			// The server takes many of them from each read, out of its read-ahead buffer
+			ChannelStats serverStats = server.getClients().iterator().next().getStats();
+			assertTrue(serverStats.getMessagesPerRead() > 1, "Not read ahead: " + serverStats);
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testDispatchModes() throws Exception {
+		MessageFactory factory = MessageFactory.create();
+		for (DispatchMode mode : DispatchMode.values()) {
+			int port = SocketAvailability.findAvailable();
+			ChannelOptions options = new ChannelOptions();
+			options.setDispatchMode(mode);
+			Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory, options);
+			Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+			try {
+				assertTrue(client.connect());
+				int count = 200;
+				List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+				List<CompletableFuture<ReplyPingMessage>> replies = new ArrayList<>();
+				for (int i = 0; i < count; i++) {
+					int index = i;
+					replies.add(client.sendAsync(new RequestPingMessage(), reply -> handled.add(index)).getReplyFuture());
+				}
+				for (CompletableFuture<ReplyPingMessage> reply : replies)
+					assertNotNull(reply.get(5, TimeUnit.SECONDS), "Missing reply with " + mode);
+				assertEquals(count, handled.size());
+
+				// Both sides handle requests and replies in order, unless dispatching to a pool
+				if (mode != DispatchMode.POOL)
+					for (int i = 0; i < count; i++)
+						assertEquals(i, handled.get(i), "Reply out of order with " + mode);
+			} finally {
+				client.close();
+				server.close();
+			}
+		}
+	}
+
+	@Test
+	public void testVirtualThreads() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		ChannelOptions options = new ChannelOptions();
+		options.setVirtualThreads(true);
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory, options);
+		Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+		try {
+			assertTrue(client.connect());
+
+			// Listener threads are virtual only when supported, otherwise platform threads are used
+			CompletableFuture<Thread> listenerThread = new CompletableFuture<>();
+			client.sendAsync(new RequestPingMessage(), reply -> listenerThread.complete(Thread.currentThread()));
+			Thread thread = listenerThread.get(5, TimeUnit.SECONDS);
+			assertEquals(VirtualThreads.isSupported(), VirtualThreads.isVirtual(thread));
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testFlowControl() throws Exception {
+		MessageFactory factory = MessageFactory.create();
+		ChannelReactor reactor = new ChannelReactor(1, 2);
+		try {
+			for (boolean useReactor : new boolean[]{false, true}) {
+				int port = SocketAvailability.findAvailable();
+				// Small windows and watermarks, so that both sides regularly wait on each other
+				ChannelOptions options = new ChannelOptions();
+				if (useReactor)
+					options.setReactor(reactor);
+				options.setReceiveWindow(8);
+				options.setWriteWatermarks(4, 16);
+				options.setMaxPendingEvents(16);
+				options.setMaxPendingResponses(32);
+				Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory, options);
+				Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+				try {
+					assertTrue(client.connect());
+					int count = 500;
+					List<CompletableFuture<ReplyPingMessage>> replies = new ArrayList<>();
+					for (int i = 0; i < count; i++)
+						replies.add(client.sendAsync(new RequestPingMessage(), null).getReplyFuture());
+					for (CompletableFuture<ReplyPingMessage> reply : replies)
+						assertNotNull(reply.get(5, TimeUnit.SECONDS), "Missing reply, reactor=" + useReactor);
+				} finally {
+					client.close();
+					server.close();
+				}
+			}
+		} finally {
+			reactor.close();
+		}
+	}
+
+	@Test
+	public void testReactorNeverBlocks() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		ChannelReactor reactor = new ChannelReactor(1, 2);
+		// Replies and credit grants are written on the IO thread, which would otherwise wait on itself
+		// once the tiny ring or the watermarks fill up
+		ChannelOptions options = new ChannelOptions();
+		options.setReactor(reactor);
+		options.setDispatchMode(DispatchMode.INLINE);
+		options.setWriteQueueCapacity(2);
+		options.setWriteWatermarks(1, 2);
+		options.setOverflowPolicy(OverflowPolicy.BLOCK);
+		options.setReceiveWindow(2);
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory, options);
+		ChannelOptions clientOptions = new ChannelOptions();
+		clientOptions.setReceiveWindow(2);
+		Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, clientOptions);
+		try {
+			assertTrue(client.connect());
+			int count = 500;
+			List<CompletableFuture<ReplyPingMessage>> replies = new ArrayList<>();
+			for (int i = 0; i < count; i++)
+				replies.add(client.sendAsync(new RequestPingMessage(), null).getReplyFuture());
+			for (CompletableFuture<ReplyPingMessage> reply : replies)
+				assertNotNull(reply.get(5, TimeUnit.SECONDS));
+		} finally {
+			client.close();
+			server.close();
+			reactor.close();
+		}
+	}
+
+	@Test
+	public void testReceiveWindowCountsListeners() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory, new ChannelOptions());
+		// Events are handed to a pool, so only the window keeps the peer from sending more while listeners are busy
+		int window = 4;
+		ChannelOptions options = new ChannelOptions();
+		options.setDispatchMode(DispatchMode.POOL);
+		options.setReceiveWindow(window);
+		Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+		CountDownLatch subscribed = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger entered = new AtomicInteger();
+		AtomicInteger completed = new AtomicInteger();
+		client.setBroadcastListener((type, message) -> {
+			if (message instanceof BroadcastSessionMessage) {
+				subscribed.countDown();
+				return;
+			}
+			entered.incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException ignored) {
+			}
+			completed.incrementAndGet();
+		});
+		try {
+			assertTrue(client.connect());
+			assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+			int count = 50;
+			for (int i = 0; i < count; i++)
+				server.broadcast(new BroadcastClassMessage(new ClassData("W" + i, 0, new byte[0])));
+			Thread.sleep(500);
+			assertTrue(entered.get() <= window, "Frames beyond the window: " + entered.get());
+			release.countDown();
+			long end = System.currentTimeMillis() + 5000;
+			while (completed.get() < count && System.currentTimeMillis() < end)
+				Thread.sleep(10);
+			assertEquals(count, completed.get());
+		} finally {
+			release.countDown();
+			client.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testOverflowFail() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		// Peer which grants two frames of credit, then never reads or replies
+		try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+			peer.bind(new InetSocketAddress("localhost", port));
+			ChannelOptions options = new ChannelOptions();
+			options.setOverflowPolicy(OverflowPolicy.FAIL);
+			options.setWriteWatermarks(1, 4);
+			options.setMaxPendingResponses(1);
+			Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+			try {
+				assertTrue(client.connect());
+				try (SocketChannel accepted = peer.accept()) {
+					handshake(accepted, factory);
+					// Only one reply may be pending
+					client.sendAsync(new RequestPingMessage(), null);
+					assertThrows(ChannelOverflowException.class, () -> client.sendAsync(new RequestPingMessage(), null));
+
+					// Once out of credit, writes are held until the high watermark is reached
+					ByteBuffer credit = ByteBuffer.allocate(14);
+					credit.putInt(ApiConstants.CONTROL_MESSAGE_ID);
+					credit.putShort((short) MessageConstants.ID_CTL_CREDIT);
+					credit.putInt(4);
+					credit.putInt(2);
+					credit.flip();
+					accepted.write(credit);
+					long deadline = System.currentTimeMillis() + 5000;
+					assertThrows(ChannelOverflowException.class, () -> {
+						while (System.currentTimeMillis() < deadline) {
+							client.sendAsync(new RequestPingMessage());
+							Thread.sleep(1);
+						}
+					});
+				}
+			} finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void testInterruptedWriteReleased() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		// Peer which completes the handshake, then never reads
+		try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+			peer.setOption(StandardSocketOptions.SO_RCVBUF, 16 * 1024);
+			peer.bind(new InetSocketAddress("localhost", port));
+			SocketChannel channel = SocketChannel.open();
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, 16 * 1024);
+			channel.connect(new InetSocketAddress("localhost", port));
+			ChannelOptions options = new ChannelOptions();
+			options.setWriteQueueCapacity(2);
+			options.setOverflowPolicy(OverflowPolicy.FAIL);
+			options.setWriteWatermarks(4, 16);
+			ChannelHandler handler = new ChannelHandler(channel, ByteBufferAllocator.HEAP, factory, options, null);
+			try (SocketChannel accepted = peer.accept()) {
+				handler.start();
+				handshake(accepted, factory);
+
+				// Once the queue is full, each write is interrupted while waiting for space.
+				// Those writes were never queued, so must not count towards the high watermark.
+				char[] value = new char[64 * 1024];
+				Arrays.fill(value, 'v');
+				RequestSetPropertyMessage message = new RequestSetPropertyMessage("interrupted", new String(value));
+				int interrupted = 0;
+				for (int i = 0; i < 40; i++) {
+					Thread.currentThread().interrupt();
+					try {
+						handler.write(message, handler.getNextFrameId());
+					} catch (ChannelOverflowException ex) {
+						fail("Interrupted writes were counted as unsent", ex);
+					} catch (IllegalStateException ex) {
+						interrupted++;
+					} finally {
+						Thread.interrupted();
+					}
+				}
+				assertTrue(interrupted > 16, "Only " + interrupted + " writes waited for space");
+			} finally {
+				handler.shutdown();
+				channel.close();
+			}
+		}
+	}
+
+	@Test
+	public void testWriteFailureShutdown() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		factory.register(0x701, StructureCodec.compose(input -> new BrokenRequestMessage(), (output, value) -> {
+			throw new IllegalStateException("Cannot encode");
+		}));
+		try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+			peer.bind(new InetSocketAddress("localhost", port));
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+			CountDownLatch closed = new CountDownLatch(1);
+			ChannelHandler handler = new ChannelHandler(channel, ByteBufferAllocator.HEAP, factory, new ChannelOptions(),
+					ch -> closed.countDown());
+			try (SocketChannel accepted = peer.accept()) {
+				handler.start();
+				handshake(accepted, factory);
+
+				// A message which cannot be encoded takes down the channel, rather than only its writer
+				CompletableFuture<Void> write = handler.write(new BrokenRequestMessage(), handler.getNextFrameId()).getFuture();
+				assertTrue(closed.await(5, TimeUnit.SECONDS));
+				assertThrows(CancellationException.class, () -> write.get(5, TimeUnit.SECONDS));
+			} finally {
+				handler.shutdown();
+				channel.close();
+			}
+		}
+	}
+
+	@Test
+	public void testResponseListenerAfterShutdown() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+			peer.bind(new InetSocketAddress("localhost", port));
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+			ChannelHandler handler = new ChannelHandler(channel, ByteBufferAllocator.HEAP, factory, null);
+			try (SocketChannel accepted = peer.accept()) {
+				handler.start();
+				handler.shutdown();
+
+				// Listeners racing the shutdown fail right away, rather than once they expire
+				CompletableFuture<Throwable> failure = new CompletableFuture<>();
+				handler.addResponseListener(handler.getNextFrameId(), new ResponseListener() {
+					@Override
+					public void onReceive(int frameId, AbstractMessage message) {
+						failure.completeExceptionally(new AssertionError("Unexpected response: " + message));
+					}
+
+					@Override
+					public void onFailure(int frameId, Throwable cause) {
+						failure.complete(cause);
+					}
+				});
+				assertInstanceOf(ClosedChannelException.class, failure.getNow(null));
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	@Test
+	public void testPriorityLanes() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		// Small socket buffers, so that broadcasts back up in the handler rather than in the socket
+		try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+			peer.setOption(StandardSocketOptions.SO_RCVBUF, 16 * 1024);
+			peer.bind(new InetSocketAddress("localhost", port));
+			SocketChannel channel = SocketChannel.open();
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, 16 * 1024);
+			channel.connect(new InetSocketAddress("localhost", port));
+			ChannelHandler handler = new ChannelHandler(channel, ByteBufferAllocator.HEAP, factory, null);
+			try (SocketChannel accepted = peer.accept()) {
+				handler.start();
+				handshake(accepted, factory);
+
+				// A storm of broadcasts, then a request queued behind it
+				int count = 400;
+				byte[] code = new byte[16 * 1024];
+				for (int i = 0; i < count; i++)
+					handler.write(new BroadcastClassMessage(new ClassData("Storm" + i, 0, code)),
+							ApiConstants.BROADCAST_MESSAGE_ID);
+				handler.write(new RequestPingMessage(), handler.getNextFrameId());
+
+				// The request overtakes all but the broadcasts already being written
+				int broadcastsBefore = 0;
+				while (true) {
+					ByteBuffer header = readFully(accepted, 10);
+					header.getInt();
+					int type = header.getShort();
+					readFully(accepted, header.getInt());
+					if (type == MessageConstants.ID_REQ_PING)
+						break;
+					assertEquals(MessageConstants.ID_BROADCAST_CLASS, type);
+					broadcastsBefore++;
+				}
+				assertTrue(broadcastsBefore < count / 2, "Request waited for " + broadcastsBefore + " broadcasts");
+			} finally {
+				handler.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void testShutdownReleasesWrites() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		// Peer which completes the handshake, then never reads
+		try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+			peer.setOption(StandardSocketOptions.SO_RCVBUF, 16 * 1024);
+			peer.bind(new InetSocketAddress("localhost", port));
+			SocketChannel channel = SocketChannel.open();
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, 16 * 1024);
+			channel.connect(new InetSocketAddress("localhost", port));
+			// Chunked, so that some of the writes are streams in progress
+			ChannelOptions options = new ChannelOptions();
+			options.setChunkSize(8 * 1024);
+			ChannelHandler handler = new ChannelHandler(channel, ByteBufferAllocator.HEAP, factory, options, null);
+			try (SocketChannel accepted = peer.accept()) {
+				handler.start();
+				handshake(accepted, factory);
+				EncodedFrame<BroadcastClassMessage> frame = EncodedFrame.encode(
+						new BroadcastClassMessage(new ClassData("Stuck", 0, new byte[64 * 1024])), factory,
+						ByteBufferAllocator.HEAP);
+				List<CompletableFuture<Void>> writes = new ArrayList<>();
+				for (int i = 0; i < 50; i++)
+					writes.add(handler.write(frame, ApiConstants.BROADCAST_MESSAGE_ID).getFuture());
+				frame.release();
+
+				// Every write is done with once shut down, sent or not, and so is the frame
+				handler.shutdown();
+				for (CompletableFuture<Void> write : writes)
+					write.handle((ignored, error) -> null).get(5, TimeUnit.SECONDS);
+				long deadline = System.currentTimeMillis() + 5000;
+				while (frame.getReferenceCount() > 0 && System.currentTimeMillis() < deadline)
+					Thread.sleep(1);
+				assertEquals(0, frame.getReferenceCount());
+
+				// Writes after shutdown are dropped right away
+				assertTrue(handler.write(new RequestPingMessage(), handler.getNextFrameId()).getFuture().isCancelled());
+			} finally {
+				handler.shutdown();
+				channel.close();
+			}
+		}
+	}
+
+	@Test
+	public void testSlowConsumer() throws Exception {
+		MessageFactory factory = MessageFactory.create();
+		int count = 100;
+		byte[] code = new byte[16 * 1024];
+		for (SlowConsumerPolicy policy : SlowConsumerPolicy.values()) {
+			int port = SocketAvailability.findAvailable();
+			// Small socket buffers, so that the peer not reading backs up broadcasts in the handler
+			try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+				peer.setOption(StandardSocketOptions.SO_RCVBUF, 16 * 1024);
+				peer.bind(new InetSocketAddress("localhost", port));
+				SocketChannel channel = SocketChannel.open();
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, 16 * 1024);
+				channel.connect(new InetSocketAddress("localhost", port));
+				ChannelOptions options = new ChannelOptions();
+				options.setMaxBroadcastLag(64 * 1024);
+				options.setSlowConsumerPolicy(policy);
+				CompletableFuture<Void> closed = new CompletableFuture<>();
+				ChannelHandler handler = new ChannelHandler(channel, ByteBufferAllocator.HEAP, factory, options,
+						h -> closed.complete(null));
+				try (SocketChannel accepted = peer.accept()) {
+					handler.start();
+					handshake(accepted, factory);
+
+					// Broadcasts beyond the max lag are not queued
+					for (int i = 0; i < count; i++) {
+						BroadcastClassMessage message = new BroadcastClassMessage(new ClassData("Slow" + i, 0, code));
+						EncodedFrame<BroadcastClassMessage> frame = EncodedFrame.encode(message, factory, ByteBufferAllocator.HEAP);
+						try {
+							handler.write(frame, ApiConstants.BROADCAST_MESSAGE_ID);
+						} finally {
+							frame.release();
+						}
+					}
+					ChannelStats stats = handler.getStats();
+					if (policy == SlowConsumerPolicy.DISCONNECT) {
+						closed.get(5, TimeUnit.SECONDS);
+						continue;
+					}
+					assertTrue(handler.isBroadcastLagging(), "Not lagging, policy=" + policy);
+					assertTrue(stats.getBroadcastLag() >= options.getMaxBroadcastLag());
+
+					// Once the peer catches up it is told what it missed
+					int full = 0;
+					int summarized = 0;
+					int dropped = 0;
+					while (full + summarized + dropped < count) {
+						ByteBuffer header = readFully(accepted, 10);
+						header.getInt();
+						int type = header.getShort();
+						ByteBuffer content = readFully(accepted, header.getInt());
+						if (type == MessageConstants.ID_BROADCAST_DROPPED) {
+							dropped += BroadcastDroppedMessage.CODEC.decode(new ByteBufferDataInput(content)).getCount();
+							continue;
+						}
+						assertEquals(MessageConstants.ID_BROADCAST_CLASS, type);
+						ClassData data = BroadcastClassMessage.CODEC.decode(new ByteBufferDataInput(content)).getData();
+						if (data.getCode().length == 0)
+							summarized++;
+						else
+							full++;
+					}
+					if (policy == SlowConsumerPolicy.DROP) {
+						assertTrue(dropped > 0);
+						assertEquals(dropped, stats.getBroadcastsDropped());
+					} else {
+						assertTrue(summarized > 0);
+						assertEquals(summarized, stats.getBroadcastsSummarized());
+					}
+					assertEquals(0, stats.getBroadcastLag());
+					assertFalse(handler.isBroadcastLagging());
+				} finally {
+					handler.shutdown();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSharedBroadcast() throws Exception {
+		MessageFactory factory = MessageFactory.create();
+		// Partly compressible class content, large enough to be chunked
+		byte[] code = new byte[16 * 1024];
+		for (int i = 0; i < code.length; i += 2)
+			code[i] = (byte) (i * 31);
+		for (boolean compress : new boolean[]{false, true}) {
+			int port = SocketAvailability.findAvailable();
+			ChannelOptions serverOptions = new ChannelOptions();
+			if (compress)
+				serverOptions.setCompressionThreshold(ChannelOptions.DEFAULT_COMPRESSION_THRESHOLD);
+			PooledByteBufferAllocator allocator = new PooledByteBufferAllocator(ByteBufferAllocator.HEAP);
+			Server server = Server.open(null, new InetSocketAddress("localhost", port), allocator, factory, serverOptions);
+			// Each client has the broadcast sent differently: whole, in chunks, or with a fixed size header
+			ChannelOptions chunked = new ChannelOptions();
+			chunked.setChunkSize(1024);
+			ChannelOptions fixedHeaders = new ChannelOptions();
+			fixedHeaders.setCompactHeaders(false);
+			List<Client> clients = new ArrayList<>();
+			List<CompletableFuture<BroadcastClassMessage>> received = new ArrayList<>();
+			try {
+				for (ChannelOptions options : Arrays.asList(new ChannelOptions(), chunked, fixedHeaders)) {
+					Client client = new Client("localhost", port, allocator, factory, options);
+					CompletableFuture<BroadcastClassMessage> future = new CompletableFuture<>();
+					client.setBroadcastListener((type, message) -> {
+						// Preceded by the session the client was given
+						if (message instanceof BroadcastClassMessage)
+							future.complete((BroadcastClassMessage) message);
+					});
+					assertTrue(client.connect());
+					// Handshake is complete on both sides once a reply arrives
+					client.request(new RequestPingMessage()).get(5, TimeUnit.SECONDS);
+					clients.add(client);
+					received.add(future);
+				}
+				server.broadcast(new BroadcastClassMessage(new ClassData("Shared", 0, code)));
+				for (CompletableFuture<BroadcastClassMessage> future : received) {
+					ClassData data = future.get(5, TimeUnit.SECONDS).getData();
+					assertEquals("Shared", data.getName());
+					assertArrayEquals(code, data.getCode(), "Broadcast content differs, compress=" + compress);
+				}
+
+				// Every channel releases its reference once written
+				EncodedFrame<BroadcastClassMessage> frame =
+						EncodedFrame.encode(new BroadcastClassMessage(new ClassData("Counted", 0, code)), factory, allocator);
+				List<CompletableFuture<Void>> writes = new ArrayList<>();
+				for (ChannelHandler handler : server.getClients())
+					writes.add(handler.write(frame, ApiConstants.BROADCAST_MESSAGE_ID).getFuture());
+				frame.release();
+				for (CompletableFuture<Void> write : writes)
+					write.get(5, TimeUnit.SECONDS);
+				// Released just after each write future completes
+				long deadline = System.currentTimeMillis() + 5000;
+				while (frame.getReferenceCount() > 0 && System.currentTimeMillis() < deadline)
+					Thread.sleep(1);
+				assertEquals(0, frame.getReferenceCount());
+				assertThrows(IllegalStateException.class, frame::retain);
+			} finally {
+				for (Client client : clients)
+					client.close();
+				server.close();
+			}
+		}
+	}
+
+	@Test
+	public void testSessionResume() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		byte[] code = new byte[4 * 1024];
+		for (int i = 0; i < code.length; i += 2)
+			code[i] = (byte) (i * 31);
+		ChannelOptions serverOptions = new ChannelOptions();
+		serverOptions.setCompressionThreshold(ChannelOptions.DEFAULT_COMPRESSION_THRESHOLD);
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory, serverOptions);
+		// Broadcasts are handled in the order received, whole or in chunks
+		ChannelOptions options = new ChannelOptions();
+		options.setDispatchMode(DispatchMode.ORDERED);
+		ChannelOptions chunked = new ChannelOptions();
+		chunked.setDispatchMode(DispatchMode.ORDERED);
+		chunked.setChunkSize(1024);
+		BlockingQueue<AbstractBroadcastMessage> received = new LinkedBlockingQueue<>();
+		Client client = null;
+		try {
+			client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+			client.setBroadcastListener((type, message) -> received.add(message));
+			assertTrue(client.connect());
+			BroadcastSessionMessage session = (BroadcastSessionMessage) received.poll(5, TimeUnit.SECONDS);
+			assertNotNull(session);
+			assertFalse(session.isResumed());
+			assertEquals(0, session.getLastSequence());
+			for (int i = 1; i <= 3; i++)
+				server.broadcast(new BroadcastClassMessage(new ClassData("C" + i, 0, code)));
+			for (int i = 1; i <= 3; i++)
+				assertEquals(i, received.poll(5, TimeUnit.SECONDS).getSequence());
+			long token = client.getSessionToken();
+			assertEquals(session.getToken(), token);
+			assertEquals(3, client.getLastBroadcastSequence());
+
+			// Missed while disconnected, and replayed on resuming ahead of anything new
+			client.close();
+			awaitNoClients(server);
+			for (int i = 4; i <= 6; i++)
+				server.broadcast(new BroadcastClassMessage(new ClassData("C" + i, 0, code)));
+			client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, chunked);
+			client.setBroadcastListener((type, message) -> received.add(message));
+			client.resumeSession(token, 3);
+			assertTrue(client.connect());
+			session = (BroadcastSessionMessage) received.poll(5, TimeUnit.SECONDS);
+			assertTrue(session.isResumed());
+			assertEquals(token, session.getToken());
+			assertEquals(3, session.getLastSequence());
+			server.broadcast(new BroadcastClassMessage(new ClassData("C7", 0, code)));
+			for (int i = 4; i <= 7; i++) {
+				ClassData data = ((BroadcastClassMessage) received.poll(5, TimeUnit.SECONDS)).getData();
+				assertEquals("C" + i, data.getName());
+				assertArrayEquals(code, data.getCode());
+			}
+			assertEquals(7, client.getLastBroadcastSequence());
+
+			// Missed more than the log holds, so the client has to sync in full
+			server.setBroadcastLogCapacity(code.length * 2);
+			client.close();
+			awaitNoClients(server);
+			for (int i = 8; i <= 10; i++)
+				server.broadcast(new BroadcastClassMessage(new ClassData("C" + i, 0, code)));
+			client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+			client.setBroadcastListener((type, message) -> received.add(message));
+			client.resumeSession(token, 7);
+			assertTrue(client.connect());
+			session = (BroadcastSessionMessage) received.poll(5, TimeUnit.SECONDS);
+			assertFalse(session.isResumed());
+			assertEquals(10, session.getLastSequence());
+			server.broadcast(new BroadcastClassMessage(new ClassData("C11", 0, code)));
+			assertEquals(11, received.poll(5, TimeUnit.SECONDS).getSequence());
+			assertEquals(11, client.getLastBroadcastSequence());
+
+			// Unknown sessions are started anew
+			client.close();
+			awaitNoClients(server);
+			client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+			client.setBroadcastListener((type, message) -> received.add(message));
+			client.resumeSession(token + 1, 11);
+			assertTrue(client.connect());
+			session = (BroadcastSessionMessage) received.poll(5, TimeUnit.SECONDS);
+			assertFalse(session.isResumed());
+			assertNotEquals(token + 1, session.getToken());
+			assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+		} finally {
+			if (client != null)
+				client.close();
+			server.close();
+		}
+	}
+
+	private static void awaitNoClients(Server server) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!server.getClients().isEmpty() && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		assertTrue(server.getClients().isEmpty());
+	}
+
+	@Test
+	public void testChunkedMessages() throws Exception {
+		MessageFactory factory = MessageFactory.create();
+		ChannelReactor reactor = new ChannelReactor(1, 2);
+		try {
+			for (boolean useReactor : new boolean[]{false, true}) {
+				int port = SocketAvailability.findAvailable();
+				// Properties replies span many chunks of this size, pings fit in one
+				ChannelOptions options = new ChannelOptions();
+				if (useReactor)
+					options.setReactor(reactor);
+				options.setChunkSize(ChannelOptions.MIN_CHUNK_SIZE);
+				PooledByteBufferAllocator allocator = new PooledByteBufferAllocator(ByteBufferAllocator.HEAP);
+				Server server = Server.open(null, new InetSocketAddress("localhost", port), allocator, factory, options);
+				Client client = new Client("localhost", port, allocator, factory, options);
+				try {
+					assertTrue(client.connect());
+					List<CompletableFuture<?>> replies = new ArrayList<>();
+					List<CompletableFuture<ReplyPropertiesMessage>> properties = new ArrayList<>();
+					for (int i = 0; i < 20; i++) {
+						CompletableFuture<ReplyPropertiesMessage> reply = client.sendAsync(new RequestPropertiesMessage(), null).getReplyFuture();
+						properties.add(reply);
+						replies.add(reply);
+						replies.add(client.sendAsync(new RequestPingMessage(), null).getReplyFuture());
+					}
+					for (CompletableFuture<?> reply : replies)
+						assertNotNull(reply.get(5, TimeUnit.SECONDS), "Missing reply, reactor=" + useReactor);
+					for (CompletableFuture<ReplyPropertiesMessage> reply : properties)
+						assertEquals(System.getProperty("java.version"), reply.get().mapValue().get("java.version"));
+				} finally {
+					client.close();
+					server.close();
+				}
+			}
+		} finally {
+			reactor.close();
+		}
+	}
+
+	@Test
+	public void testChunkedMessageLimit() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		ChannelOptions serverOptions = new ChannelOptions();
+		serverOptions.setChunkSize(ChannelOptions.MIN_CHUNK_SIZE);
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory, serverOptions);
+		// Properties replies are larger than this, and close the channel instead of being held
+		ChannelOptions options = new ChannelOptions();
+		options.setMaxStreamBytes(1024, 1024);
+		Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+		try {
+			assertTrue(client.connect());
+			assertNotNull(client.sendAsync(new RequestPingMessage(), null).getReplyFuture().get(5, TimeUnit.SECONDS));
+			CompletableFuture<ReplyPropertiesMessage> reply = client.sendAsync(new RequestPropertiesMessage(), null).getReplyFuture();
+			ExecutionException ex = assertThrows(ExecutionException.class, () -> reply.get(5, TimeUnit.SECONDS));
+			assertInstanceOf(ClosedChannelException.class, ex.getCause());
+			assertThrows(IllegalArgumentException.class, () -> options.setMaxStreamBytes(2048, 1024));
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testPipelinedRequests() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory);
+		Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory);
+		client.setMaxInFlight(8);
+		ExecutorService service = Executors.newFixedThreadPool(4);
+		try {
+			assertTrue(client.connect());
+
+			// Many threads sharing the client, each with many requests outstanding
+			List<Future<List<CompletableFuture<?>>>> submitted = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				submitted.add(service.submit(() -> {
+					List<CompletableFuture<?>> replies = new ArrayList<>();
+					for (int i = 0; i < 250; i++) {
+						replies.add(i % 10 == 0 ?
+								client.request(new RequestPropertiesMessage()) :
+								client.request(new RequestPingMessage()));
+						assertTrue(client.getInFlight() <= 8);
+					}
+					return replies;
+				}));
+			}
+			for (Future<List<CompletableFuture<?>>> future : submitted)
+				for (CompletableFuture<?> reply : future.get(5, TimeUnit.SECONDS))
+					assertNotNull(reply.get(5, TimeUnit.SECONDS));
+			assertEquals(0, client.getInFlight());
+		} finally {
+			service.shutdownNow();
+			client.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testResponseExpiry() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		// Peer which never replies
+		try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+			peer.bind(new InetSocketAddress("localhost", port));
+			ChannelOptions options = new ChannelOptions();
+			options.setResponseExpiryMillis(50);
+			Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+			try {
+				assertTrue(client.connect());
+				try (SocketChannel ignored = peer.accept()) {
+					CompletableFuture<ReplyPingMessage> first = client.sendAsync(new RequestPingMessage(), null).getReplyFuture();
+					Thread.sleep(100);
+
+					// Expired listeners are removed as later requests are made
+					CompletableFuture<ReplyPingMessage> second = client.sendAsync(new RequestPingMessage(), null).getReplyFuture();
+					ExecutionException ex = assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+					assertInstanceOf(TimeoutException.class, ex.getCause());
+					assertFalse(second.isDone());
+
+					// Closing fails the rest
+					client.close();
+					ex = assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+					assertInstanceOf(ClosedChannelException.class, ex.getCause());
+				}
+			} finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void testRequestDeadlineAndCancel() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		// Peer which reads requests, but never replies
+		try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+			peer.bind(new InetSocketAddress("localhost", port));
+			Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory);
+			try {
+				assertTrue(client.connect());
+				try (SocketChannel accepted = peer.accept()) {
+					handshake(accepted, factory);
+					// The request carries the time remaining until its deadline
+					RequestPingMessage ping = new RequestPingMessage();
+					ping.setTimeout(10, TimeUnit.SECONDS);
+					ReplyResult<RequestPingMessage, ReplyPingMessage> result = client.sendAsync(ping, null);
+					ByteBuffer frame = readFully(accepted, 14);
+					int frameId = frame.getInt();
+					assertEquals(result.getWriteResult().getFrameId(), frameId);
+					short type = frame.getShort();
+					assertEquals(MessageConstants.ID_REQ_PING, type & 0x0FFF);
+					assertNotEquals(0, type & 0xF000);
+					assertEquals(4, frame.getInt());
+					int remaining = frame.getInt();
+					assertTrue(remaining > 9000 && remaining <= 10000, "Unexpected remaining time: " + remaining);
+
+					// Giving up on the reply tells the peer
+					result.getReplyFuture().cancel(false);
+					frame = readFully(accepted, 14);
+					assertEquals(ApiConstants.CONTROL_MESSAGE_ID, frame.getInt());
+					assertEquals(MessageConstants.ID_CTL_CANCEL, frame.getShort());
+					assertEquals(4, frame.getInt());
+					assertEquals(frameId, frame.getInt());
+				}
+			} finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void testPipelinedRequestCancel() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		// Peer which reads requests, but never replies
+		try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+			peer.bind(new InetSocketAddress("localhost", port));
+			Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory);
+			client.setMaxInFlight(1);
+			try {
+				assertTrue(client.connect());
+				try (SocketChannel accepted = peer.accept()) {
+					handshake(accepted, factory);
+					CompletableFuture<ReplyPingMessage> sent = client.request(new RequestPingMessage());
+					CompletableFuture<ReplyPropertiesMessage> queued = client.request(new RequestPropertiesMessage());
+					ByteBuffer frame = readFully(accepted, 10);
+					int frameId = frame.getInt();
+					assertEquals(MessageConstants.ID_REQ_PING, frame.getShort());
+					readFully(accepted, frame.getInt());
+
+					// A queued request is dropped, and a sent one is cancelled on the peer
+					assertTrue(queued.cancel(false));
+					assertTrue(sent.cancel(false));
+					frame = readFully(accepted, 14);
+					assertEquals(ApiConstants.CONTROL_MESSAGE_ID, frame.getInt());
+					assertEquals(MessageConstants.ID_CTL_CANCEL, frame.getShort());
+					assertEquals(4, frame.getInt());
+					assertEquals(frameId, frame.getInt());
+					assertEquals(0, client.getInFlight());
+
+					// The freed slot goes to the next request, not the dropped one
+					client.request(new RequestPingMessage());
+					frame = readFully(accepted, 10);
+					frame.getInt();
+					assertEquals(MessageConstants.ID_REQ_PING, frame.getShort());
+				}
+			} finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void testExpiredRequestSkipped() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory);
+		SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", port));
+		ChannelHandler handler = new ChannelHandler(socket, ByteBufferAllocator.HEAP, factory, null);
+		try {
+			List<Integer> replied = Collections.synchronizedList(new ArrayList<>());
+			CompletableFuture<Void> pong = new CompletableFuture<>();
+			handler.setAllResponsesListener((frameId, message) -> {
+				replied.add(frameId);
+				if (message instanceof ReplyPingMessage)
+					pong.complete(null);
+			});
+			handler.start();
+
+			// Already expired when it arrives, so the server does not handle it
+			RequestPropertiesMessage expired = new RequestPropertiesMessage();
+			expired.setDeadline(System.nanoTime() - 1);
+			handler.write(expired, 1);
+			handler.write(new RequestPingMessage(), 2);
+			pong.get(5, TimeUnit.SECONDS);
+			Thread.sleep(100);
+			assertEquals(Collections.singletonList(2), replied);
+		} finally {
+			handler.shutdown();
+			socket.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testUnixDomainSocket() throws Exception {
+		Assumptions.assumeTrue(UnixDomainSockets.isSupported(), "Requires Java 16+");
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory);
+		Path socketPath;
+		try {
+			socketPath = server.openUnixDomainSocket();
+			assertNotNull(socketPath);
+			assertTrue(Files.exists(socketPath));
+
+			// Path is published alongside the port
+			assertEquals(socketPath.toString(), Discovery.extractSocketPath(System.getProperties()));
+			assertEquals(port, Discovery.extractPort(System.getProperties()));
+
+			Client client = new Client(socketPath, ByteBufferAllocator.HEAP, factory);
+			assertTrue(client.connect());
+			assertNull(client.getHostAddress());
+			try {
+				ReplyPingMessage reply = client.request(new RequestPingMessage()).get(5, TimeUnit.SECONDS);
+				assertNotNull(reply);
+				assertEquals(1, server.getClients().size());
+			} finally {
+				client.close();
+			}
+		} finally {
+			server.close();
+		}
+		assertFalse(Files.exists(socketPath));
+		assertNull(Discovery.extractSocketPath(System.getProperties()));
+		// Other servers in this JVM may still be published
+		assertNotEquals(port, Discovery.extractPort(System.getProperties()));
+	}
+
+	@Test
+	public void testSharedMemory() throws Exception {
+		Assumptions.assumeTrue(SharedMemoryChannel.isSupported(), "Requires Java 9+");
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		ChannelOptions options = new ChannelOptions();
+		options.setReactor(new ChannelReactor(1, 2));
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory, options);
+		try {
+			Path path = server.openSharedMemory();
+			assertNotNull(path);
+			assertEquals(path.toString(), Discovery.extractSharedMemoryPath(System.getProperties()));
+
+			// The rings are re-created for each client in turn
+			for (int i = 0; i < 2; i++) {
+				SharedMemoryChannel channel = openSharedMemory(path);
+				Client client = new Client(channel, ByteBufferAllocator.HEAP, factory, new ChannelOptions());
+				assertTrue(client.connect());
+				try {
+					// Large enough to wrap around the rings many times
+					StringBuilder sb = new StringBuilder();
+					while (sb.length() < SharedMemoryChannel.DEFAULT_CAPACITY * 2)
+						sb.append("shared-memory-value-");
+					RequestSetPropertyMessage set = new RequestSetPropertyMessage("shm.test", sb.toString());
+					client.request(set).get(10, TimeUnit.SECONDS);
+					ReplyPropertiesMessage reply = client.request(new RequestPropertiesMessage()).get(10, TimeUnit.SECONDS);
+					assertTrue(reply.getProperties().contains(sb.toString()));
+				} finally {
+					client.close();
+					System.getProperties().remove("shm.test");
+				}
+			}
+		} finally {
+			server.close();
+			options.getReactor().close();
+		}
+		assertNull(Discovery.extractSharedMemoryPath(System.getProperties()));
+	}
+
+	@Test
+	public void testCompression() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		// Only the client compresses, the server only has to understand it
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory);
+		ChannelOptions options = new ChannelOptions();
+		options.setCompressionThreshold(ChannelOptions.DEFAULT_COMPRESSION_THRESHOLD);
+		options.setChunkSize(64 * 1024);
+		Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory, options);
+		try {
+			assertTrue(client.connect());
+			// Compression is used once the server's hello arrives
+			client.request(new RequestPingMessage()).get(5, TimeUnit.SECONDS);
+
+			// Highly compressible, and large enough to be sent in chunks, each compressed on its own
+			StringBuilder sb = new StringBuilder();
+			while (sb.length() < 1024 * 1024)
+				sb.append("compressed-property-value-");
+			String value = sb.toString();
+			long before = client.getStats().getBytesWritten();
+			client.request(new RequestSetPropertyMessage("compress.test", value)).get(5, TimeUnit.SECONDS);
+			long written = client.getStats().getBytesWritten() - before;
+			assertTrue(written < value.length() / 10, "Not compressed: " + written);
+			assertEquals(value, System.getProperty("compress.test"));
+
+			// Replies are not compressed, but still arrive intact
+			ReplyPropertiesMessage reply = client.request(new RequestPropertiesMessage()).get(5, TimeUnit.SECONDS);
+			assertTrue(reply.getProperties().contains(value));
+			long serverWritten = 0;
+			for (ChannelHandler handler : server.getClients())
+				serverWritten += handler.getStats().getBytesWritten();
+			assertTrue(serverWritten > value.length());
+		} finally {
+			client.close();
+			server.close();
+			System.getProperties().remove("compress.test");
+		}
+	}
+
+	@Test
+	public void testHandshake() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory serverFactory = MessageFactory.create();
+		// Client knows of a message the server does not
+		MessageFactory clientFactory = MessageFactory.create();
+		clientFactory.register(0x700, CommonCodecs.emptyMessage(UnknownRequestMessage::new));
+		ChannelOptions serverOptions = new ChannelOptions();
+		serverOptions.setMaxFrameSize(4096);
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP,
+				serverFactory, serverOptions);
+		Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, clientFactory);
+		try {
+			assertTrue(client.connect());
+			client.request(new RequestPingMessage()).get(5, TimeUnit.SECONDS);
+			ControlHelloMessage hello = client.getServerHello();
+			assertNotNull(hello);
+			assertEquals(ApiConstants.PROTOCOL_VERSION, hello.getVersion());
+			assertEquals(4096, hello.getMaxFrameSize());
+			assertTrue(hello.supportsMessage(MessageConstants.ID_REQ_PING));
+			assertFalse(hello.supportsMessage(0x700));
+
+			// The client does not chunk by default, but must to fit the server's max frame size
+			StringBuilder sb = new StringBuilder();
+			while (sb.length() < 64 * 1024)
+				sb.append(sb.length());
+			String value = sb.toString();
+			client.request(new RequestSetPropertyMessage("handshake.test", value)).get(5, TimeUnit.SECONDS);
+			assertEquals(value, System.getProperty("handshake.test"));
+
+			// Messages the server cannot decode are never sent
+			ExecutionException ex = assertThrows(ExecutionException.class,
+					() -> client.request(new UnknownRequestMessage()).get(5, TimeUnit.SECONDS));
+			assertInstanceOf(UnsupportedOperationException.class, ex.getCause());
+			RequestBatchMessage batch = new RequestBatchMessage(Arrays.asList(new RequestPingMessage(), new UnknownRequestMessage()));
+			ex = assertThrows(ExecutionException.class, () -> client.request(batch).get(5, TimeUnit.SECONDS));
+			assertInstanceOf(UnsupportedOperationException.class, ex.getCause());
+			client.request(new RequestPingMessage()).get(5, TimeUnit.SECONDS);
+		} finally {
+			client.close();
+			server.close();
+			System.getProperties().remove("handshake.test");
+		}
+	}
+
+	@Test
+	public void testHandshakeTimeoutBaseline() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		// Peer which does not send its hello in time
+		try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+			peer.bind(new InetSocketAddress("localhost", port));
+			ChannelOptions options = new ChannelOptions();
+			options.setHandshakeTimeoutMillis(200);
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+			CountDownLatch closed = new CountDownLatch(1);
+			ChannelHandler handler = new ChannelHandler(channel, ByteBufferAllocator.HEAP, factory, options,
+					ch -> closed.countDown());
+			try (SocketChannel accepted = peer.accept()) {
+				handler.start();
+				ByteBuffer header = readFully(accepted, 10);
+				assertEquals(ApiConstants.CONTROL_MESSAGE_ID, header.getInt());
+				assertEquals(MessageConstants.ID_CTL_HELLO, header.getShort());
+				readFully(accepted, header.getInt());
+				handler.write(new RequestPingMessage(), handler.getNextFrameId());
+				assertNull(handler.awaitHandshake(10, TimeUnit.MILLISECONDS));
+
+				// Held writes go out with fixed headers once it times out
+				while (true) {
+					header = readFully(accepted, 10);
+					int frameId = header.getInt();
+					int type = header.getShort();
+					readFully(accepted, header.getInt());
+					if (frameId != ApiConstants.CONTROL_MESSAGE_ID) {
+						assertEquals(MessageConstants.ID_REQ_PING, type);
+						break;
+					}
+				}
+				ControlHelloMessage hello = handler.awaitHandshake(5, TimeUnit.SECONDS);
+				assertNotNull(hello);
+				assertEquals(0, hello.getFeatures());
+				assertTrue(hello.supportsMessage(MessageConstants.ID_REQ_PING));
+
+				// A hello arriving afterwards may not agree with what was already sent
+				sendHello(accepted, factory);
+				assertTrue(closed.await(5, TimeUnit.SECONDS));
+			} finally {
+				handler.shutdown();
+				channel.close();
+			}
+		}
+	}
+
+	@Test
+	public void testHandshakeTimeoutDisconnect() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		MessageFactory factory = MessageFactory.create();
+		ChannelReactor reactor = new ChannelReactor(1, 2);
+		// Peer which never sends its hello
+		try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+			peer.bind(new InetSocketAddress("localhost", port));
+			ChannelOptions options = new ChannelOptions();
+			options.setReactor(reactor);
+			options.setHandshakeTimeoutMillis(200);
+			options.setHandshakeTimeoutPolicy(HandshakeTimeoutPolicy.DISCONNECT);
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+			ChannelHandler handler = new ChannelHandler(channel, ByteBufferAllocator.HEAP, factory, options, null);
+			try (SocketChannel accepted = peer.accept()) {
+				handler.start();
+				Future<Void> write = handler.write(new RequestPingMessage(), handler.getNextFrameId()).getFuture();
+
+				// Held writes fail, and the channel is closed
+				ExecutionException ex = assertThrows(ExecutionException.class, () -> write.get(5, TimeUnit.SECONDS));
+				assertInstanceOf(TimeoutException.class, ex.getCause());
+				assertNull(handler.awaitHandshake(5, TimeUnit.SECONDS));
+				ByteBuffer header = readFully(accepted, 10);
+				assertEquals(MessageConstants.ID_CTL_HELLO, header.getShort(4));
+				readFully(accepted, header.getInt(6));
+				assertThrows(ClosedChannelException.class, () -> readFully(accepted, 1));
+			} finally {
+				handler.shutdown();
+				reactor.close();
+			}
+		}
+	}
+
+	@Test
+	public void testBatchRequests() throws Exception {
+		int port = SocketAvailability.findAvailable();
+		// Both sides know of a message the server has no handler for
+		MessageFactory factory = MessageFactory.create();
+		factory.register(0x700, CommonCodecs.emptyMessage(UnknownRequestMessage::new));
+		Server server = Server.open(null, new InetSocketAddress("localhost", port), ByteBufferAllocator.HEAP, factory);
+		Client client = new Client("localhost", port, ByteBufferAllocator.HEAP, factory);
+		try {
+			assertTrue(client.connect());
+			List<AbstractRequestMessage<?>> requests = new ArrayList<>();
+			String[] names = {"MAX_VALUE", "MIN_VALUE", "SIZE", "BYTES"};
+			for (String name : names)
+				requests.add(new RequestFieldGetMessage(new MemberData("java/lang/Integer", name, "I")));
+			requests.add(new RequestPingMessage());
+			requests.add(new UnknownRequestMessage());
+			requests.add(new RequestBatchMessage(Collections.singletonList(new RequestPingMessage())));
+
+			// Replies are in the same order as the requests, with null for the unhandled request
+			ReplyBatchMessage batch = client.request(new RequestBatchMessage(requests)).get(5, TimeUnit.SECONDS);
+			assertEquals(requests.size(), batch.getReplies().size());
+			assertEquals(String.valueOf(Integer.MAX_VALUE), batch.<ReplyFieldGetMessage>getReply(0).getValueText());
+			assertEquals(String.valueOf(Integer.MIN_VALUE), batch.<ReplyFieldGetMessage>getReply(1).getValueText());
+			assertEquals(String.valueOf(Integer.SIZE), batch.<ReplyFieldGetMessage>getReply(2).getValueText());
+			assertEquals(String.valueOf(Integer.BYTES), batch.<ReplyFieldGetMessage>getReply(3).getValueText());
+			assertInstanceOf(ReplyPingMessage.class, batch.getReply(4));
+			assertNull(batch.getReply(5));
+			ReplyBatchMessage nested = batch.getReply(6);
+			assertInstanceOf(ReplyPingMessage.class, nested.getReply(0));
+
+			// Empty batches are answered too
+			assertTrue(client.request(new RequestBatchMessage(Collections.emptyList()))
+					.get(5, TimeUnit.SECONDS).getReplies().isEmpty());
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	private static ControlHelloMessage handshake(SocketChannel channel, MessageFactory factory) throws Exception {
+		// Read the hello sent first by the handler
+		ByteBuffer header = readFully(channel, 10);
+		assertEquals(ApiConstants.CONTROL_MESSAGE_ID, header.getInt());
+		assertEquals(MessageConstants.ID_CTL_HELLO, header.getShort());
+		ControlHelloMessage hello = ControlHelloMessage.CODEC.decode(new ByteBufferDataInput(readFully(channel, header.getInt())));
+
+		// Reply with our own, so that it sends everything else
+		sendHello(channel, factory);
+		return hello;
+	}
+
+	private static void sendHello(SocketChannel channel, MessageFactory factory) throws Exception {
+		int[] ids = factory.getIds();
+		ByteBuffer reply = ByteBuffer.allocate(28 + ids.length * 2);
+		reply.putInt(ApiConstants.CONTROL_MESSAGE_ID);
+		reply.putShort((short) MessageConstants.ID_CTL_HELLO);
+		reply.putInt(18 + ids.length * 2);
+		reply.putInt(ApiConstants.PROTOCOL_VERSION);
+		reply.putInt(0);
+		reply.putInt(0);
+		reply.putInt(0);
+		reply.putShort((short) ids.length);
+		for (int id : ids)
+			reply.putShort((short) id);
+		reply.flip();
+		while (reply.hasRemaining())
+			channel.write(reply);
+	}
+
+	private static SharedMemoryChannel openSharedMemory(Path path) throws Exception {
+		// The server re-creates the rings shortly after the previous client disconnects
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				return SharedMemoryChannel.open(path, WaitStrategy.SPIN_THEN_PARK);
+			} catch (ClosedChannelException ex) {
+				if (System.currentTimeMillis() > deadline)
+					throw ex;
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	private static ByteBuffer readFully(SocketChannel channel, int length) throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new ClosedChannelException();
+		buffer.flip();
+		return buffer;
+	}
+
+	public static class UnknownRequestMessage extends AbstractRequestMessage<ReplyPingMessage> {
+	}
+
+	public static class BrokenRequestMessage extends AbstractRequestMessage<ReplyPingMessage> {
+	}
+}
@@ -0,0 +1,128 @@
+package software.coley.instrument.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import software.coley.instrument.io.ByteBufferAllocator;
+import software.coley.instrument.io.ByteBufferDataInput;
+import software.coley.instrument.io.ByteBufferDataOutput;
+import software.coley.instrument.io.codec.CommonCodecs;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the bulk primitive array paths of {@link CommonCodecs} against per-element reads and writes.
+ * <br>
+ * Run with {@link #main(String[])} from the test classpath.
+ *
+ * @author Matt Coley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings({"StatementWithEmptyBody", "RedundantCast"})
+public class ArrayCodecBenchmark {
+	@Param({"16", "1024", "65536", "1048576"})
+	private int size;
+	private long[] longs;
+	private int[] ints;
+	private ByteBufferDataOutput output;
+	private ByteBuffer encodedLongs;
+	private ByteBuffer encodedInts;
+
+	@Setup
+	public void setup() throws IOException {
+		Random random = new Random(size);
+		longs = new long[size];
+		ints = new int[size];
+		for (int i = 0; i < size; i++) {
+			longs[i] = random.nextLong();
+			ints[i] = random.nextInt();
+		}
+		output = new ByteBufferDataOutput(ByteBufferAllocator.HEAP);
+		CommonCodecs.LONG_ARRAY.encode(output, longs);
+		encodedLongs = copy(output.consume());
+		output.reset();
+		CommonCodecs.INT_ARRAY.encode(output, ints);
+		encodedInts = copy(output.consume());
+	}
+
+	@Benchmark
+	public ByteBuffer writeLongsBulk() throws IOException {
+		output.reset();
+		CommonCodecs.LONG_ARRAY.encode(output, longs);
+		return output.getBuffer();
+	}
+
+	@Benchmark
+	public ByteBuffer writeLongsPerElement() {
+		output.reset();
+		output.writeInt(longs.length);
+		for (int i = 0, j = longs.length; i < j; output.writeLong(longs[i++])) ;
+		return output.getBuffer();
+	}
+
+	@Benchmark
+	public long[] readLongsBulk() throws IOException {
+		return CommonCodecs.LONG_ARRAY.decode(new ByteBufferDataInput(encodedLongs.duplicate()));
+	}
+
+	@Benchmark
+	public long[] readLongsPerElement() {
+		ByteBufferDataInput input = new ByteBufferDataInput(encodedLongs.duplicate());
+		int len = input.readInt();
+		long[] arr = new long[len];
+		for (int i = 0; i < len; arr[i++] = input.readLong()) ;
+		return arr;
+	}
+
+	@Benchmark
+	public ByteBuffer writeIntsBulk() throws IOException {
+		output.reset();
+		CommonCodecs.INT_ARRAY.encode(output, ints);
+		return output.getBuffer();
+	}
+
+	@Benchmark
+	public ByteBuffer writeIntsPerElement() {
+		output.reset();
+		output.writeInt(ints.length);
+		for (int i = 0, j = ints.length; i < j; output.writeInt(ints[i++])) ;
+		return output.getBuffer();
+	}
+
+	@Benchmark
+	public int[] readIntsBulk() throws IOException {
+		return CommonCodecs.INT_ARRAY.decode(new ByteBufferDataInput(encodedInts.duplicate()));
+	}
+
+	@Benchmark
+	public int[] readIntsPerElement() {
+		ByteBufferDataInput input = new ByteBufferDataInput(encodedInts.duplicate());
+		int len = input.readInt();
+		int[] arr = new int[len];
+		for (int i = 0; i < len; arr[i++] = input.readInt()) ;
+		return arr;
+	}
+
+	private static ByteBuffer copy(ByteBuffer buffer) {
+		ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+		copy.put(buffer.duplicate());
+		((Buffer) copy).flip();
+		return copy;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(ArrayCodecBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
@@ -0,0 +1,143 @@
+package software.coley.instrument.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import software.coley.instrument.io.ByteBufferAllocator;
+import software.coley.instrument.io.ByteBufferDataInput;
+import software.coley.instrument.io.ByteBufferDataOutput;
+
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the UTF-8 string paths of {@link ByteBufferDataOutput} and {@link ByteBufferDataInput} against the
+ * previous implementation, which made a new encoder or decoder for every string.
+ * <br>
+ * Run with {@link #main(String[])} from the test classpath.
+ *
+ * @author Matt Coley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("RedundantCast")
+public class UtfCodecBenchmark {
+	private static final int COUNT = 1000;
+	@Param({"ascii", "mixed"})
+	private String text;
+	@Param({"heap", "direct"})
+	private String memory;
+	private String[] strings;
+	private ByteBufferDataOutput output;
+	private ByteBuffer legacyOutput;
+	private ByteBuffer encoded;
+	private ByteBufferDataInput input;
+
+	@Setup
+	public void setup() {
+		// Class names and stack frames, like those in most messages
+		strings = new String[COUNT];
+		for (int i = 0; i < COUNT; i++) {
+			String name = "software/coley/instrument/sample/Type" + i;
+			if (text.equals("mixed") && i % 4 == 0)
+				name += "\u00e9\u00e8\u4e2d";
+			strings[i] = i % 2 == 0 ? name : name + ".method(Type" + i + ".java:" + i + ")";
+		}
+		boolean direct = memory.equals("direct");
+		ByteBufferAllocator allocator = direct ? ByteBufferAllocator.DIRECT : ByteBufferAllocator.HEAP;
+		output = new ByteBufferDataOutput(allocator);
+		for (String s : strings)
+			output.writeUTF(s);
+		ByteBuffer written = output.consume();
+		encoded = allocator.allocate(written.remaining());
+		encoded.put(written);
+		((Buffer) encoded).flip();
+		legacyOutput = allocator.allocate(encoded.capacity() * 2);
+		input = new ByteBufferDataInput(encoded);
+	}
+
+	@Benchmark
+	public ByteBuffer writeUtf() {
+		output.reset();
+		for (String s : strings)
+			output.writeUTF(s);
+		return output.getBuffer();
+	}
+
+	@Benchmark
+	public ByteBuffer writeUtfLegacy() {
+		ByteBuffer buffer = legacyOutput;
+		((Buffer) buffer).clear();
+		for (String s : strings)
+			legacyWriteUtf(buffer, s);
+		return buffer;
+	}
+
+	@Benchmark
+	public String readUtf() {
+		((Buffer) encoded).rewind();
+		String last = null;
+		for (int i = 0; i < COUNT; i++)
+			last = input.readUTF();
+		return last;
+	}
+
+	@Benchmark
+	public String readUtfLegacy() {
+		ByteBuffer buffer = encoded;
+		((Buffer) buffer).rewind();
+		String last = null;
+		for (int i = 0; i < COUNT; i++)
+			last = legacyReadUtf(buffer);
+		return last;
+	}
+
+	/**
+	 * Previous {@link ByteBufferDataOutput#writeUTF(String)}, into a buffer large enough to not need to grow.
+	 */
+	private static void legacyWriteUtf(ByteBuffer buffer, String s) {
+		CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+		CharBuffer cb = CharBuffer.wrap(s);
+		int position = buffer.position();
+		buffer.putInt(-1);
+		CoderResult result = encoder.encode(cb, buffer, true);
+		if (!result.isUnderflow() || cb.hasRemaining())
+			throw new IllegalStateException("Unexpected coder result: " + result);
+		buffer.putInt(position, buffer.position() - position - 4);
+	}
+
+	/**
+	 * Previous {@link ByteBufferDataInput#readUTF()}.
+	 */
+	private static String legacyReadUtf(ByteBuffer buffer) {
+		int len = buffer.getInt();
+		ByteBuffer slice = buffer.slice().order(buffer.order());
+		((Buffer) slice).limit(len);
+		CharBuffer cb;
+		try {
+			cb = StandardCharsets.UTF_8.newDecoder().decode(slice);
+		} catch (CharacterCodingException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		((Buffer) buffer).position(buffer.position() + slice.position());
+		return cb.toString();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(UtfCodecBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
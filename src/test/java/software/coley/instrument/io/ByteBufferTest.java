@@ -1,9 +1,19 @@
 package software.coley.instrument.io;
 
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
+import software.coley.instrument.io.codec.CommonCodecs;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -23,11 +33,201 @@ public void testUtf8(String text) {
 		assertFalse(buffer.hasRemaining());
 	}
 
+	@MethodSource("utf8Text")
+	@ParameterizedTest
+	public void testUtf8Direct(String text) {
+		// Non-ASCII text is larger than first reserved, so the output has to grow
+		ByteBufferDataOutput output = new ByteBufferDataOutput(ByteBufferAllocator.DIRECT);
+		output.writeUTF(text);
+		ByteBuffer buffer = output.consume();
+		assertTrue(buffer.isDirect());
+		ByteBufferDataInput input = new ByteBufferDataInput(buffer);
+		assertEquals(text, input.readUTF());
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@MethodSource("utf8Text")
+	@ParameterizedTest
+	public void testUtf8WireFormat(String text) {
+		ByteBufferDataOutput output = new ByteBufferDataOutput(ByteBufferAllocator.HEAP);
+		output.writeUTF(text);
+		ByteBuffer buffer = output.consume();
+		byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+		assertEquals(expected.length, buffer.getInt());
+		byte[] actual = new byte[buffer.remaining()];
+		buffer.get(actual);
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void testUtf8Reuse() {
+		// Encoder and decoder state carries over between strings of one stream
+		List<String> texts = utf8Text();
+		ByteBufferDataOutput output = new ByteBufferDataOutput(ByteBufferAllocator.HEAP);
+		for (String text : texts)
+			output.writeUTF(text);
+		output.writeUTF("\ud800 lone surrogate");
+		ByteBuffer buffer = output.consume();
+		ByteBufferDataInput input = new ByteBufferDataInput(buffer);
+		for (String text : texts)
+			assertEquals(text, input.readUTF());
+		assertEquals("? lone surrogate", input.readUTF());
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void testPooledAllocator() {
+		PooledByteBufferAllocator pool = new PooledByteBufferAllocator(ByteBufferAllocator.HEAP);
+
+		// Requests are rounded up to a size class, but limited to the requested size
+		ByteBuffer buffer = pool.allocate(100);
+		assertEquals(128, buffer.capacity());
+		assertEquals(100, buffer.limit());
+		assertFalse(buffer.isDirect());
+
+		// Released buffers are reused for requests of the same size class
+		buffer.putInt(1234);
+		pool.release(buffer);
+		assertEquals(1, pool.getPooledCount());
+		ByteBuffer reused = pool.allocate(65);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(65, reused.limit());
+		assertEquals(0, pool.getPooledCount());
+
+		// Requests larger than the largest size class are not pooled
+		ByteBuffer large = pool.allocate(PooledByteBufferAllocator.DEFAULT_MAX_SIZE + 1);
+		pool.release(large);
+		assertEquals(0, pool.getPooledCount());
+
+		// Direct pools only accept direct buffers
+		PooledByteBufferAllocator directPool = new PooledByteBufferAllocator(ByteBufferAllocator.DIRECT);
+		assertTrue(directPool.allocate(10).isDirect());
+		directPool.release(ByteBuffer.allocate(64));
+		assertEquals(0, directPool.getPooledCount());
+	}
+
+	@Test
+	public void testPooledAllocatorOwnership() {
+		PooledByteBufferAllocator pool = new PooledByteBufferAllocator(ByteBufferAllocator.HEAP);
+
+		// Buffers the pool did not hand out are not taken, even when they match a size class
+		pool.release(ByteBuffer.allocate(128));
+		pool.release(ByteBuffer.wrap(new byte[128]));
+		assertEquals(0, pool.getPooledCount());
+
+		// Neither are views sharing memory with a pooled buffer
+		ByteBuffer buffer = pool.allocate(128);
+		pool.release(buffer.duplicate());
+		pool.release(buffer.slice());
+		assertEquals(0, pool.getPooledCount());
+
+		// Releasing twice pools the buffer once
+		pool.release(buffer);
+		pool.release(buffer);
+		assertEquals(1, pool.getPooledCount());
+		assertSame(buffer, pool.allocate(128));
+		assertNotSame(buffer, pool.allocate(128));
+
+		// Same for direct pools
+		PooledByteBufferAllocator directPool = new PooledByteBufferAllocator(ByteBufferAllocator.DIRECT);
+		ByteBuffer direct = directPool.allocate(64);
+		directPool.release(direct.duplicate());
+		directPool.release(ByteBuffer.allocateDirect(64));
+		assertEquals(0, directPool.getPooledCount());
+		directPool.release(direct);
+		directPool.release(direct);
+		assertEquals(1, directPool.getPooledCount());
+	}
+
+	@Test
+	public void testPooledOutputGrowth() {
+		PooledByteBufferAllocator pool = new PooledByteBufferAllocator(ByteBufferAllocator.HEAP);
+		ByteBufferDataOutput output = new ByteBufferDataOutput(pool);
+		for (int i = 0; i < 1000; i++)
+			output.writeInt(i);
+
+		// Buffers outgrown by the output are returned to the pool
+		assertTrue(pool.getPooledCount() > 0);
+		ByteBuffer buffer = output.consume();
+		ByteBufferDataInput input = new ByteBufferDataInput(buffer);
+		for (int i = 0; i < 1000; i++)
+			assertEquals(i, input.readInt());
+		output.release();
+	}
+
+	@Test
+	public void testByteArrays() throws Exception {
+		byte[] data = new byte[100_000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		ByteBufferDataOutput output = new ByteBufferDataOutput(ByteBufferAllocator.HEAP);
+		CommonCodecs.BYTE_ARRAY.encode(output, data);
+		CommonCodecs.BYTE_BUFFER.encode(output, ByteBuffer.wrap(data, 10, 20));
+		ByteBuffer buffer = output.consume();
+
+		// Copying decode
+		ByteBufferDataInput input = new ByteBufferDataInput(buffer);
+		assertArrayEquals(data, CommonCodecs.BYTE_ARRAY.decode(input));
+		assertFalse(input.isViewed());
+
+		// View decode, sharing content with the input buffer
+		ByteBuffer view = CommonCodecs.BYTE_BUFFER.decode(input);
+		assertTrue(input.isViewed());
+		assertTrue(view.isReadOnly());
+		assertEquals(20, view.remaining());
+		for (int i = 0; i < 20; i++)
+			assertEquals(data[10 + i], view.get(i));
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void testPrimitiveArrays() throws Exception {
+		long[] longs = {Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE};
+		int[] ints = {Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE};
+		double[] doubles = {Double.NaN, -0.0, 1.5, Double.MAX_VALUE};
+		float[] floats = {Float.NaN, -0.0F, 1.5F, Float.MAX_VALUE};
+		ByteBufferDataOutput output = new ByteBufferDataOutput(ByteBufferAllocator.HEAP);
+		// Offset by a byte so bulk views do not start on an aligned position
+		output.writeByte(7);
+		CommonCodecs.LONG_ARRAY.encode(output, longs);
+		CommonCodecs.INT_ARRAY.encode(output, ints);
+		CommonCodecs.DOUBLE_ARRAY.encode(output, doubles);
+		CommonCodecs.FLOAT_ARRAY.encode(output, floats);
+		ByteBuffer buffer = output.consume();
+
+		// Bulk encoding must match the per-element DataOutput layout
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeByte(7);
+		CommonCodecs.LONG_ARRAY.encode(dos, longs);
+		CommonCodecs.INT_ARRAY.encode(dos, ints);
+		CommonCodecs.DOUBLE_ARRAY.encode(dos, doubles);
+		CommonCodecs.FLOAT_ARRAY.encode(dos, floats);
+		byte[] expected = baos.toByteArray();
+		byte[] actual = new byte[buffer.remaining()];
+		buffer.duplicate().get(actual);
+		assertArrayEquals(expected, actual);
+
+		ByteBufferDataInput input = new ByteBufferDataInput(buffer);
+		assertEquals(7, input.readByte());
+		assertArrayEquals(longs, CommonCodecs.LONG_ARRAY.decode(input));
+		assertArrayEquals(ints, CommonCodecs.INT_ARRAY.decode(input));
+		assertArrayEquals(doubles, CommonCodecs.DOUBLE_ARRAY.decode(input));
+		assertArrayEquals(floats, CommonCodecs.FLOAT_ARRAY.decode(input));
+		assertFalse(buffer.hasRemaining());
+	}
+
 	private static List<String> utf8Text() {
 		return Arrays.asList(
 				"Hello, World!",
 				repeat('A', 512),
-				repeat('B', 1321)
+				repeat('B', 1321),
+				"d\u00e9j\u00e0 vu",
+				"\u65e5\u672c\u8a9e",
+				"Emoji \ud83d\ude00!",
+				repeat('C', 100) + "\u00ff" + repeat('D', 100),
+				repeat('E', 64) + repeat('\u4e2d', 700) + repeat('F', 64)
 		);
 	}
 
@@ -36,4 +236,62 @@ private static String repeat(char c, int times) {
 		Arrays.fill(buf, c);
 		return new String(buf);
 	}
+
+	@Test
+	public void testChunkedData() throws Exception {
+		PooledByteBufferAllocator pool = new PooledByteBufferAllocator(ByteBufferAllocator.HEAP);
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		ChunkedDataOutput output = new ChunkedDataOutput(pool, 64);
+		writeMixed(output, data);
+
+		// Content is split over chunks, which are each no larger than the chunk size
+		assertTrue(output.getChunkCount() > 1);
+		long size = output.size();
+		List<ByteBuffer> chunks = output.takeChunks();
+		assertEquals(0, output.getChunkCount());
+		long total = 0;
+		for (ByteBuffer chunk : chunks) {
+			assertTrue(chunk.remaining() <= 64);
+			total += chunk.remaining();
+		}
+		assertEquals(size, total);
+		readMixed(new ChunkedDataInput(chunks), data);
+
+		// Values split across chunk boundaries are also supported
+		ByteBufferDataOutput contiguous = new ByteBufferDataOutput(ByteBufferAllocator.HEAP);
+		writeMixed(contiguous, data);
+		ByteBuffer buffer = contiguous.consume();
+		List<ByteBuffer> slices = new ArrayList<>();
+		for (int i = 0; i < buffer.limit(); i += 3) {
+			ByteBuffer slice = buffer.duplicate();
+			ByteBufferCompat.compatPosition(slice, i);
+			ByteBufferCompat.compatLimit(slice, Math.min(buffer.limit(), i + 3));
+			slices.add(slice.slice());
+		}
+		ChunkedDataInput input = new ChunkedDataInput(slices);
+		readMixed(input, data);
+		assertThrows(EOFException.class, input::readByte);
+	}
+
+	private static void writeMixed(DataOutput output, byte[] data) throws IOException {
+		output.writeByte(1);
+		output.writeLong(Long.MAX_VALUE);
+		output.writeUTF("Hello, chunked world \u2603");
+		for (int i = 0; i < 20; i++)
+			output.writeInt(i);
+		CommonCodecs.BYTE_ARRAY.encode(output, data);
+		output.writeDouble(1.5);
+	}
+
+	private static void readMixed(DataInput input, byte[] data) throws IOException {
+		assertEquals(1, input.readByte());
+		assertEquals(Long.MAX_VALUE, input.readLong());
+		assertEquals("Hello, chunked world \u2603", input.readUTF());
+		for (int i = 0; i < 20; i++)
+			assertEquals(i, input.readInt());
+		assertArrayEquals(data, CommonCodecs.BYTE_ARRAY.decode(input));
+		assertEquals(1.5, input.readDouble());
+	}
 }
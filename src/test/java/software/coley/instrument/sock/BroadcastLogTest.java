@@ -0,0 +1,97 @@
+package software.coley.instrument.sock;
+
+import org.junit.jupiter.api.Test;
+import software.coley.instrument.data.ClassData;
+import software.coley.instrument.io.ByteBufferAllocator;
+import software.coley.instrument.message.MessageFactory;
+import software.coley.instrument.message.broadcast.AbstractBroadcastMessage;
+import software.coley.instrument.message.broadcast.BroadcastClassMessage;
+import software.coley.instrument.message.broadcast.BroadcastDroppedMessage;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BroadcastLogTest {
+	private final MessageFactory factory = MessageFactory.create();
+
+	@Test
+	public void testEvictsOldest() throws IOException {
+		// Room for five of the four byte broadcasts
+		BroadcastLog log = new BroadcastLog(22, 1);
+		assertTrue(log.canReplayAfter(0));
+		assertFalse(log.canReplayAfter(1));
+		for (int sequence = 1; sequence <= 50; sequence++) {
+			append(log, new BroadcastDroppedMessage(sequence), sequence);
+			assertEquals(Math.min(sequence, 5), log.size());
+			assertEquals(Math.max(1, sequence - 4), log.getFirstSequence());
+			assertEquals(sequence, log.getLastSequence());
+			// Wrapping around gives up the space at the end, which is never more than one entry
+			List<EncodedFrame<AbstractBroadcastMessage>> frames = log.replay(0, factory, ByteBufferAllocator.HEAP);
+			assertEquals(log.size(), frames.size());
+			for (int i = 0; i < frames.size(); i++) {
+				EncodedFrame<AbstractBroadcastMessage> frame = frames.get(i);
+				long expected = log.getFirstSequence() + i;
+				assertEquals(expected, frame.getMessage().getSequence());
+				assertEquals(expected, ((BroadcastDroppedMessage) frame.getMessage()).getCount());
+				frame.release();
+			}
+		}
+		assertFalse(log.canReplayAfter(44));
+		assertTrue(log.canReplayAfter(45));
+		assertTrue(log.canReplayAfter(50));
+		assertFalse(log.canReplayAfter(51));
+		assertEquals(2, log.replay(48, factory, ByteBufferAllocator.HEAP).size());
+	}
+
+	@Test
+	public void testVaryingSizes() throws IOException {
+		BroadcastLog log = new BroadcastLog(64 * 1024, 1);
+		for (int sequence = 1; sequence <= 200; sequence++) {
+			byte[] code = new byte[(sequence * 997) % 12000];
+			code[code.length / 2] = (byte) sequence;
+			append(log, new BroadcastClassMessage(new ClassData("C" + sequence, 0, code)), sequence);
+		}
+		assertEquals(200, log.getLastSequence());
+		long first = log.getFirstSequence();
+		assertTrue(first > 1);
+		assertTrue(log.canReplayAfter(first - 1));
+		assertFalse(log.canReplayAfter(first - 2));
+		List<EncodedFrame<AbstractBroadcastMessage>> frames = log.replay(first - 1, factory, ByteBufferAllocator.HEAP);
+		assertEquals(201 - first, frames.size());
+		for (EncodedFrame<AbstractBroadcastMessage> frame : frames) {
+			long sequence = frame.getMessage().getSequence();
+			ClassData data = ((BroadcastClassMessage) frame.getMessage()).getData();
+			assertEquals("C" + sequence, data.getName());
+			assertEquals((sequence * 997) % 12000, data.getCode().length);
+			assertEquals((byte) sequence, data.getCode()[data.getCode().length / 2]);
+			frame.release();
+		}
+	}
+
+	@Test
+	public void testLargerThanCapacity() throws IOException {
+		BroadcastLog log = new BroadcastLog(16, 1);
+		append(log, new BroadcastDroppedMessage(1), 1);
+		append(log, new BroadcastClassMessage(new ClassData("Large", 0, new byte[64])), 2);
+		// Nothing before it can be replayed, and neither can it
+		assertEquals(0, log.size());
+		assertEquals(3, log.getFirstSequence());
+		assertFalse(log.canReplayAfter(1));
+		assertTrue(log.canReplayAfter(2));
+		append(log, new BroadcastDroppedMessage(3), 3);
+		assertEquals(1, log.replay(2, factory, ByteBufferAllocator.HEAP).size());
+		assertThrows(IllegalArgumentException.class, () -> append(log, new BroadcastDroppedMessage(3), 3));
+	}
+
+	private void append(BroadcastLog log, AbstractBroadcastMessage message, long sequence) throws IOException {
+		message.setSequence(sequence);
+		EncodedFrame<AbstractBroadcastMessage> frame = EncodedFrame.encode(message, factory, ByteBufferAllocator.HEAP);
+		try {
+			log.append(frame);
+		} finally {
+			frame.release();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package software.coley.instrument.sock;
+
+import org.junit.jupiter.api.Test;
+import software.coley.instrument.ApiConstants;
+import software.coley.instrument.message.MessageConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompactHeadersTest {
+	@Test
+	public void testRoundTrip() throws IOException {
+		// Random frame IDs, including the special IDs, types outside the common table, and frame flags
+		CompactHeaders sender = new CompactHeaders();
+		CompactHeaders receiver = new CompactHeaders();
+		Random random = new Random(0);
+		int frameId = 0;
+		for (int i = 0; i < 100_000; i++) {
+			int roll = random.nextInt(10);
+			int id = roll == 0 ? ApiConstants.CONTROL_MESSAGE_ID :
+					roll == 1 ? ApiConstants.BROADCAST_MESSAGE_ID :
+							roll == 2 ? random.nextInt() : (frameId += random.nextInt(3));
+			int type = (random.nextBoolean() ? MessageConstants.ID_REQ_PING : random.nextInt(0x0800)) |
+					(random.nextInt(16) << 11);
+			int length = random.nextBoolean() ? random.nextInt(128) : random.nextInt(Integer.MAX_VALUE);
+			int size = sender.encode(id, type, length);
+			assertTrue(size <= CompactHeaders.MAX_SIZE);
+
+			// Incomplete headers are not parsed
+			ByteBuffer buffer = ByteBuffer.allocate(CompactHeaders.MAX_SIZE + 1);
+			buffer.position(1);
+			buffer.put(sender.getEncoded(), 0, size);
+			assertEquals(0, receiver.decode(buffer, 1, size - 1));
+			assertEquals(size, receiver.decode(buffer, 1, size));
+			assertEquals(id, receiver.getFrameId());
+			assertEquals(type, receiver.getMessageType());
+			assertEquals(length, receiver.getMessageLength());
+		}
+	}
+
+	@Test
+	public void testPingSize() {
+		CompactHeaders sender = new CompactHeaders();
+		assertEquals(4, sender.encode(1, MessageConstants.ID_REQ_PING, 0));
+		assertEquals(4, sender.encode(2, MessageConstants.ID_REQ_PING, 0));
+		assertEquals(3, sender.encode(ApiConstants.CONTROL_MESSAGE_ID, MessageConstants.ID_CTL_CREDIT, 4));
+	}
+}
@@ -0,0 +1,113 @@
+package software.coley.instrument.sock;
+
+import org.junit.jupiter.api.Test;
+import software.coley.instrument.io.ByteBufferAllocator;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrameReaderTest {
+	@Test
+	public void testFramesAcrossReads() throws Exception {
+		// Frames of all sizes, some far larger than the read buffer, arriving in random pieces
+		Random random = new Random(0);
+		int count = 2000;
+		byte[][] contents = new byte[count][];
+		ByteBuffer stream = ByteBuffer.allocate(8 * 1024 * 1024);
+		for (int i = 0; i < count; i++) {
+			int length = random.nextInt(10) == 0 ? random.nextInt(5000) : random.nextInt(40);
+			contents[i] = new byte[length];
+			random.nextBytes(contents[i]);
+			stream.putInt(i);
+			stream.putShort((short) (i & ChannelHandler.TYPE_MASK));
+			stream.putInt(length);
+			stream.put(contents[i]);
+		}
+		stream.flip();
+		ChannelOptions options = new ChannelOptions();
+		options.setReadBufferSize(256);
+		ChannelStats stats = new ChannelStats();
+		FrameReader reader = new FrameReader(ByteBufferAllocator.HEAP, new CompactHeaders(), stats, options);
+		PieceChannel channel = new PieceChannel(stream, random);
+		for (int i = 0; i < count; i++) {
+			ByteBuffer content = reader.read(channel);
+			assertEquals(i, reader.getFrameId());
+			assertEquals(i & ChannelHandler.TYPE_MASK, reader.getMessageType());
+			byte[] actual = new byte[content.remaining()];
+			content.get(actual);
+			assertArrayEquals(contents[i], actual);
+		}
+		assertThrows(ClosedChannelException.class, () -> reader.read(channel));
+		assertEquals(count, stats.getMessagesRead());
+		assertEquals(stream.limit(), stats.getBytesRead());
+		assertTrue(stats.getReadCount() < count);
+	}
+
+	@Test
+	public void testDetach() throws Exception {
+		ByteBuffer stream = ByteBuffer.allocate(64);
+		for (int i = 0; i < 2; i++) {
+			stream.putInt(i);
+			stream.putShort((short) 1);
+			stream.putInt(4);
+			stream.putInt(100 + i);
+		}
+		stream.flip();
+		ChannelOptions options = new ChannelOptions();
+		options.setReadBufferSize(64);
+		FrameReader reader = new FrameReader(ByteBufferAllocator.HEAP, new CompactHeaders(), new ChannelStats(), options);
+		PieceChannel channel = new PieceChannel(stream, null);
+
+		// Both frames come from one read, and are slices of the read-ahead buffer
+		ByteBuffer first = reader.read(channel);
+		assertTrue(reader.isSlice(first));
+		assertEquals(14, reader.getBuffered());
+
+		// Once detached, the slice keeps its content, and the rest is still read
+		reader.detach();
+		ByteBuffer second = reader.read(channel);
+		assertEquals(100, first.getInt(0));
+		assertEquals(101, second.getInt(0));
+		assertFalse(reader.isSlice(first));
+	}
+
+	/**
+	 * Channel returning random sized pieces of a stream, then the end of the stream.
+	 */
+	private static class PieceChannel implements ReadableByteChannel {
+		private final ByteBuffer stream;
+		private final Random random;
+
+		private PieceChannel(ByteBuffer stream, Random random) {
+			this.stream = stream;
+			this.random = random;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (!stream.hasRemaining())
+				return -1;
+			int count = Math.min(dst.remaining(), stream.remaining());
+			if (random != null)
+				count = Math.min(count, 1 + random.nextInt(1000));
+			ByteBuffer piece = stream.duplicate();
+			piece.limit(piece.position() + count);
+			dst.put(piece);
+			stream.position(stream.position() + count);
+			return count;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package software.coley.instrument.sock;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrameTableTest {
+	@Test
+	public void testMatchesMap() {
+		// Random puts and removes, including ids far apart and colliding in the low bits
+		FrameTable<ResponseListener> table = new FrameTable<>();
+		Map<Integer, ResponseListener> expected = new HashMap<>();
+		Random random = new Random(0);
+		for (int i = 0; i < 100_000; i++) {
+			int frameId = random.nextInt(64) + (random.nextBoolean() ? 0 : random.nextInt(4) << 20);
+			if (random.nextInt(3) == 0) {
+				assertSame(expected.remove(frameId), table.remove(frameId));
+			} else {
+				ResponseListener listener = (id, message) -> {};
+				assertSame(expected.put(frameId, listener), table.put(frameId, listener, FrameTable.NEVER));
+			}
+			assertEquals(expected.size(), table.size());
+		}
+		for (Map.Entry<Integer, ResponseListener> entry : expected.entrySet())
+			assertSame(entry.getValue(), table.remove(entry.getKey()));
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testExpiry() {
+		FrameTable<ResponseListener> table = new FrameTable<>();
+		ResponseListener listener = (id, message) -> {};
+		long now = System.nanoTime();
+		for (int i = 0; i < 100; i++)
+			table.put(i, listener, i % 2 == 0 ? now + i : FrameTable.NEVER);
+		assertFalse(table.hasExpired(now - 1));
+
+		// Only entries past their deadline are removed, all at once
+		List<Integer> expired = new ArrayList<>();
+		table.removeExpired(now + 50, (id, l) -> expired.add(id));
+		assertEquals(26, expired.size());
+		for (int id : expired)
+			assertTrue(id % 2 == 0 && id <= 50);
+		assertEquals(74, table.size());
+		assertFalse(table.hasExpired(now + 50));
+		assertTrue(table.hasExpired(now + 52));
+
+		// Removing all includes entries which never expire
+		List<Integer> removed = new ArrayList<>();
+		table.removeAll((id, l) -> removed.add(id));
+		assertEquals(74, removed.size());
+		assertEquals(0, table.size());
+		assertNull(table.remove(1));
+	}
+}
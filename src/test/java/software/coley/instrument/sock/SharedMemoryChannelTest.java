@@ -0,0 +1,82 @@
+package software.coley.instrument.sock;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.coley.instrument.util.WaitStrategy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SharedMemoryChannelTest {
+	@TempDir
+	Path dir;
+
+	@BeforeEach
+	public void checkSupported() {
+		Assumptions.assumeTrue(SharedMemoryChannel.isSupported(), "Requires Java 9+");
+	}
+
+	@Test
+	public void testTransfer() throws Exception {
+		// Far more content than the ring holds, in odd sizes so that copies wrap around the end of the ring
+		Path path = dir.resolve("ring");
+		byte[] data = new byte[3_000_000];
+		new Random(0).nextBytes(data);
+		try (SharedMemoryChannel server = SharedMemoryChannel.create(path, 4096, WaitStrategy.SPIN_THEN_PARK);
+			 SharedMemoryChannel client = SharedMemoryChannel.open(path, WaitStrategy.PARK)) {
+			CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+				try {
+					Random random = new Random(1);
+					int offset = 0;
+					while (offset < data.length) {
+						int length = Math.min(data.length - offset, 1 + random.nextInt(10_000));
+						client.write(ByteBuffer.wrap(data, offset, length));
+						offset += length;
+					}
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+			});
+			byte[] received = new byte[data.length];
+			ByteBuffer buffer = ByteBuffer.wrap(received);
+			Random random = new Random(2);
+			while (buffer.position() < received.length) {
+				buffer.limit(Math.min(received.length, buffer.position() + 1 + random.nextInt(5_000)));
+				assertTrue(server.read(buffer) > 0);
+			}
+			writer.get(10, TimeUnit.SECONDS);
+			assertArrayEquals(data, received);
+		}
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		Path path = dir.resolve("ring");
+		try (SharedMemoryChannel server = SharedMemoryChannel.create(path, 4096, WaitStrategy.PARK)) {
+			SharedMemoryChannel client = SharedMemoryChannel.open(path, WaitStrategy.PARK);
+			// Only one client at a time
+			assertThrows(IOException.class, () -> SharedMemoryChannel.open(path, WaitStrategy.PARK));
+
+			// Content written before closing is still read, then the end of the stream is seen
+			client.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+			client.close();
+			assertTrue(server.isPeerClosed());
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			assertEquals(3, server.read(buffer));
+			assertEquals(-1, server.read(buffer));
+			assertThrows(ClosedChannelException.class, () -> server.write(ByteBuffer.allocate(1)));
+
+			// Closed rings cannot be opened again
+			assertThrows(IOException.class, () -> SharedMemoryChannel.open(path, WaitStrategy.PARK));
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package software.coley.instrument.util;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RingBufferQueueTest {
+	@ParameterizedTest
+	@EnumSource(WaitStrategy.class)
+	public void testBounded(WaitStrategy strategy) throws Exception {
+		RingBufferQueue<Integer> queue = new RingBufferQueue<>(3, strategy);
+		assertEquals(4, queue.capacity());
+		for (int i = 0; i < 4; i++)
+			assertTrue(queue.offer(i));
+		assertFalse(queue.offer(4));
+		assertFalse(queue.offer(4, 1, TimeUnit.MILLISECONDS));
+		assertEquals(4, queue.size());
+		assertEquals(0, queue.remainingCapacity());
+
+		// Drain in order, wrapping around the ring
+		assertEquals(0, queue.poll());
+		assertTrue(queue.offer(4));
+		List<Integer> drained = new ArrayList<>();
+		assertEquals(2, queue.drainTo(drained, 2));
+		assertEquals(2, queue.drainTo(drained));
+		assertEquals(0, queue.drainTo(drained));
+		assertEquals(Arrays.asList(1, 2, 3, 4), drained);
+		assertNull(queue.poll());
+		assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+		assertTrue(queue.isEmpty());
+	}
+
+	@ParameterizedTest
+	@EnumSource(WaitStrategy.class)
+	public void testManyProducers(WaitStrategy strategy) throws Exception {
+		int producers = 4;
+		int perProducer = 50_000;
+		RingBufferQueue<Integer> queue = new RingBufferQueue<>(64, strategy);
+		ExecutorService service = Executors.newFixedThreadPool(producers);
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			for (int p = 0; p < producers; p++) {
+				int producer = p;
+				service.submit(() -> {
+					start.await();
+					for (int i = 0; i < perProducer; i++)
+						queue.put(producer * perProducer + i);
+					return null;
+				});
+			}
+			start.countDown();
+
+			// Each producer's values must arrive exactly once, in the order that producer sent them
+			int[] next = new int[producers];
+			List<Integer> batch = new ArrayList<>();
+			int received = 0;
+			while (received < producers * perProducer) {
+				batch.clear();
+				Integer first = queue.poll(5, TimeUnit.SECONDS);
+				assertNotNull(first, "Timed out waiting for producers");
+				batch.add(first);
+				queue.drainTo(batch, 16);
+				for (int value : batch) {
+					int producer = value / perProducer;
+					assertEquals(next[producer]++, value % perProducer);
+				}
+				received += batch.size();
+			}
+			assertNull(queue.poll());
+		} finally {
+			service.shutdownNow();
+		}
+	}
+}